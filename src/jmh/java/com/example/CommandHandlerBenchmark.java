@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each registered {@link CommandHandler} on its own, from a copy of the stored states to
+ * the finished {@link StateDiff}, as the EXECUTE transaction applies it. Run with {@code ./gradlew
+ * jmh -PjmhInclude=CommandHandlerBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandHandlerBenchmark {
+  @Param({
+    "OnOff",
+    "BrightnessAbsolute",
+    "ColorAbsolute",
+    "ThermostatTemperatureSetpoint",
+    "SetModes",
+    "SetToggles",
+    "TimerAdjust",
+    "Dispense",
+    "setVolume"
+  })
+  public String command;
+
+  private CommandHandler handler;
+  private Map<String, Object> device;
+  private Map<String, Object> storedStates;
+  private Map<String, Object> params;
+
+  @Setup
+  public void setup() {
+    handler = CommandHandlers.get("action.devices.commands." + command);
+    if (handler == null) {
+      throw new IllegalArgumentException("no handler for " + command);
+    }
+    storedStates = new HashMap<>();
+    storedStates.put("online", true);
+    storedStates.put("on", false);
+    storedStates.put("brightness", 40L);
+    storedStates.put("thermostatMode", "heat");
+    storedStates.put("thermostatTemperatureSetpoint", 20.0);
+    storedStates.put("thermostatTemperatureAmbient", 19.0);
+    storedStates.put("thermostatHumidityAmbient", 45L);
+    storedStates.put("currentModeSettings", singleton("load", "small"));
+    storedStates.put("currentToggleSettings", singleton("sterilization", false));
+    storedStates.put("timerRemainingSec", 120);
+    storedStates.put("currentVolume", 10);
+    device = new HashMap<>();
+    device.put("states", storedStates);
+
+    params = new HashMap<>();
+    params.put("on", true);
+    params.put("brightness", 80L);
+    params.put("color", singleton("spectrumRGB", 16711680L));
+    params.put("thermostatTemperatureSetpoint", 22.5);
+    params.put("updateModeSettings", singleton("load", "large"));
+    params.put("updateToggleSettings", singleton("sterilization", true));
+    params.put("timerTimeSec", 30);
+    params.put("item", "water");
+    params.put("amount", 2);
+    params.put("unit", "CUPS");
+    params.put("volumeLevel", 25);
+  }
+
+  @Benchmark
+  public StateDiff execute() throws Exception {
+    StateDiff diff = new StateDiff(new HashMap<>(storedStates), new HashMap<>());
+    handler.execute(device, params, diff);
+    return diff;
+  }
+
+  private static Map<String, Object> singleton(String key, Object value) {
+    Map<String, Object> map = new HashMap<>();
+    map.put(key, value);
+    return map;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+
+/**
+ * Measures {@link MyDataStore#execute} for one command of each trait, including the transaction
+ * that reads the device document and writes back the changed fields, against the in-memory data
+ * store. Compare with {@link CommandHandlerBenchmark} for the cost of the handler alone. Run with
+ * {@code ./gradlew jmh -PjmhInclude=DataStoreExecuteBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataStoreExecuteBenchmark {
+  private static final String DEVICE_ID = "device-00000";
+
+  @Param({
+    "OnOff",
+    "BrightnessAbsolute",
+    "ColorAbsolute",
+    "ThermostatTemperatureSetpoint",
+    "SetModes",
+    "SetToggles",
+    "TimerAdjust",
+    "Dispense",
+    "setVolume"
+  })
+  public String command;
+
+  private MyDataStore database;
+  private ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+  @Setup
+  public void setup() throws Exception {
+    DeviceFixtures.useOfflineStore();
+    DeviceFixtures.seed(0);
+    database = MyDataStore.getInstance();
+
+    // One device with the states that every benchmarked command reads.
+    Map<String, Object> device = DeviceFixtures.device(0);
+    Map<String, Object> states = (Map<String, Object>) device.get("states");
+    states.put("thermostatMode", "heat");
+    states.put("thermostatTemperatureSetpoint", 20.0);
+    states.put("currentModeSettings", singleton("load", "small"));
+    states.put("currentToggleSettings", singleton("sterilization", false));
+    states.put("timerRemainingSec", 120L);
+    states.put("currentVolume", 10L);
+    database.addDevice(DeviceFixtures.USER_ID, device);
+
+    Map<String, Object> params = new HashMap<>();
+    params.put("on", true);
+    params.put("brightness", 80L);
+    params.put("color", singleton("spectrumRGB", 16711680L));
+    params.put("thermostatTemperatureSetpoint", 22.5);
+    params.put("updateModeSettings", singleton("load", "large"));
+    params.put("updateToggleSettings", singleton("sterilization", true));
+    params.put("timerTimeSec", 30L);
+    params.put("item", "water");
+    params.put("amount", 2L);
+    params.put("unit", "CUPS");
+    params.put("volumeLevel", 25L);
+    execution = DeviceFixtures.execution("action.devices.commands." + command, params);
+  }
+
+  @Benchmark
+  public Map<String, Object> execute() throws Exception {
+    return database.execute(DeviceFixtures.USER_ID, DEVICE_ID, execution);
+  }
+
+  private static Map<String, Object> singleton(String key, Object value) {
+    Map<String, Object> map = new HashMap<>();
+    map.put(key, value);
+    return map;
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.actions.api.smarthome.QueryRequest;
+import com.google.actions.api.smarthome.SmartHomeRequest;
+import com.google.actions.api.smarthome.SyncRequest;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Device documents and fulfillment requests for the benchmarks. Devices cycle through a light, a
+ * thermostat, a washer, a speaker and an outlet, with the attributes, states and optional fields
+ * the web frontend stores, and numbers typed the way Firestore returns them.
+ */
+final class DeviceFixtures {
+  static final String USER_ID = "benchmark-user";
+  static final String ACCESS_TOKEN = "benchmark-token";
+
+  private static final Gson GSON = new Gson();
+
+  private DeviceFixtures() {}
+
+  /**
+   * Points the data store at process memory and the outbox at a scratch directory, so the
+   * benchmarks need no Firestore and the state reports they cannot send do not pile up in the
+   * outbox of a local server. Call this before anything touches {@link MyDataStore}.
+   */
+  static void useOfflineStore() {
+    System.setProperty("DATA_STORE", "memory");
+    System.setProperty("TOKEN_INDEX_MIGRATION", "false");
+    try {
+      System.setProperty("OUTBOX_DIR", Files.createTempDirectory("benchmark-outbox").toString());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Creates the benchmark user with the given number of devices, replacing any earlier ones. */
+  static List<String> seed(int count) throws Exception {
+    MyDataStore database = MyDataStore.getInstance();
+    database.deleteUser(USER_ID);
+    Map<String, Object> user = new HashMap<>();
+    user.put("fakeAccessToken", ACCESS_TOKEN);
+    user.put("homegraph", true);
+    database.setUser(USER_ID, user);
+    List<Map<String, Object>> devices = devices(count);
+    List<String> deviceIds = new ArrayList<>();
+    for (Map<String, Object> device : devices) {
+      deviceIds.add((String) device.get("deviceId"));
+    }
+    for (String error : database.addDevices(USER_ID, devices)) {
+      if (error != null) {
+        throw new IllegalStateException("cannot seed devices: " + error);
+      }
+    }
+    return deviceIds;
+  }
+
+  static List<Map<String, Object>> devices(int count) {
+    List<Map<String, Object>> devices = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      devices.add(device(i));
+    }
+    return devices;
+  }
+
+  static Map<String, Object> device(int i) {
+    String deviceId = String.format("device-%05d", i);
+    switch (i % 5) {
+      case 0:
+        return light(deviceId);
+      case 1:
+        return thermostat(deviceId);
+      case 2:
+        return washer(deviceId);
+      case 3:
+        return speaker(deviceId);
+      default:
+        return outlet(deviceId);
+    }
+  }
+
+  private static Map<String, Object> base(
+      String deviceId, String type, String name, String... traits) {
+    Map<String, Object> device = new LinkedHashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("type", "action.devices.types." + type);
+    List<String> traitNames = new ArrayList<>();
+    for (String trait : traits) {
+      traitNames.add("action.devices.traits." + trait);
+    }
+    device.put("traits", traitNames);
+    device.put("name", name + " " + deviceId);
+    device.put("defaultNames", Arrays.asList("Smart " + name));
+    device.put("nicknames", Arrays.asList(name, deviceId));
+    device.put("willReportState", true);
+    device.put("roomHint", "Living Room");
+    device.put("manufacturer", "Smart Home Provider");
+    device.put("model", "sh-" + type.toLowerCase());
+    device.put("hwVersion", "3.2");
+    device.put("swVersion", "11.4");
+    device.put("attributes", new HashMap<String, Object>());
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    device.put("states", states);
+    return device;
+  }
+
+  private static Map<String, Object> attributes(Map<String, Object> device) {
+    return (Map<String, Object>) device.get("attributes");
+  }
+
+  private static Map<String, Object> states(Map<String, Object> device) {
+    return (Map<String, Object>) device.get("states");
+  }
+
+  private static Map<String, Object> map(Object... keysAndValues) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  private static Map<String, Object> light(String deviceId) {
+    Map<String, Object> device =
+        base(deviceId, "LIGHT", "Light", "OnOff", "Brightness", "ColorSetting");
+    attributes(device).put("colorModel", "rgb");
+    attributes(device)
+        .put("colorTemperatureRange", map("temperatureMinK", 2000L, "temperatureMaxK", 9000L));
+    states(device).put("on", false);
+    states(device).put("brightness", 65L);
+    states(device).put("color", map("spectrumRgb", 16711680L));
+    return device;
+  }
+
+  private static Map<String, Object> thermostat(String deviceId) {
+    Map<String, Object> device = base(deviceId, "THERMOSTAT", "Thermostat", "TemperatureSetting");
+    attributes(device).put("availableThermostatModes", "off,heat,cool,on,heatcool");
+    attributes(device).put("thermostatTemperatureUnit", "C");
+    states(device).put("thermostatMode", "heat");
+    states(device).put("thermostatTemperatureSetpoint", 20.5);
+    states(device).put("thermostatTemperatureAmbient", 19.0);
+    states(device).put("thermostatHumidityAmbient", 45L);
+    return device;
+  }
+
+  private static Map<String, Object> washer(String deviceId) {
+    Map<String, Object> device =
+        base(deviceId, "WASHER", "Washer", "OnOff", "StartStop", "RunCycle", "Modes", "Toggles");
+    attributes(device).put("pausable", true);
+    attributes(device)
+        .put(
+            "availableModes",
+            Arrays.asList(
+                map(
+                    "name",
+                    "load",
+                    "name_values",
+                    Arrays.asList(map("name_synonym", Arrays.asList("load", "size"), "lang", "en")),
+                    "settings",
+                    Arrays.asList(
+                        map(
+                            "setting_name",
+                            "small",
+                            "setting_values",
+                            Arrays.asList(
+                                map(
+                                    "setting_synonym",
+                                    Arrays.asList("small", "half"),
+                                    "lang",
+                                    "en"))),
+                        map(
+                            "setting_name",
+                            "large",
+                            "setting_values",
+                            Arrays.asList(
+                                map(
+                                    "setting_synonym",
+                                    Arrays.asList("large", "full"),
+                                    "lang",
+                                    "en")))),
+                    "ordered",
+                    true)));
+    attributes(device)
+        .put(
+            "availableToggles",
+            Arrays.asList(
+                map(
+                    "name",
+                    "Turbo",
+                    "name_values",
+                    Arrays.asList(
+                        map("name_synonym", Arrays.asList("turbo", "fast"), "lang", "en")))));
+    states(device).put("on", false);
+    states(device).put("isRunning", false);
+    states(device).put("isPaused", false);
+    states(device).put("currentModeSettings", map("load", "small"));
+    states(device).put("currentToggleSettings", map("Turbo", false));
+    device.put("customData", map("serial", "WSH-" + deviceId, "firmwareChannel", "stable"));
+    return device;
+  }
+
+  private static Map<String, Object> speaker(String deviceId) {
+    Map<String, Object> device = base(deviceId, "SPEAKER", "Speaker", "OnOff", "Volume");
+    attributes(device).put("volumeMaxLevel", 100L);
+    attributes(device).put("volumeCanMuteAndUnmute", true);
+    attributes(device).put("levelStepSize", 5L);
+    states(device).put("on", true);
+    states(device).put("currentVolume", 30L);
+    states(device).put("isMuted", false);
+    return device;
+  }
+
+  private static Map<String, Object> outlet(String deviceId) {
+    Map<String, Object> device = base(deviceId, "OUTLET", "Outlet", "OnOff");
+    states(device).put("on", true);
+    device.put("otherDeviceIds", Arrays.asList(map("deviceId", "local-" + deviceId)));
+    return device;
+  }
+
+  static SyncRequest syncRequest() {
+    JsonObject request = request("action.devices.SYNC");
+    return GSON.fromJson(request, SyncRequest.class);
+  }
+
+  static QueryRequest queryRequest(Collection<String> deviceIds) {
+    JsonObject request = request("action.devices.QUERY");
+    JsonArray devices = new JsonArray();
+    for (String deviceId : deviceIds) {
+      JsonObject device = new JsonObject();
+      device.addProperty("id", deviceId);
+      devices.add(device);
+    }
+    JsonObject payload = new JsonObject();
+    payload.add("devices", devices);
+    return withPayload(request, payload, QueryRequest.class, QueryRequest.Inputs.class);
+  }
+
+  static ExecuteRequest executeRequest(
+      Collection<String> deviceIds, String command, Map<String, Object> params) {
+    JsonObject request = request("action.devices.EXECUTE");
+    JsonArray devices = new JsonArray();
+    for (String deviceId : deviceIds) {
+      JsonObject device = new JsonObject();
+      device.addProperty("id", deviceId);
+      devices.add(device);
+    }
+    JsonArray execution = new JsonArray();
+    execution.add(GSON.toJsonTree(map("command", command, "params", params)));
+    JsonObject commands = new JsonObject();
+    commands.add("devices", devices);
+    commands.add("execution", execution);
+    JsonArray commandsArray = new JsonArray();
+    commandsArray.add(commands);
+    JsonObject payload = new JsonObject();
+    payload.add("commands", commandsArray);
+    return withPayload(request, payload, ExecuteRequest.class, ExecuteRequest.Inputs.class);
+  }
+
+  static ExecuteRequest.Inputs.Payload.Commands.Execution execution(
+      String command, Map<String, Object> params) {
+    return GSON.fromJson(
+        GSON.toJsonTree(map("command", command, "params", params)),
+        ExecuteRequest.Inputs.Payload.Commands.Execution.class);
+  }
+
+  private static JsonObject request(String intent) {
+    JsonObject input = new JsonObject();
+    input.addProperty("intent", intent);
+    JsonArray inputs = new JsonArray();
+    inputs.add(input);
+    JsonObject request = new JsonObject();
+    request.addProperty("requestId", "benchmark-request");
+    request.add("inputs", inputs);
+    return request;
+  }
+
+  private static <T extends SmartHomeRequest> T withPayload(
+      JsonObject request,
+      JsonObject payload,
+      Class<T> type,
+      Class<? extends SmartHomeRequest.RequestInputs> inputsType) {
+    JsonObject input = request.getAsJsonArray("inputs").get(0).getAsJsonObject();
+    input.add("payload", payload);
+    T parsed = GSON.fromJson(request, type);
+    // The inputs are declared with their base class, so read the first one as the intent's type.
+    parsed.getInputs()[0] = GSON.fromJson(input, inputsType);
+    return parsed;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.actions.api.smarthome.ExecuteResponse;
+import com.google.actions.api.smarthome.QueryRequest;
+import com.google.actions.api.smarthome.QueryResponse;
+import com.google.actions.api.smarthome.SyncRequest;
+import com.google.actions.api.smarthome.SyncResponse;
+
+/**
+ * Measures the SYNC, QUERY and EXECUTE intents of {@link MySmartHomeApp} for one user with a
+ * growing number of devices, against the in-memory data store. QUERY asks for every device of the
+ * user, and EXECUTE turns on up to {@link #EXECUTE_DEVICES} of them, like a room command. Run with
+ * {@code ./gradlew jmh -PjmhInclude=FulfillmentBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FulfillmentBenchmark {
+  private static final int EXECUTE_DEVICES = 10;
+
+  @Param({"1", "10", "100", "1000", "5000"})
+  public int devices;
+
+  private MySmartHomeApp app;
+  private Map<String, String> headers;
+  private SyncRequest syncRequest;
+  private QueryRequest queryRequest;
+  private ExecuteRequest executeRequest;
+
+  @Setup
+  public void setup() throws Exception {
+    DeviceFixtures.useOfflineStore();
+    List<String> deviceIds = DeviceFixtures.seed(devices);
+    app = new MySmartHomeApp();
+    headers = Collections.singletonMap("authorization", "Bearer " + DeviceFixtures.ACCESS_TOKEN);
+    syncRequest = DeviceFixtures.syncRequest();
+    queryRequest = DeviceFixtures.queryRequest(deviceIds);
+    executeRequest =
+        DeviceFixtures.executeRequest(
+            deviceIds.subList(0, Math.min(EXECUTE_DEVICES, deviceIds.size())),
+            "action.devices.commands.OnOff",
+            Collections.singletonMap("on", true));
+  }
+
+  /** SYNC after the device set changed, so the response is built from the device documents. */
+  @Benchmark
+  public SyncResponse onSync() {
+    SyncCache.invalidateUser(DeviceFixtures.USER_ID);
+    return app.onSync(syncRequest, headers);
+  }
+
+  /** SYNC when nothing changed since the last one, answered from the {@link SyncCache}. */
+  @Benchmark
+  public SyncResponse onSyncCached() {
+    return app.onSync(syncRequest, headers);
+  }
+
+  /** SYNC after the device set changed, joined from the stored SYNC fragments. */
+  @Benchmark
+  public String onSyncFromFragments() {
+    SyncCache.invalidateUser(DeviceFixtures.USER_ID);
+    return app.onSyncFromFragments(syncRequest.requestId, headers);
+  }
+
+  @Benchmark
+  public QueryResponse onQuery() {
+    return app.onQuery(queryRequest, headers);
+  }
+
+  @Benchmark
+  public ExecuteResponse onExecute() {
+    return app.onExecute(executeRequest, headers);
+  }
+}
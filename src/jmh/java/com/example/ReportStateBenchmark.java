@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+
+/**
+ * Measures building the ReportStateAndNotification payload for a user's devices, and computing
+ * which states changed since the last report, without sending anything to Home Graph. Run with
+ * {@code ./gradlew jmh -PjmhInclude=ReportStateBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportStateBenchmark {
+  @Param({"1", "10", "100", "1000", "5000"})
+  public int devices;
+
+  private Map<String, Map<String, Object>> devicesStates;
+  private ReportedStates reportedStates;
+
+  @Setup
+  public void setup() {
+    devicesStates = new LinkedHashMap<>();
+    reportedStates = new ReportedStates(devices, 1, TimeUnit.HOURS);
+    int i = 0;
+    for (Map<String, Object> device : DeviceFixtures.devices(devices)) {
+      String deviceId = (String) device.get("deviceId");
+      Map<String, Object> states = (Map<String, Object>) device.get("states");
+      devicesStates.put(deviceId, states);
+      // Every other device was last reported with a different online state.
+      Map<String, Object> reported = new HashMap<>(states);
+      if (i++ % 2 == 0) {
+        reported.put("online", false);
+      }
+      reportedStates.record(DeviceFixtures.USER_ID, deviceId, reported);
+    }
+  }
+
+  @Benchmark
+  public HomeGraphApiServiceProto.ReportStateAndNotificationRequest buildRequest() {
+    return ReportState.buildRequest(DeviceFixtures.USER_ID, devicesStates);
+  }
+
+  @Benchmark
+  public int delta() {
+    int changed = 0;
+    for (Map.Entry<String, Map<String, Object>> device : devicesStates.entrySet()) {
+      changed +=
+          reportedStates.delta(DeviceFixtures.USER_ID, device.getKey(), device.getValue()).size();
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+
+/**
+ * Compares converting the states and attributes of one device into a protobuf Struct through JSON
+ * text, as ReportState and SYNC used to, with walking the maps directly. Run with {@code ./gradlew
+ * jmh}; the gc profiler reports the bytes allocated per conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructConverterBenchmark {
+  private Map<String, Object> states;
+  private Map<String, Object> attributes;
+
+  @Setup
+  public void setup() {
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRgb", 16711680L);
+    states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", true);
+    states.put("brightness", 65L);
+    states.put("color", color);
+    states.put("thermostatMode", "heat");
+    states.put("thermostatTemperatureSetpoint", 21.5);
+    states.put("thermostatTemperatureAmbient", 19.0);
+
+    Map<String, Object> temperatureRange = new HashMap<>();
+    temperatureRange.put("temperatureMinK", 2000L);
+    temperatureRange.put("temperatureMaxK", 9000L);
+    attributes = new HashMap<>();
+    attributes.put("colorModel", "rgb");
+    attributes.put("colorTemperatureRange", temperatureRange);
+    attributes.put("availableThermostatModes", Arrays.asList("off", "heat", "cool", "on"));
+    attributes.put("thermostatTemperatureUnit", "C");
+  }
+
+  @Benchmark
+  public Struct reportStateViaJson() throws InvalidProtocolBufferException {
+    JsonObject json = (JsonObject) JsonParser.parseString(new Gson().toJson(states));
+    JsonObject colorJson = json.getAsJsonObject("color");
+    if (colorJson != null && colorJson.has("spectrumRgb")) {
+      colorJson.add("spectrumRGB", colorJson.get("spectrumRgb"));
+      colorJson.remove("spectrumRgb");
+    }
+    Struct.Builder struct = Struct.newBuilder();
+    JsonFormat.parser().ignoringUnknownFields().merge(new Gson().toJson(json), struct);
+    return struct.build();
+  }
+
+  @Benchmark
+  public Struct reportStateDirect() {
+    return StructConverter.toDeviceStates(states);
+  }
+
+  @Benchmark
+  public Struct syncAttributesViaJson() throws InvalidProtocolBufferException {
+    Struct.Builder struct = Struct.newBuilder();
+    JsonFormat.parser().ignoringUnknownFields().merge(new Gson().toJson(attributes), struct);
+    return struct.build();
+  }
+
+  @Benchmark
+  public Struct syncAttributesDirect() {
+    return StructConverter.toStruct(attributes);
+  }
+}
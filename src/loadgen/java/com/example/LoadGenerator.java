@@ -0,0 +1,530 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Drives {@code /smarthome} on a running server with SYNC, QUERY and EXECUTE requests at a fixed
+ * arrival rate, and reports the latency distribution of each intent.
+ *
+ * <p>The generator is open loop: request {@code i} is due at {@code start + i / rate} whether or
+ * not earlier requests have completed, and its response time is measured from when it was due. A
+ * server that falls behind therefore shows up as growing latency rather than as a lower request
+ * rate, which a closed loop of clients would hide. The time from actually sending a request to its
+ * response is recorded separately as the service time.
+ *
+ * <p>Before measuring, the generator seeds every user with devices through {@code
+ * /smarthome/create/bulk} and deletes them again at the end. When {@code TOKEN_SIGNING_KEYS} is set
+ * to the server's keys, each user gets its own signed access token; otherwise there is a single
+ * user that authenticates with the static fake access token.
+ *
+ * <p>Run against {@code ./gradlew appRun -PdataStore=memory} with {@code ./gradlew loadgen
+ * -PloadgenArgs="--rate=500 --duration=60"}. Options are passed as {@code --name=value}; see {@link
+ * Options} for the names and defaults. The report is written as JSON to {@code --report}.
+ */
+public final class LoadGenerator {
+  static final Gson GSON = new Gson();
+  private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(2);
+  private static final int SEED_BATCH_SIZE = 500;
+
+  enum Intent {
+    SYNC,
+    QUERY,
+    EXECUTE
+  }
+
+  /**
+   * The command line options and their defaults:
+   *
+   * <ul>
+   *   <li>{@code --baseUrl=http://localhost:8080}: where the server runs
+   *   <li>{@code --users=10}: how many users send requests, if tokens can be signed
+   *   <li>{@code --devices=20}: how many devices each user has
+   *   <li>{@code --rate=100}: requests per second, across all intents
+   *   <li>{@code --warmup=10}: seconds to send requests before measuring
+   *   <li>{@code --duration=60}: seconds to measure
+   *   <li>{@code --connections=64}: how many requests may be in flight at once
+   *   <li>{@code --queryDevices=5}: devices per QUERY request
+   *   <li>{@code --executeDevices=1}: devices per EXECUTE request
+   *   <li>{@code --mix=sync:1,query:8,execute:1}: the relative weight of each intent
+   *   <li>{@code --seed=true}: whether to create the devices first and delete them at the end
+   *   <li>{@code --userId=test-user-id} and {@code --accessToken=123access}: the single user used
+   *       without signing keys
+   *   <li>{@code --report=build/reports/loadgen/report.json}: where to write the report
+   * </ul>
+   */
+  static final class Options {
+    String baseUrl = "http://localhost:8080";
+    int users = 10;
+    int devicesPerUser = 20;
+    double rate = 100;
+    int warmupSeconds = 10;
+    int durationSeconds = 60;
+    int connections = 64;
+    int queryDevices = 5;
+    int executeDevices = 1;
+    Map<Intent, Integer> mix = parseMix("sync:1,query:8,execute:1");
+    boolean seed = true;
+    String userId = "test-user-id";
+    String accessToken = "123access";
+    Path report = Paths.get("build", "reports", "loadgen", "report.json");
+
+    static Options parse(String[] args) {
+      Map<String, String> values = new HashMap<>();
+      for (String arg : args) {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0) {
+          throw new IllegalArgumentException("expected --name=value, got " + arg);
+        }
+        values.put(arg.substring(2, equals), arg.substring(equals + 1));
+      }
+      Options options = new Options();
+      options.baseUrl = take(values, "baseUrl", options.baseUrl);
+      options.users = Integer.parseInt(take(values, "users", String.valueOf(options.users)));
+      options.devicesPerUser =
+          Integer.parseInt(take(values, "devices", String.valueOf(options.devicesPerUser)));
+      options.rate = Double.parseDouble(take(values, "rate", String.valueOf(options.rate)));
+      options.warmupSeconds =
+          Integer.parseInt(take(values, "warmup", String.valueOf(options.warmupSeconds)));
+      options.durationSeconds =
+          Integer.parseInt(take(values, "duration", String.valueOf(options.durationSeconds)));
+      options.connections =
+          Integer.parseInt(take(values, "connections", String.valueOf(options.connections)));
+      options.queryDevices =
+          Integer.parseInt(take(values, "queryDevices", String.valueOf(options.queryDevices)));
+      options.executeDevices =
+          Integer.parseInt(take(values, "executeDevices", String.valueOf(options.executeDevices)));
+      if (values.containsKey("mix")) {
+        options.mix = parseMix(values.remove("mix"));
+      }
+      options.seed = Boolean.parseBoolean(take(values, "seed", String.valueOf(options.seed)));
+      options.userId = take(values, "userId", options.userId);
+      options.accessToken = take(values, "accessToken", options.accessToken);
+      options.report = Paths.get(take(values, "report", options.report.toString()));
+      if (!values.isEmpty()) {
+        throw new IllegalArgumentException("unknown options " + values.keySet());
+      }
+      if (options.rate <= 0 || options.users <= 0 || options.devicesPerUser <= 0) {
+        throw new IllegalArgumentException("rate, users and devices must be positive");
+      }
+      return options;
+    }
+
+    private static String take(Map<String, String> values, String name, String defaultValue) {
+      String value = values.remove(name);
+      return value != null ? value : defaultValue;
+    }
+
+    /** Parses weights such as {@code sync:1,query:8,execute:1}. */
+    private static Map<Intent, Integer> parseMix(String spec) {
+      Map<Intent, Integer> mix = new EnumMap<>(Intent.class);
+      for (String entry : spec.split(",")) {
+        String[] parts = entry.trim().split(":");
+        if (parts.length != 2) {
+          throw new IllegalArgumentException("invalid mix entry " + entry);
+        }
+        mix.put(Intent.valueOf(parts[0].toUpperCase()), Integer.parseInt(parts[1]));
+      }
+      return mix;
+    }
+  }
+
+  /** A user of the smart home action with the devices seeded for it. */
+  private static final class VirtualUser {
+    final String userId;
+    final String accessToken;
+    final List<String> deviceIds = new ArrayList<>();
+
+    VirtualUser(String userId, String accessToken) {
+      this.userId = userId;
+      this.accessToken = accessToken;
+    }
+  }
+
+  /** The latency distributions and outcome counts of one intent. */
+  private static final class IntentStats {
+    final Histogram responseTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    final AtomicLong errors = new AtomicLong();
+  }
+
+  private final Options options;
+  private final List<VirtualUser> users = new ArrayList<>();
+  private final Intent[] weightedIntents;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  LoadGenerator(Options options) {
+    this.options = options;
+    List<Intent> weighted = new ArrayList<>();
+    for (Map.Entry<Intent, Integer> entry : options.mix.entrySet()) {
+      for (int i = 0; i < entry.getValue(); i++) {
+        weighted.add(entry.getKey());
+      }
+    }
+    if (weighted.isEmpty()) {
+      throw new IllegalArgumentException("the intent mix is empty");
+    }
+    weightedIntents = weighted.toArray(new Intent[0]);
+
+    AccessTokens tokens = AccessTokens.getInstance();
+    if (tokens.isEnabled()) {
+      for (int i = 0; i < options.users; i++) {
+        String userId = String.format("load-user-%04d", i);
+        users.add(new VirtualUser(userId, tokens.issue(userId, TimeUnit.DAYS.toSeconds(1))));
+      }
+    } else {
+      if (options.users != 1) {
+        System.err.println("TOKEN_SIGNING_KEYS is not set, so only " + options.userId + " is used");
+      }
+      users.add(new VirtualUser(options.userId, options.accessToken));
+    }
+    for (VirtualUser user : users) {
+      for (int i = 0; i < options.devicesPerUser; i++) {
+        user.deviceIds.add(LoadPayloads.deviceId(i));
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = Options.parse(args);
+    // HttpURLConnection keeps only 5 idle connections per host by default.
+    System.setProperty("http.maxConnections", String.valueOf(options.connections));
+    new LoadGenerator(options).run();
+  }
+
+  void run() throws IOException, InterruptedException {
+    if (options.seed) {
+      seed();
+    }
+    try {
+      System.out.printf(
+          "warming up for %ds at %.1f requests/s%n", options.warmupSeconds, options.rate);
+      drive(TimeUnit.SECONDS.toNanos(options.warmupSeconds), newStats());
+      System.out.printf(
+          "measuring for %ds at %.1f requests/s%n", options.durationSeconds, options.rate);
+      Map<Intent, IntentStats> stats = newStats();
+      maxInFlight.set(0);
+      long elapsedNanos = drive(TimeUnit.SECONDS.toNanos(options.durationSeconds), stats);
+      JsonObject report = report(stats, elapsedNanos);
+      Files.createDirectories(options.report.toAbsolutePath().getParent());
+      try (Writer writer = Files.newBufferedWriter(options.report, StandardCharsets.UTF_8)) {
+        new GsonBuilder().setPrettyPrinting().create().toJson(report, writer);
+      }
+      printSummary(stats);
+      System.out.println("wrote " + options.report);
+    } finally {
+      if (options.seed) {
+        unseed();
+      }
+    }
+  }
+
+  private static Map<Intent, IntentStats> newStats() {
+    Map<Intent, IntentStats> stats = new EnumMap<>(Intent.class);
+    for (Intent intent : Intent.values()) {
+      stats.put(intent, new IntentStats());
+    }
+    return stats;
+  }
+
+  private void seed() throws IOException {
+    for (VirtualUser user : users) {
+      for (int start = 0; start < options.devicesPerUser; start += SEED_BATCH_SIZE) {
+        List<Map<String, Object>> devices = new ArrayList<>();
+        for (int i = start; i < Math.min(start + SEED_BATCH_SIZE, options.devicesPerUser); i++) {
+          devices.add(LoadPayloads.device(i));
+        }
+        JsonObject response =
+            post("/smarthome/create/bulk", null, LoadPayloads.bulkCreate(user.userId, devices));
+        for (JsonElement result : response.getAsJsonArray("results")) {
+          if (!"SUCCESS".equals(result.getAsJsonObject().get("status").getAsString())) {
+            throw new IOException("seeding " + user.userId + " failed: " + result);
+          }
+        }
+      }
+    }
+    System.out.printf(
+        "seeded %d users with %d devices each%n", users.size(), options.devicesPerUser);
+  }
+
+  private void unseed() {
+    for (VirtualUser user : users) {
+      try {
+        post("/smarthome/delete/bulk", null, LoadPayloads.bulkDelete(user.userId, user.deviceIds));
+      } catch (IOException e) {
+        System.err.println("could not delete the devices of " + user.userId + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Sends requests at the configured rate for the given time, then waits for the outstanding ones.
+   *
+   * @return How long it took from the first request being due until the last response
+   */
+  private long drive(long durationNanos, Map<Intent, IntentStats> stats)
+      throws InterruptedException {
+    AtomicInteger threadCount = new AtomicInteger();
+    // Requests queue up when every connection is busy, and the wait counts towards their latency.
+    ExecutorService senders =
+        new ThreadPoolExecutor(
+            options.connections,
+            options.connections,
+            0,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+              Thread thread = new Thread(r, "loadgen-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    double intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate;
+    long start = System.nanoTime();
+    for (long i = 0; ; i++) {
+      long due = start + (long) (i * intervalNanos);
+      if (due - start >= durationNanos) {
+        break;
+      }
+      for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      Intent intent = weightedIntents[ThreadLocalRandom.current().nextInt(weightedIntents.length)];
+      int outstanding = inFlight.incrementAndGet();
+      maxInFlight.accumulateAndGet(outstanding, Math::max);
+      senders.execute(() -> send(intent, due, stats.get(intent)));
+    }
+    senders.shutdown();
+    if (!senders.awaitTermination(1, TimeUnit.MINUTES)) {
+      System.err.println("gave up waiting for " + inFlight.get() + " requests");
+      senders.shutdownNow();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private void send(Intent intent, long dueNanos, IntentStats stats) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    VirtualUser user = users.get(random.nextInt(users.size()));
+    JsonObject body;
+    switch (intent) {
+      case SYNC:
+        body = LoadPayloads.sync();
+        break;
+      case QUERY:
+        body = LoadPayloads.query(pickDevices(user, options.queryDevices, random));
+        break;
+      default:
+        body =
+            LoadPayloads.executeOnOff(
+                pickDevices(user, options.executeDevices, random), random.nextBoolean());
+        break;
+    }
+    long sentNanos = System.nanoTime();
+    boolean failed;
+    try {
+      failed = hasErrors(post("/smarthome", user.accessToken, body));
+    } catch (IOException | RuntimeException e) {
+      failed = true;
+    }
+    long doneNanos = System.nanoTime();
+    inFlight.decrementAndGet();
+    if (failed) {
+      stats.errors.incrementAndGet();
+    }
+    stats.responseTime.recordValue(toMicros(doneNanos - dueNanos));
+    stats.serviceTime.recordValue(toMicros(doneNanos - sentNanos));
+  }
+
+  private static long toMicros(long nanos) {
+    return Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS);
+  }
+
+  /** Picks consecutive devices of the user starting at a random one. */
+  private static List<String> pickDevices(VirtualUser user, int count, ThreadLocalRandom random) {
+    List<String> picked = new ArrayList<>(count);
+    int start = random.nextInt(user.deviceIds.size());
+    for (int i = 0; i < Math.min(count, user.deviceIds.size()); i++) {
+      picked.add(user.deviceIds.get((start + i) % user.deviceIds.size()));
+    }
+    return picked;
+  }
+
+  /** Returns whether a fulfillment response reports an error for the request or any device. */
+  private static boolean hasErrors(JsonObject response) {
+    JsonObject payload = response.getAsJsonObject("payload");
+    if (payload == null || payload.has("errorCode")) {
+      return true;
+    }
+    if (payload.has("devices") && payload.get("devices").isJsonObject()) {
+      for (Map.Entry<String, JsonElement> device : payload.getAsJsonObject("devices").entrySet()) {
+        if (isError(device.getValue())) {
+          return true;
+        }
+      }
+    }
+    if (payload.has("commands")) {
+      for (JsonElement command : payload.getAsJsonArray("commands")) {
+        if (isError(command)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isError(JsonElement result) {
+    JsonElement status = result.getAsJsonObject().get("status");
+    return status != null && "ERROR".equals(status.getAsString());
+  }
+
+  private JsonObject post(String path, String accessToken, JsonObject body) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(options.baseUrl + path).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    if (accessToken != null) {
+      // MySmartHomeApp reads the header with this exact name.
+      connection.setRequestProperty("authorization", "Bearer " + accessToken);
+    }
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    int status = connection.getResponseCode();
+    // Reading the whole body, even on errors, lets the connection be reused.
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    if (in != null) {
+      try (InputStream stream = in) {
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+          response.write(buffer, 0, n);
+        }
+      }
+    }
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException(path + " returned HTTP " + status);
+    }
+    return JsonParser.parseString(new String(response.toByteArray(), StandardCharsets.UTF_8))
+        .getAsJsonObject();
+  }
+
+  private JsonObject report(Map<Intent, IntentStats> stats, long elapsedNanos) {
+    double elapsedSeconds = elapsedNanos / 1e9;
+    JsonObject report = new JsonObject();
+    report.addProperty("baseUrl", options.baseUrl);
+    report.addProperty("users", users.size());
+    report.addProperty("devicesPerUser", options.devicesPerUser);
+    report.addProperty("connections", options.connections);
+    report.addProperty("targetRate", options.rate);
+    report.addProperty("durationSeconds", elapsedSeconds);
+    report.addProperty("maxInFlight", maxInFlight.get());
+    long total = 0;
+    long errors = 0;
+    JsonObject intents = new JsonObject();
+    for (Map.Entry<Intent, IntentStats> entry : stats.entrySet()) {
+      IntentStats intentStats = entry.getValue();
+      long count = intentStats.responseTime.getTotalCount();
+      total += count;
+      errors += intentStats.errors.get();
+      JsonObject intent = new JsonObject();
+      intent.addProperty("count", count);
+      intent.addProperty("errors", intentStats.errors.get());
+      intent.addProperty("rate", count / elapsedSeconds);
+      intent.add("responseTimeMicros", summary(intentStats.responseTime));
+      intent.add("serviceTimeMicros", summary(intentStats.serviceTime));
+      intent.addProperty("responseTimeHistogram", encode(intentStats.responseTime));
+      intents.add(entry.getKey().name(), intent);
+    }
+    report.addProperty("achievedRate", total / elapsedSeconds);
+    report.addProperty("errors", errors);
+    report.add("intents", intents);
+    return report;
+  }
+
+  private static JsonObject summary(Histogram histogram) {
+    JsonObject summary = new JsonObject();
+    summary.addProperty("mean", histogram.getMean());
+    summary.addProperty("p50", histogram.getValueAtPercentile(50));
+    summary.addProperty("p90", histogram.getValueAtPercentile(90));
+    summary.addProperty("p99", histogram.getValueAtPercentile(99));
+    summary.addProperty("p999", histogram.getValueAtPercentile(99.9));
+    summary.addProperty("max", histogram.getMaxValue());
+    return summary;
+  }
+
+  /** Encodes a histogram in HdrHistogram's compressed format, so reports can be merged later. */
+  private static String encode(Histogram histogram) {
+    ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+    int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+    return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+  }
+
+  private static void printSummary(Map<Intent, IntentStats> stats) {
+    System.out.printf(
+        "%-8s %8s %7s %10s %10s %10s %10s%n",
+        "intent", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    for (Map.Entry<Intent, IntentStats> entry : stats.entrySet()) {
+      Histogram histogram = entry.getValue().responseTime;
+      System.out.printf(
+          "%-8s %8d %7d %10.2f %10.2f %10.2f %10.2f%n",
+          entry.getKey(),
+          histogram.getTotalCount(),
+          entry.getValue().errors.get(),
+          histogram.getValueAtPercentile(50) / 1000.0,
+          histogram.getValueAtPercentile(90) / 1000.0,
+          histogram.getValueAtPercentile(99) / 1000.0,
+          histogram.getMaxValue() / 1000.0);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Builds the device data the load generator seeds and the SYNC, QUERY and EXECUTE bodies it sends.
+ * Every device is a light or an outlet, so an OnOff EXECUTE succeeds on any of them.
+ */
+final class LoadPayloads {
+  private LoadPayloads() {}
+
+  static String deviceId(int index) {
+    return String.format("load-device-%05d", index);
+  }
+
+  /** Returns the device data in the format of {@code /smarthome/create}. */
+  static Map<String, Object> device(int index) {
+    boolean light = index % 2 == 0;
+    Map<String, Object> device = new LinkedHashMap<>();
+    device.put("deviceId", deviceId(index));
+    device.put("type", light ? "action.devices.types.LIGHT" : "action.devices.types.OUTLET");
+    device.put(
+        "traits",
+        light
+            ? Arrays.asList("action.devices.traits.OnOff", "action.devices.traits.Brightness")
+            : Arrays.asList("action.devices.traits.OnOff"));
+    device.put("name", (light ? "Light " : "Outlet ") + index);
+    device.put("defaultNames", Arrays.asList(light ? "Smart Light" : "Smart Outlet"));
+    device.put("nicknames", new ArrayList<>());
+    device.put("willReportState", true);
+    device.put("roomHint", "Room " + index / 10);
+    device.put("manufacturer", "Smart Home Provider");
+    device.put("model", light ? "sh-light" : "sh-outlet");
+    device.put("hwVersion", "1.0");
+    device.put("swVersion", "1.0");
+    Map<String, Object> states = new LinkedHashMap<>();
+    states.put("online", true);
+    states.put("on", false);
+    if (light) {
+      states.put("brightness", 50);
+    }
+    device.put("states", states);
+    return device;
+  }
+
+  static JsonObject bulkCreate(String userId, List<Map<String, Object>> devices) {
+    JsonObject body = new JsonObject();
+    body.addProperty("userId", userId);
+    JsonArray array = new JsonArray();
+    for (Map<String, Object> device : devices) {
+      array.add(LoadGenerator.GSON.toJsonTree(device));
+    }
+    body.add("devices", array);
+    return body;
+  }
+
+  static JsonObject bulkDelete(String userId, List<String> deviceIds) {
+    JsonObject body = new JsonObject();
+    body.addProperty("userId", userId);
+    JsonArray array = new JsonArray();
+    deviceIds.forEach(array::add);
+    body.add("deviceIds", array);
+    return body;
+  }
+
+  static JsonObject sync() {
+    return request("action.devices.SYNC", null);
+  }
+
+  static JsonObject query(List<String> deviceIds) {
+    JsonObject payload = new JsonObject();
+    payload.add("devices", devices(deviceIds));
+    return request("action.devices.QUERY", payload);
+  }
+
+  static JsonObject executeOnOff(List<String> deviceIds, boolean on) {
+    JsonObject params = new JsonObject();
+    params.addProperty("on", on);
+    JsonObject execution = new JsonObject();
+    execution.addProperty("command", "action.devices.commands.OnOff");
+    execution.add("params", params);
+    JsonArray executions = new JsonArray();
+    executions.add(execution);
+    JsonObject command = new JsonObject();
+    command.add("devices", devices(deviceIds));
+    command.add("execution", executions);
+    JsonArray commands = new JsonArray();
+    commands.add(command);
+    JsonObject payload = new JsonObject();
+    payload.add("commands", commands);
+    return request("action.devices.EXECUTE", payload);
+  }
+
+  private static JsonArray devices(List<String> deviceIds) {
+    JsonArray devices = new JsonArray();
+    for (String deviceId : deviceIds) {
+      JsonObject device = new JsonObject();
+      device.addProperty("id", deviceId);
+      devices.add(device);
+    }
+    return devices;
+  }
+
+  private static JsonObject request(String intent, JsonObject payload) {
+    JsonObject input = new JsonObject();
+    input.addProperty("intent", intent);
+    if (payload != null) {
+      input.add("payload", payload);
+    }
+    JsonArray inputs = new JsonArray();
+    inputs.add(input);
+    JsonObject request = new JsonObject();
+    request.addProperty("requestId", UUID.randomUUID().toString());
+    request.add("inputs", inputs);
+    return request;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and validates self-contained access tokens that carry the agent user ID and an expiry,
+ * signed with HMAC-SHA256. Validating one needs no datastore read, so fulfillment can resolve the
+ * user locally.
+ *
+ * <p>Keys are configured with {@code TOKEN_SIGNING_KEYS} as a comma separated list of {@code
+ * keyId:base64Secret} pairs. The first key signs new tokens and every listed key is accepted when
+ * validating, so a key can be rotated by prepending its replacement and dropping the old key once
+ * the tokens it signed have expired. When no keys are configured, signed tokens are disabled and
+ * the sample keeps using the static {@code fakeAccessToken}.
+ *
+ * <p>A token records when it was issued, and {@link #revoke} rejects every token of a user issued
+ * up to that moment, e.g. when the user disconnects. Revocations are only known to the instance
+ * that recorded them and are forgotten on restart, so tokens are also limited to {@code
+ * TOKEN_MAX_LIFETIME_SECONDS}, which bounds how long a revoked token stays usable elsewhere.
+ */
+final class AccessTokens {
+  private static final String PREFIX = "st2";
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+  private static final long DEFAULT_MAX_LIFETIME_SECONDS = 3600;
+  private static AccessTokens ourInstance =
+      new AccessTokens(
+          Config.getString("TOKEN_SIGNING_KEYS", ""),
+          Config.getLong("TOKEN_MAX_LIFETIME_SECONDS", DEFAULT_MAX_LIFETIME_SECONDS));
+
+  private final Map<String, Mac> keys = new LinkedHashMap<>();
+  private final String activeKeyId;
+  private final long maxLifetimeSeconds;
+  // The time in milliseconds up to which tokens of a user are revoked.
+  private final ConcurrentMap<String, Long> revokedUntil = new ConcurrentHashMap<>();
+
+  /** @param keySpec A comma separated list of {@code keyId:base64Secret} pairs */
+  AccessTokens(String keySpec) {
+    this(keySpec, DEFAULT_MAX_LIFETIME_SECONDS);
+  }
+
+  /**
+   * @param keySpec A comma separated list of {@code keyId:base64Secret} pairs
+   * @param maxLifetimeSeconds The longest lifetime a token may be issued with
+   */
+  AccessTokens(String keySpec, long maxLifetimeSeconds) {
+    this.maxLifetimeSeconds = maxLifetimeSeconds;
+    String firstKeyId = null;
+    for (String entry : keySpec.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      String[] parts = entry.trim().split(":", 2);
+      if (parts.length != 2 || parts[0].contains(".")) {
+        throw new IllegalArgumentException("invalid signing key entry: " + parts[0]);
+      }
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(new SecretKeySpec(Base64.getDecoder().decode(parts[1]), ALGORITHM));
+        keys.put(parts[0], mac);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalArgumentException("invalid signing key " + parts[0], e);
+      }
+      if (firstKeyId == null) {
+        firstKeyId = parts[0];
+      }
+    }
+    activeKeyId = firstKeyId;
+  }
+
+  public static AccessTokens getInstance() {
+    return ourInstance;
+  }
+
+  /** Returns whether signing keys are configured. */
+  boolean isEnabled() {
+    return activeKeyId != null;
+  }
+
+  /** Returns the longest lifetime a token may be issued with. */
+  long getMaxLifetimeSeconds() {
+    return maxLifetimeSeconds;
+  }
+
+  /**
+   * Rejects every token of the user issued until now. Tokens issued afterwards are accepted.
+   *
+   * @param agentUserId The agent user ID whose tokens are revoked
+   */
+  void revoke(String agentUserId) {
+    long now = System.currentTimeMillis();
+    revokedUntil.put(agentUserId, now);
+    // Tokens issued before the oldest possible unexpired token need no revocation anymore.
+    revokedUntil.values().removeIf(until -> until < now - maxLifetimeSeconds * 1000);
+  }
+
+  /**
+   * Creates a signed token for the user with the active key.
+   *
+   * @param agentUserId The agent user ID the token authenticates
+   * @param expiresInSeconds How long the token stays valid, at most {@link #getMaxLifetimeSeconds}
+   * @return The encoded token
+   */
+  String issue(String agentUserId, long expiresInSeconds) {
+    if (!isEnabled()) {
+      throw new IllegalStateException("no token signing keys configured");
+    }
+    if (expiresInSeconds > maxLifetimeSeconds) {
+      throw new IllegalArgumentException(
+          "token lifetime exceeds " + maxLifetimeSeconds + " seconds");
+    }
+    // A token issued in the same millisecond as a revocation must still be accepted.
+    long issuedAt =
+        Math.max(System.currentTimeMillis(), revokedUntil.getOrDefault(agentUserId, 0L) + 1);
+    long expiry = issuedAt / 1000 + expiresInSeconds;
+    String payload =
+        ENCODER.encodeToString(
+            (expiry + ":" + issuedAt + ":" + agentUserId).getBytes(StandardCharsets.UTF_8));
+    String signed = PREFIX + "." + activeKeyId + "." + payload;
+    return signed + "." + ENCODER.encodeToString(sign(activeKeyId, signed));
+  }
+
+  /**
+   * Validates a token and extracts the user it was issued for.
+   *
+   * @param token The bearer token, without the {@code Bearer} prefix
+   * @return The agent user ID, or null if the token is not a signed token at all
+   * @throws IllegalArgumentException If the token is signed but malformed, forged, expired or
+   *     revoked
+   */
+  String verify(String token) {
+    if (!isEnabled() || !token.startsWith(PREFIX + ".")) {
+      return null;
+    }
+    String[] parts = token.split("\\.");
+    if (parts.length != 4) {
+      throw new IllegalArgumentException("malformed signed token");
+    }
+    String keyId = parts[1];
+    if (!keys.containsKey(keyId)) {
+      throw new IllegalArgumentException("token signed with unknown key " + keyId);
+    }
+    byte[] expected = sign(keyId, token.substring(0, token.lastIndexOf('.')));
+    byte[] actual;
+    String payload;
+    try {
+      actual = DECODER.decode(parts[3]);
+      payload = new String(DECODER.decode(parts[2]), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("malformed signed token", e);
+    }
+    if (!MessageDigest.isEqual(expected, actual)) {
+      throw new IllegalArgumentException("invalid token signature");
+    }
+    String[] fields = payload.split(":", 3);
+    if (fields.length != 3) {
+      throw new IllegalArgumentException("malformed signed token");
+    }
+    long expiry = Long.parseLong(fields[0]);
+    long issuedAt = Long.parseLong(fields[1]);
+    String agentUserId = fields[2];
+    if (System.currentTimeMillis() / 1000 >= expiry) {
+      throw new IllegalArgumentException("token expired");
+    }
+    Long revoked = revokedUntil.get(agentUserId);
+    if (revoked != null && issuedAt <= revoked) {
+      throw new IllegalArgumentException("token revoked");
+    }
+    return agentUserId;
+  }
+
+  private byte[] sign(String keyId, String data) {
+    try {
+      // Mac instances are not thread safe, so sign with a copy of the initialized prototype.
+      Mac mac = (Mac) keys.get(keyId).clone();
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size Bloom filter over items that are already uniformly hashed, such as the SHA-256 token
+ * hashes used as document IDs in the tokens index. Items are given as two independent 64-bit hashes
+ * and the probe positions are derived by double hashing. Adds and lookups are thread safe.
+ */
+final class BloomFilter {
+  private final AtomicLongArray bits;
+  private final long numBits;
+  private final int numHashes;
+
+  /**
+   * @param expectedInsertions The number of items the filter is sized for
+   * @param falsePositiveRate The target false positive rate at {@code expectedInsertions}
+   */
+  BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(expectedInsertions, 1);
+    long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    int words = (int) Math.max((m + 63) / 64, 1);
+    this.bits = new AtomicLongArray(words);
+    this.numBits = (long) words * 64;
+    this.numHashes = (int) Math.max(Math.round((double) numBits / n * Math.log(2)), 1);
+  }
+
+  void add(long hash1, long hash2) {
+    long combined = hash1;
+    for (int i = 0; i < numHashes; i++) {
+      long index = Long.remainderUnsigned(combined, numBits);
+      int word = (int) (index >>> 6);
+      long mask = 1L << index;
+      long current;
+      do {
+        current = bits.get(word);
+      } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+      combined += hash2;
+    }
+  }
+
+  boolean mightContain(long hash1, long hash2) {
+    long combined = hash1;
+    for (int i = 0; i < numHashes; i++) {
+      long index = Long.remainderUnsigned(combined, numBits);
+      if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+        return false;
+      }
+      combined += hash2;
+    }
+    return true;
+  }
+
+  /** Returns the false positive rate implied by the current fill ratio of the filter. */
+  double expectedFalsePositiveRate() {
+    long setBits = 0;
+    for (int i = 0; i < bits.length(); i++) {
+      setBits += Long.bitCount(bits.get(i));
+    }
+    return Math.pow((double) setBits / numBits, numHashes);
+  }
+
+  /** Returns the size of the filter in bytes. */
+  long sizeInBytes() {
+    return numBits / 8;
+  }
+}
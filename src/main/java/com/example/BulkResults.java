@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/** Builds the per-device responses of the bulk endpoints. */
+final class BulkResults {
+
+  private BulkResults() {}
+
+  /**
+   * @param deviceId The device ID as given in the request, possibly null
+   * @param error Why the device failed, or null if it succeeded
+   */
+  static JsonObject result(Object deviceId, String error) {
+    JsonObject result = new JsonObject();
+    result.addProperty("deviceId", deviceId != null ? String.valueOf(deviceId) : null);
+    result.addProperty("status", error == null ? "SUCCESS" : "ERROR");
+    if (error != null) {
+      result.addProperty("error", error);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the first device ID that appears more than once, or null if all are distinct. A request
+   * may write each device only once, since writes to the same device in different batches would
+   * race.
+   */
+  static Object firstDuplicate(Iterable<?> deviceIds) {
+    Set<Object> seen = new HashSet<>();
+    for (Object deviceId : deviceIds) {
+      if (!seen.add(deviceId)) {
+        return deviceId;
+      }
+    }
+    return null;
+  }
+
+  static void write(HttpServletResponse res, JsonArray results) throws IOException {
+    JsonObject body = new JsonObject();
+    body.add("results", results);
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("application/json");
+    res.getWriter().println(body.toString());
+  }
+
+  static void writeBadRequest(HttpServletResponse res, String message) throws IOException {
+    res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("text/plain");
+    res.getWriter().println(message);
+  }
+}
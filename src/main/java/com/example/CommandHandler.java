@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+
+/**
+ * Computes the effect of one {@code action.devices.commands.*} command on a device. Handlers only
+ * describe the change in a {@link StateDiff}; reading the device and committing the diff is left to
+ * the caller. Handlers report errors by throwing an exception whose message is the EXECUTE error
+ * code.
+ */
+@FunctionalInterface
+interface CommandHandler {
+  /**
+   * @param device The fields of the device document. Must not be modified.
+   * @param params The parameters of the command, empty if it has none
+   * @param diff Receives the state changes
+   */
+  void execute(Map<String, Object> device, Map<String, Object> params, StateDiff diff)
+      throws Exception;
+}
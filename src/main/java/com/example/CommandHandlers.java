@@ -0,0 +1,603 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of {@link CommandHandler}s by command name. The handlers of every supported trait
+ * are registered when the class loads; more can be added, or built-in ones replaced, with {@link
+ * #register}.
+ */
+final class CommandHandlers {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String PREFIX = "action.devices.commands.";
+  private static final Map<String, CommandHandler> handlers = new ConcurrentHashMap<>();
+
+  static {
+    registerAppSelector();
+    registerArmDisarm();
+    registerBrightness();
+    registerCameraStream();
+    registerColorSetting();
+    registerCook();
+    registerDispense();
+    registerDock();
+    registerEnergyStorage();
+    registerFanSpeed();
+    registerFill();
+    registerHumiditySetting();
+    registerInputSelector();
+    registerLocator();
+    registerLockUnlock();
+    registerNetworkControl();
+    registerOnOff();
+    registerOpenClose();
+    registerReboot();
+    registerRotation();
+    registerScene();
+    registerSoftwareUpdate();
+    registerStartStop();
+    registerModes();
+    registerTimer();
+    registerToggles();
+    registerTemperatureControl();
+    registerTemperatureSetting();
+    registerTransportControl();
+    registerVolume();
+  }
+
+  private CommandHandlers() {}
+
+  /**
+   * Registers the handler of a command, replacing any previous one.
+   *
+   * @param command The full command name, e.g. {@code action.devices.commands.OnOff}
+   * @param handler The handler of the command
+   */
+  static void register(String command, CommandHandler handler) {
+    handlers.put(command, handler);
+  }
+
+  /** Returns the handler of a command, or null if the command has none. */
+  static CommandHandler get(String command) {
+    return handlers.get(command);
+  }
+
+  private static void registerAppSelector() {
+    register(
+        PREFIX + "appSelect",
+        (device, params, diff) -> diff.set("currentApplication", application(params)));
+    register(
+        PREFIX + "appInstall",
+        (device, params, diff) -> LOGGER.info("Install app " + application(params)));
+    register(
+        PREFIX + "appSearch",
+        (device, params, diff) -> LOGGER.info("Search for app " + application(params)));
+  }
+
+  private static String application(Map<String, Object> params) {
+    String newApplication = (String) params.get("newApplication");
+    String newApplicationName = (String) params.get("newApplicationName");
+    return newApplication != null ? newApplication : newApplicationName;
+  }
+
+  private static void registerArmDisarm() {
+    register(
+        PREFIX + "ArmDisarm",
+        (device, params, diff) -> {
+          if (params.containsKey("arm")) {
+            boolean isArmed = (boolean) params.get("arm");
+            diff.report("isArmed", isArmed);
+          } else if (params.containsKey("cancel")) {
+            // Cancel value is in relation to the arm value
+            boolean isArmed = (boolean) params.get("arm");
+            diff.report("isArmed", !isArmed);
+          }
+          if (params.containsKey("armLevel")) {
+            diff.write("states.isArmed", diff.state("isArmed"));
+            diff.set("currentArmLevel", params.get("armLevel"));
+          } else {
+            diff.write("isArmed", diff.state("isArmed"));
+          }
+        });
+  }
+
+  private static void registerBrightness() {
+    register(
+        PREFIX + "BrightnessAbsolute",
+        (device, params, diff) -> diff.set("brightness", params.get("brightness")));
+  }
+
+  private static void registerCameraStream() {
+    register(
+        PREFIX + "GetCameraStream",
+        (device, params, diff) ->
+            diff.report("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4"));
+  }
+
+  private static void registerColorSetting() {
+    register(
+        PREFIX + "ColorAbsolute",
+        (device, params, diff) -> {
+          Map<String, Object> colorMap = (Map<String, Object>) params.get("color");
+          if (colorMap.containsKey("spectrumRGB")) {
+            diff.write("states.color.spectrumRgb", colorMap.get("spectrumRGB"));
+            diff.report("spectrumRgb", colorMap.get("spectrumRGB"));
+          } else if (colorMap.containsKey("spectrumHSV")) {
+            diff.write("states.color.spectrumHsv", colorMap.get("spectrumHSV"));
+            diff.report("spectrumHsv", colorMap.get("spectrumHSV"));
+          } else if (colorMap.containsKey("temperature")) {
+            diff.write("states.color.temperatureK", colorMap.get("temperature"));
+            diff.report("temperatureK", colorMap.get("temperature"));
+          } else {
+            throw new Exception("notSupported");
+          }
+        });
+  }
+
+  private static void registerCook() {
+    register(
+        PREFIX + "Cook",
+        (device, params, diff) -> {
+          boolean startCooking = (boolean) params.get("start");
+          if (startCooking) {
+            // Start cooking
+            diff.write("states.currentCookingMode", params.get("cookingMode"));
+            diff.write("states.currentFoodPreset", params.getOrDefault("foodPreset", "NONE"));
+            diff.write("states.currentFoodQuantity", params.getOrDefault("quantity", 0));
+            diff.write("states.currentFoodUnit", params.getOrDefault("unit", "NONE"));
+            // Server getting response will handle any undefined values
+            diff.report("currentCookingMode", params.get("cookingMode"));
+            diff.report("currentFoodPreset", params.get("foodPreset"));
+            diff.report("currentFoodQuantity", params.get("quantity"));
+            diff.report("currentFoodUnit", params.get("unit"));
+          } else {
+            // Done cooking, reset
+            diff.set("currentCookingMode", "NONE");
+            diff.set("currentFoodPreset", "NONE");
+            diff.write("states.currentFoodQuantity", 0);
+            diff.write("states.currentFoodUnit", "NONE");
+          }
+        });
+  }
+
+  private static void registerDispense() {
+    register(
+        PREFIX + "Dispense",
+        (device, params, diff) -> {
+          int amount = ((Number) params.get("amount")).intValue();
+          String unit = (String) params.get("unit");
+          if (params.containsKey("presetName")
+              && params.get("presetName").equals("cat food bowl")) {
+            // Fill in params
+            amount = 4;
+            unit = "CUPS";
+          }
+          Map<String, Object> amountLastDispensed = new HashMap<>();
+          amountLastDispensed.put("amount", amount);
+          amountLastDispensed.put("unit", unit);
+          HashMap<String, Object> dispenseItem = new HashMap<>();
+          dispenseItem.put("itemName", params.get("item"));
+          dispenseItem.put("amountLastDispensed", amountLastDispensed);
+          dispenseItem.put("isCurrentlyDispensing", params.containsKey("presetName"));
+          diff.set("dispenseItems", new HashMap[] {dispenseItem});
+        });
+  }
+
+  private static void registerDock() {
+    // This has no parameters
+    register(PREFIX + "Dock", (device, params, diff) -> diff.set("isDocked", true));
+  }
+
+  private static void registerEnergyStorage() {
+    register(
+        PREFIX + "Charge", (device, params, diff) -> diff.set("isCharging", params.get("charge")));
+  }
+
+  private static void registerFanSpeed() {
+    register(
+        PREFIX + "SetFanSpeed",
+        (device, params, diff) -> diff.set("currentFanSpeedSetting", params.get("fanSpeed")));
+    register(
+        PREFIX + "Reverse",
+        (device, params, diff) -> diff.write("states.currentFanSpeedReverse", true));
+  }
+
+  private static void registerFill() {
+    register(
+        PREFIX + "Fill",
+        (device, params, diff) -> {
+          String currentFillLevel = "none";
+          boolean fill = (boolean) params.get("fill");
+          if (fill) {
+            // Default fill level is half
+            currentFillLevel = (String) params.getOrDefault("fillLevel", "half");
+          } // Else the device is draining and the fill level is set to "none" by default
+          diff.set("isFilled", fill);
+          diff.set("currentFillLevel", currentFillLevel);
+        });
+  }
+
+  private static void registerHumiditySetting() {
+    register(
+        PREFIX + "SetHumidity",
+        (device, params, diff) ->
+            diff.set("humiditySetpointPercent", params.get("humiditySetpointPercent")));
+  }
+
+  private static void registerInputSelector() {
+    register(
+        PREFIX + "SetInput",
+        (device, params, diff) -> diff.set("currentInput", params.get("newInput")));
+    register(
+        PREFIX + "PreviousInput",
+        (device, params, diff) -> {
+          Map<String, Object>[] availableInputs = availableInputs(device);
+          int previousInputIndex = Math.min(currentInputIndex(device, availableInputs) - 1, 0);
+          diff.set("currentInput", availableInputs[previousInputIndex].get("key"));
+        });
+    register(
+        PREFIX + "NextInput",
+        (device, params, diff) -> {
+          Map<String, Object>[] availableInputs = availableInputs(device);
+          int nextInputIndex =
+              Math.min(currentInputIndex(device, availableInputs) + 1, availableInputs.length - 1);
+          diff.set("currentInput", availableInputs[nextInputIndex].get("key"));
+        });
+  }
+
+  private static Map<String, Object>[] availableInputs(Map<String, Object> device) {
+    Map<String, Object> attributes = (Map<String, Object>) device.get("attributes");
+    return (Map<String, Object>[]) attributes.get("availableInputs");
+  }
+
+  private static int currentInputIndex(
+      Map<String, Object> device, Map<String, Object>[] availableInputs) {
+    String currentInput = (String) storedStates(device).get("currentInput");
+    int index = -1;
+    for (int i = 0; i < availableInputs.length; i++) {
+      String input = (String) availableInputs[i].get("key");
+      if (currentInput.equals(input)) {
+        index = i;
+      }
+    }
+    return index;
+  }
+
+  private static void registerLocator() {
+    register(
+        PREFIX + "Locate",
+        (device, params, diff) -> {
+          diff.write("states.silent", params.get("silent"));
+          diff.set("generatedAlert", true);
+        });
+  }
+
+  private static void registerLockUnlock() {
+    register(
+        PREFIX + "LockUnlock", (device, params, diff) -> diff.set("isLocked", params.get("lock")));
+  }
+
+  private static void registerNetworkControl() {
+    register(
+        PREFIX + "EnableDisableGuestNetwork",
+        (device, params, diff) -> diff.set("guestNetworkEnabled", params.get("enable")));
+    register(
+        PREFIX + "EnableDisableNetworkProfile",
+        (device, params, diff) -> {
+          List<String> profiles =
+              (List<String>)
+                  ((Map<String, Object>) device.get("attributes")).get("networkProfiles");
+          boolean profileExists =
+              profiles.stream().anyMatch((String profile) -> profile.equals(params.get("profile")));
+          if (!profileExists) {
+            throw new RuntimeException("networkProfileNotRecognized");
+          }
+          // No state change occurs
+        });
+    register(
+        PREFIX + "TestNetworkSpeed",
+        (device, params, diff) -> {
+          boolean testDownloadSpeed = (boolean) params.get("testDownloadSpeed");
+          boolean testUploadSpeed = (boolean) params.get("testUploadSpeed");
+          Map<String, Object> lastNetworkDownloadSpeedTest =
+              new HashMap<>(
+                  (Map<String, Object>) storedStates(device).get("lastNetworkDownloadSpeedTest"));
+          Map<String, Object> lastNetworkUploadSpeedTest =
+              new HashMap<>(
+                  (Map<String, Object>) storedStates(device).get("lastNetworkUploadSpeedTest"));
+          int unixTimestampSec = Math.toIntExact(new Date().getTime() / 1000);
+          if (testDownloadSpeed) {
+            lastNetworkDownloadSpeedTest.put("downloadSpeedMbps", (Math.random() * 100));
+            lastNetworkDownloadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+          }
+          if (testUploadSpeed) {
+            lastNetworkUploadSpeedTest.put("uploadSpeedMbps", (Math.random() * 100));
+            lastNetworkUploadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+          }
+          diff.write("states.lastNetworkDownloadSpeedTest", lastNetworkDownloadSpeedTest);
+          diff.write("states.lastNetworkUploadSpeedTest", lastNetworkUploadSpeedTest);
+          diff.setPending();
+        });
+    register(
+        PREFIX + "GetGuestNetworkPassword",
+        (device, params, diff) -> diff.report("guestNetworkPassword", "wifi-password-123"));
+  }
+
+  private static void registerOnOff() {
+    register(PREFIX + "OnOff", (device, params, diff) -> diff.set("on", params.get("on")));
+  }
+
+  private static void registerOpenClose() {
+    register(
+        PREFIX + "OpenClose",
+        (device, params, diff) -> {
+          // Check if the device can open in multiple directions
+          Map<String, Object> attributes = (Map<String, Object>) device.get("attributes");
+          if (attributes != null && attributes.containsKey("openDirection")) {
+            // The device can open in more than one direction
+            String direction = (String) params.get("openDirection");
+            List<Map<String, Object>> openStates =
+                (List<Map<String, Object>>) diff.state("openState");
+            openStates.forEach(
+                state -> {
+                  if (state.get("openDirection").equals(direction)) {
+                    state.put("openPercent", params.get("openPercent"));
+                  }
+                });
+            diff.report("openStates", openStates);
+            diff.write("states.openState", openStates);
+          } else {
+            // The device can only open in one direction
+            diff.set("openPercent", params.get("openPercent"));
+          }
+        });
+  }
+
+  private static void registerReboot() {
+    register(PREFIX + "Reboot", (device, params, diff) -> diff.write("states.online", false));
+  }
+
+  private static void registerRotation() {
+    register(
+        PREFIX + "RotateAbsolute",
+        (device, params, diff) -> {
+          if (params.containsKey("rotationPercent")) {
+            diff.set("rotationPercent", params.get("rotationPercent"));
+          } else if (params.containsKey("rotationDegrees")) {
+            diff.set("rotationDegrees", params.get("rotationDegrees"));
+          }
+        });
+  }
+
+  private static void registerScene() {
+    // Scenes are stateless
+    register(
+        PREFIX + "ActivateScene",
+        (device, params, diff) -> diff.write("states.deactivate", params.get("deactivate")));
+  }
+
+  private static void registerSoftwareUpdate() {
+    register(
+        PREFIX + "SoftwareUpdate",
+        (device, params, diff) -> {
+          diff.write("states.online", false);
+          diff.write("states.lastSoftwareUpdateUnixTimestampSec", new Date().getTime() / 1000);
+        });
+  }
+
+  private static void registerStartStop() {
+    register(
+        PREFIX + "StartStop", (device, params, diff) -> diff.set("isRunning", params.get("start")));
+    register(
+        PREFIX + "PauseUnpause",
+        (device, params, diff) -> diff.set("isPaused", params.get("pause")));
+  }
+
+  private static void registerModes() {
+    register(
+        PREFIX + "SetModes",
+        (device, params, diff) ->
+            diff.set(
+                "currentModeSettings",
+                mergeSettings(
+                    diff.state("currentModeSettings"), params.get("updateModeSettings"))));
+  }
+
+  private static void registerToggles() {
+    register(
+        PREFIX + "SetToggles",
+        (device, params, diff) ->
+            diff.set(
+                "currentToggleSettings",
+                mergeSettings(
+                    diff.state("currentToggleSettings"), params.get("updateToggleSettings"))));
+  }
+
+  private static Map<String, Object> mergeSettings(Object current, Object update) {
+    Map<String, Object> settings = new HashMap<>();
+    if (current != null) {
+      settings.putAll((Map<String, Object>) current);
+    }
+    if (update != null) {
+      settings.putAll((Map<String, Object>) update);
+    }
+    return settings;
+  }
+
+  private static void registerTimer() {
+    register(
+        PREFIX + "TimerStart",
+        (device, params, diff) -> diff.set("timerRemainingSec", params.get("timerTimeSec")));
+    register(
+        PREFIX + "TimerAdjust",
+        (device, params, diff) -> {
+          requireTimer(diff);
+          int newTimerRemainingSec =
+              ((Number) diff.state("timerRemainingSec")).intValue()
+                  + ((Number) params.get("timerTimeSec")).intValue();
+          if (newTimerRemainingSec < 0) {
+            throw new RuntimeException("valueOutOfRange");
+          }
+          diff.set("timerRemainingSec", newTimerRemainingSec);
+        });
+    register(
+        PREFIX + "TimerPause",
+        (device, params, diff) -> {
+          requireTimer(diff);
+          diff.set("timerPaused", true);
+        });
+    register(
+        PREFIX + "TimerResume",
+        (device, params, diff) -> {
+          requireTimer(diff);
+          diff.set("timerPaused", false);
+        });
+    register(
+        PREFIX + "TimerCancel",
+        (device, params, diff) -> {
+          requireTimer(diff);
+          diff.write("states.timerRemainingSec", -1);
+          diff.report("timerRemainingSec", 0);
+        });
+  }
+
+  private static void requireTimer(StateDiff diff) {
+    if (((Number) diff.state("timerRemainingSec")).intValue() == -1) {
+      // No timer exists
+      throw new RuntimeException("noTimerExists");
+    }
+  }
+
+  private static void registerTemperatureControl() {
+    register(
+        PREFIX + "SetTemperature",
+        (device, params, diff) -> {
+          diff.set("temperatureSetpointCelsius", params.get("temperature"));
+          diff.report(
+              "temperatureAmbientCelsius", storedStates(device).get("temperatureAmbientCelsius"));
+        });
+  }
+
+  private static void registerTemperatureSetting() {
+    register(
+        PREFIX + "ThermostatTemperatureSetpoint",
+        (device, params, diff) -> {
+          Map<String, Object> stored = storedStates(device);
+          diff.set("thermostatTemperatureSetpoint", params.get("thermostatTemperatureSetpoint"));
+          diff.report("thermostatMode", stored.get("thermostatMode"));
+          diff.report("thermostatTemperatureAmbient", stored.get("thermostatTemperatureAmbient"));
+          diff.report("thermostatHumidityAmbient", stored.get("thermostatHumidityAmbient"));
+        });
+    register(
+        PREFIX + "ThermostatTemperatureSetRange",
+        (device, params, diff) -> {
+          Map<String, Object> stored = storedStates(device);
+          diff.write(
+              "states.thermostatTemperatureSetpointLow",
+              params.get("thermostatTemperatureSetpointLow"));
+          diff.write(
+              "states.thermostatTemperatureSetpointHigh",
+              params.get("thermostatTemperatureSetpointHigh"));
+          diff.report("thermostatTemperatureSetpoint", stored.get("thermostatTemperatureSetpoint"));
+          diff.report("thermostatMode", stored.get("thermostatMode"));
+          diff.report("thermostatTemperatureAmbient", stored.get("thermostatTemperatureAmbient"));
+          diff.report("thermostatHumidityAmbient", stored.get("thermostatHumidityAmbient"));
+        });
+    register(
+        PREFIX + "ThermostatSetMode",
+        (device, params, diff) -> {
+          Map<String, Object> stored = storedStates(device);
+          diff.set("thermostatMode", params.get("thermostatMode"));
+          diff.report("thermostatTemperatureSetpoint", stored.get("thermostatTemperatureSetpoint"));
+          diff.report("thermostatTemperatureAmbient", stored.get("thermostatTemperatureAmbient"));
+          diff.report("thermostatHumidityAmbient", stored.get("thermostatHumidityAmbient"));
+        });
+  }
+
+  private static void registerTransportControl() {
+    // Traits are considered no-ops as they have no state
+    register(
+        PREFIX + "mediaPrevious", (device, params, diff) -> LOGGER.info("Play the previous media"));
+    register(PREFIX + "mediaNext", (device, params, diff) -> LOGGER.info("Play the next media"));
+    register(
+        PREFIX + "mediaRepeatMode",
+        (device, params, diff) -> {
+          Boolean isOn = (Boolean) params.get("isOn");
+          Boolean isSingle = (Boolean) params.get("isSingle");
+          LOGGER.info("Repeat mode enabled: " + isOn + ". Single item enabled: " + isSingle);
+        });
+    register(
+        PREFIX + "mediaShuffle",
+        (device, params, diff) -> LOGGER.info("Shuffle the playlist of media"));
+    register(
+        PREFIX + "mediaClosedCaptioningOn",
+        (device, params, diff) -> {
+          String ccLanguage = (String) params.get("closedCaptioningLanguage");
+          String uqLanguage = (String) params.get("userQueryLanguage");
+          LOGGER.info("Closed captioning enabled for " + ccLanguage + " for user in " + uqLanguage);
+        });
+    register(
+        PREFIX + "mediaClosedCaptioningOff",
+        (device, params, diff) -> LOGGER.info("Closed captioning disabled"));
+    register(PREFIX + "mediaPause", (device, params, diff) -> diff.set("playbackState", "PAUSED"));
+    register(
+        PREFIX + "mediaResume", (device, params, diff) -> diff.set("playbackState", "PLAYING"));
+    register(PREFIX + "mediaStop", (device, params, diff) -> diff.set("playbackState", "STOPPED"));
+    register(
+        PREFIX + "mediaSeekRelative",
+        (device, params, diff) -> {
+          int relativePositionMs = ((Number) params.get("relativePositionMs")).intValue();
+          LOGGER.info("Seek to (now + " + relativePositionMs + ") ms");
+        });
+    register(
+        PREFIX + "mediaSeekToPosition",
+        (device, params, diff) -> {
+          int absPositionMs = ((Number) params.get("absPositionMs")).intValue();
+          LOGGER.info("Seek to " + absPositionMs + " ms");
+        });
+  }
+
+  private static void registerVolume() {
+    register(
+        PREFIX + "setVolume",
+        (device, params, diff) ->
+            diff.set("currentVolume", ((Number) params.get("volumeLevel")).intValue()));
+    register(
+        PREFIX + "volumeRelative",
+        (device, params, diff) -> {
+          int relativeSteps = ((Number) params.get("relativeSteps")).intValue();
+          int currentVolume = ((Number) storedStates(device).get("currentVolume")).intValue();
+          diff.set("currentVolume", currentVolume + relativeSteps);
+        });
+    register(
+        PREFIX + "mute",
+        (device, params, diff) -> diff.set("isMuted", (boolean) params.get("mute")));
+  }
+
+  private static Map<String, Object> storedStates(Map<String, Object> device) {
+    return (Map<String, Object>) device.get("states");
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Reads tuning knobs for the sample. A JVM system property takes precedence over an environment
+ * variable of the same name, so values can be set either in app.yaml or with -D on the command
+ * line.
+ */
+final class Config {
+
+  private Config() {}
+
+  static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    return value != null && !value.isEmpty() ? value : defaultValue;
+  }
+
+  static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value != null ? Boolean.parseBoolean(value) : defaultValue;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import com.google.api.core.ApiFuture;
+
+/**
+ * Stores the users, access tokens, devices and device states of the sample. Documents are plain
+ * maps shaped like the Firestore documents: a user has {@code fakeAccessToken}, {@code homegraph}
+ * and {@code deviceSetVersion} fields, and a device has the fields accepted by {@code
+ * /smarthome/create} plus its {@code states}.
+ *
+ * <p>Writes that change which devices SYNC reports also increment the user's device-set version in
+ * the same atomic write. Caching and access-token verification live in {@link MyDataStore}, not
+ * here.
+ */
+interface DeviceRepository {
+
+  /** Atomically reads a device and computes the fields to write back. */
+  @FunctionalInterface
+  interface DeviceTransaction<T> {
+    /**
+     * @param device The device document, or null if it does not exist
+     * @param updates Receives the field paths to write, e.g. {@code states.on}
+     * @return The result of the transaction
+     */
+    T apply(Map<String, Object> device, Map<String, Object> updates) throws Exception;
+  }
+
+  /** Creates or replaces a user document. */
+  void setUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException;
+
+  /** Deletes a user document and every device of the user. */
+  void deleteUser(String userId) throws ExecutionException, InterruptedException;
+
+  Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException;
+
+  void setHomegraph(String userId, Boolean enable);
+
+  /** Returns the version of the user's device set, or 0 if it was never changed. */
+  long getDeviceSetVersion(String userId) throws ExecutionException, InterruptedException;
+
+  /** Looks up a token in the token index, returning its user ID or null. */
+  String getUserIdByTokenHash(String tokenHash) throws ExecutionException, InterruptedException;
+
+  /** Finds the user holding an access token without the token index, returning null if none. */
+  String findUserIdByAccessToken(String accessToken)
+      throws ExecutionException, InterruptedException;
+
+  /** Records a token in the token index. */
+  ApiFuture<Void> putTokenHash(String tokenHash, String userId);
+
+  /** Removes every token index entry that resolves to the user. */
+  void deleteTokenHashes(String userId) throws ExecutionException, InterruptedException;
+
+  /** Passes every token hash in the token index to the consumer. */
+  void forEachTokenHash(Consumer<String> consumer) throws ExecutionException, InterruptedException;
+
+  /** Passes the access token of every user to the consumer. */
+  void forEachAccessToken(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Indexes the access tokens of users that were stored before the token index existed. Blocks
+   * until done, then runs {@code onComplete}; if it fails, {@code onComplete} is not run.
+   */
+  void migrateTokenIndex(Runnable onComplete);
+
+  /** Returns every device of a user by device ID, in device ID order. */
+  Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Returns the stored SYNC fragment of every device of a user, or null for devices without one.
+   */
+  Map<String, String> getSyncFragments(String userId)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Renders and stores the SYNC fragments of devices. A fragment is only stored if the device has
+   * not changed since it was read.
+   *
+   * @return The fragment of each device that exists
+   */
+  Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException;
+
+  /** Returns the states of a device, or null if it does not exist or has none. */
+  Map<String, Object> getState(String userId, String deviceId)
+      throws ExecutionException, InterruptedException;
+
+  /** Returns the states of each requested device, or null for devices without states. */
+  Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Writes fields of an existing device in one atomic write. A null value deletes the field.
+   *
+   * @param syncChanged Whether the change is visible in SYNC, which also bumps the device-set
+   *     version
+   */
+  void updateDevice(String userId, String deviceId, Map<String, Object> fields, boolean syncChanged)
+      throws ExecutionException, InterruptedException;
+
+  /** Creates or replaces a device. */
+  void addDevice(String userId, String deviceId, Map<String, Object> device)
+      throws ExecutionException, InterruptedException;
+
+  void deleteDevice(String userId, String deviceId) throws ExecutionException, InterruptedException;
+
+  /**
+   * Creates or replaces many devices of a user.
+   *
+   * @param devices The devices to write, each with a {@code deviceId}
+   * @return The error of each device, in the order given, or null for devices that were written
+   */
+  List<String> addDevices(String userId, List<Map<String, Object>> devices)
+      throws InterruptedException;
+
+  /**
+   * Deletes many devices of a user.
+   *
+   * @return The error of each device, in the order given, or null for devices that were deleted
+   */
+  List<String> deleteDevices(String userId, List<String> deviceIds) throws InterruptedException;
+
+  /**
+   * Merges the states of many devices, possibly of different users, in one atomic write. The write
+   * fails as a whole if any device does not exist.
+   *
+   * @param statesByUser The states to merge, by user ID and then by device ID
+   */
+  ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser);
+
+  /** Merges the states of one device, failing if it does not exist. */
+  ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states);
+
+  /**
+   * Runs a read-modify-write of one device atomically. The transaction may be retried, so it must
+   * not have side effects beyond filling {@code updates}.
+   */
+  <T> T transact(String userId, String deviceId, DeviceTransaction<T> transaction) throws Exception;
+
+  /**
+   * Returns the document ID used for a token in the {@code tokens} index. Tokens are hashed so that
+   * the index does not hold usable credentials.
+   */
+  static String tokenHash(String accessToken) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Parses a comma-separated list of {@code userId:accessToken} pairs into the fields of each user,
+   * for backends that are seeded with test users.
+   */
+  static Map<String, Map<String, Object>> usersFromSetting(String users) {
+    Map<String, Map<String, Object>> fieldsByUser = new LinkedHashMap<>();
+    for (String user : users.split(",")) {
+      String[] parts = user.trim().split(":", 2);
+      if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+        continue;
+      }
+      Map<String, Object> fields = new HashMap<>();
+      fields.put("fakeAccessToken", parts[1]);
+      fieldsByUser.put(parts[0], fields);
+    }
+    return fieldsByUser;
+  }
+
+  /**
+   * Converts states into the field paths that merge them into a device's {@code states} map,
+   * leaving states that are not mentioned untouched.
+   */
+  static Map<String, Object> stateFields(Map<String, Object> states) {
+    Map<String, Object> fields = new HashMap<>();
+    for (Map.Entry<String, Object> state : states.entrySet()) {
+      fields.put("states." + state.getKey(), state.getValue());
+    }
+    return fields;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Helpers for the map-shaped documents kept by the local {@link DeviceRepository} backends. */
+final class Documents {
+
+  private Documents() {}
+
+  /**
+   * Sets the field at a dotted path, such as {@code states.color.spectrumRgb}, creating the maps
+   * along the way, or removes it if {@code value} is null.
+   */
+  static void setField(Map<String, Object> document, String path, Object value) {
+    Map<String, Object> parent = parent(document, path);
+    String name = path.substring(path.lastIndexOf('.') + 1);
+    if (value == null) {
+      parent.remove(name);
+    } else {
+      parent.put(name, value);
+    }
+  }
+
+  /** Like {@link #setField}, except that a null value is stored rather than removing the field. */
+  static void putField(Map<String, Object> document, String path, Object value) {
+    parent(document, path).put(path.substring(path.lastIndexOf('.') + 1), value);
+  }
+
+  /** Returns the map holding the last segment of a dotted path, creating it if needed. */
+  private static Map<String, Object> parent(Map<String, Object> document, String path) {
+    Map<String, Object> map = document;
+    int start = 0;
+    for (int dot = path.indexOf('.'); dot >= 0; dot = path.indexOf('.', start)) {
+      String name = path.substring(start, dot);
+      Object child = map.get(name);
+      if (!(child instanceof Map)) {
+        child = new LinkedHashMap<String, Object>();
+        map.put(name, child);
+      }
+      map = (Map<String, Object>) child;
+      start = dot + 1;
+    }
+    return map;
+  }
+
+  static Map<String, Object> copyMap(Map<String, Object> map) {
+    Map<String, Object> copy = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      copy.put(entry.getKey(), copy(entry.getValue()));
+    }
+    return copy;
+  }
+
+  /** Deep-copies maps, lists and arrays; arrays become lists, as they do in Firestore. */
+  static Object copy(Object value) {
+    if (value instanceof Map) {
+      return copyMap((Map<String, Object>) value);
+    }
+    if (value instanceof Collection) {
+      List<Object> copy = new ArrayList<>();
+      for (Object element : (Collection<?>) value) {
+        copy.add(copy(element));
+      }
+      return copy;
+    }
+    if (value instanceof Object[]) {
+      List<Object> copy = new ArrayList<>();
+      for (Object element : (Object[]) value) {
+        copy.add(copy(element));
+      }
+      return copy;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+
+/**
+ * Runs the per-device executions of an EXECUTE intent concurrently on a shared, bounded pool.
+ *
+ * <p>Executions that target the same device run one after another in request order, so commands in
+ * a single intent never race on a device; different devices run in parallel. Each request may only
+ * have a limited number of devices in flight at a time so that one large scene cannot monopolise
+ * the pool. Results are returned in request order regardless of completion order.
+ */
+final class ExecutionEngine {
+  private static ExecutionEngine ourInstance =
+      new ExecutionEngine(
+          newPool(
+              Config.getInt("EXECUTE_POOL_SIZE", 32), Config.getInt("EXECUTE_QUEUE_SIZE", 1000)),
+          Config.getInt("EXECUTE_MAX_PARALLELISM_PER_REQUEST", 8));
+
+  /** Executes one command on one device and returns the resulting states. */
+  interface DeviceExecution {
+    Map<String, Object> execute(
+        String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+        throws Exception;
+  }
+
+  /** The outcome of running one command on one device. */
+  static final class Result {
+    final String deviceId;
+    final Map<String, Object> states;
+    final Exception error;
+
+    private Result(String deviceId, Map<String, Object> states, Exception error) {
+      this.deviceId = deviceId;
+      this.states = states;
+      this.error = error;
+    }
+  }
+
+  private static final class Job {
+    final int index;
+    final String deviceId;
+    final ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+    Job(int index, String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution) {
+      this.index = index;
+      this.deviceId = deviceId;
+      this.execution = execution;
+    }
+  }
+
+  private final ExecutorService pool;
+  private final int maxParallelismPerRequest;
+
+  /**
+   * @param pool The executor the device executions run on
+   * @param maxParallelismPerRequest How many devices of a single request may execute at once
+   */
+  ExecutionEngine(ExecutorService pool, int maxParallelismPerRequest) {
+    this.pool = pool;
+    this.maxParallelismPerRequest = Math.max(maxParallelismPerRequest, 1);
+  }
+
+  public static ExecutionEngine getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Runs the first execution of every command on each of the command's devices.
+   *
+   * @param commands The commands of the EXECUTE intent
+   * @param deviceExecution Performs a single execution on a single device
+   * @return One result per (command, device) pair, in request order
+   */
+  List<Result> execute(
+      ExecuteRequest.Inputs.Payload.Commands[] commands, DeviceExecution deviceExecution) {
+    // Group the executions by device, keeping the request order within each device.
+    Map<String, List<Job>> jobsByDevice = new LinkedHashMap<>();
+    int jobCount = 0;
+    for (ExecuteRequest.Inputs.Payload.Commands command : commands) {
+      for (ExecuteRequest.Inputs.Payload.Commands.Devices device : command.devices) {
+        jobsByDevice
+            .computeIfAbsent(device.id, id -> new ArrayList<>())
+            .add(new Job(jobCount++, device.id, command.execution[0]));
+      }
+    }
+
+    AtomicReferenceArray<Result> results = new AtomicReferenceArray<>(jobCount);
+    Semaphore permits = new Semaphore(maxParallelismPerRequest);
+    List<ApiFuture<Void>> pending = new ArrayList<>();
+    try {
+      for (List<Job> deviceJobs : jobsByDevice.values()) {
+        permits.acquire();
+        SettableApiFuture<Void> done = SettableApiFuture.create();
+        pending.add(done);
+        pool.execute(
+            Tracing.wrap(
+                () -> {
+                  try {
+                    for (Job job : deviceJobs) {
+                      results.compareAndSet(job.index, null, run(job, deviceExecution));
+                    }
+                  } finally {
+                    permits.release();
+                    done.set(null);
+                  }
+                }));
+      }
+      ApiFutures.allAsList(pending).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // Jobs never fail their future, every error is captured in its Result.
+      throw new IllegalStateException(e);
+    }
+
+    // Anything that did not get to run because the request thread was interrupted is reported as
+    // a transient failure.
+    List<Result> ordered = new ArrayList<>(Collections.nCopies(jobCount, (Result) null));
+    for (List<Job> deviceJobs : jobsByDevice.values()) {
+      for (Job job : deviceJobs) {
+        results.compareAndSet(
+            job.index, null, new Result(job.deviceId, null, new Exception("transientError")));
+        ordered.set(job.index, results.get(job.index));
+      }
+    }
+    return ordered;
+  }
+
+  private static Result run(Job job, DeviceExecution deviceExecution) {
+    Tracing.Span span =
+        Tracing.getInstance()
+            .startSpan("executeDevice")
+            .setAttribute("deviceId", job.deviceId)
+            .setAttribute("command", job.execution.command);
+    try (Tracing.Scope scope = span.activate()) {
+      return new Result(job.deviceId, deviceExecution.execute(job.deviceId, job.execution), null);
+    } catch (Exception e) {
+      span.end(true);
+      return new Result(job.deviceId, null, e);
+    } finally {
+      span.end();
+    }
+  }
+
+  /** Returns how many device executions are running, or 0 if the pool does not say. */
+  int getActiveCount() {
+    return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getActiveCount() : 0;
+  }
+
+  /** Returns how many device executions are waiting for a pool thread. */
+  int getQueuedCount() {
+    return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getQueue().size() : 0;
+  }
+
+  /** Returns how many device executions the pool has completed. */
+  long getCompletedCount() {
+    return pool instanceof ThreadPoolExecutor
+        ? ((ThreadPoolExecutor) pool).getCompletedTaskCount()
+        : 0;
+  }
+
+  private static ExecutorService newPool(int threads, int queueSize) {
+    AtomicInteger threadCount = new AtomicInteger();
+    // When the queue is full the request thread runs the execution itself, which throttles the
+    // callers instead of rejecting commands.
+    return new ThreadPoolExecutor(
+        threads,
+        threads,
+        60,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        r -> {
+          Thread thread = new Thread(r, "execute-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+}
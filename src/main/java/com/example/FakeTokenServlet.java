@@ -23,11 +23,16 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.gson.JsonObject;
 
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
 @WebServlet(name = "tokem", description = "Requests: Trivial request", urlPatterns = "/faketoken")
 public class FakeTokenServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static MyDataStore database = MyDataStore.getInstance();
 
   private static int secondsInDay = 86400;
 
@@ -40,11 +45,25 @@ public class FakeTokenServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
     String grantType = req.getParameter("grant_type");
+    String accessToken = "123access";
+    long expiresIn = secondsInDay;
+    try {
+      // Indexing the token also makes it valid again if the user had disconnected.
+      database.indexToken(accessToken);
+      if (AccessTokens.getInstance().isEnabled()) {
+        // Hand out a signed token for the sample user so fulfillment can skip the user lookup.
+        String userId = database.getUserId("Bearer " + accessToken);
+        expiresIn = Math.min(secondsInDay, AccessTokens.getInstance().getMaxLifetimeSeconds());
+        accessToken = AccessTokens.getInstance().issue(userId, expiresIn);
+      }
+    } catch (Exception e) {
+      LOGGER.error("failed to prepare access token: {}", e);
+    }
 
     JsonObject jsonRes = new JsonObject();
     jsonRes.addProperty("token_type", "bearer");
-    jsonRes.addProperty("access_token", "123access");
-    jsonRes.addProperty("expires_in", secondsInDay);
+    jsonRes.addProperty("access_token", accessToken);
+    jsonRes.addProperty("expires_in", expiresIn);
     if (grantType.equals("authorization_code")) {
       jsonRes.addProperty("refresh_token", "123refresh");
     }
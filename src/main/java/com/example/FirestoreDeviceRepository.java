@@ -0,0 +1,502 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.cloud.FirestoreClient;
+
+/**
+ * Stores everything in Cloud Firestore: users in {@code users/{userId}}, their devices in {@code
+ * users/{userId}/devices/{deviceId}}, and the token index in {@code tokens/{tokenHash}}.
+ */
+final class FirestoreDeviceRepository implements DeviceRepository {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String DEVICE_SET_VERSION = "deviceSetVersion";
+
+  private final Firestore database;
+
+  FirestoreDeviceRepository() {
+    // Use a service account
+    try {
+      GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
+      String projectId = System.getenv("GOOGLE_CLOUD_PROJECT");
+      FirebaseOptions options =
+          new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(projectId).build();
+      FirebaseApp.initializeApp(options);
+      database = FirestoreClient.getFirestore();
+    } catch (Exception e) {
+      LOGGER.error("ERROR: invalid service account credentials. See README.");
+      LOGGER.error(e.getMessage());
+
+      throw new RuntimeException(e);
+    }
+  }
+
+  private DocumentReference user(String userId) {
+    return database.collection("users").document(userId);
+  }
+
+  private CollectionReference devices(String userId) {
+    return user(userId).collection("devices");
+  }
+
+  private static Map<String, Object> deviceSetVersionBump() {
+    return Collections.singletonMap(DEVICE_SET_VERSION, FieldValue.increment(1));
+  }
+
+  private static <T> ApiFuture<Void> toVoid(ApiFuture<T> future) {
+    return ApiFutures.transform(future, result -> null, MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    user(userId).set(fields).get();
+  }
+
+  /**
+   * Deletes the user's devices before the user document, so that a failed delete never leaves
+   * devices behind a deleted user.
+   *
+   * @throws IllegalStateException If some devices could not be deleted, in which case the user
+   *     document is kept
+   */
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    List<String> deviceIds = new ArrayList<>(getDevices(userId).keySet());
+    deleteAll(
+        deviceIds,
+        Config.getInt("DELETE_USER_ATTEMPTS", 3),
+        remaining -> deleteDevices(userId, remaining));
+    user(userId).delete().get();
+  }
+
+  /** Deletes devices, returning the error of each device or null for devices that were deleted. */
+  interface BulkDelete {
+    List<String> delete(List<String> deviceIds) throws InterruptedException;
+  }
+
+  /**
+   * Deletes every device, retrying the devices whose delete failed.
+   *
+   * @param attempts How many times a device is tried at most
+   * @throws IllegalStateException If some devices still failed after the last attempt
+   */
+  static void deleteAll(List<String> deviceIds, int attempts, BulkDelete delete)
+      throws InterruptedException {
+    List<String> remaining = deviceIds;
+    for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+      List<String> errors = delete.delete(remaining);
+      List<String> failed = new ArrayList<>();
+      String lastError = null;
+      for (int i = 0; i < remaining.size(); i++) {
+        if (errors.get(i) != null) {
+          failed.add(remaining.get(i));
+          lastError = errors.get(i);
+        }
+      }
+      if (!failed.isEmpty() && attempt >= attempts) {
+        throw new IllegalStateException(
+            "failed to delete " + failed.size() + " devices: " + lastError);
+      }
+      remaining = failed;
+    }
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException {
+    DocumentSnapshot user = user(userId).get().get();
+    return (Boolean) user.get("homegraph");
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    user(userId).update("homegraph", enable);
+  }
+
+  @Override
+  public long getDeviceSetVersion(String userId) throws ExecutionException, InterruptedException {
+    DocumentSnapshot user = user(userId).get().get();
+    Long version = user.getLong(DEVICE_SET_VERSION);
+    return version != null ? version : 0;
+  }
+
+  @Override
+  public String getUserIdByTokenHash(String tokenHash)
+      throws ExecutionException, InterruptedException {
+    DocumentSnapshot indexEntry = database.collection("tokens").document(tokenHash).get().get();
+    return indexEntry.exists() ? indexEntry.getString("userId") : null;
+  }
+
+  @Override
+  public String findUserIdByAccessToken(String accessToken)
+      throws ExecutionException, InterruptedException {
+    List<QueryDocumentSnapshot> users =
+        database
+            .collection("users")
+            .whereEqualTo("fakeAccessToken", accessToken)
+            .limit(1)
+            .get()
+            .get()
+            .getDocuments();
+    return users.isEmpty() ? null : users.get(0).getId();
+  }
+
+  @Override
+  public ApiFuture<Void> putTokenHash(String tokenHash, String userId) {
+    return toVoid(
+        database
+            .collection("tokens")
+            .document(tokenHash)
+            .set(Collections.singletonMap("userId", userId)));
+  }
+
+  @Override
+  public void deleteTokenHashes(String userId) throws ExecutionException, InterruptedException {
+    List<QueryDocumentSnapshot> tokens =
+        database.collection("tokens").whereEqualTo("userId", userId).get().get().getDocuments();
+    // A batch holds at most 500 writes.
+    for (int from = 0; from < tokens.size(); from += 500) {
+      WriteBatch batch = database.batch();
+      for (QueryDocumentSnapshot token :
+          tokens.subList(from, Math.min(from + 500, tokens.size()))) {
+        batch.delete(token.getReference());
+      }
+      batch.commit().get();
+    }
+  }
+
+  @Override
+  public void forEachTokenHash(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException {
+    for (QueryDocumentSnapshot token :
+        database.collection("tokens").select(FieldPath.documentId()).get().get().getDocuments()) {
+      consumer.accept(token.getId());
+    }
+  }
+
+  @Override
+  public void forEachAccessToken(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException {
+    for (QueryDocumentSnapshot user :
+        database.collection("users").select("fakeAccessToken").get().get().getDocuments()) {
+      String accessToken = user.getString("fakeAccessToken");
+      if (accessToken != null) {
+        consumer.accept(accessToken);
+      }
+    }
+  }
+
+  @Override
+  public void migrateTokenIndex(Runnable onComplete) {
+    new TokenIndexMigration(
+            database, Config.getInt("TOKEN_INDEX_MIGRATION_BATCH_SIZE", 200), onComplete)
+        .run();
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+    for (QueryDocumentSnapshot device : devices(userId).get().get().getDocuments()) {
+      devices.put(device.getId(), device.getData());
+    }
+    return devices;
+  }
+
+  @Override
+  public Map<String, String> getSyncFragments(String userId)
+      throws ExecutionException, InterruptedException {
+    List<QueryDocumentSnapshot> devices =
+        devices(userId).select(SyncFragment.FIELD).get().get().getDocuments();
+    Map<String, String> fragments = new LinkedHashMap<>();
+    for (QueryDocumentSnapshot device : devices) {
+      fragments.put(device.getId(), device.getString(SyncFragment.FIELD));
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    List<DocumentReference> refs = new ArrayList<>();
+    for (String deviceId : deviceIds) {
+      refs.add(devices(userId).document(deviceId));
+    }
+    Map<String, String> fragments = new HashMap<>();
+    for (DocumentSnapshot device : database.getAll(refs.toArray(new DocumentReference[0])).get()) {
+      if (!device.exists()) {
+        continue;
+      }
+      String fragment = SyncFragment.render(device.getId(), device.getData());
+      fragments.put(device.getId(), fragment);
+      ApiFutures.addCallback(
+          device
+              .getReference()
+              .update(Precondition.updatedAt(device.getUpdateTime()), SyncFragment.FIELD, fragment),
+          new ApiFutureCallback<WriteResult>() {
+            @Override
+            public void onFailure(Throwable t) {
+              LOGGER.warn("did not store sync fragment of {}: {}", device.getId(), t.getMessage());
+            }
+
+            @Override
+            public void onSuccess(WriteResult result) {}
+          },
+          MoreExecutors.directExecutor());
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, Object> getState(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    DocumentSnapshot device = devices(userId).document(deviceId).get().get();
+    return (Map<String, Object>) device.get("states");
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    Map<String, Map<String, Object>> states = new HashMap<>();
+    if (deviceIds.isEmpty()) {
+      return states;
+    }
+    List<DocumentReference> devices = new ArrayList<>();
+    for (String deviceId : new LinkedHashSet<>(deviceIds)) {
+      devices.add(devices(userId).document(deviceId));
+    }
+    for (DocumentSnapshot device :
+        database.getAll(devices.toArray(new DocumentReference[0]), FieldMask.of("states")).get()) {
+      states.put(device.getId(), (Map<String, Object>) device.get("states"));
+    }
+    return states;
+  }
+
+  @Override
+  public void updateDevice(
+      String userId, String deviceId, Map<String, Object> fields, boolean syncChanged)
+      throws ExecutionException, InterruptedException {
+    Map<String, Object> update = new HashMap<>();
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      update.put(field.getKey(), field.getValue() != null ? field.getValue() : FieldValue.delete());
+    }
+    DocumentReference device = devices(userId).document(deviceId);
+    if (syncChanged) {
+      WriteBatch batch = database.batch();
+      batch.update(device, update);
+      batch.set(user(userId), deviceSetVersionBump(), SetOptions.merge());
+      batch.commit().get();
+    } else {
+      device.update(update).get();
+    }
+  }
+
+  @Override
+  public void addDevice(String userId, String deviceId, Map<String, Object> device)
+      throws ExecutionException, InterruptedException {
+    WriteBatch batch = database.batch();
+    batch.set(devices(userId).document(deviceId), device);
+    batch.set(user(userId), deviceSetVersionBump(), SetOptions.merge());
+    batch.commit().get();
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    WriteBatch batch = database.batch();
+    batch.delete(devices(userId).document(deviceId));
+    batch.set(user(userId), deviceSetVersionBump(), SetOptions.merge());
+    batch.commit().get();
+  }
+
+  @Override
+  public List<String> addDevices(String userId, List<Map<String, Object>> devices)
+      throws InterruptedException {
+    CollectionReference deviceCollection = devices(userId);
+    return commitInChunks(
+        userId,
+        devices.size(),
+        (batch, i) ->
+            batch.set(
+                deviceCollection.document((String) devices.get(i).get("deviceId")),
+                devices.get(i)));
+  }
+
+  @Override
+  public List<String> deleteDevices(String userId, List<String> deviceIds)
+      throws InterruptedException {
+    CollectionReference deviceCollection = devices(userId);
+    return commitInChunks(
+        userId,
+        deviceIds.size(),
+        (batch, i) -> batch.delete(deviceCollection.document(deviceIds.get(i))));
+  }
+
+  /**
+   * Writes {@code count} devices in batches of at most {@code BULK_WRITE_BATCH_SIZE} devices and
+   * commits every batch at once. The user's device-set version is bumped once, after the batches
+   * committed, rather than by every batch, which would make them contend for the user document.
+   *
+   * @return The error of each device, or null for devices whose batch was committed
+   */
+  private List<String> commitInChunks(
+      String userId, int count, BiConsumer<WriteBatch, Integer> write) throws InterruptedException {
+    // A batch holds at most 500 writes.
+    int chunkSize = Math.max(1, Math.min(Config.getInt("BULK_WRITE_BATCH_SIZE", 500), 500));
+    return commitInChunks(
+        count,
+        chunkSize,
+        (start, end) -> {
+          WriteBatch batch = database.batch();
+          for (int i = start; i < end; i++) {
+            write.accept(batch, i);
+          }
+          return batch.commit();
+        },
+        () -> user(userId).set(deviceSetVersionBump(), SetOptions.merge()));
+  }
+
+  /** Commits the writes {@code start} to {@code end}, exclusive, as one batch. */
+  interface ChunkCommit {
+    ApiFuture<?> commit(int start, int end);
+  }
+
+  /**
+   * Commits {@code count} writes in chunks, all at once, and then runs {@code afterCommit} if any
+   * chunk was committed.
+   *
+   * @return The error of each write, or null for writes whose chunk was committed. If {@code
+   *     afterCommit} fails, its error is reported for every committed write.
+   */
+  static List<String> commitInChunks(
+      int count, int chunkSize, ChunkCommit commitChunk, Supplier<ApiFuture<?>> afterCommit)
+      throws InterruptedException {
+    List<String> errors = new ArrayList<>(Collections.nCopies(count, null));
+    List<Integer> chunkStarts = new ArrayList<>();
+    List<ApiFuture<?>> commits = new ArrayList<>();
+    for (int start = 0; start < count; start += chunkSize) {
+      chunkStarts.add(start);
+      commits.add(commitChunk.commit(start, Math.min(start + chunkSize, count)));
+    }
+    for (int c = 0; c < commits.size(); c++) {
+      try {
+        commits.get(c).get();
+      } catch (ExecutionException e) {
+        LOGGER.error("bulk write failed: {}", e.getCause());
+        String error = String.valueOf(e.getCause().getMessage());
+        int start = chunkStarts.get(c);
+        for (int i = start; i < Math.min(start + chunkSize, count); i++) {
+          errors.set(i, error);
+        }
+      }
+    }
+    if (errors.contains(null)) {
+      try {
+        afterCommit.get().get();
+      } catch (ExecutionException e) {
+        // The devices were written, but a cached SYNC response would not notice. Report them as
+        // failed so the client retries; setting and deleting a device again is harmless.
+        LOGGER.error("device-set version bump failed: {}", e.getCause());
+        String error = String.valueOf(e.getCause().getMessage());
+        for (int i = 0; i < count; i++) {
+          if (errors.get(i) == null) {
+            errors.set(i, error);
+          }
+        }
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser) {
+    WriteBatch batch = database.batch();
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : statesByUser.entrySet()) {
+      CollectionReference devices = devices(user.getKey());
+      for (Map.Entry<String, Map<String, Object>> device : user.getValue().entrySet()) {
+        batch.update(
+            devices.document(device.getKey()), DeviceRepository.stateFields(device.getValue()));
+      }
+    }
+    return toVoid(batch.commit());
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states) {
+    return toVoid(devices(userId).document(deviceId).update(DeviceRepository.stateFields(states)));
+  }
+
+  @Override
+  public <T> T transact(String userId, String deviceId, DeviceTransaction<T> transaction)
+      throws Exception {
+    DocumentReference deviceRef = devices(userId).document(deviceId);
+    try {
+      return database
+          .runTransaction(
+              t -> {
+                DocumentSnapshot device = t.get(deviceRef).get();
+                Map<String, Object> updates = new HashMap<>();
+                T result = transaction.apply(device.exists() ? device.getData() : null, updates);
+                if (!updates.isEmpty()) {
+                  t.update(deviceRef, updates);
+                }
+                return result;
+              })
+          .get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+
+/**
+ * Keeps everything in process memory, for running the sample and its benchmarks without Firestore.
+ * Users and devices live in concurrent maps, and each device document is guarded by its own lock,
+ * so requests for different devices never contend. Documents are deep-copied on the way in and out,
+ * so callers can modify what they read as they can with Firestore snapshots.
+ *
+ * <p>Only single-device writes are atomic; a write spanning several devices checks that they all
+ * exist up front and then applies each device in turn.
+ */
+final class InMemoryDeviceRepository implements DeviceRepository {
+
+  private static final class User {
+    // Guarded by the User.
+    final Map<String, Object> fields = new HashMap<>();
+    final AtomicLong deviceSetVersion = new AtomicLong();
+    // Sorted, so devices are listed in device ID order like a Firestore query.
+    final ConcurrentNavigableMap<String, Device> devices = new ConcurrentSkipListMap<>();
+  }
+
+  private static final class Device {
+    // Guarded by the Device.
+    final Map<String, Object> data;
+
+    Device(Map<String, Object> data) {
+      this.data = data;
+    }
+  }
+
+  private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> tokenIndex = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> usersByAccessToken = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a repository holding the users listed in the {@code MEMORY_STORE_USERS} setting, a
+   * comma-separated list of {@code userId:accessToken} pairs.
+   */
+  static InMemoryDeviceRepository fromConfig() {
+    InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+    DeviceRepository.usersFromSetting(Config.getString("MEMORY_STORE_USERS", ""))
+        .forEach(repository::setUser);
+    return repository;
+  }
+
+  private User user(String userId) {
+    return users.computeIfAbsent(userId, id -> new User());
+  }
+
+  private Device device(String userId, String deviceId) {
+    User user = users.get(userId);
+    return user != null ? user.devices.get(deviceId) : null;
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> fields) {
+    User user = user(userId);
+    synchronized (user) {
+      Object previous = user.fields.get("fakeAccessToken");
+      if (previous != null) {
+        usersByAccessToken.remove(previous, userId);
+      }
+      user.fields.clear();
+      user.fields.putAll(Documents.copyMap(fields));
+      Object accessToken = user.fields.get("fakeAccessToken");
+      if (accessToken instanceof String) {
+        usersByAccessToken.put((String) accessToken, userId);
+      }
+    }
+  }
+
+  @Override
+  public void deleteUser(String userId) {
+    User user = users.remove(userId);
+    if (user != null) {
+      synchronized (user) {
+        Object accessToken = user.fields.get("fakeAccessToken");
+        if (accessToken != null) {
+          usersByAccessToken.remove(accessToken, userId);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) {
+    User user = users.get(userId);
+    if (user == null) {
+      return null;
+    }
+    synchronized (user) {
+      return (Boolean) user.fields.get("homegraph");
+    }
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    // Like a Firestore update, this does nothing for a user that does not exist.
+    User user = users.get(userId);
+    if (user != null) {
+      synchronized (user) {
+        user.fields.put("homegraph", enable);
+      }
+    }
+  }
+
+  @Override
+  public long getDeviceSetVersion(String userId) {
+    User user = users.get(userId);
+    return user != null ? user.deviceSetVersion.get() : 0;
+  }
+
+  @Override
+  public String getUserIdByTokenHash(String tokenHash) {
+    return tokenIndex.get(tokenHash);
+  }
+
+  @Override
+  public String findUserIdByAccessToken(String accessToken) {
+    return usersByAccessToken.get(accessToken);
+  }
+
+  @Override
+  public ApiFuture<Void> putTokenHash(String tokenHash, String userId) {
+    tokenIndex.put(tokenHash, userId);
+    return ApiFutures.immediateFuture(null);
+  }
+
+  @Override
+  public void deleteTokenHashes(String userId) {
+    tokenIndex.values().removeIf(userId::equals);
+  }
+
+  @Override
+  public void forEachTokenHash(Consumer<String> consumer) {
+    tokenIndex.keySet().forEach(consumer);
+  }
+
+  @Override
+  public void forEachAccessToken(Consumer<String> consumer) {
+    usersByAccessToken.keySet().forEach(consumer);
+  }
+
+  @Override
+  public void migrateTokenIndex(Runnable onComplete) {
+    usersByAccessToken.forEach(
+        (accessToken, userId) -> tokenIndex.put(DeviceRepository.tokenHash(accessToken), userId));
+    onComplete.run();
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId) {
+    Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+    User user = users.get(userId);
+    if (user != null) {
+      for (Map.Entry<String, Device> device : user.devices.entrySet()) {
+        synchronized (device.getValue()) {
+          devices.put(device.getKey(), Documents.copyMap(device.getValue().data));
+        }
+      }
+    }
+    return devices;
+  }
+
+  @Override
+  public Map<String, String> getSyncFragments(String userId) {
+    Map<String, String> fragments = new LinkedHashMap<>();
+    User user = users.get(userId);
+    if (user != null) {
+      for (Map.Entry<String, Device> device : user.devices.entrySet()) {
+        synchronized (device.getValue()) {
+          fragments.put(device.getKey(), (String) device.getValue().data.get(SyncFragment.FIELD));
+        }
+      }
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds) {
+    Map<String, String> fragments = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      Device device = device(userId, deviceId);
+      if (device == null) {
+        continue;
+      }
+      synchronized (device) {
+        String fragment = SyncFragment.render(deviceId, device.data);
+        device.data.put(SyncFragment.FIELD, fragment);
+        fragments.put(deviceId, fragment);
+      }
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, Object> getState(String userId, String deviceId) {
+    Device device = device(userId, deviceId);
+    if (device == null) {
+      return null;
+    }
+    synchronized (device) {
+      return (Map<String, Object>) Documents.copy(device.data.get("states"));
+    }
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds) {
+    Map<String, Map<String, Object>> states = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      Device device = device(userId, deviceId);
+      if (device != null) {
+        synchronized (device) {
+          states.put(deviceId, (Map<String, Object>) Documents.copy(device.data.get("states")));
+        }
+      }
+    }
+    return states;
+  }
+
+  @Override
+  public void updateDevice(
+      String userId, String deviceId, Map<String, Object> fields, boolean syncChanged)
+      throws ExecutionException {
+    Device device = device(userId, deviceId);
+    if (device == null) {
+      throw new ExecutionException(notFound(userId, deviceId));
+    }
+    synchronized (device) {
+      for (Map.Entry<String, Object> field : fields.entrySet()) {
+        Documents.setField(device.data, field.getKey(), Documents.copy(field.getValue()));
+      }
+    }
+    if (syncChanged) {
+      user(userId).deviceSetVersion.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void addDevice(String userId, String deviceId, Map<String, Object> device) {
+    User user = user(userId);
+    user.devices.put(deviceId, new Device(Documents.copyMap(device)));
+    user.deviceSetVersion.incrementAndGet();
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId) {
+    User user = user(userId);
+    user.devices.remove(deviceId);
+    user.deviceSetVersion.incrementAndGet();
+  }
+
+  @Override
+  public List<String> addDevices(String userId, List<Map<String, Object>> devices) {
+    User user = user(userId);
+    List<String> errors = new ArrayList<>(devices.size());
+    for (Map<String, Object> device : devices) {
+      user.devices.put((String) device.get("deviceId"), new Device(Documents.copyMap(device)));
+      errors.add(null);
+    }
+    user.deviceSetVersion.incrementAndGet();
+    return errors;
+  }
+
+  @Override
+  public List<String> deleteDevices(String userId, List<String> deviceIds) {
+    User user = user(userId);
+    List<String> errors = new ArrayList<>(deviceIds.size());
+    for (String deviceId : deviceIds) {
+      user.devices.remove(deviceId);
+      errors.add(null);
+    }
+    user.deviceSetVersion.incrementAndGet();
+    return errors;
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser) {
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : statesByUser.entrySet()) {
+      for (String deviceId : user.getValue().keySet()) {
+        if (device(user.getKey(), deviceId) == null) {
+          return ApiFutures.immediateFailedFuture(notFound(user.getKey(), deviceId));
+        }
+      }
+    }
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : statesByUser.entrySet()) {
+      for (Map.Entry<String, Map<String, Object>> device : user.getValue().entrySet()) {
+        mergeStates(user.getKey(), device.getKey(), device.getValue());
+      }
+    }
+    return ApiFutures.immediateFuture(null);
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states) {
+    Device device = device(userId, deviceId);
+    if (device == null) {
+      return ApiFutures.immediateFailedFuture(notFound(userId, deviceId));
+    }
+    synchronized (device) {
+      for (Map.Entry<String, Object> field : DeviceRepository.stateFields(states).entrySet()) {
+        Documents.setField(device.data, field.getKey(), Documents.copy(field.getValue()));
+      }
+    }
+    return ApiFutures.immediateFuture(null);
+  }
+
+  @Override
+  public <T> T transact(String userId, String deviceId, DeviceTransaction<T> transaction)
+      throws Exception {
+    Device device = device(userId, deviceId);
+    if (device == null) {
+      return transaction.apply(null, new HashMap<>());
+    }
+    synchronized (device) {
+      Map<String, Object> updates = new HashMap<>();
+      T result = transaction.apply(Documents.copyMap(device.data), updates);
+      for (Map.Entry<String, Object> field : updates.entrySet()) {
+        // Unlike an update of deleted fields, a null written by a command is stored as null.
+        Documents.putField(device.data, field.getKey(), Documents.copy(field.getValue()));
+      }
+      return result;
+    }
+  }
+
+  private static Exception notFound(String userId, String deviceId) {
+    return new IllegalArgumentException("NOT_FOUND: no device " + deviceId + " for user " + userId);
+  }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Stores everything on local disk in a {@link SegmentLog}, for deployments that cannot use
+ * Firestore. Each user, device and token index entry is one key whose value is the whole document
+ * as JSON, so reading or writing a device is a hash lookup plus one small append.
+ *
+ * <p>Each write locks the documents it reads and writes, so read-modify-write operations such as
+ * EXECUTE are atomic per device while different devices are written concurrently; the user document
+ * is only locked to bump its device-set version. Reads take no locks. Records reach disk when the
+ * log is forced every {@code LOG_STORE_FORCE_INTERVAL_MS}, and survive a process crash before that
+ * because the log is memory mapped.
+ */
+final class LogDeviceRepository implements DeviceRepository {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String USER_PREFIX = "u\0";
+  private static final String DEVICE_PREFIX = "d\0";
+  private static final String TOKEN_PREFIX = "t\0";
+  private static final String TOKEN_INDEX_MIGRATED = "m\0tokenIndexMigration";
+  private static final String DEVICE_SET_VERSION = "deviceSetVersion";
+  private static final int LOCK_STRIPES = 256;
+
+  /** Releases the locks taken by {@link #lock}. */
+  private interface Locked extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private final SegmentLog log;
+  private final Gson gson = new Gson();
+  // Rebuilt from the log on open, since the log can only be looked up by key.
+  private final ConcurrentMap<String, NavigableSet<String>> devicesByUser =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> usersByAccessToken = new ConcurrentHashMap<>();
+  // The token index entries of each user, so that they can be found without scanning every key.
+  private final ConcurrentMap<String, Set<String>> tokenHashesByUser = new ConcurrentHashMap<>();
+  private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+  LogDeviceRepository(SegmentLog log) {
+    this.log = log;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    for (String key : log.keys()) {
+      if (key.startsWith(DEVICE_PREFIX)) {
+        String[] ids = key.substring(DEVICE_PREFIX.length()).split("\0", 2);
+        deviceIds(ids[0]).add(ids[1]);
+      } else if (key.startsWith(USER_PREFIX)) {
+        Object accessToken = read(key).get("fakeAccessToken");
+        if (accessToken instanceof String) {
+          usersByAccessToken.put((String) accessToken, key.substring(USER_PREFIX.length()));
+        }
+      } else if (key.startsWith(TOKEN_PREFIX)) {
+        String userId = getUserIdByTokenHash(key.substring(TOKEN_PREFIX.length()));
+        if (userId != null) {
+          tokenHashes(userId).add(key.substring(TOKEN_PREFIX.length()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens the log in {@code LOG_STORE_DIR} and starts forcing it to disk and compacting it in the
+   * background.
+   */
+  static LogDeviceRepository fromConfig() {
+    Path directory =
+        Paths.get(
+            Config.getString(
+                "LOG_STORE_DIR",
+                Paths.get(System.getProperty("java.io.tmpdir"), "smart-home-store").toString()));
+    SegmentLog log;
+    try {
+      log =
+          new SegmentLog(
+              directory,
+              Config.getInt("LOG_STORE_SEGMENT_BYTES", 64 * 1024 * 1024),
+              Config.getInt("LOG_STORE_INDEX_SLOTS", 1 << 16));
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot open device store in " + directory, e);
+    }
+    double maxLiveRatio = Config.getInt("LOG_STORE_COMPACTION_LIVE_PERCENT", 50) / 100.0;
+    ScheduledExecutorService maintenance =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "log-store-maintenance");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long intervalMillis = Config.getLong("LOG_STORE_FORCE_INTERVAL_MS", 1000);
+    maintenance.scheduleWithFixedDelay(
+        () -> {
+          try {
+            log.force();
+            log.compact(maxLiveRatio);
+          } catch (Exception e) {
+            LOGGER.error("device store maintenance failed: {}", e);
+          }
+        },
+        intervalMillis,
+        intervalMillis,
+        TimeUnit.MILLISECONDS);
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("smarthome_log_store_keys", "Live keys in the device store.", log::size);
+    metrics.gauge(
+        "smarthome_log_store_segments", "Segment files of the device store.", log::segmentCount);
+    metrics.counterFunction(
+        "smarthome_log_store_compactions_total",
+        "Compactions of the device store.",
+        log::getCompactions);
+    LogDeviceRepository repository = new LogDeviceRepository(log);
+    // Seeded users are indexed here, since the token index migration only runs once per store.
+    DeviceRepository.usersFromSetting(Config.getString("LOG_STORE_USERS", ""))
+        .forEach(
+            (userId, fields) -> {
+              repository.setUser(userId, fields);
+              repository.putTokenHash(
+                  DeviceRepository.tokenHash((String) fields.get("fakeAccessToken")), userId);
+            });
+    return repository;
+  }
+
+  private static String deviceKey(String userId, String deviceId) {
+    return DEVICE_PREFIX + userId + "\0" + deviceId;
+  }
+
+  /**
+   * Locks the documents with the given keys. Keys share a fixed number of lock stripes, which are
+   * always taken in the same order so that writers of overlapping documents cannot deadlock.
+   */
+  private Locked lock(Collection<String> keys) {
+    TreeSet<Integer> stripes = new TreeSet<>();
+    for (String key : keys) {
+      stripes.add(Math.floorMod(key.hashCode(), LOCK_STRIPES));
+    }
+    List<ReentrantLock> held = new ArrayList<>(stripes.size());
+    for (int stripe : stripes) {
+      locks[stripe].lock();
+      held.add(locks[stripe]);
+    }
+    return () -> {
+      for (int i = held.size() - 1; i >= 0; i--) {
+        held.get(i).unlock();
+      }
+    };
+  }
+
+  private Locked lock(String... keys) {
+    if (keys.length == 1) {
+      ReentrantLock stripe = locks[Math.floorMod(keys[0].hashCode(), LOCK_STRIPES)];
+      stripe.lock();
+      return stripe::unlock;
+    }
+    return lock(Arrays.asList(keys));
+  }
+
+  private NavigableSet<String> deviceIds(String userId) {
+    return devicesByUser.computeIfAbsent(userId, id -> new ConcurrentSkipListSet<>());
+  }
+
+  private Set<String> tokenHashes(String userId) {
+    return tokenHashesByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet());
+  }
+
+  /** Reads a document, or returns null if it does not exist. */
+  private Map<String, Object> read(String key) {
+    byte[] value = log.get(key);
+    return value != null
+        ? (Map<String, Object>)
+            fromJson(JsonParser.parseString(new String(value, StandardCharsets.UTF_8)))
+        : null;
+  }
+
+  private void write(String key, Map<String, Object> document) {
+    log.put(key, gson.toJson(document).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Converts parsed JSON into the maps, lists, strings, booleans, longs and doubles that Firestore
+   * returns for a document.
+   */
+  private static Object fromJson(JsonElement element) {
+    if (element.isJsonObject()) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+        map.put(entry.getKey(), fromJson(entry.getValue()));
+      }
+      return map;
+    }
+    if (element.isJsonArray()) {
+      List<Object> list = new ArrayList<>();
+      for (JsonElement item : element.getAsJsonArray()) {
+        list.add(fromJson(item));
+      }
+      return list;
+    }
+    if (element.isJsonNull()) {
+      return null;
+    }
+    JsonPrimitive primitive = element.getAsJsonPrimitive();
+    if (primitive.isBoolean()) {
+      return primitive.getAsBoolean();
+    }
+    if (primitive.isNumber()) {
+      double value = primitive.getAsDouble();
+      return value == Math.rint(value) && Math.abs(value) < 1L << 53
+          ? (Object) primitive.getAsLong()
+          : (Object) value;
+    }
+    return primitive.getAsString();
+  }
+
+  /** Increments the device-set version of a user. Callers hold the lock of the user document. */
+  private void bumpDeviceSetVersion(String userId) {
+    Map<String, Object> user = read(USER_PREFIX + userId);
+    if (user == null) {
+      user = new HashMap<>();
+    }
+    Object version = user.get(DEVICE_SET_VERSION);
+    user.put(DEVICE_SET_VERSION, (version instanceof Long ? (Long) version : 0L) + 1);
+    write(USER_PREFIX + userId, user);
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> fields) {
+    try (Locked locked = lock(USER_PREFIX + userId)) {
+      putUser(userId, fields);
+    }
+  }
+
+  private void putUser(String userId, Map<String, Object> fields) {
+    Map<String, Object> previous = read(USER_PREFIX + userId);
+    Map<String, Object> user = new HashMap<>(fields);
+    if (previous != null) {
+      Object accessToken = previous.get("fakeAccessToken");
+      if (accessToken != null) {
+        usersByAccessToken.remove(accessToken, userId);
+      }
+      // Keep the version increasing, so a SYNC cached for the old document is never reused.
+      if (previous.containsKey(DEVICE_SET_VERSION)) {
+        user.put(DEVICE_SET_VERSION, previous.get(DEVICE_SET_VERSION));
+      }
+    }
+    write(USER_PREFIX + userId, user);
+    Object accessToken = user.get("fakeAccessToken");
+    if (accessToken instanceof String) {
+      usersByAccessToken.put((String) accessToken, userId);
+    }
+  }
+
+  @Override
+  public void deleteUser(String userId) {
+    while (true) {
+      List<String> deviceIds = new ArrayList<>(deviceIds(userId));
+      List<String> keys = new ArrayList<>();
+      keys.add(USER_PREFIX + userId);
+      for (String deviceId : deviceIds) {
+        keys.add(deviceKey(userId, deviceId));
+      }
+      try (Locked locked = lock(keys)) {
+        // Adding a device locks the user document too, so the set is stable once it matches.
+        if (!deviceIds.equals(new ArrayList<>(deviceIds(userId)))) {
+          continue;
+        }
+        for (String deviceId : deviceIds) {
+          log.delete(deviceKey(userId, deviceId));
+        }
+        devicesByUser.remove(userId);
+        Map<String, Object> user = read(USER_PREFIX + userId);
+        if (user != null && user.get("fakeAccessToken") != null) {
+          usersByAccessToken.remove(user.get("fakeAccessToken"), userId);
+        }
+        log.delete(USER_PREFIX + userId);
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) {
+    Map<String, Object> user = read(USER_PREFIX + userId);
+    return user != null ? (Boolean) user.get("homegraph") : null;
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    try (Locked locked = lock(USER_PREFIX + userId)) {
+      // Like a Firestore update, this does nothing for a user that does not exist.
+      Map<String, Object> user = read(USER_PREFIX + userId);
+      if (user != null && !enable.equals(user.get("homegraph"))) {
+        user.put("homegraph", enable);
+        write(USER_PREFIX + userId, user);
+      }
+    }
+  }
+
+  @Override
+  public long getDeviceSetVersion(String userId) {
+    Map<String, Object> user = read(USER_PREFIX + userId);
+    Object version = user != null ? user.get(DEVICE_SET_VERSION) : null;
+    return version instanceof Long ? (Long) version : 0;
+  }
+
+  @Override
+  public String getUserIdByTokenHash(String tokenHash) {
+    byte[] userId = log.get(TOKEN_PREFIX + tokenHash);
+    return userId != null ? new String(userId, StandardCharsets.UTF_8) : null;
+  }
+
+  @Override
+  public String findUserIdByAccessToken(String accessToken) {
+    return usersByAccessToken.get(accessToken);
+  }
+
+  @Override
+  public ApiFuture<Void> putTokenHash(String tokenHash, String userId) {
+    try (Locked locked = lock(TOKEN_PREFIX + tokenHash)) {
+      String previous = getUserIdByTokenHash(tokenHash);
+      if (previous != null && !previous.equals(userId)) {
+        tokenHashes(previous).remove(tokenHash);
+      }
+      log.put(TOKEN_PREFIX + tokenHash, userId.getBytes(StandardCharsets.UTF_8));
+      tokenHashes(userId).add(tokenHash);
+    }
+    return ApiFutures.immediateFuture(null);
+  }
+
+  @Override
+  public void deleteTokenHashes(String userId) {
+    Set<String> tokenHashes = tokenHashesByUser.get(userId);
+    if (tokenHashes == null) {
+      return;
+    }
+    for (String tokenHash : tokenHashes) {
+      try (Locked locked = lock(TOKEN_PREFIX + tokenHash)) {
+        if (userId.equals(getUserIdByTokenHash(tokenHash))) {
+          log.delete(TOKEN_PREFIX + tokenHash);
+        }
+        tokenHashes.remove(tokenHash);
+      }
+    }
+  }
+
+  @Override
+  public void forEachTokenHash(Consumer<String> consumer) {
+    for (Set<String> tokenHashes : tokenHashesByUser.values()) {
+      tokenHashes.forEach(consumer);
+    }
+  }
+
+  @Override
+  public void forEachAccessToken(Consumer<String> consumer) {
+    usersByAccessToken.keySet().forEach(consumer);
+  }
+
+  @Override
+  public void migrateTokenIndex(Runnable onComplete) {
+    if (log.get(TOKEN_INDEX_MIGRATED) != null) {
+      onComplete.run();
+      return;
+    }
+    usersByAccessToken.forEach(
+        (accessToken, userId) -> {
+          String tokenHash = DeviceRepository.tokenHash(accessToken);
+          if (!userId.equals(getUserIdByTokenHash(tokenHash))) {
+            putTokenHash(tokenHash, userId);
+          }
+        });
+    log.put(TOKEN_INDEX_MIGRATED, new byte[] {1});
+    onComplete.run();
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId) {
+    Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+    NavigableSet<String> deviceIds = devicesByUser.get(userId);
+    if (deviceIds != null) {
+      for (String deviceId : deviceIds) {
+        Map<String, Object> device = read(deviceKey(userId, deviceId));
+        if (device != null) {
+          devices.put(deviceId, device);
+        }
+      }
+    }
+    return devices;
+  }
+
+  @Override
+  public Map<String, String> getSyncFragments(String userId) {
+    Map<String, String> fragments = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> device : getDevices(userId).entrySet()) {
+      fragments.put(device.getKey(), (String) device.getValue().get(SyncFragment.FIELD));
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds) {
+    Map<String, String> fragments = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      try (Locked locked = lock(deviceKey(userId, deviceId))) {
+        Map<String, Object> device = read(deviceKey(userId, deviceId));
+        if (device == null) {
+          continue;
+        }
+        String fragment = SyncFragment.render(deviceId, device);
+        device.put(SyncFragment.FIELD, fragment);
+        write(deviceKey(userId, deviceId), device);
+        fragments.put(deviceId, fragment);
+      }
+    }
+    return fragments;
+  }
+
+  @Override
+  public Map<String, Object> getState(String userId, String deviceId) {
+    Map<String, Object> device = read(deviceKey(userId, deviceId));
+    return device != null ? (Map<String, Object>) device.get("states") : null;
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds) {
+    Map<String, Map<String, Object>> states = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      states.put(deviceId, getState(userId, deviceId));
+    }
+    return states;
+  }
+
+  @Override
+  public void updateDevice(
+      String userId, String deviceId, Map<String, Object> fields, boolean syncChanged) {
+    String key = deviceKey(userId, deviceId);
+    try (Locked locked = syncChanged ? lock(key, USER_PREFIX + userId) : lock(key)) {
+      Map<String, Object> device = read(key);
+      if (device == null) {
+        throw new IllegalArgumentException(notFound(userId, deviceId));
+      }
+      for (Map.Entry<String, Object> field : fields.entrySet()) {
+        Documents.setField(device, field.getKey(), Documents.copy(field.getValue()));
+      }
+      write(key, device);
+      if (syncChanged) {
+        bumpDeviceSetVersion(userId);
+      }
+    }
+  }
+
+  @Override
+  public void addDevice(String userId, String deviceId, Map<String, Object> device) {
+    try (Locked locked = lock(deviceKey(userId, deviceId), USER_PREFIX + userId)) {
+      write(deviceKey(userId, deviceId), device);
+      deviceIds(userId).add(deviceId);
+      bumpDeviceSetVersion(userId);
+    }
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId) {
+    try (Locked locked = lock(deviceKey(userId, deviceId), USER_PREFIX + userId)) {
+      log.delete(deviceKey(userId, deviceId));
+      deviceIds(userId).remove(deviceId);
+      bumpDeviceSetVersion(userId);
+    }
+  }
+
+  @Override
+  public List<String> addDevices(String userId, List<Map<String, Object>> devices) {
+    List<String> keys = new ArrayList<>();
+    keys.add(USER_PREFIX + userId);
+    for (Map<String, Object> device : devices) {
+      keys.add(deviceKey(userId, (String) device.get("deviceId")));
+    }
+    List<String> errors = new ArrayList<>(devices.size());
+    try (Locked locked = lock(keys)) {
+      for (Map<String, Object> device : devices) {
+        String deviceId = (String) device.get("deviceId");
+        write(deviceKey(userId, deviceId), device);
+        deviceIds(userId).add(deviceId);
+        errors.add(null);
+      }
+      bumpDeviceSetVersion(userId);
+    }
+    return errors;
+  }
+
+  @Override
+  public List<String> deleteDevices(String userId, List<String> deviceIds) {
+    List<String> keys = new ArrayList<>();
+    keys.add(USER_PREFIX + userId);
+    for (String deviceId : deviceIds) {
+      keys.add(deviceKey(userId, deviceId));
+    }
+    List<String> errors = new ArrayList<>(deviceIds.size());
+    try (Locked locked = lock(keys)) {
+      for (String deviceId : deviceIds) {
+        log.delete(deviceKey(userId, deviceId));
+        deviceIds(userId).remove(deviceId);
+        errors.add(null);
+      }
+      bumpDeviceSetVersion(userId);
+    }
+    return errors;
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser) {
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : statesByUser.entrySet()) {
+      for (String deviceId : user.getValue().keySet()) {
+        keys.add(deviceKey(user.getKey(), deviceId));
+      }
+    }
+    try (Locked locked = lock(keys)) {
+      Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+      for (Map.Entry<String, Map<String, Map<String, Object>>> user : statesByUser.entrySet()) {
+        for (Map.Entry<String, Map<String, Object>> states : user.getValue().entrySet()) {
+          String key = deviceKey(user.getKey(), states.getKey());
+          Map<String, Object> device = read(key);
+          if (device == null) {
+            return ApiFutures.immediateFailedFuture(
+                new IllegalArgumentException(notFound(user.getKey(), states.getKey())));
+          }
+          mergeInto(device, states.getValue());
+          devices.put(key, device);
+        }
+      }
+      devices.forEach(this::write);
+    }
+    return ApiFutures.immediateFuture(null);
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states) {
+    return mergeStates(
+        Collections.singletonMap(userId, Collections.singletonMap(deviceId, states)));
+  }
+
+  private static void mergeInto(Map<String, Object> device, Map<String, Object> states) {
+    for (Map.Entry<String, Object> field : DeviceRepository.stateFields(states).entrySet()) {
+      Documents.setField(device, field.getKey(), Documents.copy(field.getValue()));
+    }
+  }
+
+  @Override
+  public <T> T transact(String userId, String deviceId, DeviceTransaction<T> transaction)
+      throws Exception {
+    String key = deviceKey(userId, deviceId);
+    try (Locked locked = lock(key)) {
+      Map<String, Object> device = read(key);
+      Map<String, Object> updates = new HashMap<>();
+      T result = transaction.apply(device != null ? Documents.copyMap(device) : null, updates);
+      if (device != null && !updates.isEmpty()) {
+        for (Map.Entry<String, Object> field : updates.entrySet()) {
+          // Unlike an update of deleted fields, a null written by a command is stored as null.
+          Documents.putField(device, field.getKey(), Documents.copy(field.getValue()));
+        }
+        write(key, device);
+      }
+      return result;
+    }
+  }
+
+  private static String notFound(String userId, String deviceId) {
+    return "NOT_FOUND: no device " + deviceId + " for user " + userId;
+  }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import com.google.api.core.ApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Records the latency and failures of every operation of another {@link DeviceRepository} in {@code
+ * smarthome_datastore_operation_duration_seconds} and {@code
+ * smarthome_datastore_operation_errors_total}, labelled with the operation, and traces each
+ * operation as a {@code datastore.<operation>} span. Operations that return a future are timed
+ * until the future completes.
+ */
+final class MeteredDeviceRepository implements DeviceRepository {
+  private final DeviceRepository repository;
+  private final Metrics.Timer setUserTimer = timer("setUser");
+  private final Metrics.Timer deleteUserTimer = timer("deleteUser");
+  private final Metrics.Timer isHomegraphEnabledTimer = timer("isHomegraphEnabled");
+  private final Metrics.Timer setHomegraphTimer = timer("setHomegraph");
+  private final Metrics.Timer getDeviceSetVersionTimer = timer("getDeviceSetVersion");
+  private final Metrics.Timer getUserIdByTokenHashTimer = timer("getUserIdByTokenHash");
+  private final Metrics.Timer findUserIdByAccessTokenTimer = timer("findUserIdByAccessToken");
+  private final Metrics.Timer putTokenHashTimer = timer("putTokenHash");
+  private final Metrics.Timer deleteTokenHashesTimer = timer("deleteTokenHashes");
+  private final Metrics.Timer forEachTokenHashTimer = timer("forEachTokenHash");
+  private final Metrics.Timer forEachAccessTokenTimer = timer("forEachAccessToken");
+  private final Metrics.Timer migrateTokenIndexTimer = timer("migrateTokenIndex");
+  private final Metrics.Timer getDevicesTimer = timer("getDevices");
+  private final Metrics.Timer getSyncFragmentsTimer = timer("getSyncFragments");
+  private final Metrics.Timer repairSyncFragmentsTimer = timer("repairSyncFragments");
+  private final Metrics.Timer getStateTimer = timer("getState");
+  private final Metrics.Timer getStatesTimer = timer("getStates");
+  private final Metrics.Timer updateDeviceTimer = timer("updateDevice");
+  private final Metrics.Timer addDeviceTimer = timer("addDevice");
+  private final Metrics.Timer deleteDeviceTimer = timer("deleteDevice");
+  private final Metrics.Timer addDevicesTimer = timer("addDevices");
+  private final Metrics.Timer deleteDevicesTimer = timer("deleteDevices");
+  private final Metrics.Timer mergeStatesTimer = timer("mergeStates");
+  private final Metrics.Timer transactTimer = timer("transact");
+
+  MeteredDeviceRepository(DeviceRepository repository) {
+    this.repository = repository;
+  }
+
+  private static Metrics.Timer timer(String operation) {
+    return Metrics.getInstance()
+        .timer("smarthome_datastore_operation", "data store operations", "operation", operation);
+  }
+
+  private static ApiFuture<Void> timeFuture(
+      Metrics.Timer timer, Tracing.Span span, long startNanos, ApiFuture<Void> future) {
+    future.addListener(
+        () -> {
+          boolean failed = false;
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            failed = true;
+          } catch (InterruptedException e) {
+            // The future is already done, so get() does not wait.
+            Thread.currentThread().interrupt();
+          }
+          timer.record(startNanos, failed);
+          span.end(failed);
+        },
+        MoreExecutors.directExecutor());
+    return future;
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.setUser");
+    boolean failed = true;
+    try {
+      repository.setUser(userId, fields);
+      failed = false;
+    } finally {
+      setUserTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.deleteUser");
+    boolean failed = true;
+    try {
+      repository.deleteUser(userId);
+      failed = false;
+    } finally {
+      deleteUserTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.isHomegraphEnabled");
+    boolean failed = true;
+    try {
+      Boolean result = repository.isHomegraphEnabled(userId);
+      failed = false;
+      return result;
+    } finally {
+      isHomegraphEnabledTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void setHomegraph(String userId, Boolean enable) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.setHomegraph");
+    boolean failed = true;
+    try {
+      repository.setHomegraph(userId, enable);
+      failed = false;
+    } finally {
+      setHomegraphTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public long getDeviceSetVersion(String userId) throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getDeviceSetVersion");
+    boolean failed = true;
+    try {
+      long result = repository.getDeviceSetVersion(userId);
+      failed = false;
+      return result;
+    } finally {
+      getDeviceSetVersionTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public String getUserIdByTokenHash(String tokenHash)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getUserIdByTokenHash");
+    boolean failed = true;
+    try {
+      String result = repository.getUserIdByTokenHash(tokenHash);
+      failed = false;
+      return result;
+    } finally {
+      getUserIdByTokenHashTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public String findUserIdByAccessToken(String accessToken)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.findUserIdByAccessToken");
+    boolean failed = true;
+    try {
+      String result = repository.findUserIdByAccessToken(accessToken);
+      failed = false;
+      return result;
+    } finally {
+      findUserIdByAccessTokenTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public ApiFuture<Void> putTokenHash(String tokenHash, String userId) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.putTokenHash");
+    try {
+      return timeFuture(putTokenHashTimer, span, start, repository.putTokenHash(tokenHash, userId));
+    } catch (RuntimeException e) {
+      putTokenHashTimer.record(start, true);
+      span.end(true);
+      throw e;
+    }
+  }
+
+  @Override
+  public void deleteTokenHashes(String userId) throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.deleteTokenHashes");
+    boolean failed = true;
+    try {
+      repository.deleteTokenHashes(userId);
+      failed = false;
+    } finally {
+      deleteTokenHashesTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void forEachTokenHash(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.forEachTokenHash");
+    boolean failed = true;
+    try {
+      repository.forEachTokenHash(consumer);
+      failed = false;
+    } finally {
+      forEachTokenHashTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void forEachAccessToken(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.forEachAccessToken");
+    boolean failed = true;
+    try {
+      repository.forEachAccessToken(consumer);
+      failed = false;
+    } finally {
+      forEachAccessTokenTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void migrateTokenIndex(Runnable onComplete) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.migrateTokenIndex");
+    boolean failed = true;
+    try {
+      repository.migrateTokenIndex(onComplete);
+      failed = false;
+    } finally {
+      migrateTokenIndexTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getDevices");
+    boolean failed = true;
+    try {
+      Map<String, Map<String, Object>> result = repository.getDevices(userId);
+      failed = false;
+      return result;
+    } finally {
+      getDevicesTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Map<String, String> getSyncFragments(String userId)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getSyncFragments");
+    boolean failed = true;
+    try {
+      Map<String, String> result = repository.getSyncFragments(userId);
+      failed = false;
+      return result;
+    } finally {
+      getSyncFragmentsTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.repairSyncFragments");
+    boolean failed = true;
+    try {
+      Map<String, String> result = repository.repairSyncFragments(userId, deviceIds);
+      failed = false;
+      return result;
+    } finally {
+      repairSyncFragmentsTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Map<String, Object> getState(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getState");
+    boolean failed = true;
+    try {
+      Map<String, Object> result = repository.getState(userId, deviceId);
+      failed = false;
+      return result;
+    } finally {
+      getStateTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.getStates");
+    boolean failed = true;
+    try {
+      Map<String, Map<String, Object>> result = repository.getStates(userId, deviceIds);
+      failed = false;
+      return result;
+    } finally {
+      getStatesTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void updateDevice(
+      String userId, String deviceId, Map<String, Object> fields, boolean syncChanged)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.updateDevice");
+    boolean failed = true;
+    try {
+      repository.updateDevice(userId, deviceId, fields, syncChanged);
+      failed = false;
+    } finally {
+      updateDeviceTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void addDevice(String userId, String deviceId, Map<String, Object> device)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.addDevice");
+    boolean failed = true;
+    try {
+      repository.addDevice(userId, deviceId, device);
+      failed = false;
+    } finally {
+      addDeviceTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.deleteDevice");
+    boolean failed = true;
+    try {
+      repository.deleteDevice(userId, deviceId);
+      failed = false;
+    } finally {
+      deleteDeviceTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public List<String> addDevices(String userId, List<Map<String, Object>> devices)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.addDevices");
+    boolean failed = true;
+    try {
+      List<String> result = repository.addDevices(userId, devices);
+      failed = false;
+      return result;
+    } finally {
+      addDevicesTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public List<String> deleteDevices(String userId, List<String> deviceIds)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.deleteDevices");
+    boolean failed = true;
+    try {
+      List<String> result = repository.deleteDevices(userId, deviceIds);
+      failed = false;
+      return result;
+    } finally {
+      deleteDevicesTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.mergeStates");
+    try {
+      return timeFuture(mergeStatesTimer, span, start, repository.mergeStates(statesByUser));
+    } catch (RuntimeException e) {
+      mergeStatesTimer.record(start, true);
+      span.end(true);
+      throw e;
+    }
+  }
+
+  @Override
+  public ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.mergeStates");
+    try {
+      return timeFuture(
+          mergeStatesTimer, span, start, repository.mergeStates(userId, deviceId, states));
+    } catch (RuntimeException e) {
+      mergeStatesTimer.record(start, true);
+      span.end(true);
+      throw e;
+    }
+  }
+
+  @Override
+  public <T> T transact(String userId, String deviceId, DeviceTransaction<T> transaction)
+      throws Exception {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("datastore.transact");
+    // A command the transaction rejects, such as one needing a PIN, is not a data store failure.
+    boolean[] rejected = {false};
+    try {
+      T result =
+          repository.transact(
+              userId,
+              deviceId,
+              (device, updates) -> {
+                try {
+                  return transaction.apply(device, updates);
+                } catch (Exception e) {
+                  rejected[0] = true;
+                  throw e;
+                }
+              });
+      transactTimer.record(start, false);
+      span.end();
+      return result;
+    } catch (Exception e) {
+      transactTimer.record(start, !rejected[0]);
+      span.end(!rejected[0]);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A registry of counters, latency histograms and gauges, rendered in the Prometheus text format by
+ * {@link MetricsServlet}.
+ *
+ * <p>Counters and histograms are backed by {@link LongAdder}s, so recording a value never takes a
+ * lock and costs a few nanoseconds even when many request threads record at once. Components that
+ * already keep their own statistics are exposed with functions that are read at scrape time.
+ */
+final class Metrics {
+  private static Metrics ourInstance = new Metrics();
+
+  /** The upper bounds of the latency buckets, in seconds. */
+  private static final double[] LATENCY_BUCKETS = {
+    0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+
+  private interface Sample {
+    void write(StringBuilder out, String name, String labels);
+  }
+
+  /** The samples of one metric name, keyed by their rendered labels. */
+  private static final class Family {
+    final String help;
+    final String type;
+    final ConcurrentMap<String, Sample> samples = new ConcurrentSkipListMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  /** A count that only goes up. */
+  static final class Counter implements Sample {
+    private final LongAdder count = new LongAdder();
+
+    void increment() {
+      count.increment();
+    }
+
+    void add(long amount) {
+      count.add(amount);
+    }
+
+    long get() {
+      return count.sum();
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      line(out, name, labels, count.sum());
+    }
+  }
+
+  /** A distribution of durations over fixed buckets. */
+  static final class Histogram implements Sample {
+    private final long[] boundsNanos = new long[LATENCY_BUCKETS.length];
+    // One more bucket than bounds, for durations above the largest bound.
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+        boundsNanos[i] = (long) (LATENCY_BUCKETS[i] * 1e9);
+      }
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observeNanos(long nanos) {
+      int bucket = 0;
+      while (bucket < boundsNanos.length && nanos > boundsNanos[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    /** Records the time since {@code startNanos}, a value of {@link System#nanoTime}. */
+    void observeSince(long startNanos) {
+      observeNanos(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String bound = i < LATENCY_BUCKETS.length ? Double.toString(LATENCY_BUCKETS[i]) : "+Inf";
+        line(out, name + "_bucket", prefix + "le=\"" + bound + "\"}", cumulative);
+      }
+      line(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+      line(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  /** The latency and the failures of one kind of operation. */
+  static final class Timer {
+    private final Histogram latency;
+    private final Counter errors;
+
+    private Timer(Histogram latency, Counter errors) {
+      this.latency = latency;
+      this.errors = errors;
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos}, a value of {@link System#nanoTime}.
+     */
+    void record(long startNanos, boolean failed) {
+      latency.observeSince(startNanos);
+      if (failed) {
+        errors.increment();
+      }
+    }
+  }
+
+  private static final class FunctionSample implements Sample {
+    private final DoubleSupplier value;
+
+    FunctionSample(DoubleSupplier value) {
+      this.value = value;
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      line(out, name, labels, value.getAsDouble());
+    }
+  }
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+  Metrics() {
+    registerJvm();
+  }
+
+  public static Metrics getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Returns the counter with the given name and labels, creating it on first use.
+   *
+   * @param name The metric name, which should end in {@code _total}
+   * @param help What the metric counts
+   * @param labels Alternating label names and values
+   */
+  Counter counter(String name, String help, String... labels) {
+    return (Counter)
+        family(name, help, "counter").samples.computeIfAbsent(labels(labels), l -> new Counter());
+  }
+
+  /** Returns the latency histogram with the given name and labels, creating it on first use. */
+  Histogram histogram(String name, String help, String... labels) {
+    return (Histogram)
+        family(name, help, "histogram")
+            .samples
+            .computeIfAbsent(labels(labels), l -> new Histogram());
+  }
+
+  /**
+   * Returns a timer that records into the histogram {@code <name>_duration_seconds} and counts
+   * failures in {@code <name>_errors_total}.
+   */
+  Timer timer(String name, String help, String... labels) {
+    return new Timer(
+        histogram(name + "_duration_seconds", "Latency of " + help + ".", labels),
+        counter(name + "_errors_total", "Failed " + help + ".", labels));
+  }
+
+  /** Exposes a value that can go up and down, read when the metrics are scraped. */
+  void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "gauge").samples.put(labels(labels), new FunctionSample(value));
+  }
+
+  /** Exposes a count kept elsewhere, read when the metrics are scraped. */
+  void counterFunction(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "counter").samples.put(labels(labels), new FunctionSample(value));
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+    }
+    return family;
+  }
+
+  /** Renders every metric in the Prometheus text exposition format, version 0.0.4. */
+  String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, Family> family : families.entrySet()) {
+      out.append("# HELP ").append(family.getKey()).append(' ').append(family.getValue().help);
+      out.append('\n');
+      out.append("# TYPE ").append(family.getKey()).append(' ').append(family.getValue().type);
+      out.append('\n');
+      for (Map.Entry<String, Sample> sample : family.getValue().samples.entrySet()) {
+        sample.getValue().write(out, family.getKey(), sample.getKey());
+      }
+    }
+    return out.toString();
+  }
+
+  private static String labels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("labels must be name and value pairs");
+    }
+    if (labels.length == 0) {
+      return "";
+    }
+    StringBuilder out = new StringBuilder("{");
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(labels[i]).append("=\"");
+      for (char c : labels[i + 1].toCharArray()) {
+        if (c == '\\' || c == '"') {
+          out.append('\\').append(c);
+        } else if (c == '\n') {
+          out.append("\\n");
+        } else {
+          out.append(c);
+        }
+      }
+      out.append('"');
+    }
+    return out.append('}').toString();
+  }
+
+  private static void line(StringBuilder out, String name, String labels, double value) {
+    out.append(name).append(labels).append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+
+  private void registerJvm() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      gauge(
+          "jvm_memory_pool_used_bytes",
+          "Used bytes of a JVM memory pool.",
+          () -> pool.getUsage().getUsed(),
+          "pool",
+          pool.getName());
+      gauge(
+          "jvm_memory_pool_committed_bytes",
+          "Committed bytes of a JVM memory pool.",
+          () -> pool.getUsage().getCommitted(),
+          "pool",
+          pool.getName());
+      gauge(
+          "jvm_memory_pool_max_bytes",
+          "Maximum bytes of a JVM memory pool, or -1 if unbounded.",
+          () -> pool.getUsage().getMax(),
+          "pool",
+          pool.getName());
+    }
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      gauge(
+          "jvm_buffer_pool_used_bytes",
+          "Bytes used by direct or memory-mapped buffers.",
+          pool::getMemoryUsed,
+          "pool",
+          pool.getName());
+    }
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      counterFunction(
+          "jvm_gc_collections_total",
+          "Garbage collections run by a collector.",
+          gc::getCollectionCount,
+          "gc",
+          gc.getName());
+      counterFunction(
+          "jvm_gc_collection_seconds_total",
+          "Time spent in garbage collections by a collector.",
+          () -> gc.getCollectionTime() / 1000.0,
+          "gc",
+          gc.getName());
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    gauge("jvm_threads", "Live JVM threads.", threads::getThreadCount);
+    gauge("jvm_threads_daemon", "Live JVM daemon threads.", threads::getDaemonThreadCount);
+    gauge(
+        "process_uptime_seconds",
+        "Time since the JVM started.",
+        () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    gauge(
+        "process_start_time_seconds",
+        "When the JVM started, in seconds since the epoch.",
+        () -> TimeUnit.MILLISECONDS.toSeconds(ManagementFactory.getRuntimeMXBean().getStartTime()));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link Metrics} registry in the Prometheus text format, so that a Prometheus server
+ * can scrape the intent, data store and Home Graph latencies along with the statistics the caches,
+ * the dispatchers and the JVM keep.
+ */
+@WebServlet(name = "metrics", urlPatterns = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  @Override
+  public void init() {
+    registerComponents(Metrics.getInstance());
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    res.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    res.getWriter().write(Metrics.getInstance().scrape());
+    res.getWriter().flush();
+  }
+
+  /** Exposes the statistics that components already keep, read at scrape time. */
+  static void registerComponents(Metrics metrics) {
+    MyDataStore database = MyDataStore.getInstance();
+    metrics.counterFunction(
+        "smarthome_user_id_cache_requests_total",
+        "User ID cache lookups.",
+        database::getUserIdCacheHits,
+        "result",
+        "hit");
+    metrics.counterFunction(
+        "smarthome_user_id_cache_requests_total",
+        "User ID cache lookups.",
+        database::getUserIdCacheMisses,
+        "result",
+        "miss");
+    metrics.counterFunction(
+        "smarthome_user_id_cache_evictions_total",
+        "User ID cache evictions.",
+        database::getUserIdCacheEvictions);
+
+    TokenFilter tokenFilter = database.getTokenFilter();
+    if (tokenFilter != null) {
+      metrics.counterFunction(
+          "smarthome_token_filter_rejected_total",
+          "Access tokens the token filter rejected without a lookup.",
+          tokenFilter::getRejected);
+      metrics.counterFunction(
+          "smarthome_token_filter_rebuilds_total",
+          "Token filter rebuilds.",
+          tokenFilter::getRebuilds);
+      metrics.gauge(
+          "smarthome_token_filter_tokens",
+          "Tokens in the token filter at its last rebuild.",
+          tokenFilter::getLastSize);
+      metrics.gauge(
+          "smarthome_token_filter_false_positive_ratio",
+          "False positive rate of the token filter.",
+          tokenFilter::getExpectedFalsePositiveRate,
+          "kind",
+          "expected");
+      metrics.gauge(
+          "smarthome_token_filter_false_positive_ratio",
+          "False positive rate of the token filter.",
+          tokenFilter::getObservedFalsePositiveRate,
+          "kind",
+          "observed");
+    }
+
+    SyncCache<?> devices = SyncCache.devices();
+    SyncCache<?> fragments = SyncCache.fragments();
+    String syncCacheName = "smarthome_sync_cache_requests_total";
+    String syncCacheHelp = "SYNC cache lookups.";
+    metrics.counterFunction(
+        syncCacheName, syncCacheHelp, devices::getHits, "cache", "devices", "result", "hit");
+    metrics.counterFunction(
+        syncCacheName, syncCacheHelp, devices::getMisses, "cache", "devices", "result", "miss");
+    metrics.counterFunction(
+        syncCacheName, syncCacheHelp, fragments::getHits, "cache", "fragments", "result", "hit");
+    metrics.counterFunction(
+        syncCacheName, syncCacheHelp, fragments::getMisses, "cache", "fragments", "result", "miss");
+
+    ReportedStates reportedStates = ReportState.getReportedStates();
+    metrics.counterFunction(
+        "smarthome_report_state_devices_total",
+        "Devices considered for a Report State.",
+        reportedStates::getDevicesReported,
+        "result",
+        "reported");
+    metrics.counterFunction(
+        "smarthome_report_state_devices_total",
+        "Devices considered for a Report State.",
+        reportedStates::getDevicesSuppressed,
+        "result",
+        "suppressed");
+    metrics.counterFunction(
+        "smarthome_report_state_fields_total",
+        "State fields considered for a Report State.",
+        reportedStates::getFieldsReported,
+        "result",
+        "reported");
+    metrics.counterFunction(
+        "smarthome_report_state_fields_total",
+        "State fields considered for a Report State.",
+        reportedStates::getFieldsSuppressed,
+        "result",
+        "suppressed");
+    metrics.gauge(
+        "smarthome_report_state_snapshots",
+        "Devices with a snapshot of their reported states.",
+        reportedStates::size);
+
+    ReportStateDispatcher dispatcher = ReportStateDispatcher.getInstance();
+    String dispatcherName = "smarthome_report_state_dispatcher_total";
+    String dispatcherHelp = "Report State updates handled by the dispatcher.";
+    metrics.counterFunction(
+        dispatcherName, dispatcherHelp, dispatcher::getSubmitted, "result", "submitted");
+    metrics.counterFunction(
+        dispatcherName, dispatcherHelp, dispatcher::getCoalesced, "result", "coalesced");
+    metrics.counterFunction(
+        dispatcherName, dispatcherHelp, dispatcher::getDropped, "result", "dropped");
+    metrics.counterFunction(dispatcherName, dispatcherHelp, dispatcher::getSent, "result", "sent");
+    metrics.counterFunction(
+        dispatcherName, dispatcherHelp, dispatcher::getFailed, "result", "failed");
+    metrics.gauge(
+        "smarthome_report_state_dispatcher_pending_devices",
+        "Devices with a Report State waiting to be sent.",
+        dispatcher::getPendingDevices);
+
+    RequestSyncScheduler scheduler = RequestSyncScheduler.getInstance();
+    String schedulerName = "smarthome_request_sync_scheduler_total";
+    String schedulerHelp = "Request Syncs handled by the scheduler.";
+    metrics.counterFunction(
+        schedulerName, schedulerHelp, scheduler::getScheduled, "result", "scheduled");
+    metrics.counterFunction(
+        schedulerName, schedulerHelp, scheduler::getCoalesced, "result", "coalesced");
+    metrics.counterFunction(
+        schedulerName, schedulerHelp, scheduler::getRequested, "result", "requested");
+    metrics.counterFunction(schedulerName, schedulerHelp, scheduler::getFailed, "result", "failed");
+    metrics.gauge(
+        "smarthome_request_sync_scheduler_pending_users",
+        "Users with a Request Sync waiting to be sent.",
+        scheduler::getPendingUsers);
+
+    metrics.gauge(
+        "smarthome_outbox_pending_entries",
+        "Home Graph calls in the outbox that are not acknowledged yet.",
+        Outbox.getInstance()::pendingCount);
+
+    Tracing tracing = Tracing.getInstance();
+    String tracesName = "smarthome_traces_total";
+    String tracesHelp = "Traces started and what became of them.";
+    metrics.counterFunction(tracesName, tracesHelp, tracing::getStarted, "result", "started");
+    metrics.counterFunction(tracesName, tracesHelp, tracing::getExported, "result", "exported");
+    metrics.counterFunction(tracesName, tracesHelp, tracing::getDiscarded, "result", "discarded");
+    metrics.counterFunction(tracesName, tracesHelp, tracing::getDropped, "result", "dropped");
+
+    ExecutionEngine engine = ExecutionEngine.getInstance();
+    metrics.gauge(
+        "smarthome_execute_pool_active_threads",
+        "Device executions running.",
+        engine::getActiveCount);
+    metrics.gauge(
+        "smarthome_execute_pool_queued_tasks",
+        "Device executions waiting for a thread.",
+        engine::getQueuedCount);
+    metrics.counterFunction(
+        "smarthome_execute_pool_completed_total",
+        "Device executions completed.",
+        engine::getCompletedCount);
+  }
+}
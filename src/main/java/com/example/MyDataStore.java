@@ -17,48 +17,99 @@
 package com.example;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.actions.api.smarthome.ExecuteRequest;
 import com.google.api.core.ApiFuture;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.firestore.DocumentReference;
-import com.google.cloud.firestore.DocumentSnapshot;
-import com.google.cloud.firestore.FieldValue;
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.firebase.FirebaseApp;
-import com.google.firebase.FirebaseOptions;
-import com.google.firebase.cloud.FirestoreClient;
 
 public class MyDataStore {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
   private static MyDataStore ourInstance = new MyDataStore();
-  Firestore database;
-
+  private final DeviceRepository repository;
+
+  // Every fulfillment intent starts by resolving the bearer token, so remember recent lookups
+  // instead of querying the users collection each time. Other instances only see a revocation once
+  // their entry expires, so the time to live is kept short.
+  private final UserIdCache userIdCache =
+      new UserIdCache(
+          Config.getInt("TOKEN_CACHE_SIZE", 10000),
+          Config.getLong("TOKEN_CACHE_TTL_SECONDS", 30),
+          TimeUnit.SECONDS);
+
+  // While the tokens collection is being backfilled, lookups that miss the index still fall back
+  // to querying the users collection. Once it is done they only do so if this emergency override
+  // is set.
+  private volatile boolean tokenIndexMigrated = false;
+  private final boolean legacyTokenLookupOverride =
+      Config.getBoolean("TOKEN_INDEX_LEGACY_FALLBACK", false);
+
+  // Runs the token index migration and the token filter rebuilds off the request threads.
+  private final ScheduledExecutorService maintenance =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "datastore-maintenance");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // Rejects unknown bearer tokens before they cost a datastore read. Opt-in, since a token
+  // written to Firestore by another instance or by hand is rejected here until the next rebuild.
+  private final TokenFilter tokenFilter =
+      Config.getBoolean("TOKEN_FILTER_ENABLED", false)
+          ? new TokenFilter(
+              this::forEachValidTokenHash,
+              Config.getInt("TOKEN_FILTER_FPP_PER_MILLION", 1000) / 1e6)
+          : null;
+
+  /**
+   * Uses the backend named by the {@code DATA_STORE} setting: {@code firestore}, the default,
+   * {@code memory}, which keeps everything in this process, or {@code log}, which keeps everything
+   * in files under {@code LOG_STORE_DIR}.
+   */
   public MyDataStore() {
-    // Use a service account
-    try {
-      GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
-      String projectId = System.getenv("GOOGLE_CLOUD_PROJECT");
-      FirebaseOptions options =
-          new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(projectId).build();
-      FirebaseApp.initializeApp(options);
-      database = FirestoreClient.getFirestore();
-    } catch (Exception e) {
-      LOGGER.error("ERROR: invalid service account credentials. See README.");
-      LOGGER.error(e.getMessage());
+    this(
+        new MeteredDeviceRepository(createRepository(Config.getString("DATA_STORE", "firestore"))));
+  }
+
+  MyDataStore(DeviceRepository repository) {
+    this.repository = repository;
+    if (Config.getBoolean("TOKEN_INDEX_MIGRATION", true)) {
+      maintenance.execute(() -> repository.migrateTokenIndex(() -> tokenIndexMigrated = true));
+    }
+    if (tokenFilter != null) {
+      maintenance.scheduleWithFixedDelay(
+          tokenFilter::rebuild,
+          0,
+          Config.getLong("TOKEN_FILTER_REFRESH_SECONDS", 600),
+          TimeUnit.SECONDS);
+    }
+  }
 
-      throw new RuntimeException(e);
+  private static DeviceRepository createRepository(String name) {
+    switch (name) {
+      case "firestore":
+        return new FirestoreDeviceRepository();
+      case "memory":
+        LOGGER.info("keeping users and devices in memory");
+        return InMemoryDeviceRepository.fromConfig();
+      case "log":
+        LOGGER.info("keeping users and devices in a local log");
+        return LogDeviceRepository.fromConfig();
+      default:
+        throw new IllegalArgumentException("unknown DATA_STORE " + name);
     }
   }
 
@@ -66,66 +117,226 @@ public class MyDataStore {
     return ourInstance;
   }
 
-  public List<QueryDocumentSnapshot> getDevices(String userId)
+  /**
+   * Creates or replaces a user, e.g. with its {@code fakeAccessToken}. Index entries of the user's
+   * previous tokens are dropped and the new token is indexed.
+   */
+  public void setUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    repository.setUser(userId, fields);
+    invalidateUser(userId);
+    Object accessToken = fields.get("fakeAccessToken");
+    if (accessToken instanceof String) {
+      writeTokenIndex((String) accessToken, userId).get();
+    }
+  }
+
+  /** Deletes a user and all of its devices. */
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    repository.deleteUser(userId);
+    invalidateUser(userId);
+    SyncCache.invalidateUser(userId);
+  }
+
+  /** Returns every device of a user by device ID. */
+  public Map<String, Map<String, Object>> getDevices(String userId)
       throws ExecutionException, InterruptedException {
-    ApiFuture<QuerySnapshot> deviceQuery =
-        database.collection("users").document(userId).collection("devices").get();
-    return deviceQuery.get().getDocuments();
+    return repository.getDevices(userId);
+  }
+
+  /**
+   * Reads only the stored SYNC fragments of a user's devices.
+   *
+   * @return The fragment of each device ID, in query order, or null for devices without one
+   */
+  public Map<String, String> getSyncFragments(String userId)
+      throws ExecutionException, InterruptedException {
+    return repository.getSyncFragments(userId);
+  }
+
+  /**
+   * Renders the SYNC fragments of devices that do not have one, and stores them in the background.
+   * A fragment is only stored if the device has not changed since it was read.
+   *
+   * @return The fragment of each device that still exists
+   */
+  public Map<String, String> repairSyncFragments(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    return repository.repairSyncFragments(userId, deviceIds);
   }
 
   public String getUserId(String token) throws ExecutionException, InterruptedException {
+    Tracing.Span span = Tracing.getInstance().startSpan("getUserId");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      String userId = lookUpUserId(token);
+      failed = false;
+      return userId;
+    } finally {
+      span.end(failed);
+    }
+  }
+
+  private String lookUpUserId(String token) throws ExecutionException, InterruptedException {
     if (token == null) {
       token = "Bearer 123access";
     }
-    ApiFuture<QuerySnapshot> userQuery =
-        database.collection("users").whereEqualTo("fakeAccessToken", token.substring(7)).get();
-    QuerySnapshot usersSnapshot = userQuery.get();
-    List<QueryDocumentSnapshot> users = usersSnapshot.getDocuments();
-
-    DocumentSnapshot user;
-    try {
-      user = users.get(0);
-    } catch (Exception e) {
+    String accessToken = token.substring(7);
+    // Signed tokens carry the user ID themselves, so they never need a datastore read.
+    String signedUserId = AccessTokens.getInstance().verify(accessToken);
+    if (signedUserId != null) {
+      return signedUserId;
+    }
+    String cachedUserId = userIdCache.get(accessToken);
+    if (cachedUserId != null) {
+      return cachedUserId;
+    }
+    String tokenHash = DeviceRepository.tokenHash(accessToken);
+    if (tokenFilter != null && !tokenFilter.mightContain(tokenHash)) {
+      throw new IllegalArgumentException("unknown access token");
+    }
+    String indexedUserId = repository.getUserIdByTokenHash(tokenHash);
+    if (indexedUserId != null) {
+      userIdCache.put(accessToken, indexedUserId);
+      return indexedUserId;
+    }
+    String userId =
+        isLegacyTokenLookupEnabled() ? repository.findUserIdByAccessToken(accessToken) : null;
+    if (userId != null && Boolean.FALSE.equals(repository.isHomegraphEnabled(userId))) {
+      // The user disconnected, which dropped the token from the index. The token stays on the user
+      // document, so it must not be resolved and indexed again until it is issued again.
+      LOGGER.warn("rejecting the unindexed token of a disconnected user");
+      userId = null;
+    }
+    if (userId == null) {
       LOGGER.error("no user found!");
-      throw e;
+      if (tokenFilter != null) {
+        tokenFilter.recordFalsePositive();
+      }
+      throw new IllegalArgumentException("unknown access token");
+    }
+    // Repair the index so the next lookup for this token is a single document read.
+    writeTokenIndex(accessToken, userId);
+    userIdCache.put(accessToken, userId);
+    return userId;
+  }
+
+  /**
+   * Records an issued access token in the {@code tokens} index so fulfillment requests can resolve
+   * it with one keyed read instead of a query over the users collection. This is also what makes
+   * the token of a disconnected user valid again when it is handed out on a new link.
+   *
+   * @param accessToken The access token handed out to Google
+   */
+  public void indexToken(String accessToken) throws ExecutionException, InterruptedException {
+    String userId = repository.findUserIdByAccessToken(accessToken);
+    if (userId == null) {
+      LOGGER.warn("issued an access token that does not belong to any user");
+      return;
+    }
+    writeTokenIndex(accessToken, userId).get();
+  }
+
+  private ApiFuture<Void> writeTokenIndex(String accessToken, String userId) {
+    String tokenHash = DeviceRepository.tokenHash(accessToken);
+    if (tokenFilter != null) {
+      tokenFilter.add(tokenHash);
     }
+    return repository.putTokenHash(tokenHash, userId);
+  }
+
+  private boolean isLegacyTokenLookupEnabled() {
+    return !tokenIndexMigrated || legacyTokenLookupOverride;
+  }
+
+  private void forEachValidTokenHash(Consumer<String> consumer)
+      throws ExecutionException, InterruptedException {
+    repository.forEachTokenHash(consumer);
+    if (isLegacyTokenLookupEnabled()) {
+      repository.forEachAccessToken(
+          accessToken -> consumer.accept(DeviceRepository.tokenHash(accessToken)));
+    }
+  }
+
+  /**
+   * Revokes the user's signed tokens and drops the user's entries from the token index and any
+   * cached token lookups for the user. Must be called whenever the user is disconnected or their
+   * token fields are changed, so that a revoked token is never resolved from the index or the cache
+   * of this instance; other instances may resolve it from their caches for up to {@code
+   * TOKEN_CACHE_TTL_SECONDS}. The legacy lookup does not resolve the {@code fakeAccessToken} of a
+   * user whose {@code homegraph} flag was cleared on disconnect either, so the token stays revoked
+   * until it is issued and indexed again.
+   *
+   * @param userId The agent user ID
+   */
+  public void invalidateUser(String userId) throws ExecutionException, InterruptedException {
+    AccessTokens.getInstance().revoke(userId);
+    repository.deleteTokenHashes(userId);
+    userIdCache.invalidateUser(userId);
+  }
+
+  public long getUserIdCacheHits() {
+    return userIdCache.getHits();
+  }
 
-    return user.getId();
+  public long getUserIdCacheMisses() {
+    return userIdCache.getMisses();
+  }
+
+  public long getUserIdCacheEvictions() {
+    return userIdCache.getEvictions();
+  }
+
+  /** Returns the token filter, or null if it is disabled. */
+  TokenFilter getTokenFilter() {
+    return tokenFilter;
   }
 
   public Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException {
-    DocumentSnapshot user = database.collection("users").document(userId).get().get();
-    return (Boolean) user.get("homegraph");
+    return repository.isHomegraphEnabled(userId);
   }
 
   public void setHomegraph(String userId, Boolean enable) {
-    DocumentReference user = database.collection("users").document(userId);
-    user.update("homegraph", enable);
+    repository.setHomegraph(userId, enable);
+  }
+
+  /**
+   * Returns the version of the user's device set, which changes whenever a device is added,
+   * removed, or has metadata that SYNC reports changed.
+   */
+  public long getDeviceSetVersion(String userId) throws ExecutionException, InterruptedException {
+    return repository.getDeviceSetVersion(userId);
+  }
+
+  /**
+   * Merges the states of many devices, possibly of different users, in one batched write. The batch
+   * fails as a whole if any device does not exist.
+   *
+   * @param statesByUser The states to merge, by user ID and then by device ID
+   * @return The pending commit of the batch
+   */
+  public ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser) {
+    return repository.mergeStates(statesByUser);
+  }
+
+  /** Merges the states of one device. */
+  public ApiFuture<Void> mergeStates(String userId, String deviceId, Map<String, Object> states) {
+    return repository.mergeStates(userId, deviceId, states);
   }
 
   public void updateDevice(
       String userId, String deviceId, Map<String, Object> states, Map<String, String> params)
       throws ExecutionException, InterruptedException {
-    DocumentReference device =
-        database.collection("users").document(userId).collection("devices").document(deviceId);
+    // Collect every change into one field map so the update is a single, atomic write. A null
+    // value deletes the field.
+    Map<String, Object> fields = new HashMap<>();
     if (states != null) {
-      device.update("states", states).get();
-    }
-    if (params.containsKey("name")) {
-      String name = params.get("name");
-      device.update("name", name != null ? name : FieldValue.delete()).get();
-    }
-    if (params.containsKey("nickname")) {
-      String nickname = params.get("nickname");
-      device.update("nickname", nickname != null ? nickname : FieldValue.delete()).get();
+      fields.put("states", states);
     }
-    if (params.containsKey("errorCode")) {
-      String errorCode = params.get("errorCode");
-      device.update("errorCode", errorCode != null ? errorCode : FieldValue.delete()).get();
-    }
-    if (params.containsKey("tfa")) {
-      String tfa = params.get("tfa");
-      device.update("tfa", tfa != null ? tfa : FieldValue.delete()).get();
+    for (String field : new String[] {"name", "nickname", "errorCode", "tfa"}) {
+      if (params.containsKey(field)) {
+        fields.put(field, params.get(field));
+      }
     }
     if (params.containsKey("localDeviceId")) {
       String localDeviceId = params.get("localDeviceId");
@@ -134,965 +345,202 @@ public class MyDataStore {
         otherDeviceId.put("deviceId", localDeviceId);
         List<Object> otherDeviceIds = new ArrayList<>();
         otherDeviceIds.add(otherDeviceId);
-        device.update("otherDeviceIds", otherDeviceIds).get();
+        fields.put("otherDeviceIds", otherDeviceIds);
       } else {
-        device.update("otherDeviceIds", FieldValue.delete()).get();
+        fields.put("otherDeviceIds", null);
       }
     }
+    if (fields.isEmpty()) {
+      return;
+    }
+    boolean syncChanged =
+        params.containsKey("name")
+            || params.containsKey("nickname")
+            || params.containsKey("localDeviceId");
+    if (syncChanged) {
+      // SYNC changes, so drop the stored fragment and bump the version in the same write.
+      fields.put(SyncFragment.FIELD, null);
+    }
+    repository.updateDevice(userId, deviceId, fields, syncChanged);
+    if (syncChanged) {
+      SyncCache.invalidateUser(userId);
+    }
   }
 
   public void addDevice(String userId, Map<String, Object> data)
       throws ExecutionException, InterruptedException {
     String deviceId = (String) data.get("deviceId");
-    database
-        .collection("users")
-        .document(userId)
-        .collection("devices")
-        .document(deviceId)
-        .set(data)
-        .get();
+    repository.addDevice(userId, deviceId, withSyncFragment(deviceId, data));
+    SyncCache.invalidateUser(userId);
+  }
+
+  private static Map<String, Object> withSyncFragment(String deviceId, Map<String, Object> data) {
+    Map<String, Object> stored = new HashMap<>(data);
+    stored.put(SyncFragment.FIELD, SyncFragment.render(deviceId, data));
+    return stored;
   }
 
   public void deleteDevice(String userId, String deviceId)
       throws ExecutionException, InterruptedException {
-    database
-        .collection("users")
-        .document(userId)
-        .collection("devices")
-        .document(deviceId)
-        .delete()
-        .get();
+    repository.deleteDevice(userId, deviceId);
+    SyncCache.invalidateUser(userId);
+  }
+
+  /**
+   * Adds many devices of a user with chunked batch writes that are committed in parallel.
+   *
+   * @param userId The agent user ID
+   * @param devices The data of each device, as accepted by {@link #addDevice}
+   * @return The error of each device, in the order given, or null for devices that were added
+   */
+  public List<String> addDevices(String userId, List<Map<String, Object>> devices)
+      throws InterruptedException {
+    List<String> errors = new ArrayList<>(Collections.nCopies(devices.size(), null));
+    List<Integer> valid = new ArrayList<>();
+    List<Map<String, Object>> stored = new ArrayList<>();
+    for (int i = 0; i < devices.size(); i++) {
+      Object deviceId = devices.get(i) != null ? devices.get(i).get("deviceId") : null;
+      if (deviceId instanceof String && !((String) deviceId).isEmpty()) {
+        valid.add(i);
+        stored.add(withSyncFragment((String) deviceId, devices.get(i)));
+      } else {
+        errors.set(i, "missing deviceId");
+      }
+    }
+    if (!valid.isEmpty()) {
+      mergeErrors(errors, valid, repository.addDevices(userId, stored));
+      SyncCache.invalidateUser(userId);
+    }
+    return errors;
+  }
+
+  /**
+   * Deletes many devices of a user with chunked batch writes that are committed in parallel.
+   *
+   * @param userId The agent user ID
+   * @param deviceIds The IDs of the devices to delete
+   * @return The error of each device, in the order given, or null for devices that were deleted
+   */
+  public List<String> deleteDevices(String userId, List<String> deviceIds)
+      throws InterruptedException {
+    List<String> errors = new ArrayList<>(Collections.nCopies(deviceIds.size(), null));
+    List<Integer> valid = new ArrayList<>();
+    List<String> validIds = new ArrayList<>();
+    for (int i = 0; i < deviceIds.size(); i++) {
+      if (deviceIds.get(i) != null && !deviceIds.get(i).isEmpty()) {
+        valid.add(i);
+        validIds.add(deviceIds.get(i));
+      } else {
+        errors.set(i, "missing deviceId");
+      }
+    }
+    if (!valid.isEmpty()) {
+      mergeErrors(errors, valid, repository.deleteDevices(userId, validIds));
+      SyncCache.invalidateUser(userId);
+    }
+    return errors;
+  }
+
+  /** Copies the errors of the valid devices back to their positions in the request. */
+  private static void mergeErrors(List<String> errors, List<Integer> valid, List<String> written) {
+    for (int i = 0; i < valid.size(); i++) {
+      if (written.get(i) != null) {
+        errors.set(valid.get(i), written.get(i));
+      }
+    }
   }
 
   public Map<String, Object> getState(String userId, String deviceId)
       throws ExecutionException, InterruptedException {
-    DocumentSnapshot device =
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .get()
-            .get();
-    return (Map<String, Object>) device.get("states");
+    return repository.getState(userId, deviceId);
+  }
+
+  /**
+   * Reads the states of several devices of a user with one batched read.
+   *
+   * @param userId The agent user ID
+   * @param deviceIds The IDs of the devices to read
+   * @return A map from each requested device ID to its states, or to null if the device does not
+   *     exist or has no states
+   */
+  public Map<String, Map<String, Object>> getStates(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    return repository.getStates(userId, deviceIds);
   }
 
   public Map<String, Object> execute(
       String userId, String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
       throws Exception {
-
-    DocumentSnapshot device =
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .get()
-            .get();
-    Map<String, Object> deviceStates = (Map<String, Object>) device.getData().get("states");
     Map<String, Object> states = new HashMap<>();
-    if (device.contains("states")) {
-      states.putAll(deviceStates);
+    // Read the device, re-check its preconditions and commit every changed field atomically, so
+    // read-modify-write commands cannot lose concurrent updates.
+    boolean pending =
+        repository.transact(
+            userId,
+            deviceId,
+            (device, updates) -> {
+              states.clear();
+              return applyExecution(device, execution, states, updates);
+            });
+    if (pending) {
+      throw new RuntimeException("PENDING");
+    }
+    return states;
+  }
+
+  /**
+   * Validates an execution against the current device document and computes its effect.
+   *
+   * @param device The device document read in the current transaction, or null if it does not exist
+   * @param execution The execution to apply
+   * @param states Receives the device states to report back to Google
+   * @param updates Receives the field updates to commit for the device
+   * @return Whether the command was accepted but completes asynchronously
+   */
+  private static boolean applyExecution(
+      Map<String, Object> device,
+      ExecuteRequest.Inputs.Payload.Commands.Execution execution,
+      Map<String, Object> states,
+      Map<String, Object> updates)
+      throws Exception {
+    if (device == null) {
+      throw new Exception("deviceNotFound");
+    }
+    if (device.containsKey("states")) {
+      states.putAll((Map<String, Object>) device.get("states"));
     }
 
     if (!(Boolean) states.get("online")) {
       throw new Exception("deviceOffline");
     }
 
-    if (device.contains("errorCode") && !device.getString("errorCode").isEmpty()) {
-      throw new Exception(device.getString("errorCode"));
+    String errorCode = (String) device.get("errorCode");
+    if (errorCode != null && !errorCode.isEmpty()) {
+      throw new Exception(errorCode);
     }
 
-    if (device.contains("tfa")) {
-      if (device.getString("tfa").equals("ack") && execution.getChallenge() == null) {
+    String tfa = (String) device.get("tfa");
+    if (tfa != null) {
+      if (tfa.equals("ack") && execution.getChallenge() == null) {
         throw new Exception("ackNeeded");
-      } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() == null) {
+      } else if (!tfa.isEmpty() && execution.getChallenge() == null) {
         throw new Exception("pinNeeded");
-      } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() != null) {
+      } else if (!tfa.isEmpty() && execution.getChallenge() != null) {
         String pin = (String) execution.getChallenge().get("pin");
-        if (pin != null && !pin.equals(device.getString("tfa"))) {
+        if (pin != null && !pin.equals(tfa)) {
           throw new Exception("challengeFailedPinNeeded");
         }
       }
     }
 
-    switch (execution.command) {
-        // action.devices.traits.AppSelector
-      case "action.devices.commands.appSelect":
-        {
-          String newApplication = (String) execution.getParams().get("newApplication");
-          String newApplicationName = (String) execution.getParams().get("newApplicationName");
-          String currentApplication = newApplication != null ? newApplication : newApplicationName;
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.currentApplication", currentApplication);
-          states.put("currentApplication", currentApplication);
-          break;
-        }
-
-      case "action.devices.commands.appInstall":
-        {
-          String newApplication = (String) execution.getParams().get("newApplication");
-          String newApplicationName = (String) execution.getParams().get("newApplicationName");
-          String currentApplication = newApplication != null ? newApplication : newApplicationName;
-          LOGGER.info("Install app " + currentApplication);
-          break;
-        }
-
-      case "action.devices.commands.appSearch":
-        {
-          String newApplication = (String) execution.getParams().get("newApplication");
-          String newApplicationName = (String) execution.getParams().get("newApplicationName");
-          String currentApplication = newApplication != null ? newApplication : newApplicationName;
-          LOGGER.info("Search for app " + currentApplication);
-          break;
-        }
-
-        // action.devices.traits.ArmDisarm
-      case "action.devices.commands.ArmDisarm":
-        if (execution.getParams().containsKey("arm")) {
-          boolean isArmed = (boolean) execution.getParams().get("arm");
-          states.put("isArmed", isArmed);
-        } else if (execution.getParams().containsKey("cancel")) {
-          // Cancel value is in relation to the arm value
-          boolean isArmed = (boolean) execution.getParams().get("arm");
-          states.put("isArmed", !isArmed);
-        }
-        if (execution.getParams().containsKey("armLevel")) {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update(
-                  "states.isArmed",
-                  states.get("isArmed"),
-                  "states.currentArmLevel",
-                  execution.getParams().get("armLevel"));
-          states.put("currentArmLevel", execution.getParams().get("armLevel"));
-        } else {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("isArmed", states.get("isArmed"));
-        }
-        break;
-
-        // action.devices.traits.Brightness
-      case "action.devices.commands.BrightnessAbsolute":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.brightness", execution.getParams().get("brightness"));
-        states.put("brightness", execution.getParams().get("brightness"));
-        break;
-
-        // action.devices.traits.CameraStream
-      case "action.devices.commands.GetCameraStream":
-        states.put("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
-        break;
-
-        // action.devices.traits.ColorSetting
-      case "action.devices.commands.ColorAbsolute":
-        String colorType;
-        Object color;
-        Map<String, Object> colorMap = (Map<String, Object>) execution.getParams().get("color");
-
-        if (colorMap.containsKey("spectrumRGB")) {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.color.spectrumRgb", colorMap.get("spectrumRGB"));
-          color = colorMap.get("spectrumRGB");
-          colorType = "spectrumRgb";
-        } else {
-          if (colorMap.containsKey("spectrumHSV")) {
-            database
-                .collection("users")
-                .document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.color.spectrumHsv", colorMap.get("spectrumHSV"));
-            colorType = "spectrumHsv";
-            color = colorMap.get("spectrumHSV");
-
-          } else {
-            if (colorMap.containsKey("temperature")) {
-              database
-                  .collection("users")
-                  .document(userId)
-                  .collection("devices")
-                  .document(deviceId)
-                  .update("states.color.temperatureK", colorMap.get("temperature"));
-              colorType = "temperatureK";
-              color = colorMap.get("temperature");
-
-            } else {
-              throw new Exception("notSupported");
-            }
-          }
-        }
-        states.put(colorType, color);
-        break;
-
-        // action.devices.traits.Cook
-      case "action.devices.commands.Cook":
-        boolean startCooking = (boolean) execution.getParams().get("start");
-        if (startCooking) {
-          // Start cooking
-          Map<String, Object> dbStates =
-              new HashMap<String, Object>() {
-                {
-                  put("states.currentCookingMode", execution.getParams().get("cookingMode"));
-                }
-              };
-          if (execution.getParams().containsKey("foodPreset")) {
-            dbStates.put("states.currentFoodPreset", execution.getParams().get("foodPreset"));
-          } else {
-            dbStates.put("states.currentFoodPreset", "NONE");
-          }
-          if (execution.getParams().containsKey("quantity")) {
-            dbStates.put("states.currentFoodQuantity", execution.getParams().get("quantity"));
-          } else {
-            dbStates.put("states.currentFoodQuantity", 0);
-          }
-          if (execution.getParams().containsKey("unit")) {
-            dbStates.put("states.currentFoodUnit", execution.getParams().get("unit"));
-          } else {
-            dbStates.put("states.currentFoodUnit", "NONE");
-          }
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document("deviceId")
-              .update(dbStates);
-          // Server getting response will handle any undefined values
-          states.put("currentCookingMode", execution.getParams().get("cookingMode"));
-          states.put("currentFoodPreset", execution.getParams().get("foodPreset"));
-          states.put("currentFoodQuantity", execution.getParams().get("quantity"));
-          states.put("currentFoodUnit", execution.getParams().get("unit"));
-        } else {
-          // Done cooking, reset
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document("deviceId")
-              .update(
-                  new HashMap<String, Object>() {
-                    {
-                      put("states.currentCookingMode", "NONE");
-                      put("states.currentFoodPreset", "NONE");
-                      put("states.currentFoodQuantity", 0);
-                      put("states.currentFoodUnit", "NONE");
-                    }
-                  });
-          states.put("currentCookingMode", "NONE");
-          states.put("currentFoodPreset", "NONE");
-        }
-        break;
-
-        // action.devices.traits.Dispense
-      case "action.devices.commands.Dispense":
-        int amount = (int) execution.getParams().get("amount");
-        String unit = (String) execution.getParams().get("unit");
-        if (execution.getParams().containsKey("presetName")
-            && execution.getParams().get("presetName").equals("cat food bowl")) {
-          // Fill in params
-          amount = 4;
-          unit = "CUPS";
-        }
-        Map<String, Object> amountLastDispensed = new HashMap();
-        amountLastDispensed.put("amount", amount);
-        amountLastDispensed.put("unit", unit);
-        Map<String, Object> dispenseUpdates = new HashMap<>();
-        dispenseUpdates.put(
-            "states.dispenseItems",
-            new HashMap[] {
-              new HashMap<String, Object>() {
-                {
-                  put("itemName", execution.getParams().get("item"));
-                  put("amountLastDispensed", amountLastDispensed);
-                  put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
-                }
-              }
-            });
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(dispenseUpdates);
-        states.put(
-            "dispenseItems",
-            new HashMap[] {
-              new HashMap<String, Object>() {
-                {
-                  put("itemName", execution.getParams().get("item"));
-                  put("amountLastDispensed", amountLastDispensed);
-                  put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
-                }
-              }
-            });
-        break;
-
-        // action.devices.traits.Dock
-      case "action.devices.commands.Dock":
-        // This has no parameters
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isDocked", true);
-        states.put("isDocked", true);
-        break;
-
-        // action.devices.traits.EnergyStorage
-      case "action.devices.commands.Charge":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isCharging", execution.getParams().get("charge"));
-        states.put("isCharging", execution.getParams().get("charge"));
-        break;
-
-        // action.devices.traits.FanSpeed
-      case "action.devices.commands.SetFanSpeed":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-        states.put("currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-        break;
-
-      case "action.devices.commands.Reverse":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentFanSpeedReverse", true);
-        break;
-
-        // action.devices.traits.Fill
-      case "action.devices.commands.Fill":
-        Map<String, Object> updates = new HashMap<>();
-        String currentFillLevel = "none";
-        boolean fill = (boolean) execution.getParams().get("fill");
-        if (fill) {
-          if (execution.getParams().containsKey("fillLevel")) {
-            currentFillLevel = (String) execution.getParams().get("fillLevel");
-          } else {
-            currentFillLevel = "half"; // Default fill level
-          }
-        } // Else the device is draining and the fill level is set to "none" by default
-        updates.put("states.isFilled", fill);
-        updates.put("states.currentFillLevel", currentFillLevel);
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(updates);
-        states.put("isFilled", fill);
-        states.put("currentFillLevel", currentFillLevel);
-        break;
-
-        // action.devices.traits.HumiditySetting
-      case "action.devices.commands.SetHumidity":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(
-                "states.humiditySetpointPercent",
-                execution.getParams().get("humiditySetpointPercent"));
-        states.put("humiditySetpointPercent", execution.getParams().get("humiditySetpointPercent"));
-        break;
-
-        // action.devices.traits.InputSelector
-      case "action.devices.commands.SetInput":
-        {
-          String newInput = (String) execution.getParams().get("newInput");
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.currentInput", newInput);
-          states.put("currentInput", newInput);
-          break;
-        }
-
-      case "action.devices.commands.PreviousInput":
-        {
-          Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-          String currentInput = (String) deviceStates.get("currentInput");
-          Map<String, Object>[] availableInputs =
-              (Map<String, Object>[]) attributes.get("availableInputs");
-          int index = -1;
-          for (int i = 0; i < availableInputs.length; i++) {
-            String input = (String) availableInputs[i].get("key");
-            if (currentInput.equals(input)) {
-              index = i;
-            }
-          }
-          int previousInputIndex = Math.min(index - 1, 0);
-          String newInput = (String) availableInputs[previousInputIndex].get("key");
-
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.currentInput", newInput);
-          states.put("currentInput", newInput);
-          break;
-        }
-
-      case "action.devices.commands.NextInput":
-        {
-          Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-          String currentInput = (String) deviceStates.get("currentInput");
-          Map<String, Object>[] availableInputs =
-              (Map<String, Object>[]) attributes.get("availableInputs");
-          int index = -1;
-          for (int i = 0; i < availableInputs.length; i++) {
-            String input = (String) availableInputs[i].get("key");
-            if (currentInput.equals(input)) {
-              index = i;
-            }
-          }
-          int nextInputIndex = Math.min(index + 1, availableInputs.length - 1);
-          String newInput = (String) availableInputs[nextInputIndex].get("key");
-
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.currentInput", newInput);
-          states.put("currentInput", newInput);
-          break;
-        }
-
-        // action.devices.traits.Locator
-      case "action.devices.commands.Locate":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(
-                "states.silent",
-                execution.getParams().get("silent"),
-                "states.generatedAlert",
-                true);
-        states.put("generatedAlert", true);
-        break;
-
-        // action.devices.traits.LockUnlock
-      case "action.devices.commands.LockUnlock":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isLocked", execution.getParams().get("lock"));
-        states.put("isLocked", execution.getParams().get("lock"));
-        break;
-
-        // action.devices.traits.NetworkControl
-      case "action.devices.commands.EnableDisableGuestNetwork":
-        {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.guestNetworkEnabled", execution.getParams().get("enable"));
-          states.put("guestNetworkEnabled", execution.getParams().get("enable"));
-          break;
-        }
-
-      case "action.devices.commands.EnableDisableNetworkProfile":
-        {
-          List<String> profiles =
-              (List<String>)
-                  ((Map<String, Object>) device.getData().get("attributes")).get("networkProfiles");
-          boolean profileExists =
-              profiles.stream()
-                  .anyMatch(
-                      (String profile) -> profile.equals(execution.getParams().get("profile")));
-          if (!profileExists) {
-            throw new RuntimeException("networkProfileNotRecognized");
-          }
-          // No state change occurs
-          break;
-        }
-
-      case "action.devices.commands.TestNetworkSpeed":
-        {
-          boolean testDownloadSpeed = (boolean) execution.getParams().get("testDownloadSpeed");
-          boolean testUploadSpeed = (boolean) execution.getParams().get("testUploadSpeed");
-          Map<String, Object> lastNetworkDownloadSpeedTest =
-              (Map<String, Object>)
-                  ((Map<String, Object>) device.getData().get("states"))
-                      .get("lastNetworkDownloadSpeedTest");
-          Map<String, Object> lastNetworkUploadSpeedTest =
-              (Map<String, Object>)
-                  ((Map<String, Object>) device.getData().get("states"))
-                      .get("lastNetworkUploadSpeedTest");
-          int unixTimestampSec = Math.toIntExact(new Date().getTime() / 1000);
-          if (testDownloadSpeed) {
-            lastNetworkDownloadSpeedTest.put("downloadSpeedMbps", (Math.random() * 100));
-            lastNetworkDownloadSpeedTest.put("unixTimestampSec", unixTimestampSec);
-          }
-          if (testUploadSpeed) {
-            lastNetworkUploadSpeedTest.put("uploadSpeedMbps", (Math.random() * 100));
-            lastNetworkUploadSpeedTest.put("unixTimestampSec", unixTimestampSec);
-          }
-
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update(
-                  "states.lastNetworkDownloadSpeedTest", lastNetworkDownloadSpeedTest,
-                  "states.lastNetworkUploadSpeedTest", lastNetworkUploadSpeedTest);
-          throw new RuntimeException("PENDING");
-        }
-
-      case "action.devices.commands.GetGuestNetworkPassword":
-        {
-          states.put("guestNetworkPassword", "wifi-password-123");
-        }
-
-        // action.devices.traits.OnOff
-      case "action.devices.commands.OnOff":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.on", execution.getParams().get("on"));
-        states.put("on", execution.getParams().get("on"));
-        break;
-
-        // action.devices.traits.OpenClose
-      case "action.devices.commands.OpenClose":
-        // Check if the device can open in multiple directions
-        Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-        if (attributes != null && attributes.containsKey("openDirection")) {
-          // The device can open in more than one direction
-          String direction = (String) execution.getParams().get("openDirection");
-          List<Map<String, Object>> openStates =
-              (List<Map<String, Object>>) states.get("openState");
-          openStates.forEach(
-              state -> {
-                if (state.get("openDirection").equals(direction)) {
-                  state.put("openPercent", execution.getParams().get("openPercent"));
-                }
-              });
-          states.put("openStates", openStates);
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.openState", openStates);
-        } else {
-          // The device can only open in one direction
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.openPercent", execution.getParams().get("openPercent"));
-          states.put("openPercent", execution.getParams().get("openPercent"));
-        }
-        break;
-
-        // action.devices.traits.Reboot
-      case "action.devices.commands.Reboot":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.online", false);
-        break;
-
-        // action.devices.traits.Rotation
-      case "action.devices.commands.RotateAbsolute":
-        // Check if the device can open in multiple directions
-        if (execution.getParams().containsKey("rotationPercent")) {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.rotationPercent", execution.getParams().get("rotationPercent"));
-          states.put("rotationPercent", execution.getParams().get("rotationPercent"));
-        } else if (execution.getParams().containsKey("rotationDegrees")) {
-          database
-              .collection("users")
-              .document(userId)
-              .collection("devices")
-              .document(deviceId)
-              .update("states.rotationDegrees", execution.getParams().get("rotationDegrees"));
-          states.put("rotationDegrees", execution.getParams().get("rotationDegrees"));
-        }
-        break;
-
-        // action.devices.traits.RunCycle - No execution
-        // action.devices.traits.Scene
-      case "action.devices.commands.ActivateScene":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.deactivate", execution.getParams().get("deactivate"));
-        // Scenes are stateless
-        break;
-
-        // action.devices.traits.SoftwareUpdate
-      case "action.devices.commands.SoftwareUpdate":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(
-                new HashMap<String, Object>() {
-                  {
-                    put("states.online", false);
-                    put("states.lastSoftwareUpdateUnixTimestampSec", new Date().getTime() / 1000);
-                  }
-                });
-        break;
-
-        // action.devices.traits.StartStop
-      case "action.devices.commands.StartStop":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isRunning", execution.getParams().get("start"));
-        states.put("isRunning", execution.getParams().get("start"));
-        break;
-
-      case "action.devices.commands.PauseUnpause":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isPaused", execution.getParams().get("pause"));
-        states.put("isPaused", execution.getParams().get("pause"));
-        break;
-
-        // action.devices.traits.Modes
-      case "action.devices.commands.SetModes":
-        Map<String, Object> currentModeSettings =
-            (Map<String, Object>)
-                states.getOrDefault("currentModeSettings", new HashMap<String, Object>());
-        currentModeSettings.putAll(
-            (Map<String, Object>)
-                execution
-                    .getParams()
-                    .getOrDefault("updateModeSettings", new HashMap<String, Object>()));
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentModeSettings", currentModeSettings);
-        states.put("currentModeSettings", currentModeSettings);
-        break;
-
-        // action.devices.traits.Timer
-      case "action.devices.commands.TimerStart":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.timerRemainingSec", execution.getParams().get("timerTimeSec"));
-        states.put("timerRemainingSec", execution.getParams().get("timerTimeSec"));
-        break;
-
-      case "action.devices.commands.TimerAdjust":
-        if ((int) states.get("timerRemainingSec") == -1) {
-          // No timer exists
-          throw new RuntimeException("noTimerExists");
-        }
-        int newTimerRemainingSec =
-            (int) states.get("timerRemainingSec") + (int) execution.getParams().get("timerTimeSec");
-        if (newTimerRemainingSec < 0) {
-          throw new RuntimeException("valueOutOfRange");
-        }
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.timerRemainingSec", newTimerRemainingSec);
-        states.put("timerRemainingSec", newTimerRemainingSec);
-        break;
-
-      case "action.devices.commands.TimerPause":
-        if ((int) states.get("timerRemainingSec") == -1) {
-          // No timer exists
-          throw new RuntimeException("noTimerExists");
-        }
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.timerPaused", true);
-        states.put("timerPaused", true);
-        break;
-
-      case "action.devices.commands.TimerResume":
-        if ((int) states.get("timerRemainingSec") == -1) {
-          // No timer exists
-          throw new RuntimeException("noTimerExists");
-        }
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.timerPaused", false);
-        states.put("timerPaused", false);
-        break;
-
-      case "action.devices.commands.TimerCancel":
-        if ((int) states.get("timerRemainingSec") == -1) {
-          // No timer exists
-          throw new RuntimeException("noTimerExists");
-        }
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.timerRemainingSec", -1);
-        states.put("timerRemainingSec", 0);
-        break;
-
-        // action.devices.traits.Toggles
-      case "action.devices.commands.SetToggles":
-        Map<String, Object> currentToggleSettings =
-            (Map<String, Object>)
-                states.getOrDefault("currentToggleSettings", new HashMap<String, Object>());
-        currentToggleSettings.putAll(
-            (Map<String, Object>)
-                execution
-                    .getParams()
-                    .getOrDefault("updateToggleSettings", new HashMap<String, Object>()));
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentToggleSettings", currentToggleSettings);
-        states.put("currentToggleSettings", currentToggleSettings);
-        break;
-
-        // action.devices.traits.TemperatureControl
-      case "action.devices.commands.SetTemperature":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.temperatureSetpointCelsius", execution.getParams().get("temperature"));
-        states.put("temperatureSetpointCelsius", execution.getParams().get("temperature"));
-        states.put("temperatureAmbientCelsius", deviceStates.get("temperatureAmbientCelsius"));
-        break;
-
-        // action.devices.traits.TemperatureSetting
-      case "action.devices.commands.ThermostatTemperatureSetpoint":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(
-                "states.thermostatTemperatureSetpoint",
-                execution.getParams().get("thermostatTemperatureSetpoint"));
-        states.put(
-            "thermostatTemperatureSetpoint",
-            execution.getParams().get("thermostatTemperatureSetpoint"));
-        states.put("thermostatMode", deviceStates.get("states.thermostatMode"));
-        states.put(
-            "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-        states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-        break;
-
-      case "action.devices.commands.ThermostatTemperatureSetRange":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update(
-                "states.thermostatTemperatureSetpointLow",
-                execution.getParams().get("thermostatTemperatureSetpointLow"),
-                "states.thermostatTemperatureSetpointHigh",
-                execution.getParams().get("thermostatTemperatureSetpointHigh"));
-        states.put(
-            "thermostatTemperatureSetpoint", deviceStates.get("thermostatTemperatureSetpoint"));
-        states.put("thermostatMode", deviceStates.get("thermostatMode"));
-        states.put(
-            "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-        states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-        break;
-
-      case "action.devices.commands.ThermostatSetMode":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.thermostatMode", execution.getParams().get("thermostatMode"));
-        states.put("thermostatMode", execution.getParams().get("thermostatMode"));
-        states.put(
-            "thermostatTemperatureSetpoint", deviceStates.get("thermostatTemperatureSetpoint"));
-        states.put(
-            "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-        states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-        break;
-
-        // action.devices.traits.TransportControl
-        // Traits are considered no-ops as they have no state
-      case "action.devices.commands.mediaPrevious":
-        LOGGER.info("Play the previous media");
-        break;
-
-      case "action.devices.commands.mediaNext":
-        LOGGER.info("Play the next media");
-        break;
-
-      case "action.devices.commands.mediaRepeatMode":
-        Boolean isOn = (Boolean) execution.getParams().get("isOn");
-        Boolean isSingle = (Boolean) execution.getParams().get("isSingle");
-        LOGGER.info("Repeat mode enabled: " + isOn + ". Single item enabled: " + isSingle);
-        break;
-
-      case "action.devices.commands.mediaShuffle":
-        LOGGER.info("Shuffle the playlist of media");
-        break;
-
-      case "action.devices.commands.mediaClosedCaptioningOn":
-        String ccLanguage = (String) execution.getParams().get("closedCaptioningLanguage");
-        String uqLanguage = (String) execution.getParams().get("userQueryLanguage");
-        LOGGER.info("Closed captioning enabled for " + ccLanguage + " for user in " + uqLanguage);
-        break;
-
-      case "action.devices.commands.mediaClosedCaptioningOff":
-        LOGGER.info("Closed captioning disabled");
-        break;
-
-      case "action.devices.commands.mediaPause":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.playbackState", "PAUSED");
-        states.put("playbackState", "PAUSED");
-        break;
-
-      case "action.devices.commands.mediaResume":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.playbackState", "PLAYING");
-        states.put("playbackState", "PLAYING");
-        break;
-
-      case "action.devices.commands.mediaStop":
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.playbackState", "STOPPED");
-        states.put("playbackState", "STOPPED");
-        break;
-
-      case "action.devices.commands.mediaSeekRelative":
-        int relativePositionMs = (int) execution.getParams().get("relativePositionMs");
-        LOGGER.info("Seek to (now + " + relativePositionMs + ") ms");
-        break;
-
-      case "action.devices.commands.mediaSeekToPosition":
-        int absPositionMs = (int) execution.getParams().get("absPositionMs");
-        LOGGER.info("Seek to " + absPositionMs + " ms");
-        break;
-
-        // action.devices.traits.Volume
-      case "action.devices.commands.setVolume":
-        int volumeLevel = (int) execution.getParams().get("volumeLevel");
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentVolume", volumeLevel);
-        states.put("currentVolume", volumeLevel);
-        break;
-
-      case "action.devices.commands.volumeRelative":
-        int relativeSteps = (int) execution.getParams().get("relativeSteps");
-        int currentVolume = (int) deviceStates.get("currentVolume");
-        int newVolume = currentVolume + relativeSteps;
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.currentVolume", newVolume);
-        states.put("currentVolume", newVolume);
-        break;
-
-      case "action.devices.commands.mute":
-        boolean mute = (boolean) execution.getParams().get("mute");
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .update("states.isMuted", mute);
-        states.put("isMuted", mute);
-        break;
+    CommandHandler handler = CommandHandlers.get(execution.command);
+    if (handler == null) {
+      return false;
     }
-
-    return states;
+    Map<String, Object> params =
+        execution.getParams() != null ? execution.getParams() : Collections.emptyMap();
+    StateDiff diff = new StateDiff(states, updates);
+    handler.execute(device, params, diff);
+    return diff.isPending();
   }
 }
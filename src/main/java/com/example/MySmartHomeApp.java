@@ -18,6 +18,7 @@ package com.example;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -27,20 +28,48 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.actions.api.smarthome.*;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.gson.Gson;
 import com.google.home.graph.v1.DeviceProto;
-import com.google.protobuf.Struct;
-import com.google.protobuf.util.JsonFormat;
 
 public class MySmartHomeApp extends SmartHomeApp {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
   private static MyDataStore database = MyDataStore.getInstance();
+  private static final Metrics.Timer syncTimer = intentTimer("SYNC");
+  private static final Metrics.Timer syncFragmentsTimer = intentTimer("SYNC_FRAGMENTS");
+  private static final Metrics.Timer queryTimer = intentTimer("QUERY");
+  private static final Metrics.Timer executeTimer = intentTimer("EXECUTE");
+  private static final Metrics.Timer disconnectTimer = intentTimer("DISCONNECT");
+
+  private static Metrics.Timer intentTimer(String intent) {
+    return Metrics.getInstance().timer("smarthome_intent", "smart home intents", "intent", intent);
+  }
+
+  /**
+   * Whether an intent failed although it returned a response, e.g. with an {@code errorCode} or
+   * with devices in {@code ERROR}. Such intents count as errors in the intent metrics and traces.
+   */
+  private static final class Outcome {
+    boolean failed;
+  }
 
   @NotNull
   @Override
   public SyncResponse onSync(SyncRequest syncRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("SYNC");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      Outcome outcome = new Outcome();
+      SyncResponse result = sync(syncRequest, headers, outcome);
+      failed = outcome.failed;
+      return result;
+    } finally {
+      syncTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  private SyncResponse sync(SyncRequest syncRequest, Map<?, ?> headers, Outcome outcome) {
 
     SyncResponse res = new SyncResponse();
     res.setRequestId(syncRequest.requestId);
@@ -54,25 +83,42 @@ public class MySmartHomeApp extends SmartHomeApp {
       // TODO(proppy): add errorCode when
       // https://github.com/actions-on-google/actions-on-google-java/issues/44 is fixed.
       LOGGER.error("failed to get user id for token: %d", token);
+      outcome.failed = true;
       return res;
     }
     res.payload.agentUserId = userId;
 
     database.setHomegraph(userId, true);
-    List<QueryDocumentSnapshot> devices = new ArrayList<>();
+    SyncCache<SyncResponse.Payload.Device[]> syncCache = SyncCache.devices();
+    SyncCache.CachedSync<SyncResponse.Payload.Device[]> fresh = syncCache.getFresh(userId);
+    if (fresh != null) {
+      res.payload.devices = fresh.devices.clone();
+      return res;
+    }
+    // Read the version before the devices, so that a concurrent change can only make the cached
+    // entry look older than it is.
+    long version;
+    Map<String, Map<String, Object>> devices;
     try {
+      version = database.getDeviceSetVersion(userId);
+      SyncResponse.Payload.Device[] cached = syncCache.get(userId, version);
+      if (cached != null) {
+        res.payload.devices = cached.clone();
+        return res;
+      }
       devices = database.getDevices(userId);
     } catch (ExecutionException | InterruptedException e) {
       LOGGER.error("failed to get devices", e);
+      outcome.failed = true;
       return res;
     }
-    int numOfDevices = devices.size();
-    res.payload.devices = new SyncResponse.Payload.Device[numOfDevices];
-    for (int i = 0; i < numOfDevices; i++) {
-      QueryDocumentSnapshot device = devices.get(i);
+    res.payload.devices = new SyncResponse.Payload.Device[devices.size()];
+    int i = 0;
+    for (Map.Entry<String, Map<String, Object>> entry : devices.entrySet()) {
+      Map<String, Object> device = entry.getValue();
       SyncResponse.Payload.Device.Builder deviceBuilder =
           new SyncResponse.Payload.Device.Builder()
-              .setId(device.getId())
+              .setId(entry.getKey())
               .setType((String) device.get("type"))
               .setTraits((List<String>) device.get("traits"))
               .setName(
@@ -90,38 +136,111 @@ public class MySmartHomeApp extends SmartHomeApp {
                       .setHwVersion((String) device.get("hwVersion"))
                       .setSwVersion((String) device.get("swVersion"))
                       .build());
-      if (device.contains("attributes")) {
-        Map<String, Object> attributes = new HashMap<>();
-        attributes.putAll((Map<String, Object>) device.get("attributes"));
-        String attributesJson = new Gson().toJson(attributes);
-        Struct.Builder attributeBuilder = Struct.newBuilder();
-        try {
-          JsonFormat.parser().ignoringUnknownFields().merge(attributesJson, attributeBuilder);
-        } catch (Exception e) {
-          LOGGER.error("FAILED TO BUILD");
-        }
-        deviceBuilder.setAttributes(attributeBuilder.build());
+      if (device.containsKey("attributes")) {
+        deviceBuilder.setAttributes(
+            StructConverter.toStruct((Map<String, Object>) device.get("attributes")));
       }
-      if (device.contains("customData")) {
-        Map<String, Object> customData = new HashMap<>();
-        customData.putAll((Map<String, Object>) device.get("customData"));
-        // TODO(proppy): remove once
-        // https://github.com/actions-on-google/actions-on-google-java/issues/43 is fixed.
-        String customDataJson = new Gson().toJson(customData);
-        deviceBuilder.setCustomData(customDataJson);
+      if (device.containsKey("customData")) {
+        deviceBuilder.setCustomData(
+            SyncFragment.customData((Map<String, Object>) device.get("customData")));
       }
-      if (device.contains("otherDeviceIds")) {
+      if (device.containsKey("otherDeviceIds")) {
         deviceBuilder.setOtherDeviceIds((List) device.get("otherDeviceIds"));
       }
-      res.payload.devices[i] = deviceBuilder.build();
+      res.payload.devices[i++] = deviceBuilder.build();
     }
+    syncCache.put(userId, version, res.payload.devices.clone());
 
     return res;
   }
 
+  /**
+   * Answers a SYNC request by joining the SYNC fragments stored with each device, instead of
+   * decoding every device document and building its response with {@link #onSync}. Devices that
+   * have no fragment yet get one rendered and stored.
+   *
+   * @param requestId The ID of the SYNC request
+   * @param headers The HTTP headers of the request
+   * @return The serialized SYNC response, or null if the request should go through {@link #onSync}
+   */
+  public String onSyncFromFragments(String requestId, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("SYNC_FRAGMENTS");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      String result = syncFromFragments(requestId, headers);
+      // Without a response the request falls back to onSync.
+      failed = result == null;
+      return result;
+    } finally {
+      syncFragmentsTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  private String syncFromFragments(String requestId, Map<?, ?> headers) {
+    String token = (String) headers.get("authorization");
+    String userId;
+    try {
+      userId = database.getUserId(token);
+    } catch (Exception e) {
+      return null;
+    }
+    database.setHomegraph(userId, true);
+    SyncCache<String> syncCache = SyncCache.fragments();
+    SyncCache.CachedSync<String> fresh = syncCache.getFresh(userId);
+    if (fresh != null) {
+      return SyncFragment.response(requestId, userId, fresh.devices);
+    }
+    try {
+      long version = database.getDeviceSetVersion(userId);
+      String devicesJson = syncCache.get(userId, version);
+      if (devicesJson == null) {
+        Map<String, String> fragments = database.getSyncFragments(userId);
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, String> fragment : fragments.entrySet()) {
+          if (fragment.getValue() == null) {
+            missing.add(fragment.getKey());
+          }
+        }
+        if (!missing.isEmpty()) {
+          Map<String, String> repaired = database.repairSyncFragments(userId, missing);
+          for (String deviceId : missing) {
+            if (repaired.containsKey(deviceId)) {
+              fragments.put(deviceId, repaired.get(deviceId));
+            } else {
+              fragments.remove(deviceId);
+            }
+          }
+        }
+        devicesJson = SyncFragment.join(fragments.values());
+        syncCache.put(userId, version, devicesJson);
+      }
+      return SyncFragment.response(requestId, userId, devicesJson);
+    } catch (ExecutionException | InterruptedException e) {
+      LOGGER.error("failed to get sync fragments", e);
+      return null;
+    }
+  }
+
   @NotNull
   @Override
   public QueryResponse onQuery(QueryRequest queryRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("QUERY");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      Outcome outcome = new Outcome();
+      QueryResponse result = query(queryRequest, headers, outcome);
+      failed = outcome.failed;
+      return result;
+    } finally {
+      queryTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  private QueryResponse query(QueryRequest queryRequest, Map<?, ?> headers, Outcome outcome) {
     QueryRequest.Inputs.Payload.Device[] devices =
         ((QueryRequest.Inputs) queryRequest.getInputs()[0]).payload.devices;
     QueryResponse res = new QueryResponse();
@@ -135,21 +254,36 @@ public class MySmartHomeApp extends SmartHomeApp {
     } catch (Exception e) {
       LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
       res.payload.setErrorCode("authFailure");
+      outcome.failed = true;
       return res;
     }
 
-    Map<String, Map<String, Object>> deviceStates = new HashMap<>();
+    // Fetch every requested device in one round trip. A device that is missing from the result
+    // is reported as offline without failing the rest of the response.
+    List<String> deviceIds = new ArrayList<>();
     for (QueryRequest.Inputs.Payload.Device device : devices) {
-      try {
-        Map<String, Object> deviceState = database.getState(userId, device.id);
+      deviceIds.add(device.id);
+    }
+    Map<String, Map<String, Object>> storedStates = new HashMap<>();
+    try {
+      storedStates = database.getStates(userId, deviceIds);
+    } catch (Exception e) {
+      LOGGER.error("QUERY FAILED: {}", e);
+    }
+
+    Map<String, Map<String, Object>> deviceStates = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      Map<String, Object> storedState = storedStates.get(deviceId);
+      if (storedState != null) {
+        Map<String, Object> deviceState = new HashMap<>(storedState);
         deviceState.put("status", "SUCCESS");
-        deviceStates.put(device.id, deviceState);
-      } catch (Exception e) {
-        LOGGER.error("QUERY FAILED: {}", e);
+        deviceStates.put(deviceId, deviceState);
+      } else {
         Map<String, Object> failedDevice = new HashMap<>();
         failedDevice.put("status", "ERROR");
         failedDevice.put("errorCode", "deviceOffline");
-        deviceStates.put(device.id, failedDevice);
+        deviceStates.put(deviceId, failedDevice);
+        outcome.failed = true;
       }
     }
     res.payload.setDevices(deviceStates);
@@ -159,6 +293,22 @@ public class MySmartHomeApp extends SmartHomeApp {
   @NotNull
   @Override
   public ExecuteResponse onExecute(ExecuteRequest executeRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("EXECUTE");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      Outcome outcome = new Outcome();
+      ExecuteResponse result = execute(executeRequest, headers, outcome);
+      failed = outcome.failed;
+      return result;
+    } finally {
+      executeTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  private ExecuteResponse execute(
+      ExecuteRequest executeRequest, Map<?, ?> headers, Outcome outcome) {
     ExecuteResponse res = new ExecuteResponse();
 
     String token = (String) headers.get("authorization");
@@ -169,6 +319,7 @@ public class MySmartHomeApp extends SmartHomeApp {
       LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
       res.setPayload(new ExecuteResponse.Payload());
       res.payload.setErrorCode("authFailure");
+      outcome.failed = true;
       return res;
     }
 
@@ -178,80 +329,93 @@ public class MySmartHomeApp extends SmartHomeApp {
 
     ExecuteRequest.Inputs.Payload.Commands[] commands =
         ((ExecuteRequest.Inputs) executeRequest.inputs[0]).payload.commands;
-    for (ExecuteRequest.Inputs.Payload.Commands command : commands) {
-      for (ExecuteRequest.Inputs.Payload.Commands.Devices device : command.devices) {
-        try {
-          states = database.execute(userId, device.id, command.execution[0]);
-          successfulDevices.add(device.id);
-          ReportState.makeRequest(this, userId, device.id, states);
-        } catch (Exception e) {
-          if (e.getMessage().equals("PENDING")) {
-            ExecuteResponse.Payload.Commands pendingDevice = new ExecuteResponse.Payload.Commands();
-            pendingDevice.ids = new String[] {device.id};
-            pendingDevice.status = "PENDING";
-            commandsResponse.add(pendingDevice);
-            continue;
-          }
-          if (e.getMessage().equals("pinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "pinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("challengeFailedPinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "challengeFailedPinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("ackNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "ackNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-
-          ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-          failedDevice.ids = new String[] {device.id};
-          failedDevice.status = "ERROR";
-          failedDevice.setErrorCode(e.getMessage());
-          commandsResponse.add(failedDevice);
-        }
+    final String agentUserId = userId;
+    List<ExecutionEngine.Result> results =
+        ExecutionEngine.getInstance()
+            .execute(
+                commands,
+                (deviceId, execution) -> database.execute(agentUserId, deviceId, execution));
+    Map<String, Map<String, Object>> reportedStates = new LinkedHashMap<>();
+    for (ExecutionEngine.Result result : results) {
+      String deviceId = result.deviceId;
+      if (result.error == null) {
+        states = result.states;
+        successfulDevices.add(deviceId);
+        reportedStates.put(deviceId, result.states);
+        continue;
+      }
+      Exception e = result.error;
+      if (e.getMessage().equals("PENDING")) {
+        ExecuteResponse.Payload.Commands pendingDevice = new ExecuteResponse.Payload.Commands();
+        pendingDevice.ids = new String[] {deviceId};
+        pendingDevice.status = "PENDING";
+        commandsResponse.add(pendingDevice);
+        continue;
+      }
+      if (e.getMessage().equals("pinNeeded")) {
+        ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+        failedDevice.ids = new String[] {deviceId};
+        failedDevice.status = "ERROR";
+        failedDevice.setErrorCode("challengeNeeded");
+        failedDevice.setChallengeNeeded(
+            new HashMap<String, String>() {
+              {
+                put("type", "pinNeeded");
+              }
+            });
+        failedDevice.setErrorCode(e.getMessage());
+        commandsResponse.add(failedDevice);
+        continue;
+      }
+      if (e.getMessage().equals("challengeFailedPinNeeded")) {
+        ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+        failedDevice.ids = new String[] {deviceId};
+        failedDevice.status = "ERROR";
+        failedDevice.setErrorCode("challengeNeeded");
+        failedDevice.setChallengeNeeded(
+            new HashMap<String, String>() {
+              {
+                put("type", "challengeFailedPinNeeded");
+              }
+            });
+        failedDevice.setErrorCode(e.getMessage());
+        commandsResponse.add(failedDevice);
+        continue;
       }
+      if (e.getMessage().equals("ackNeeded")) {
+        ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+        failedDevice.ids = new String[] {deviceId};
+        failedDevice.status = "ERROR";
+        failedDevice.setErrorCode("challengeNeeded");
+        failedDevice.setChallengeNeeded(
+            new HashMap<String, String>() {
+              {
+                put("type", "ackNeeded");
+              }
+            });
+        failedDevice.setErrorCode(e.getMessage());
+        commandsResponse.add(failedDevice);
+        continue;
+      }
+
+      ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+      failedDevice.ids = new String[] {deviceId};
+      failedDevice.status = "ERROR";
+      failedDevice.setErrorCode(e.getMessage());
+      commandsResponse.add(failedDevice);
     }
 
+    // Report the new state of every affected device to Home Graph in the background.
+    ReportStateDispatcher.getInstance().submit(this, userId, reportedStates);
+
     ExecuteResponse.Payload.Commands successfulCommands = new ExecuteResponse.Payload.Commands();
     successfulCommands.status = "SUCCESS";
     successfulCommands.setStates(states);
     successfulCommands.ids = successfulDevices.toArray(new String[] {});
     commandsResponse.add(successfulCommands);
+    for (ExecuteResponse.Payload.Commands command : commandsResponse) {
+      outcome.failed |= "ERROR".equals(command.status);
+    }
 
     res.requestId = executeRequest.requestId;
     ExecuteResponse.Payload payload =
@@ -265,12 +429,30 @@ public class MySmartHomeApp extends SmartHomeApp {
   @NotNull
   @Override
   public void onDisconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("DISCONNECT");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      Outcome outcome = new Outcome();
+      disconnect(disconnectRequest, headers, outcome);
+      failed = outcome.failed;
+    } finally {
+      disconnectTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  private void disconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers, Outcome outcome) {
     String token = (String) headers.get("authorization");
     try {
       String userId = database.getUserId(token);
       database.setHomegraph(userId, false);
+      database.invalidateUser(userId);
+      ReportState.getReportedStates().invalidateUser(userId);
+      SyncCache.invalidateUser(userId);
     } catch (Exception e) {
       LOGGER.error("failed to get user id for token: %d", token);
+      outcome.failed = true;
     }
   }
 }
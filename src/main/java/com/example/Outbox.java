@@ -0,0 +1,607 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * A local, append-only outbox of Home Graph notifications that have been decided on but not yet
+ * confirmed as sent.
+ *
+ * <p>A notification is appended before the RPC is attempted and acknowledged once it succeeds. If
+ * the instance dies in between, or the RPC fails, the entry stays in the log and a background
+ * drainer redelivers it with exponential backoff, including after a restart. The log is a
+ * memory-mapped file, so an append is a couple of buffer writes and survives a process crash
+ * without an fsync per entry; the mapping is forced to disk periodically. Acknowledged entries are
+ * dropped by compacting the live entries into a fresh file.
+ *
+ * <p>A state report is only redelivered for the states that no newer report carries, whether or not
+ * the newer report has been sent yet, so a late redelivery never moves Home Graph back to an older
+ * state.
+ *
+ * <p>Each record is laid out as {@code [int length][int crc32][long seq][byte type][payload]},
+ * where the length and checksum cover everything after the checksum. Acknowledgements are records
+ * of type {@link #ACK} carrying the sequence number they acknowledge.
+ *
+ * <p>The outbox is off unless {@code OUTBOX_DIR} names a directory, which must not be shared with
+ * another instance. When it is off, or the directory cannot be opened, nothing is recorded: appends
+ * return -1 and notifications that fail are not redelivered.
+ */
+final class Outbox {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  static final byte REPORT_STATE = 1;
+  static final byte REQUEST_SYNC = 2;
+  static final byte ACK = 3;
+
+  private static final int HEADER_BYTES = 8;
+  private static final int BODY_PREFIX_BYTES = 9;
+  private static final String LOG_FILE = "outbox.log";
+  private static final String LOCK_FILE = "outbox.lock";
+
+  private static volatile Outbox ourInstance;
+
+  /** A notification that has not been acknowledged yet. */
+  static final class Entry {
+    final long seq;
+    final byte type;
+    final byte[] payload;
+    final long createdAtMillis;
+    int attempts;
+    long nextAttemptMillis;
+
+    Entry(long seq, byte type, byte[] payload, long createdAtMillis) {
+      this.seq = seq;
+      this.type = type;
+      this.payload = payload;
+      this.createdAtMillis = createdAtMillis;
+    }
+
+    String payloadString() {
+      return new String(payload, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Sends a notification that is due for (re)delivery. */
+  interface Handler {
+    /**
+     * @return Whether the notification was sent and can be acknowledged, or false if it was handed
+     *     to something that acknowledges it once sent
+     */
+    boolean deliver(Entry entry) throws Exception;
+  }
+
+  private final Path directory;
+  private final FileLock lock;
+  private final boolean enabled;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int position;
+  private long nextSeq = 1;
+  private final ConcurrentSkipListMap<Long, Entry> unacked = new ConcurrentSkipListMap<>();
+  private final AtomicBoolean drainerStarted = new AtomicBoolean();
+  private final CRC32 crc = new CRC32();
+  // The newest REPORT_STATE entry carrying each (user, device, state), so that an older entry
+  // never overwrites a newer state in Home Graph when it is redelivered.
+  private final Map<String, Long> newestReports = new HashMap<>();
+
+  /**
+   * Opens the outbox in the directory, recovering every entry that was not acknowledged. Only one
+   * outbox may have a directory open at a time, across processes.
+   *
+   * @param directory Where the log file lives
+   * @param capacity The initial size of the log file in bytes
+   * @throws IOException If the directory is already in use by another outbox
+   */
+  Outbox(Path directory, int capacity) throws IOException {
+    this.directory = directory;
+    this.enabled = true;
+    Files.createDirectories(directory);
+    this.lock = lock(directory);
+    Path log = directory.resolve(LOG_FILE);
+    int size = Files.exists(log) ? (int) Math.max(Files.size(log), capacity) : capacity;
+    map(log, size);
+    recover();
+  }
+
+  /** Creates an outbox that records nothing. */
+  private Outbox() {
+    this.directory = null;
+    this.lock = null;
+    this.enabled = false;
+  }
+
+  /**
+   * Returns the outbox in {@code OUTBOX_DIR}, opening it on first use, or one that records nothing
+   * if the variable is not set or the directory cannot be opened.
+   */
+  public static Outbox getInstance() {
+    Outbox instance = ourInstance;
+    if (instance == null) {
+      synchronized (Outbox.class) {
+        instance = ourInstance;
+        if (instance == null) {
+          instance = ourInstance = open(Config.getString("OUTBOX_DIR", null));
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Opens the outbox in the directory, or returns one that records nothing if it is null or cannot
+   * be opened.
+   */
+  static Outbox open(String directory) {
+    if (directory == null) {
+      return new Outbox();
+    }
+    try {
+      return new Outbox(
+          Paths.get(directory), Config.getInt("OUTBOX_SEGMENT_BYTES", 16 * 1024 * 1024));
+    } catch (IOException e) {
+      LOGGER.error("cannot open outbox in {}, notifications will not be redelivered", directory, e);
+      return new Outbox();
+    }
+  }
+
+  /** Returns whether notifications are recorded and redelivered. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Durably records a notification that is about to be sent.
+   *
+   * @param type {@link #REPORT_STATE} or {@link #REQUEST_SYNC}
+   * @param payload The notification, see {@link #reportStatePayload} and {@link #requestSync}
+   * @return The sequence number to acknowledge once the notification has been sent, or -1 if the
+   *     outbox is off
+   */
+  long append(byte type, String payload) {
+    if (!enabled) {
+      return -1;
+    }
+    return appendLocked(type, payload);
+  }
+
+  private synchronized long appendLocked(byte type, String payload) {
+    long seq = nextSeq++;
+    byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+    write(seq, type, bytes);
+    unacked.put(seq, new Entry(seq, type, bytes, System.currentTimeMillis()));
+    return seq;
+  }
+
+  /** Records that a notification has been sent and must not be redelivered. */
+  void ack(long seq) {
+    if (enabled && seq >= 0) {
+      ackLocked(seq);
+    }
+  }
+
+  private synchronized void ackLocked(long seq) {
+    if (unacked.remove(seq) != null) {
+      write(seq, ACK, new byte[0]);
+    }
+  }
+
+  /** Appends a ReportState notification for several devices of a user. */
+  long appendReportState(String userId, Map<String, Map<String, Object>> devicesStates) {
+    if (!enabled) {
+      return -1;
+    }
+    synchronized (this) {
+      long seq = appendLocked(REPORT_STATE, reportStatePayload(userId, devicesStates));
+      recordNewest(seq, userId, devicesStates);
+      return seq;
+    }
+  }
+
+  /** Appends a requestSync notification for a user. */
+  long appendRequestSync(String userId) {
+    return append(REQUEST_SYNC, userId);
+  }
+
+  static String reportStatePayload(String userId, Map<String, Map<String, Object>> devicesStates) {
+    Gson gson = new Gson();
+    JsonObject payload = new JsonObject();
+    payload.addProperty("userId", userId);
+    payload.add("devices", gson.toJsonTree(devicesStates));
+    return gson.toJson(payload);
+  }
+
+  private static Map<String, Map<String, Object>> reportStateDevices(JsonObject payload) {
+    return new Gson()
+        .fromJson(
+            payload.get("devices"), new TypeToken<Map<String, Map<String, Object>>>() {}.getType());
+  }
+
+  private static JsonObject reportStatePayload(byte[] payload) {
+    return new Gson().fromJson(new String(payload, StandardCharsets.UTF_8), JsonObject.class);
+  }
+
+  private static String reportKey(String userId, String deviceId, String state) {
+    return userId + '\0' + deviceId + '\0' + state;
+  }
+
+  private void recordNewest(long seq, String userId, Map<String, Map<String, Object>> devices) {
+    for (Map.Entry<String, Map<String, Object>> device : devices.entrySet()) {
+      for (String state : device.getValue().keySet()) {
+        newestReports.put(reportKey(userId, device.getKey(), state), seq);
+      }
+    }
+  }
+
+  /**
+   * Returns a REPORT_STATE entry reduced to the states that no newer entry carries, or null if
+   * every state has been reported again since. Other entries are returned as they are.
+   */
+  synchronized Entry withoutSupersededStates(Entry entry) {
+    if (entry.type != REPORT_STATE) {
+      return entry;
+    }
+    JsonObject payload = reportStatePayload(entry.payload);
+    String userId = payload.get("userId").getAsString();
+    Map<String, Map<String, Object>> devices = reportStateDevices(payload);
+    boolean superseded = false;
+    for (Iterator<Map.Entry<String, Map<String, Object>>> device = devices.entrySet().iterator();
+        device.hasNext(); ) {
+      Map.Entry<String, Map<String, Object>> states = device.next();
+      superseded |=
+          states
+              .getValue()
+              .keySet()
+              .removeIf(
+                  state ->
+                      newestReports.getOrDefault(reportKey(userId, states.getKey(), state), 0L)
+                          > entry.seq);
+      if (states.getValue().isEmpty()) {
+        device.remove();
+      }
+    }
+    if (!superseded) {
+      return entry;
+    }
+    if (devices.isEmpty()) {
+      return null;
+    }
+    Entry current =
+        new Entry(
+            entry.seq,
+            entry.type,
+            reportStatePayload(userId, devices).getBytes(StandardCharsets.UTF_8),
+            entry.createdAtMillis);
+    current.attempts = entry.attempts;
+    current.nextAttemptMillis = entry.nextAttemptMillis;
+    return current;
+  }
+
+  /** Returns the unacknowledged entries, oldest first. */
+  List<Entry> pending() {
+    return new ArrayList<>(unacked.values());
+  }
+
+  int pendingCount() {
+    return unacked.size();
+  }
+
+  /**
+   * Starts redelivering entries that have not been acknowledged within {@code
+   * OUTBOX_REDELIVERY_DELAY_MS}, using the given app to talk to Home Graph. Only the first call has
+   * any effect.
+   *
+   * @throws IllegalStateException If the redelivery delay is not longer than {@code
+   *     REQUEST_SYNC_MAX_DELAY_MS}, as syncs still waiting in the {@link RequestSyncScheduler}
+   *     would then be redelivered
+   */
+  void startDrainer(SmartHomeApp actionsApp) {
+    if (!enabled) {
+      return;
+    }
+    long redeliveryDelayMillis = Config.getLong("OUTBOX_REDELIVERY_DELAY_MS", 30000);
+    long maxSyncDelayMillis = RequestSyncScheduler.getInstance().getMaxDelayMillis();
+    if (redeliveryDelayMillis <= maxSyncDelayMillis) {
+      throw new IllegalStateException(
+          "OUTBOX_REDELIVERY_DELAY_MS ("
+              + redeliveryDelayMillis
+              + ") must be greater than REQUEST_SYNC_MAX_DELAY_MS ("
+              + maxSyncDelayMillis
+              + ")");
+    }
+    startDrainer(
+        entry -> deliver(actionsApp, entry),
+        Config.getLong("OUTBOX_DRAIN_INTERVAL_MS", 1000),
+        redeliveryDelayMillis);
+  }
+
+  void startDrainer(Handler handler, long intervalMillis, long redeliveryDelayMillis) {
+    if (!enabled || !drainerStarted.compareAndSet(false, true)) {
+      return;
+    }
+    long maxBackoffMillis = Config.getLong("OUTBOX_MAX_BACKOFF_MS", 5 * 60 * 1000);
+    ScheduledExecutorService drainer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "outbox-drainer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    drainer.scheduleWithFixedDelay(
+        () -> {
+          try {
+            drain(handler, redeliveryDelayMillis, intervalMillis, maxBackoffMillis);
+            synchronized (this) {
+              buffer.force();
+              if (position > buffer.capacity() / 2) {
+                compact(0);
+              }
+            }
+          } catch (Exception e) {
+            LOGGER.error("outbox drainer failed: {}", e);
+          }
+        },
+        intervalMillis,
+        intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Attempts every entry that is older than the redelivery delay and due for another attempt.
+   * Failed attempts back off exponentially from {@code baseBackoffMillis} up to {@code
+   * maxBackoffMillis}. An entry that was handed off is not attempted again for at least the
+   * redelivery delay, giving whatever took it time to acknowledge it.
+   */
+  void drain(
+      Handler handler, long redeliveryDelayMillis, long baseBackoffMillis, long maxBackoffMillis) {
+    long now = System.currentTimeMillis();
+    for (Entry entry : unacked.values()) {
+      if (now - entry.createdAtMillis < redeliveryDelayMillis || now < entry.nextAttemptMillis) {
+        continue;
+      }
+      Entry current = withoutSupersededStates(entry);
+      if (current == null) {
+        // A newer report carries every state of this one, so it must not be replayed.
+        ack(entry.seq);
+        continue;
+      }
+      try {
+        if (handler.deliver(current)) {
+          ack(entry.seq);
+          continue;
+        }
+        entry.attempts++;
+        entry.nextAttemptMillis =
+            now
+                + Math.max(
+                    redeliveryDelayMillis, backoff(entry, baseBackoffMillis, maxBackoffMillis));
+      } catch (Exception e) {
+        entry.attempts++;
+        entry.nextAttemptMillis = now + backoff(entry, baseBackoffMillis, maxBackoffMillis);
+        LOGGER.warn("outbox redelivery of {} failed (attempt {})", entry.seq, entry.attempts);
+      }
+    }
+  }
+
+  private static long backoff(Entry entry, long baseBackoffMillis, long maxBackoffMillis) {
+    return Math.min(baseBackoffMillis << Math.min(entry.attempts, 20), maxBackoffMillis);
+  }
+
+  private static boolean deliver(SmartHomeApp actionsApp, Entry entry) {
+    switch (entry.type) {
+      case REPORT_STATE:
+        {
+          JsonObject payload = reportStatePayload(entry.payload);
+          ReportState.makeRequest(
+              actionsApp, payload.get("userId").getAsString(), reportStateDevices(payload));
+          return true;
+        }
+      case REQUEST_SYNC:
+        // Merged with the other pending syncs of the user, which acknowledge it once sent, so a
+        // backlog of entries for one user costs a single requestSync.
+        RequestSyncScheduler.getInstance().schedule(actionsApp, entry.payloadString(), entry.seq);
+        return false;
+      default:
+        LOGGER.error("dropping outbox entry {} of unknown type {}", entry.seq, entry.type);
+        return true;
+    }
+  }
+
+  private void write(long seq, byte type, byte[] payload) {
+    int bodyLength = BODY_PREFIX_BYTES + payload.length;
+    if (position + HEADER_BYTES + bodyLength > buffer.capacity()) {
+      compact(HEADER_BYTES + bodyLength);
+    }
+    crc.reset();
+    int bodyStart = position + HEADER_BYTES;
+    buffer.putLong(bodyStart, seq);
+    buffer.put(bodyStart + 8, type);
+    for (int i = 0; i < payload.length; i++) {
+      buffer.put(bodyStart + BODY_PREFIX_BYTES + i, payload[i]);
+    }
+    for (int i = 0; i < bodyLength; i++) {
+      crc.update(buffer.get(bodyStart + i));
+    }
+    buffer.putInt(position + 4, (int) crc.getValue());
+    // The length is written last, so a record is only visible to recovery once it is complete.
+    buffer.putInt(position, bodyLength);
+    position += HEADER_BYTES + bodyLength;
+  }
+
+  /**
+   * Rewrites the log with only the unacknowledged entries, growing it if {@code extraBytes} would
+   * still not fit. Report entries keep only the states no newer entry carries, so once the
+   * acknowledged entries are gone nothing older can be replayed over them, even after a restart.
+   */
+  private synchronized void compact(int extraBytes) {
+    for (Entry entry : new ArrayList<>(unacked.values())) {
+      Entry current = withoutSupersededStates(entry);
+      if (current == null) {
+        unacked.remove(entry.seq);
+      } else if (current != entry) {
+        unacked.put(entry.seq, current);
+      }
+    }
+    newestReports.clear();
+    for (Entry entry : unacked.values()) {
+      if (entry.type == REPORT_STATE) {
+        JsonObject payload = reportStatePayload(entry.payload);
+        recordNewest(entry.seq, payload.get("userId").getAsString(), reportStateDevices(payload));
+      }
+    }
+    int liveBytes = 0;
+    for (Entry entry : unacked.values()) {
+      liveBytes += HEADER_BYTES + BODY_PREFIX_BYTES + entry.payload.length;
+    }
+    int capacity = buffer.capacity();
+    while (liveBytes + extraBytes > capacity / 2) {
+      capacity *= 2;
+    }
+    Path log = directory.resolve(LOG_FILE);
+    Path compacted = directory.resolve(LOG_FILE + ".compact");
+    try {
+      FileChannel oldChannel = channel;
+      Files.deleteIfExists(compacted);
+      map(compacted, capacity);
+      position = 0;
+      for (Entry entry : unacked.values()) {
+        write(entry.seq, entry.type, entry.payload);
+      }
+      buffer.force();
+      oldChannel.close();
+      Files.move(
+          compacted, log, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("outbox compaction failed", e);
+    }
+  }
+
+  /** Releases the directory, e.g. so that a test can open it again. */
+  synchronized void close() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    buffer.force();
+    channel.close();
+    lock.channel().close();
+  }
+
+  private static FileLock lock(Path directory) throws IOException {
+    FileChannel lockChannel =
+        FileChannel.open(
+            directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("outbox in " + directory + " is already open");
+    }
+    return lock;
+  }
+
+  private void map(Path file, int capacity) throws IOException {
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  private void recover() {
+    int pos = 0;
+    boolean torn = false;
+    while (pos + HEADER_BYTES <= buffer.capacity()) {
+      int bodyLength = buffer.getInt(pos);
+      if (bodyLength == 0) {
+        break;
+      }
+      int bodyStart = pos + HEADER_BYTES;
+      if (bodyLength < BODY_PREFIX_BYTES || bodyStart + bodyLength > buffer.capacity()) {
+        torn = true;
+        break;
+      }
+      crc.reset();
+      for (int i = 0; i < bodyLength; i++) {
+        crc.update(buffer.get(bodyStart + i));
+      }
+      if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+        torn = true;
+        break;
+      }
+      long seq = buffer.getLong(bodyStart);
+      byte type = buffer.get(bodyStart + 8);
+      if (type == ACK) {
+        unacked.remove(seq);
+      } else {
+        byte[] payload = new byte[bodyLength - BODY_PREFIX_BYTES];
+        for (int i = 0; i < payload.length; i++) {
+          payload[i] = buffer.get(bodyStart + BODY_PREFIX_BYTES + i);
+        }
+        unacked.put(seq, new Entry(seq, type, payload, 0));
+        if (type == REPORT_STATE) {
+          JsonObject report = reportStatePayload(payload);
+          recordNewest(seq, report.get("userId").getAsString(), reportStateDevices(report));
+        }
+      }
+      nextSeq = Math.max(nextSeq, seq + 1);
+      pos = bodyStart + bodyLength;
+    }
+    position = pos;
+    if (torn) {
+      // Clear the partially written tail so stale bytes can never be mistaken for a record later.
+      LOGGER.warn("outbox log has a torn record at offset {}, truncating", pos);
+      for (int i = pos; i < buffer.capacity(); i++) {
+        buffer.put(i, (byte) 0);
+      }
+    }
+    if (!unacked.isEmpty()) {
+      LOGGER.info("recovered {} unacknowledged outbox entries", unacked.size());
+    }
+  }
+}
@@ -16,83 +16,113 @@
 
 package com.example;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.home.graph.v1.HomeGraphApiServiceProto;
 import com.google.protobuf.Struct;
 import com.google.protobuf.Value;
-import com.google.protobuf.util.JsonFormat;
 
 /**
  * A singleton class to encapsulate state reporting behavior with changing ColorSetting state
  * values.
  */
 final class ReportState {
-  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static ReportedStates reportedStates =
+      new ReportedStates(
+          Config.getInt("REPORT_STATE_SNAPSHOT_DEVICES", 100000),
+          Config.getLong("REPORT_STATE_SNAPSHOT_TTL_SECONDS", 600),
+          TimeUnit.SECONDS);
+  private static final Metrics.Timer reportStateTimer =
+      Metrics.getInstance()
+          .timer("smarthome_homegraph_rpc", "Home Graph RPCs", "rpc", "reportState");
 
   private ReportState() {}
 
   /**
-   * Creates and completes a ReportStateAndNotification request
+   * Creates and completes a single ReportStateAndNotification request covering several devices of
+   * the same user, so that a multi-device command costs one RPC to Home Graph.
+   *
+   * <p>Only the states that changed since each device was last reported are sent, and devices
+   * without changes are left out. Nothing is sent if no device changed.
    *
    * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
    * @param userId The agent user ID
-   * @param deviceId The device ID
-   * @param states A Map of state keys and their values for the provided device ID
+   * @param devicesStates A Map of device IDs to the state keys and values of each device
    */
   public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, Map<String, Object> states) {
-    // Convert a Map of states to a JsonObject
-    JsonObject jsonStates = (JsonObject) JsonParser.parseString(new Gson().toJson(states));
-    ReportState.makeRequest(actionsApp, userId, deviceId, jsonStates);
+      SmartHomeApp actionsApp, String userId, Map<String, Map<String, Object>> devicesStates) {
+    Map<String, Map<String, Object>> deltas = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> device : devicesStates.entrySet()) {
+      Map<String, Object> delta = reportedStates.claim(userId, device.getKey(), device.getValue());
+      if (!delta.isEmpty()) {
+        deltas.put(device.getKey(), delta);
+      }
+    }
+    if (deltas.isEmpty()) {
+      return;
+    }
+    try {
+      send(actionsApp, buildRequest(userId, deltas));
+    } catch (RuntimeException e) {
+      // Home Graph may not have the claimed states, so the next reports are sent in full.
+      for (String deviceId : deltas.keySet()) {
+        reportedStates.invalidate(userId, deviceId);
+      }
+      throw e;
+    }
+  }
+
+  private static void send(
+      SmartHomeApp actionsApp, HomeGraphApiServiceProto.ReportStateAndNotificationRequest request) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("homegraph.reportState");
+    boolean failed = true;
+    try {
+      actionsApp.reportState(request);
+      failed = false;
+    } finally {
+      reportStateTimer.record(start, failed);
+      span.end(failed);
+    }
   }
 
   /**
-   * Creates and completes a ReportStateAndNotification request
+   * Returns the snapshots of reported states. Invalidate a device when Home Graph may have
+   * forgotten it, such as after it was deleted, so that its next report is sent in full.
+   */
+  static ReportedStates getReportedStates() {
+    return reportedStates;
+  }
+
+  /**
+   * Builds the ReportStateAndNotification request that reports the given states in full.
    *
-   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
    * @param userId The agent user ID
-   * @param deviceId The device ID
-   * @param states A JSON object of state keys and their values for the provided device ID
+   * @param devicesStates A Map of device IDs to the state keys and values of each device
    */
-  public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, JsonObject states) {
-    // Do state name replacement for ColorSetting trait
-    // See https://developers.google.com/assistant/smarthome/traits/colorsetting#device-states
-    JsonObject colorJson = states.getAsJsonObject("color");
-    if (colorJson != null && colorJson.has("spectrumRgb")) {
-      colorJson.add("spectrumRGB", colorJson.get("spectrumRgb"));
-      colorJson.remove("spectrumRgb");
-    }
-    Struct.Builder statesStruct = Struct.newBuilder();
-    try {
-      JsonFormat.parser().ignoringUnknownFields().merge(new Gson().toJson(states), statesStruct);
-    } catch (Exception e) {
-      LOGGER.error("FAILED TO BUILD");
+  static HomeGraphApiServiceProto.ReportStateAndNotificationRequest buildRequest(
+      String userId, Map<String, Map<String, Object>> devicesStates) {
+    Struct.Builder devicesStruct = Struct.newBuilder();
+    for (Map.Entry<String, Map<String, Object>> device : devicesStates.entrySet()) {
+      devicesStruct.putFields(
+          device.getKey(),
+          Value.newBuilder()
+              .setStructValue(StructConverter.toDeviceStates(device.getValue()))
+              .build());
     }
-
     HomeGraphApiServiceProto.ReportStateAndNotificationDevice.Builder deviceBuilder =
         HomeGraphApiServiceProto.ReportStateAndNotificationDevice.newBuilder()
-            .setStates(
-                Struct.newBuilder()
-                    .putFields(deviceId, Value.newBuilder().setStructValue(statesStruct).build()));
-
-    HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
-        HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
-            .setRequestId(String.valueOf(Math.random()))
-            .setAgentUserId(userId) // our single user's id
-            .setPayload(
-                HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
-                    .setDevices(deviceBuilder))
-            .build();
+            .setStates(devicesStruct);
 
-    actionsApp.reportState(request);
+    return HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
+        .setRequestId(String.valueOf(Math.random()))
+        .setAgentUserId(userId) // our single user's id
+        .setPayload(
+            HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
+                .setDevices(deviceBuilder))
+        .build();
   }
 }
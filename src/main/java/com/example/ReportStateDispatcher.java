@@ -0,0 +1,294 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+
+/**
+ * Sends state reports to Home Graph in the background so that request threads never wait on the
+ * RPC.
+ *
+ * <p>Reports are held per user for a short window. Reports for the same device within the window
+ * collapse into the latest merged state, and everything pending for a user is flushed as one
+ * ReportState request. The number of pending devices and in-flight requests is bounded; when either
+ * limit is reached new reports are dropped and counted rather than queued without bound.
+ *
+ * <p>Every report is appended to the {@link Outbox} when it is submitted and acknowledged once the
+ * request carrying it succeeds, so reports that are dropped, fail, or are lost with the instance
+ * are redelivered by the outbox drainer.
+ *
+ * <p>Each user has at most one request in flight, so an older batch can never reach Home Graph
+ * after a newer one. Reports that arrive meanwhile are held and flushed once the request completes.
+ */
+final class ReportStateDispatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static ReportStateDispatcher ourInstance =
+      new ReportStateDispatcher(
+          Config.getLong("REPORT_STATE_WINDOW_MS", 250),
+          Config.getInt("REPORT_STATE_MAX_PENDING_DEVICES", 10000),
+          Config.getInt("REPORT_STATE_SENDER_THREADS", 4),
+          Config.getInt("REPORT_STATE_MAX_QUEUED_REQUESTS", 1000),
+          Outbox.getInstance(),
+          ReportState::makeRequest);
+
+  /** Sends one batch of reports, see {@link ReportState#makeRequest}. */
+  interface Sender {
+    void send(SmartHomeApp actionsApp, String userId, Map<String, Map<String, Object>> devices)
+        throws Exception;
+  }
+
+  /** The reports waiting to be flushed for one user. */
+  private static final class UserBatch {
+    SmartHomeApp actionsApp;
+    final Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+    final List<Long> outboxSeqs = new ArrayList<>();
+  }
+
+  private final long windowMillis;
+  private final int maxPendingDevices;
+  private final ConcurrentHashMap<String, UserBatch> pending = new ConcurrentHashMap<>();
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger pendingDevices = new AtomicInteger();
+  private final ScheduledExecutorService timer;
+  private final ThreadPoolExecutor sender;
+  private final Outbox outbox;
+  private final Sender reportSender;
+
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * @param windowMillis How long reports for a user are collected before being sent
+   * @param maxPendingDevices How many distinct devices may wait to be flushed across all users
+   * @param senderThreads How many ReportState requests may be in flight at once
+   * @param maxQueuedRequests How many flushed requests may wait for a sender thread
+   * @param outbox Where reports are recorded until they have been sent
+   * @param reportSender Sends each flushed batch to Home Graph
+   */
+  ReportStateDispatcher(
+      long windowMillis,
+      int maxPendingDevices,
+      int senderThreads,
+      int maxQueuedRequests,
+      Outbox outbox,
+      Sender reportSender) {
+    this.windowMillis = windowMillis;
+    this.outbox = outbox;
+    this.reportSender = reportSender;
+    this.maxPendingDevices = maxPendingDevices;
+    this.timer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "report-state-timer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    AtomicInteger threadCount = new AtomicInteger();
+    this.sender =
+        new ThreadPoolExecutor(
+            senderThreads,
+            senderThreads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxQueuedRequests),
+            r -> {
+              Thread thread = new Thread(r, "report-state-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  public static ReportStateDispatcher getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Queues the states of several devices of a user to be reported.
+   *
+   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
+   * @param userId The agent user ID
+   * @param devicesStates A Map of device IDs to the state keys and values of each device
+   * @return Whether every device was accepted; devices over the pending limit are dropped
+   */
+  boolean submit(
+      SmartHomeApp actionsApp, String userId, Map<String, Map<String, Object>> devicesStates) {
+    if (devicesStates.isEmpty()) {
+      return true;
+    }
+    return enqueue(
+        actionsApp, userId, devicesStates, outbox.appendReportState(userId, devicesStates));
+  }
+
+  /**
+   * Queues the states of a device to be reported. Never blocks.
+   *
+   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
+   * @param userId The agent user ID
+   * @param deviceId The device ID
+   * @param states A Map of state keys and their values for the provided device ID
+   * @return Whether the report was accepted, false if it was dropped because the dispatcher is
+   *     saturated
+   */
+  boolean submit(
+      SmartHomeApp actionsApp, String userId, String deviceId, Map<String, Object> states) {
+    return submit(actionsApp, userId, Collections.singletonMap(deviceId, states));
+  }
+
+  /**
+   * Merges device reports into the user's pending batch. The outbox entry is acknowledged once the
+   * batch has been sent, unless a device had to be dropped, in which case it is left for the outbox
+   * drainer.
+   */
+  private boolean enqueue(
+      SmartHomeApp actionsApp,
+      String userId,
+      Map<String, Map<String, Object>> devicesStates,
+      long outboxSeq) {
+    submitted.add(devicesStates.size());
+    boolean[] accepted = {true};
+    pending.compute(
+        userId,
+        (id, batch) -> {
+          boolean newBatch = batch == null;
+          if (newBatch) {
+            batch = new UserBatch();
+          }
+          for (Map.Entry<String, Map<String, Object>> device : devicesStates.entrySet()) {
+            Map<String, Object> merged = batch.devices.get(device.getKey());
+            if (merged != null) {
+              merged.putAll(device.getValue());
+              coalesced.increment();
+            } else if (pendingDevices.incrementAndGet() > maxPendingDevices) {
+              pendingDevices.decrementAndGet();
+              dropped.increment();
+              accepted[0] = false;
+            } else {
+              batch.devices.put(device.getKey(), new HashMap<>(device.getValue()));
+            }
+          }
+          if (batch.devices.isEmpty()) {
+            return null;
+          }
+          batch.actionsApp = actionsApp;
+          if (accepted[0]) {
+            batch.outboxSeqs.add(outboxSeq);
+          }
+          if (newBatch) {
+            timer.schedule(() -> flush(userId), windowMillis, TimeUnit.MILLISECONDS);
+          }
+          return batch;
+        });
+    return accepted[0];
+  }
+
+  private void flush(String userId) {
+    if (!inFlight.add(userId)) {
+      // The batch stays pending until the user's request in flight completes.
+      return;
+    }
+    UserBatch batch = pending.remove(userId);
+    if (batch == null) {
+      inFlight.remove(userId);
+      return;
+    }
+    pendingDevices.addAndGet(-batch.devices.size());
+    try {
+      sender.execute(() -> send(userId, batch));
+    } catch (RejectedExecutionException e) {
+      // Left unacknowledged in the outbox, which redelivers it.
+      dropped.add(batch.devices.size());
+      completed(userId);
+    }
+  }
+
+  private void send(String userId, UserBatch batch) {
+    Tracing.Span span =
+        Tracing.getInstance()
+            .startSpan("reportState.flush")
+            .setAttribute("devices", batch.devices.size());
+    try (Tracing.Scope scope = span.activate()) {
+      reportSender.send(batch.actionsApp, userId, batch.devices);
+      for (long seq : batch.outboxSeqs) {
+        outbox.ack(seq);
+      }
+      sent.increment();
+    } catch (Exception e) {
+      failed.increment();
+      span.end(true);
+      LOGGER.error("failed to report state: {}", e);
+    } finally {
+      span.end();
+      completed(userId);
+    }
+  }
+
+  /** Lets the user's next batch go, flushing whatever was held back meanwhile. */
+  private void completed(String userId) {
+    inFlight.remove(userId);
+    if (pending.containsKey(userId)) {
+      timer.execute(() -> flush(userId));
+    }
+  }
+
+  long getSubmitted() {
+    return submitted.sum();
+  }
+
+  long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  long getSent() {
+    return sent.sum();
+  }
+
+  long getFailed() {
+    return failed.sum();
+  }
+
+  int getPendingDevices() {
+    return pendingDevices.get();
+  }
+}
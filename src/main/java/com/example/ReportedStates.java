@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the states last reported to Home Graph for each device, so that a report only needs to
+ * carry the top-level state fields that changed since.
+ *
+ * <p>Snapshots are bounded in number and expire, after which the next report for the device is sent
+ * in full again. Snapshots are local to the instance, so when several instances report the same
+ * device the expiry also bounds how long one instance can skip a state that another instance has
+ * since overwritten.
+ */
+final class ReportedStates {
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private static final class Snapshot {
+    final Map<String, Object> states = new HashMap<>();
+    long expiresAtNanos;
+  }
+
+  private final long ttlNanos;
+  private final Map<String, Snapshot> snapshots;
+  private final LongAdder devicesReported = new LongAdder();
+  private final LongAdder devicesSuppressed = new LongAdder();
+  private final LongAdder fieldsReported = new LongAdder();
+  private final LongAdder fieldsSuppressed = new LongAdder();
+
+  /**
+   * @param maxDevices The maximum number of devices to remember
+   * @param ttl How long a snapshot is trusted before the device is reported in full again
+   * @param unit The unit of {@code ttl}
+   */
+  ReportedStates(int maxDevices, long ttl, TimeUnit unit) {
+    this.ttlNanos = unit.toNanos(ttl);
+    this.snapshots =
+        new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > maxDevices;
+          }
+        };
+  }
+
+  /**
+   * Returns the fields of {@code states} that differ from the last report for the device. An empty
+   * result means the report would not change anything and can be skipped.
+   */
+  synchronized Map<String, Object> delta(
+      String userId, String deviceId, Map<String, Object> states) {
+    devicesReported.increment();
+    Snapshot snapshot = snapshots.get(key(userId, deviceId));
+    if (snapshot != null && System.nanoTime() - snapshot.expiresAtNanos >= 0) {
+      snapshots.remove(key(userId, deviceId));
+      snapshot = null;
+    }
+    Map<String, Object> delta = new HashMap<>();
+    for (Map.Entry<String, Object> state : states.entrySet()) {
+      if (snapshot != null
+          && snapshot.states.containsKey(state.getKey())
+          && sameValue(snapshot.states.get(state.getKey()), state.getValue())) {
+        fieldsSuppressed.increment();
+      } else {
+        delta.put(state.getKey(), state.getValue());
+      }
+    }
+    fieldsReported.add(delta.size());
+    if (delta.isEmpty()) {
+      devicesSuppressed.increment();
+    }
+    return delta;
+  }
+
+  /**
+   * Returns the fields of {@code states} that differ from the last report for the device, and
+   * records them as reported in the same step. Concurrent reports for a device therefore each see
+   * the snapshot the previous one left; if the report then fails, {@link #invalidate} the device.
+   */
+  synchronized Map<String, Object> claim(
+      String userId, String deviceId, Map<String, Object> states) {
+    Map<String, Object> delta = delta(userId, deviceId, states);
+    if (!delta.isEmpty()) {
+      record(userId, deviceId, delta);
+    }
+    return delta;
+  }
+
+  /** Records fields that Home Graph has accepted for the device. */
+  synchronized void record(String userId, String deviceId, Map<String, Object> delta) {
+    Snapshot snapshot = snapshots.get(key(userId, deviceId));
+    if (snapshot == null) {
+      snapshot = new Snapshot();
+      snapshot.expiresAtNanos = System.nanoTime() + ttlNanos;
+      snapshots.put(key(userId, deviceId), snapshot);
+    }
+    snapshot.states.putAll(delta);
+  }
+
+  /** Forgets the device, so that its next report is sent in full. */
+  synchronized void invalidate(String userId, String deviceId) {
+    snapshots.remove(key(userId, deviceId));
+  }
+
+  /** Forgets every device of the user. */
+  synchronized void invalidateUser(String userId) {
+    String prefix = userId + KEY_SEPARATOR;
+    Iterator<String> it = snapshots.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized int size() {
+    return snapshots.size();
+  }
+
+  long getDevicesReported() {
+    return devicesReported.sum();
+  }
+
+  long getDevicesSuppressed() {
+    return devicesSuppressed.sum();
+  }
+
+  long getFieldsReported() {
+    return fieldsReported.sum();
+  }
+
+  long getFieldsSuppressed() {
+    return fieldsSuppressed.sum();
+  }
+
+  /** Returns the fraction of device reports that were skipped because nothing changed. */
+  double getSuppressionRatio() {
+    long reported = devicesReported.sum();
+    return reported == 0 ? 0 : (double) devicesSuppressed.sum() / reported;
+  }
+
+  private static String key(String userId, String deviceId) {
+    return userId + KEY_SEPARATOR + deviceId;
+  }
+
+  /**
+   * Compares state values structurally. Numbers are compared by value, since the same state may
+   * arrive as a Long from Firestore and as a Double from JSON.
+   */
+  static boolean sameValue(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue()) == 0;
+    }
+    if (a instanceof Map && b instanceof Map) {
+      Map<?, ?> mapA = (Map<?, ?>) a;
+      Map<?, ?> mapB = (Map<?, ?>) b;
+      if (mapA.size() != mapB.size()) {
+        return false;
+      }
+      for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+        if (!mapB.containsKey(entry.getKey())
+            || !sameValue(entry.getValue(), mapB.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> listA = (List<?>) a;
+      List<?> listB = (List<?>) b;
+      if (listA.size() != listB.size()) {
+        return false;
+      }
+      for (int i = 0; i < listA.size(); i++) {
+        if (!sameValue(listA.get(i), listB.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return Objects.equals(a, b);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+
+/**
+ * Sends requestSync in the background, once per burst of device changes for a user.
+ *
+ * <p>A user's sync is sent once no further change has been scheduled for the quiet window, but
+ * never later than the maximum delay after the first change of the burst, so a steady stream of
+ * changes cannot postpone it forever. The outbox entries of every merged change are acknowledged
+ * when the request succeeds.
+ */
+final class RequestSyncScheduler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Metrics.Timer requestSyncTimer =
+      Metrics.getInstance()
+          .timer("smarthome_homegraph_rpc", "Home Graph RPCs", "rpc", "requestSync");
+  private static RequestSyncScheduler ourInstance =
+      new RequestSyncScheduler(
+          Config.getLong("REQUEST_SYNC_QUIET_MS", 1000),
+          Config.getLong("REQUEST_SYNC_MAX_DELAY_MS", 10000),
+          Config.getInt("REQUEST_SYNC_THREADS", 2),
+          Outbox.getInstance(),
+          RequestSyncScheduler::requestSync);
+
+  /** Sends one requestSync, see {@link #requestSync(SmartHomeApp, String)}. */
+  interface Requester {
+    void requestSync(SmartHomeApp actionsApp, String userId) throws Exception;
+  }
+
+  /** The changes of one user waiting for a requestSync. */
+  private static final class PendingSync {
+    SmartHomeApp actionsApp;
+    final long firstNanos;
+    long lastNanos;
+    final List<Long> outboxSeqs = new ArrayList<>();
+
+    PendingSync(long nowNanos) {
+      this.firstNanos = nowNanos;
+      this.lastNanos = nowNanos;
+    }
+  }
+
+  private final long quietNanos;
+  private final long maxDelayNanos;
+  private final long maxDelayMillis;
+  private final ConcurrentHashMap<String, PendingSync> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+  private final Outbox outbox;
+  private final Requester requester;
+
+  private final LongAdder scheduled = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder requested = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * @param quietMillis How long a user must go without changes before the sync is sent
+   * @param maxDelayMillis The longest a change may wait for its sync
+   * @param threads How many requestSync calls may be in flight at once
+   * @param outbox Where the changes were recorded until their sync is sent
+   * @param requester Sends each due requestSync to Home Graph
+   */
+  RequestSyncScheduler(
+      long quietMillis, long maxDelayMillis, int threads, Outbox outbox, Requester requester) {
+    this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+    this.maxDelayMillis = Math.max(quietMillis, maxDelayMillis);
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(this.maxDelayMillis);
+    this.outbox = outbox;
+    this.requester = requester;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor =
+        Executors.newScheduledThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "request-sync-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  public static RequestSyncScheduler getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Schedules a requestSync for a user whose devices changed. Never blocks.
+   *
+   * @param actionsApp The SmartHomeApp instance to use to make the request
+   * @param userId The agent user ID
+   * @param outboxSeq The outbox entry of the change, or -1 if it has none
+   */
+  void schedule(SmartHomeApp actionsApp, String userId, long outboxSeq) {
+    scheduled.increment();
+    pending.compute(
+        userId,
+        (id, sync) -> {
+          long now = System.nanoTime();
+          if (sync == null) {
+            sync = new PendingSync(now);
+            executor.schedule(() -> fire(userId), quietNanos, TimeUnit.NANOSECONDS);
+          } else {
+            sync.lastNanos = now;
+            coalesced.increment();
+          }
+          sync.actionsApp = actionsApp;
+          if (outboxSeq >= 0) {
+            sync.outboxSeqs.add(outboxSeq);
+          }
+          return sync;
+        });
+  }
+
+  private void fire(String userId) {
+    PendingSync[] due = {null};
+    long[] remainingNanos = {0};
+    pending.computeIfPresent(
+        userId,
+        (id, sync) -> {
+          long dueNanos = Math.min(sync.lastNanos + quietNanos, sync.firstNanos + maxDelayNanos);
+          long remaining = dueNanos - System.nanoTime();
+          if (remaining > 0) {
+            remainingNanos[0] = remaining;
+            return sync;
+          }
+          due[0] = sync;
+          return null;
+        });
+    if (due[0] == null) {
+      if (remainingNanos[0] > 0) {
+        executor.schedule(() -> fire(userId), remainingNanos[0], TimeUnit.NANOSECONDS);
+      }
+      return;
+    }
+    try {
+      requester.requestSync(due[0].actionsApp, userId);
+      requested.increment();
+      for (long seq : due[0].outboxSeqs) {
+        outbox.ack(seq);
+      }
+    } catch (Exception e) {
+      // The outbox entries stay unacknowledged, so the drainer retries the sync.
+      failed.increment();
+      LOGGER.error("request sync failed: {}", e);
+    }
+  }
+
+  /** Sends a Request Sync to Home Graph, recording its latency and whether it failed. */
+  static void requestSync(SmartHomeApp actionsApp, String userId) {
+    long start = System.nanoTime();
+    Tracing.Span span = Tracing.getInstance().startSpan("homegraph.requestSync");
+    boolean failed = true;
+    try {
+      actionsApp.requestSync(userId);
+      failed = false;
+    } finally {
+      requestSyncTimer.record(start, failed);
+      span.end(failed);
+    }
+  }
+
+  /** Returns the longest a scheduled change may wait for its sync. */
+  long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  long getScheduled() {
+    return scheduled.sum();
+  }
+
+  long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  long getRequested() {
+    return requested.sum();
+  }
+
+  long getFailed() {
+    return failed.sum();
+  }
+
+  int getPendingUsers() {
+    return pending.size();
+  }
+}
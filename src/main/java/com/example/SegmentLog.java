@@ -0,0 +1,722 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent map from string keys to byte values, stored as an append-only log of memory-mapped
+ * segment files with a memory-mapped hash index pointing at the latest record of each key.
+ *
+ * <p>Each record is laid out as {@code [int length][int crc32][byte type][int keyLength][key]
+ * [value]}, where the length and checksum cover everything after the checksum, and the length is
+ * written last so that a torn record is never mistaken for a complete one. A write appends a record
+ * to the active segment and points the index at it; a delete appends a tombstone and removes the
+ * key from the index. When the active segment is full, it is sealed and a new one is started.
+ *
+ * <p>The index is an open-addressing table in {@code index.bin} whose slots hold {@code [long
+ * keyHash][int segment][int offset]}. {@link #force} flushes the segments and the index and then
+ * records the end of the log as a checkpoint in the index header. On open, only the records after
+ * the checkpoint are checked and replayed into the index; if the index is missing, or points past
+ * the end of the recovered log because the machine crashed before pages were flushed, it is rebuilt
+ * from every segment.
+ *
+ * <p>{@link #compact} rewrites the live records of the sealed segment with the most garbage into
+ * the active segment and deletes it. Reads take a shared lock and may run concurrently; writes and
+ * compaction take an exclusive one.
+ */
+final class SegmentLog implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private static final int HEADER_BYTES = 8;
+  private static final int BODY_PREFIX_BYTES = 5;
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String INDEX_FILE = "index.bin";
+  private static final String LOCK_FILE = "lock";
+  private static final int INDEX_MAGIC = 0x534c4f47;
+  private static final int INDEX_HEADER_BYTES = 32;
+  private static final int SLOT_BYTES = 16;
+  // Header fields: magic, number of slots, used slots, checkpoint segment and offset.
+  private static final int SLOTS_FIELD = 4;
+  private static final int USED_FIELD = 8;
+  private static final int CHECKPOINT_SEGMENT_FIELD = 12;
+  private static final int CHECKPOINT_OFFSET_FIELD = 16;
+
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    int end;
+    long liveBytes;
+
+    Segment(int id, Path path, int capacity) throws IOException {
+      this.id = id;
+      this.path = path;
+      this.channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+  }
+
+  private final Path directory;
+  private final FileLock directoryLock;
+  private final int segmentBytes;
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final CRC32 crc = new CRC32();
+  private Segment active;
+  private FileChannel indexChannel;
+  private MappedByteBuffer index;
+  private int slots;
+  private int used;
+  private long compactions;
+
+  /**
+   * Opens the log in the directory, recovering it if the process or machine stopped uncleanly.
+   *
+   * @param directory Where the segment and index files live
+   * @param segmentBytes The size of a segment file
+   * @param initialSlots The initial number of index slots, rounded up to a power of two
+   * @throws IOException If another log, in this or another process, has the directory open
+   */
+  SegmentLog(Path directory, int segmentBytes, int initialSlots) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    // Each log keeps its own view of the end of the log and of the index, so two logs appending to
+    // the same files would corrupt them.
+    this.directoryLock = lockDirectory(directory);
+    List<Integer> ids = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    ids.sort(null);
+    for (int i = 0; i < ids.size(); i++) {
+      Path path = segmentPath(ids.get(i));
+      // Sealed segments are mapped at their size; the last one is writable up to a full segment.
+      int capacity = (int) Files.size(path);
+      if (i == ids.size() - 1) {
+        capacity = Math.max(capacity, segmentBytes);
+      }
+      segments.put(ids.get(i), new Segment(ids.get(i), path, capacity));
+    }
+    if (segments.isEmpty()) {
+      segments.put(1, new Segment(1, segmentPath(1), segmentBytes));
+    }
+    active = segments.lastEntry().getValue();
+    recover(Integer.highestOneBit(Math.max(initialSlots, 16) - 1) << 1);
+  }
+
+  private static FileLock lockDirectory(Path directory) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IOException("log in " + directory + " is already open");
+    }
+    return lock;
+  }
+
+  private Path segmentPath(int id) {
+    return directory.resolve(String.format("%08d%s", id, SEGMENT_SUFFIX));
+  }
+
+  /** Returns the latest value of a key, or null if it has none. */
+  byte[] get(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    lock.readLock().lock();
+    try {
+      int slot = find(keyBytes, hash(keyBytes));
+      if (slot < 0) {
+        return null;
+      }
+      return readValue(segments.get(slotSegment(slot)), slotOffset(slot));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Sets the value of a key. */
+  void put(String key, byte[] value) {
+    lock.writeLock().lock();
+    try {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      int offset = append(PUT, keyBytes, value);
+      indexPut(keyBytes, active.id, offset);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes a key, if it has a value. */
+  void delete(String key) {
+    lock.writeLock().lock();
+    try {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      if (find(keyBytes, hash(keyBytes)) >= 0) {
+        append(DELETE, keyBytes, new byte[0]);
+        indexRemove(keyBytes);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns every key that has a value, in no particular order. */
+  List<String> keys() {
+    lock.readLock().lock();
+    try {
+      List<String> keys = new ArrayList<>(used);
+      for (int slot = 0; slot < slots; slot++) {
+        if (slotHash(slot) != 0) {
+          keys.add(readKey(segments.get(slotSegment(slot)), slotOffset(slot)));
+        }
+      }
+      return keys;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return used;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int segmentCount() {
+    lock.readLock().lock();
+    try {
+      return segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  long getCompactions() {
+    lock.readLock().lock();
+    try {
+      return compactions;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes every segment and the index to disk, then records the flushed end of the log as the
+   * checkpoint from which the next open replays.
+   */
+  void force() {
+    List<Segment> flushed;
+    int checkpointSegment;
+    int checkpointOffset;
+    lock.readLock().lock();
+    try {
+      flushed = new ArrayList<>(segments.tailMap(index.getInt(CHECKPOINT_SEGMENT_FIELD)).values());
+      checkpointSegment = active.id;
+      checkpointOffset = active.end;
+    } finally {
+      lock.readLock().unlock();
+    }
+    // Only the segments written since the last checkpoint can hold unflushed records.
+    for (Segment segment : flushed) {
+      segment.buffer.force();
+    }
+    lock.writeLock().lock();
+    try {
+      index.force();
+      index.putInt(CHECKPOINT_SEGMENT_FIELD, checkpointSegment);
+      index.putInt(CHECKPOINT_OFFSET_FIELD, checkpointOffset);
+      index.force();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Compacts the sealed segment with the lowest share of live records, if that share is below
+   * {@code maxLiveRatio}: its live records are copied to the active segment and the file is
+   * deleted.
+   *
+   * @return Whether a segment was compacted
+   */
+  boolean compact(double maxLiveRatio) {
+    lock.writeLock().lock();
+    try {
+      Segment victim = null;
+      double victimRatio = maxLiveRatio;
+      for (Segment segment : segments.values()) {
+        double ratio = segment.end > 0 ? (double) segment.liveBytes / segment.end : 0;
+        if (segment != active && ratio < victimRatio) {
+          victim = segment;
+          victimRatio = ratio;
+        }
+      }
+      if (victim == null) {
+        return false;
+      }
+      // A tombstone must outlive every older segment, which may still hold the deleted value.
+      boolean oldest = victim.id == segments.firstKey();
+      for (int offset = 0;
+          offset < victim.end;
+          offset += HEADER_BYTES + victim.buffer.getInt(offset)) {
+        byte type = victim.buffer.get(offset + HEADER_BYTES);
+        byte[] keyBytes = readKey(victim, offset).getBytes(StandardCharsets.UTF_8);
+        int slot = find(keyBytes, hash(keyBytes));
+        if (type == PUT
+            && slot >= 0
+            && slotSegment(slot) == victim.id
+            && slotOffset(slot) == offset) {
+          int copy = append(PUT, keyBytes, readValue(victim, offset));
+          indexPut(keyBytes, active.id, copy);
+        } else if (type == DELETE && slot < 0 && !oldest) {
+          append(DELETE, keyBytes, new byte[0]);
+        }
+      }
+      // The copies must be on disk before the only other copy of the records is deleted.
+      active.buffer.force();
+      index.force();
+      segments.remove(victim.id);
+      victim.channel.close();
+      Files.delete(victim.path);
+      compactions++;
+      LOGGER.info(
+          "compacted log segment {} with {}% live records", victim.id, (int) (victimRatio * 100));
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException("log compaction failed", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    abandon();
+  }
+
+  /**
+   * Closes the files without forcing them or moving the checkpoint, as if the process had stopped,
+   * and releases the directory.
+   */
+  void abandon() throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.channel.close();
+      }
+      indexChannel.close();
+      directoryLock.channel().close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Appends a record to the active segment, starting a new segment if it does not fit. */
+  private int append(byte type, byte[] keyBytes, byte[] value) {
+    int bodyLength = BODY_PREFIX_BYTES + keyBytes.length + value.length;
+    if (active.end + HEADER_BYTES + bodyLength > active.buffer.capacity()) {
+      int id = active.id + 1;
+      try {
+        active =
+            new Segment(id, segmentPath(id), Math.max(segmentBytes, HEADER_BYTES + bodyLength));
+      } catch (IOException e) {
+        throw new IllegalStateException("cannot create log segment " + id, e);
+      }
+      segments.put(id, active);
+    }
+    int offset = active.end;
+    int bodyStart = offset + HEADER_BYTES;
+    ByteBuffer view = active.buffer.duplicate();
+    view.position(bodyStart);
+    view.put(type);
+    view.putInt(keyBytes.length);
+    view.put(keyBytes);
+    view.put(value);
+    view.position(bodyStart);
+    view.limit(bodyStart + bodyLength);
+    crc.reset();
+    crc.update(view);
+    active.buffer.putInt(offset + 4, (int) crc.getValue());
+    // The length is written last, so a record is only visible to recovery once it is complete.
+    active.buffer.putInt(offset, bodyLength);
+    active.end = bodyStart + bodyLength;
+    return offset;
+  }
+
+  private static String readKey(Segment segment, int offset) {
+    int keyLength = segment.buffer.getInt(offset + HEADER_BYTES + 1);
+    byte[] key = new byte[keyLength];
+    ByteBuffer view = segment.buffer.duplicate();
+    view.position(offset + HEADER_BYTES + BODY_PREFIX_BYTES);
+    view.get(key);
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readValue(Segment segment, int offset) {
+    int keyLength = segment.buffer.getInt(offset + HEADER_BYTES + 1);
+    int valueStart = offset + HEADER_BYTES + BODY_PREFIX_BYTES + keyLength;
+    byte[] value = new byte[offset + HEADER_BYTES + segment.buffer.getInt(offset) - valueStart];
+    ByteBuffer view = segment.buffer.duplicate();
+    view.position(valueStart);
+    view.get(value);
+    return value;
+  }
+
+  private static boolean keyEquals(Segment segment, int offset, byte[] keyBytes) {
+    if (segment.buffer.getInt(offset + HEADER_BYTES + 1) != keyBytes.length) {
+      return false;
+    }
+    int keyStart = offset + HEADER_BYTES + BODY_PREFIX_BYTES;
+    for (int i = 0; i < keyBytes.length; i++) {
+      if (segment.buffer.get(keyStart + i) != keyBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** A 64-bit FNV-1a hash of the key; 0 marks an empty slot, so it is never returned. */
+  private static long hash(byte[] keyBytes) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : keyBytes) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 29;
+    return hash != 0 ? hash : 1;
+  }
+
+  private int home(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & (slots - 1);
+  }
+
+  private static int slotPosition(int slot) {
+    return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  private long slotHash(int slot) {
+    return index.getLong(slotPosition(slot));
+  }
+
+  private int slotSegment(int slot) {
+    return index.getInt(slotPosition(slot) + 8);
+  }
+
+  private int slotOffset(int slot) {
+    return index.getInt(slotPosition(slot) + 12);
+  }
+
+  private void setSlot(int slot, long hash, int segment, int offset) {
+    index.putInt(slotPosition(slot) + 8, segment);
+    index.putInt(slotPosition(slot) + 12, offset);
+    index.putLong(slotPosition(slot), hash);
+  }
+
+  /** Returns the slot of a key, or {@code -1 - emptySlot} if the key has no slot. */
+  private int find(byte[] keyBytes, long hash) {
+    for (int slot = home(hash); ; slot = (slot + 1) & (slots - 1)) {
+      long slotHash = slotHash(slot);
+      if (slotHash == 0) {
+        return -1 - slot;
+      }
+      if (slotHash == hash
+          && keyEquals(segments.get(slotSegment(slot)), slotOffset(slot), keyBytes)) {
+        return slot;
+      }
+    }
+  }
+
+  private int recordBytes(int segment, int offset) {
+    return HEADER_BYTES + segments.get(segment).buffer.getInt(offset);
+  }
+
+  private void indexPut(byte[] keyBytes, int segment, int offset) {
+    long hash = hash(keyBytes);
+    int slot = find(keyBytes, hash);
+    if (slot >= 0) {
+      segments.get(slotSegment(slot)).liveBytes -= recordBytes(slotSegment(slot), slotOffset(slot));
+    } else {
+      slot = -1 - slot;
+      used++;
+      index.putInt(USED_FIELD, used);
+    }
+    setSlot(slot, hash, segment, offset);
+    segments.get(segment).liveBytes += recordBytes(segment, offset);
+    if (used > slots / 4 * 3) {
+      resizeIndex(slots * 2);
+    }
+  }
+
+  /** Removes a key from the index, shifting back the entries that probed past its slot. */
+  private void indexRemove(byte[] keyBytes) {
+    int slot = find(keyBytes, hash(keyBytes));
+    if (slot < 0) {
+      return;
+    }
+    segments.get(slotSegment(slot)).liveBytes -= recordBytes(slotSegment(slot), slotOffset(slot));
+    int hole = slot;
+    for (int next = (hole + 1) & (slots - 1);
+        slotHash(next) != 0;
+        next = (next + 1) & (slots - 1)) {
+      int home = home(slotHash(next));
+      // The entry can move into the hole unless its home lies cyclically in (hole, next].
+      boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+      if (!stays) {
+        setSlot(hole, slotHash(next), slotSegment(next), slotOffset(next));
+        hole = next;
+      }
+    }
+    setSlot(hole, 0, 0, 0);
+    used--;
+    index.putInt(USED_FIELD, used);
+  }
+
+  /** Rehashes the index into a new file with the given number of slots. */
+  private void resizeIndex(int newSlots) {
+    MappedByteBuffer oldIndex = index;
+    int oldSlots = slots;
+    FileChannel oldChannel = indexChannel;
+    Path file = directory.resolve(INDEX_FILE);
+    Path resized = directory.resolve(INDEX_FILE + ".resize");
+    try {
+      Files.deleteIfExists(resized);
+      mapIndex(resized, newSlots);
+      index.putInt(CHECKPOINT_SEGMENT_FIELD, oldIndex.getInt(CHECKPOINT_SEGMENT_FIELD));
+      index.putInt(CHECKPOINT_OFFSET_FIELD, oldIndex.getInt(CHECKPOINT_OFFSET_FIELD));
+      used = 0;
+      for (int slot = 0; slot < oldSlots; slot++) {
+        long hash = oldIndex.getLong(slotPosition(slot));
+        if (hash == 0) {
+          continue;
+        }
+        // Keys are distinct, so each entry goes into the first free slot from its home.
+        int target = home(hash);
+        while (slotHash(target) != 0) {
+          target = (target + 1) & (slots - 1);
+        }
+        setSlot(
+            target,
+            hash,
+            oldIndex.getInt(slotPosition(slot) + 8),
+            oldIndex.getInt(slotPosition(slot) + 12));
+        used++;
+      }
+      index.putInt(USED_FIELD, used);
+      index.force();
+      oldChannel.close();
+      Files.move(
+          resized, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot resize log index", e);
+    }
+  }
+
+  private void mapIndex(Path file, int slotCount) throws IOException {
+    indexChannel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    index =
+        indexChannel.map(
+            FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES + (long) slotCount * SLOT_BYTES);
+    slots = slotCount;
+    index.putInt(SLOTS_FIELD, slotCount);
+    index.putInt(0, INDEX_MAGIC);
+  }
+
+  /** Opens or rebuilds the index and finds the end of every segment. */
+  private void recover(int initialSlots) throws IOException {
+    Path file = directory.resolve(INDEX_FILE);
+    boolean indexUsable = false;
+    if (Files.exists(file) && Files.size(file) >= INDEX_HEADER_BYTES) {
+      indexChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Files.size(file));
+      slots = index.getInt(SLOTS_FIELD);
+      used = index.getInt(USED_FIELD);
+      indexUsable =
+          index.getInt(0) == INDEX_MAGIC
+              && slots > 0
+              && Integer.bitCount(slots) == 1
+              && Files.size(file) == INDEX_HEADER_BYTES + (long) slots * SLOT_BYTES;
+    }
+    if (indexUsable) {
+      int checkpointSegment = index.getInt(CHECKPOINT_SEGMENT_FIELD);
+      int checkpointOffset = index.getInt(CHECKPOINT_OFFSET_FIELD);
+      boolean torn = false;
+      for (Segment segment : segments.values()) {
+        torn |= scan(segment, replayFrom(segment, checkpointSegment, checkpointOffset));
+      }
+      // A torn record or an entry past the end means the machine crashed with unflushed pages.
+      indexUsable = !torn && indexPointsIntoLog();
+      if (indexUsable) {
+        for (Segment segment : segments.tailMap(checkpointSegment).values()) {
+          replay(segment, replayFrom(segment, checkpointSegment, checkpointOffset));
+        }
+      }
+    }
+    if (!indexUsable) {
+      LOGGER.info("rebuilding log index from {} segments", segments.size());
+      if (indexChannel != null) {
+        indexChannel.close();
+      }
+      Files.deleteIfExists(file);
+      mapIndex(file, initialSlots);
+      used = 0;
+      for (Segment segment : segments.values()) {
+        scan(segment, 0);
+        replay(segment, 0);
+      }
+    }
+    for (Segment segment : segments.values()) {
+      segment.liveBytes = 0;
+    }
+    for (int slot = 0; slot < slots; slot++) {
+      if (slotHash(slot) != 0) {
+        segments.get(slotSegment(slot)).liveBytes +=
+            recordBytes(slotSegment(slot), slotOffset(slot));
+      }
+    }
+    if (used > 0) {
+      LOGGER.info("recovered {} keys from {} log segments", used, segments.size());
+    }
+  }
+
+  private static int replayFrom(Segment segment, int checkpointSegment, int checkpointOffset) {
+    if (segment.id < checkpointSegment) {
+      return Integer.MAX_VALUE;
+    }
+    return segment.id == checkpointSegment ? checkpointOffset : 0;
+  }
+
+  /**
+   * Finds the end of a segment, checking the records from {@code checkFrom} on. At the first
+   * incomplete or corrupt record, the rest of the segment is cleared.
+   *
+   * @return Whether the segment had a torn tail
+   */
+  private boolean scan(Segment segment, int checkFrom) {
+    MappedByteBuffer buffer = segment.buffer;
+    int pos = 0;
+    boolean torn = false;
+    while (pos + HEADER_BYTES <= buffer.capacity()) {
+      int bodyLength = buffer.getInt(pos);
+      if (bodyLength == 0) {
+        break;
+      }
+      int bodyStart = pos + HEADER_BYTES;
+      if (bodyLength < BODY_PREFIX_BYTES || bodyStart + bodyLength > buffer.capacity()) {
+        torn = true;
+        break;
+      }
+      if (pos >= checkFrom) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(bodyStart);
+        body.limit(bodyStart + bodyLength);
+        crc.reset();
+        crc.update(body);
+        int keyLength = buffer.getInt(bodyStart + 1);
+        if ((int) crc.getValue() != buffer.getInt(pos + 4)
+            || keyLength < 0
+            || keyLength > bodyLength - BODY_PREFIX_BYTES) {
+          torn = true;
+          break;
+        }
+      }
+      pos = bodyStart + bodyLength;
+    }
+    segment.end = pos;
+    if (torn) {
+      // Clear the partially written tail so stale bytes can never be mistaken for a record later.
+      LOGGER.warn("log segment {} has a torn record at offset {}, truncating", segment.id, pos);
+      for (int i = pos; i < buffer.capacity(); i++) {
+        buffer.put(i, (byte) 0);
+      }
+    }
+    return torn;
+  }
+
+  /** Applies the records of a segment from {@code from} on to the index. */
+  private void replay(Segment segment, int from) {
+    int pos = 0;
+    while (pos < segment.end) {
+      int next = pos + HEADER_BYTES + segment.buffer.getInt(pos);
+      if (pos >= from) {
+        byte[] keyBytes = readKey(segment, pos).getBytes(StandardCharsets.UTF_8);
+        if (segment.buffer.get(pos + HEADER_BYTES) == PUT) {
+          indexPut(keyBytes, segment.id, pos);
+        } else {
+          indexRemove(keyBytes);
+        }
+      }
+      pos = next;
+    }
+  }
+
+  /** Checks that every index entry points at a record inside the recovered log. */
+  private boolean indexPointsIntoLog() {
+    int count = 0;
+    for (int slot = 0; slot < slots; slot++) {
+      if (slotHash(slot) == 0) {
+        continue;
+      }
+      count++;
+      Segment segment = segments.get(slotSegment(slot));
+      if (segment == null || slotOffset(slot) < 0 || slotOffset(slot) >= segment.end) {
+        return false;
+      }
+    }
+    return count == used;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Deletes many devices of a user in one HTTP POST. The body carries the user ID and a {@code
+ * deviceIds} array; the response reports the outcome of each device. A single requestSync follows
+ * the whole request.
+ */
+@WebServlet(name = "smarthomeBulkDelete", urlPatterns = "/smarthome/delete/bulk")
+public class SmartHomeBulkDeleteServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static MyDataStore database = MyDataStore.getInstance();
+
+  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+
+  {
+    try {
+      GoogleCredentials credentials =
+          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
+      actionsApp.setCredentials(credentials);
+    } catch (Exception e) {
+      LOGGER.error("couldn't load credentials");
+    }
+    Outbox.getInstance().startDrainer(actionsApp);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String body = req.getReader().lines().collect(Collectors.joining());
+    LOGGER.info("doPost, body length = {}", body.length());
+    String userId;
+    List<String> deviceIds = new ArrayList<>();
+    try {
+      JsonObject bodyJson = JsonParser.parseString(body).getAsJsonObject();
+      userId = bodyJson.get("userId").getAsString();
+      for (JsonElement deviceId : bodyJson.getAsJsonArray("deviceIds")) {
+        deviceIds.add(deviceId.isJsonNull() ? null : deviceId.getAsString());
+      }
+    } catch (RuntimeException e) {
+      BulkResults.writeBadRequest(res, "expected {\"userId\": ..., \"deviceIds\": [...]}");
+      return;
+    }
+    Object duplicate = BulkResults.firstDuplicate(deviceIds);
+    if (duplicate != null) {
+      BulkResults.writeBadRequest(res, "device " + duplicate + " appears more than once");
+      return;
+    }
+
+    // Record the sync before writing so it survives the instance dying right after the writes.
+    long syncSeq = Outbox.getInstance().appendRequestSync(userId);
+    List<String> errors;
+    try {
+      errors = database.deleteDevices(userId, deviceIds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("deleting devices was interrupted");
+      Outbox.getInstance().ack(syncSeq);
+      res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      res.setHeader("Access-Control-Allow-Origin", "*");
+      res.setContentType("text/plain");
+      res.getWriter().println("ERROR");
+      return;
+    }
+
+    JsonArray results = new JsonArray();
+    boolean anyDeleted = false;
+    for (int i = 0; i < deviceIds.size(); i++) {
+      results.add(BulkResults.result(deviceIds.get(i), errors.get(i)));
+      if (errors.get(i) == null) {
+        ReportState.getReportedStates().invalidate(userId, deviceIds.get(i));
+        anyDeleted = true;
+      }
+    }
+    if (anyDeleted) {
+      RequestSyncScheduler.getInstance().schedule(actionsApp, userId, syncSeq);
+    } else {
+      Outbox.getInstance().ack(syncSeq);
+    }
+    BulkResults.write(res, results);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("text/plain");
+    response.getWriter().println("/smarthome/delete/bulk is a POST call");
+  }
+
+  @Override
+  protected void doOptions(HttpServletRequest req, HttpServletResponse res) {
+    // pre-flight request processing
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setHeader("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
+    res.setHeader("Access-Control-Allow-Headers", "X-Requested-With,Content-Type,Accept,Origin");
+  }
+}
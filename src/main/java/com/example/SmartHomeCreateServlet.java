@@ -54,6 +54,7 @@ public class SmartHomeCreateServlet extends HttpServlet {
     } catch (Exception e) {
       LOGGER.error("couldn't load credentials");
     }
+    Outbox.getInstance().startDrainer(actionsApp);
   }
 
   @Override
@@ -65,10 +66,13 @@ public class SmartHomeCreateServlet extends HttpServlet {
     String userId = (String) device.get("userId");
     Map<String, Object> deviceData = (Map<String, Object>) device.get("data");
 
+    // Record the sync before writing so it survives the instance dying right after the write.
+    long syncSeq = Outbox.getInstance().appendRequestSync(userId);
     try {
       database.addDevice(userId, deviceData);
     } catch (Exception e) {
       LOGGER.error("adding device failed: {}", e);
+      Outbox.getInstance().ack(syncSeq);
       res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       res.setHeader("Access-Control-Allow-Origin", "*");
       res.setContentType("text/plain");
@@ -76,11 +80,7 @@ public class SmartHomeCreateServlet extends HttpServlet {
       return;
     }
 
-    try {
-      actionsApp.requestSync(userId);
-    } catch (Exception e) {
-      LOGGER.error("request sync failed: {}", e);
-    }
+    RequestSyncScheduler.getInstance().schedule(actionsApp, userId, syncSeq);
 
     res.setStatus(HttpServletResponse.SC_OK);
     res.setHeader("Access-Control-Allow-Origin", "*");
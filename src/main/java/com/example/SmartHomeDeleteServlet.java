@@ -52,6 +52,7 @@ public class SmartHomeDeleteServlet extends HttpServlet {
     } catch (Exception e) {
       LOGGER.error("couldn't load credentials");
     }
+    Outbox.getInstance().startDrainer(actionsApp);
   }
 
   @Override
@@ -61,10 +62,14 @@ public class SmartHomeDeleteServlet extends HttpServlet {
     JsonObject bodyJson = new JsonParser().parse(body).getAsJsonObject();
     String userId = bodyJson.get("userId").getAsString();
     String deviceId = bodyJson.get("deviceId").getAsString();
+    // Record the sync before writing so it survives the instance dying right after the write.
+    long syncSeq = Outbox.getInstance().appendRequestSync(userId);
     try {
       database.deleteDevice(userId, deviceId);
+      ReportState.getReportedStates().invalidate(userId, deviceId);
     } catch (Exception e) {
       LOGGER.error("adding device failed: {}", e);
+      Outbox.getInstance().ack(syncSeq);
       res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       res.setHeader("Access-Control-Allow-Origin", "*");
       res.setContentType("text/plain");
@@ -72,11 +77,7 @@ public class SmartHomeDeleteServlet extends HttpServlet {
       return;
     }
 
-    try {
-      actionsApp.requestSync(userId);
-    } catch (Exception e) {
-      LOGGER.error("request sync failed: {}", e);
-    }
+    RequestSyncScheduler.getInstance().schedule(actionsApp, userId, syncSeq);
 
     res.setStatus(HttpServletResponse.SC_OK);
     res.setHeader("Access-Control-Allow-Origin", "*");
@@ -32,8 +32,11 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
@@ -43,7 +46,10 @@ import com.google.auth.oauth2.GoogleCredentials;
 @WebServlet(name = "smarthome", urlPatterns = "/smarthome")
 public class SmartHomeServlet extends HttpServlet {
   private static final Logger LOG = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+  private static final String SYNC_INTENT = "action.devices.SYNC";
+  private final MySmartHomeApp actionsApp = new MySmartHomeApp();
+  // Opt-in until the hand-built response is verified against the SDK's own SYNC serialization.
+  private final boolean syncFragmentsEnabled = Config.getBoolean("SYNC_FRAGMENTS_ENABLED", false);
 
   {
     try {
@@ -53,14 +59,39 @@ public class SmartHomeServlet extends HttpServlet {
     } catch (Exception e) {
       LOG.error("couldn't load credentials");
     }
+    Outbox.getInstance().startDrainer(actionsApp);
   }
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res)
       throws IOException, ServletException {
+    // The root span of the request's trace; the intent, data store and Home Graph spans nest in it.
+    Tracing.Span span = Tracing.getInstance().startSpan("POST /smarthome");
+    boolean failed = true;
+    try (Tracing.Scope scope = span.activate()) {
+      handle(req, res);
+      failed = false;
+    } finally {
+      span.end(failed);
+    }
+  }
+
+  private void handle(HttpServletRequest req, HttpServletResponse res)
+      throws IOException, ServletException {
     String body = req.getReader().lines().collect(Collectors.joining());
     LOG.info("doPost, body = {}", body);
     Map<String, String> headerMap = getHeaderMap(req);
+    String syncRequestId = syncFragmentsEnabled ? getSyncRequestId(body) : null;
+    if (syncRequestId != null) {
+      String response = actionsApp.onSyncFromFragments(syncRequestId, headerMap);
+      if (response != null) {
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setHeader("Access-Control-Allow-Origin", "*");
+        res.setContentType("application/json");
+        writeResponse(res, response);
+        return;
+      }
+    }
     try {
       String response = actionsApp.handleRequest(body, headerMap).get();
       res.setStatus(HttpServletResponse.SC_OK);
@@ -90,6 +121,30 @@ public class SmartHomeServlet extends HttpServlet {
     res.getWriter().flush();
   }
 
+  /**
+   * Returns the request ID if the body is a SYNC request, or null otherwise. Bodies that cannot be
+   * a SYNC request are rejected without parsing them, since the app parses every body again.
+   */
+  private static String getSyncRequestId(String body) {
+    if (!body.contains(SYNC_INTENT)) {
+      return null;
+    }
+    try {
+      JsonObject request = JsonParser.parseString(body).getAsJsonObject();
+      JsonArray inputs = request.getAsJsonArray("inputs");
+      if (inputs == null || inputs.size() == 0 || !request.has("requestId")) {
+        return null;
+      }
+      JsonElement intent = inputs.get(0).getAsJsonObject().get("intent");
+      if (intent == null || !SYNC_INTENT.equals(intent.getAsString())) {
+        return null;
+      }
+      return request.get("requestId").getAsString();
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
   private Map<String, String> getHeaderMap(HttpServletRequest req) {
     Map<String, String> headerMap = new HashMap<>();
     Enumeration headerNames = req.getHeaderNames();
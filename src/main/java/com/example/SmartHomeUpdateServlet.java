@@ -59,6 +59,7 @@ public class SmartHomeUpdateServlet extends HttpServlet {
     } catch (Exception e) {
       LOGGER.error("couldn't load credentials");
     }
+    Outbox.getInstance().startDrainer(actionsApp);
   }
 
   @Override
@@ -77,16 +78,18 @@ public class SmartHomeUpdateServlet extends HttpServlet {
     for (String k : deviceParamsKeys) {
       deviceParams.put(k, bodyJson.get(k).getAsString());
     }
+    // Record the sync before writing so it survives the instance dying right after the write.
+    long syncSeq =
+        deviceParams.containsKey("localDeviceId")
+            ? Outbox.getInstance().appendRequestSync(userId)
+            : -1;
     try {
       database.updateDevice(userId, deviceId, deviceStates, deviceParams);
-      if (deviceParams.containsKey("localDeviceId")) {
-        actionsApp.requestSync(userId);
-      }
-      if (states != null) {
-        ReportState.makeRequest(actionsApp, userId, deviceId, states);
-      }
     } catch (Exception e) {
       LOGGER.error("failed to update device: {}", e);
+      if (syncSeq >= 0) {
+        Outbox.getInstance().ack(syncSeq);
+      }
       res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       res.setHeader("Access-Control-Allow-Origin", "*");
       res.setContentType("text/plain");
@@ -94,6 +97,13 @@ public class SmartHomeUpdateServlet extends HttpServlet {
       return;
     }
 
+    if (syncSeq >= 0) {
+      RequestSyncScheduler.getInstance().schedule(actionsApp, userId, syncSeq);
+    }
+    if (deviceStates != null) {
+      ReportStateDispatcher.getInstance().submit(actionsApp, userId, deviceId, deviceStates);
+    }
+
     res.setStatus(HttpServletResponse.SC_OK);
     res.setHeader("Access-Control-Allow-Origin", "*");
     res.setContentType("text/plain");
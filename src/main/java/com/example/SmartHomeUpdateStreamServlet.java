@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.JsonObject;
+
+/**
+ * Accepts a stream of state updates for many users and devices in one HTTP POST, as
+ * newline-delimited JSON objects of the form {@code {"userId": ..., "deviceId": ..., "states":
+ * {...}}}.
+ *
+ * <p>Updates are written by a {@link StateUpdateStream}, in batches with a bounded number in
+ * flight, so memory use does not grow with the size of the body. Unlike {@code /smarthome/update},
+ * states are merged into the stored states rather than replacing them. Written states are reported
+ * to Home Graph through the {@link ReportStateDispatcher}. The response summarizes the stream and
+ * lists the first errors.
+ */
+@WebServlet(name = "smarthomeUpdateStream", urlPatterns = "/smarthome/update/stream")
+public class SmartHomeUpdateStreamServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static MyDataStore database = MyDataStore.getInstance();
+  private static final int BATCH_SIZE =
+      Math.max(1, Math.min(Config.getInt("UPDATE_STREAM_BATCH_SIZE", 400), 500));
+  private static final int MAX_IN_FLIGHT_BATCHES =
+      Math.max(1, Config.getInt("UPDATE_STREAM_MAX_IN_FLIGHT_BATCHES", 4));
+
+  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+
+  {
+    try {
+      GoogleCredentials credentials =
+          GoogleCredentials.fromStream(getClass().getResourceAsStream("/smart-home-key.json"));
+      actionsApp.setCredentials(credentials);
+    } catch (Exception e) {
+      LOGGER.error("couldn't load credentials");
+    }
+    Outbox.getInstance().startDrainer(actionsApp);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    StateUpdateStream stream =
+        new StateUpdateStream(
+            BATCH_SIZE,
+            MAX_IN_FLIGHT_BATCHES,
+            database::mergeStates,
+            (userId, written) ->
+                ReportStateDispatcher.getInstance().submit(actionsApp, userId, written));
+    JsonObject body;
+    try {
+      body = stream.write(req.getReader());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("state update stream was interrupted");
+      res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      res.setHeader("Access-Control-Allow-Origin", "*");
+      res.setContentType("text/plain");
+      res.getWriter().println("ERROR");
+      return;
+    }
+
+    LOGGER.info(
+        "state update stream: {} received, {} devices written, {} failed",
+        body.get("received"),
+        body.get("written"),
+        body.get("failed"));
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("application/json");
+    res.getWriter().println(body.toString());
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    res.setContentType("text/plain");
+    res.getWriter().println("/smarthome/update/stream is a POST call");
+  }
+
+  @Override
+  protected void doOptions(HttpServletRequest req, HttpServletResponse res) {
+    // pre-flight request processing
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setHeader("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
+    res.setHeader("Access-Control-Allow-Headers", "X-Requested-With,Content-Type,Accept,Origin");
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+
+/**
+ * The changes a {@link CommandHandler} makes to a device: the Firestore fields to write, and the
+ * states to return in the EXECUTE response. The response states start out as the stored states of
+ * the device.
+ */
+final class StateDiff {
+  private final Map<String, Object> states;
+  private final Map<String, Object> updates;
+  private boolean pending;
+
+  /**
+   * @param states The response states, holding the stored states of the device
+   * @param updates Receives the Firestore field paths to write and their values
+   */
+  StateDiff(Map<String, Object> states, Map<String, Object> updates) {
+    this.states = states;
+    this.updates = updates;
+  }
+
+  /** Returns the current value of a state, including changes made so far. */
+  Object state(String name) {
+    return states.get(name);
+  }
+
+  /** Changes a state both in the device document and in the response. */
+  void set(String name, Object value) {
+    updates.put("states." + name, value);
+    states.put(name, value);
+  }
+
+  /** Writes a field of the device document without reporting it, e.g. a nested state path. */
+  void write(String fieldPath, Object value) {
+    updates.put(fieldPath, value);
+  }
+
+  /** Reports a state in the response without writing it. */
+  void report(String name, Object value) {
+    states.put(name, value);
+  }
+
+  /** Marks the command as accepted but completing asynchronously. */
+  void setPending() {
+    pending = true;
+  }
+
+  boolean isPending() {
+    return pending;
+  }
+
+  Map<String, Object> getStates() {
+    return states;
+  }
+
+  Map<String, Object> getUpdates() {
+    return updates;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.google.api.core.ApiFuture;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Writes a stream of state updates for many users and devices, given as newline-delimited JSON
+ * objects of the form {@code {"userId": ..., "deviceId": ..., "states": {...}}}.
+ *
+ * <p>Updates are read one line at a time and written in batches, with a bounded number of batches
+ * in flight, so memory use does not grow with the size of the stream. A device is in at most one
+ * batch in flight, so its updates are written in the order they were sent.
+ */
+final class StateUpdateStream {
+  private static final int MAX_REPORTED_ERRORS = 100;
+
+  /** Merges states into stored devices, see {@link MyDataStore#mergeStates(Map)}. */
+  interface StateWriter {
+    ApiFuture<Void> mergeStates(Map<String, Map<String, Map<String, Object>>> statesByUser);
+  }
+
+  /** Receives the states that were written for a user. */
+  interface Listener {
+    void written(String userId, Map<String, Map<String, Object>> devices);
+  }
+
+  /** Updates that are written in one batch. Repeated updates of a device are merged. */
+  private static final class Batch {
+    final Map<String, Map<String, Map<String, Object>>> statesByUser = new LinkedHashMap<>();
+    int devices;
+    ApiFuture<Void> commit;
+
+    boolean contains(String userId, String deviceId) {
+      Map<String, Map<String, Object>> userDevices = statesByUser.get(userId);
+      return userDevices != null && userDevices.containsKey(deviceId);
+    }
+
+    void add(String userId, String deviceId, Map<String, Object> states) {
+      Map<String, Map<String, Object>> userDevices =
+          statesByUser.computeIfAbsent(userId, id -> new LinkedHashMap<>());
+      Map<String, Object> merged = userDevices.get(deviceId);
+      if (merged == null) {
+        userDevices.put(deviceId, new HashMap<>(states));
+        devices++;
+      } else {
+        merged.putAll(states);
+      }
+    }
+  }
+
+  /** The outcome of a stream. */
+  private static final class Summary {
+    long received;
+    long written;
+    long failed;
+    final JsonArray errors = new JsonArray();
+
+    void error(long line, String userId, String deviceId, String message) {
+      failed++;
+      if (errors.size() < MAX_REPORTED_ERRORS) {
+        JsonObject error = new JsonObject();
+        if (line > 0) {
+          error.addProperty("line", line);
+        }
+        error.addProperty("userId", userId);
+        error.addProperty("deviceId", deviceId);
+        error.addProperty("error", message);
+        errors.add(error);
+      }
+    }
+  }
+
+  private final int batchSize;
+  private final int maxInFlightBatches;
+  private final StateWriter writer;
+  private final Listener listener;
+
+  /**
+   * @param batchSize How many devices are written in one batch
+   * @param maxInFlightBatches How many batches may be written at once
+   * @param writer Writes the batches
+   * @param listener Told about every write that succeeded
+   */
+  StateUpdateStream(int batchSize, int maxInFlightBatches, StateWriter writer, Listener listener) {
+    this.batchSize = batchSize;
+    this.maxInFlightBatches = maxInFlightBatches;
+    this.writer = writer;
+    this.listener = listener;
+  }
+
+  /**
+   * Reads and writes every update of a stream.
+   *
+   * @return A summary with the number of updates received, devices written and updates failed, and
+   *     the first errors with their input line numbers
+   */
+  JsonObject write(BufferedReader reader) throws IOException, InterruptedException {
+    Summary summary = new Summary();
+    Deque<Batch> inFlight = new ArrayDeque<>();
+    Batch batch = new Batch();
+    Gson gson = new Gson();
+    long line = 0;
+    for (String text = reader.readLine(); text != null; text = reader.readLine()) {
+      line++;
+      if (text.trim().isEmpty()) {
+        continue;
+      }
+      summary.received++;
+      JsonElement element;
+      try {
+        element = JsonParser.parseString(text);
+      } catch (JsonParseException e) {
+        summary.error(line, null, null, "malformed JSON: " + e.getMessage());
+        continue;
+      }
+      JsonObject update = element.isJsonObject() ? element.getAsJsonObject() : null;
+      if (update == null
+          || !isString(update.get("userId"))
+          || !isString(update.get("deviceId"))
+          || !update.has("states")
+          || !update.get("states").isJsonObject()
+          || update.getAsJsonObject("states").size() == 0) {
+        summary.error(line, null, null, "expected userId, deviceId and non-empty states");
+        continue;
+      }
+      String userId = update.get("userId").getAsString();
+      String deviceId = update.get("deviceId").getAsString();
+      // Wait for an earlier write of this device, so a later batch cannot overtake it.
+      while (inFlight.stream().anyMatch(b -> b.contains(userId, deviceId))) {
+        complete(inFlight.poll(), summary);
+      }
+      batch.add(userId, deviceId, gson.fromJson(update.get("states"), Map.class));
+      if (batch.devices >= batchSize) {
+        batch.commit = writer.mergeStates(batch.statesByUser);
+        inFlight.add(batch);
+        batch = new Batch();
+        if (inFlight.size() >= maxInFlightBatches) {
+          complete(inFlight.poll(), summary);
+        }
+      }
+    }
+    if (batch.devices > 0) {
+      batch.commit = writer.mergeStates(batch.statesByUser);
+      inFlight.add(batch);
+    }
+    while (!inFlight.isEmpty()) {
+      complete(inFlight.poll(), summary);
+    }
+
+    JsonObject body = new JsonObject();
+    body.addProperty("received", summary.received);
+    body.addProperty("written", summary.written);
+    body.addProperty("failed", summary.failed);
+    body.add("errors", summary.errors);
+    return body;
+  }
+
+  /**
+   * Waits for a batch and reports the states it wrote. If the batch failed, which happens when any
+   * of its devices does not exist, its devices are written one by one to find the failing ones.
+   */
+  private void complete(Batch batch, Summary summary) throws InterruptedException {
+    boolean committed;
+    try {
+      batch.commit.get();
+      committed = true;
+    } catch (ExecutionException e) {
+      committed = false;
+    }
+    for (Map.Entry<String, Map<String, Map<String, Object>>> user : batch.statesByUser.entrySet()) {
+      String userId = user.getKey();
+      Map<String, Map<String, Object>> written = user.getValue();
+      if (!committed) {
+        Map<String, ApiFuture<Void>> singles = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> device : user.getValue().entrySet()) {
+          singles.put(
+              device.getKey(),
+              writer.mergeStates(
+                  Collections.singletonMap(
+                      userId, Collections.singletonMap(device.getKey(), device.getValue()))));
+        }
+        written = new LinkedHashMap<>();
+        for (Map.Entry<String, ApiFuture<Void>> single : singles.entrySet()) {
+          try {
+            single.getValue().get();
+            written.put(single.getKey(), user.getValue().get(single.getKey()));
+          } catch (ExecutionException e) {
+            summary.error(0, userId, single.getKey(), String.valueOf(e.getCause().getMessage()));
+          }
+        }
+      }
+      summary.written += written.size();
+      if (!written.isEmpty()) {
+        listener.written(userId, written);
+      }
+    }
+  }
+
+  private static boolean isString(JsonElement element) {
+    return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString();
+  }
+}
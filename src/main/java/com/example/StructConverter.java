@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+/**
+ * Converts Firestore and Gson trees into protobuf {@link Struct}s by walking them directly, instead
+ * of printing them with Gson and parsing the text back with {@code JsonFormat}.
+ *
+ * <p>Values map the same way they did through Gson's default output: numbers become doubles, lists
+ * and arrays become list values, and null map entries are left out while nulls inside lists are
+ * kept. Any other type, such as a Firestore {@code Timestamp} or {@code GeoPoint}, is converted
+ * from the tree Gson would have serialized it as.
+ */
+final class StructConverter {
+  private static final Gson GSON = new Gson();
+  private static final Value NULL_VALUE =
+      Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
+  private static final Value TRUE_VALUE = Value.newBuilder().setBoolValue(true).build();
+  private static final Value FALSE_VALUE = Value.newBuilder().setBoolValue(false).build();
+  private static final String COLOR = "color";
+  private static final String SPECTRUM_RGB = "spectrumRgb";
+
+  private StructConverter() {}
+
+  /** Converts a map of names to Firestore or Gson values, such as the attributes of a device. */
+  static Struct toStruct(Map<?, ?> map) {
+    Struct.Builder struct = Struct.newBuilder();
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      if (entry.getValue() != null) {
+        struct.putFields(String.valueOf(entry.getKey()), toValue(entry.getValue()));
+      }
+    }
+    return struct.build();
+  }
+
+  /**
+   * Converts the states of a device for a ReportState request, renaming the ColorSetting {@code
+   * spectrumRgb} state to the {@code spectrumRGB} name Home Graph expects. See
+   * https://developers.google.com/assistant/smarthome/traits/colorsetting#device-states
+   */
+  static Struct toDeviceStates(Map<?, ?> states) {
+    Struct.Builder struct = Struct.newBuilder();
+    for (Map.Entry<?, ?> entry : states.entrySet()) {
+      String name = String.valueOf(entry.getKey());
+      if (entry.getValue() == null) {
+        continue;
+      }
+      if (COLOR.equals(name) && entry.getValue() instanceof Map) {
+        Struct.Builder color = Struct.newBuilder();
+        for (Map.Entry<?, ?> colorEntry : ((Map<?, ?>) entry.getValue()).entrySet()) {
+          if (colorEntry.getValue() != null) {
+            color.putFields(colorStateName(colorEntry.getKey()), toValue(colorEntry.getValue()));
+          }
+        }
+        struct.putFields(name, Value.newBuilder().setStructValue(color).build());
+      } else {
+        struct.putFields(name, toValue(entry.getValue()));
+      }
+    }
+    return struct.build();
+  }
+
+  private static Struct toStruct(JsonObject object) {
+    Struct.Builder struct = Struct.newBuilder();
+    for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+      if (!entry.getValue().isJsonNull()) {
+        struct.putFields(entry.getKey(), toValue(entry.getValue()));
+      }
+    }
+    return struct.build();
+  }
+
+  private static Value toValue(Object value) {
+    if (value == null) {
+      return NULL_VALUE;
+    }
+    if (value instanceof String) {
+      return Value.newBuilder().setStringValue((String) value).build();
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? TRUE_VALUE : FALSE_VALUE;
+    }
+    if (value instanceof Number) {
+      return Value.newBuilder().setNumberValue(((Number) value).doubleValue()).build();
+    }
+    if (value instanceof Map) {
+      return Value.newBuilder().setStructValue(toStruct((Map<?, ?>) value)).build();
+    }
+    if (value instanceof List) {
+      // Like Gson, keep nulls inside lists so that positions do not shift.
+      ListValue.Builder list = ListValue.newBuilder();
+      for (Object item : (List<?>) value) {
+        list.addValues(toValue(item));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    }
+    if (value instanceof Object[]) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (Object item : (Object[]) value) {
+        list.addValues(toValue(item));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    }
+    if (value instanceof JsonElement) {
+      return toValue((JsonElement) value);
+    }
+    return toValue(GSON.toJsonTree(value));
+  }
+
+  private static Value toValue(JsonElement element) {
+    if (element == null || element.isJsonNull()) {
+      return NULL_VALUE;
+    }
+    if (element.isJsonObject()) {
+      return Value.newBuilder().setStructValue(toStruct(element.getAsJsonObject())).build();
+    }
+    if (element.isJsonArray()) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (JsonElement item : (JsonArray) element) {
+        list.addValues(toValue(item));
+      }
+      return Value.newBuilder().setListValue(list).build();
+    }
+    JsonPrimitive primitive = element.getAsJsonPrimitive();
+    if (primitive.isBoolean()) {
+      return primitive.getAsBoolean() ? TRUE_VALUE : FALSE_VALUE;
+    }
+    if (primitive.isNumber()) {
+      return Value.newBuilder().setNumberValue(primitive.getAsDouble()).build();
+    }
+    return Value.newBuilder().setStringValue(primitive.getAsString()).build();
+  }
+
+  private static String colorStateName(Object name) {
+    return SPECTRUM_RGB.equals(name) ? "spectrumRGB" : String.valueOf(name);
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.actions.api.smarthome.SyncResponse;
+
+/**
+ * Remembers the SYNC devices built for each user, tagged with the user's device-set version. There
+ * is one cache for the devices built by {@link MySmartHomeApp#onSync} and one for the device JSON
+ * assembled from stored SYNC fragments.
+ *
+ * <p>Every write that changes what SYNC returns bumps the {@code deviceSetVersion} field of the
+ * user document, so a cached entry is current as long as its version matches the stored one. An
+ * entry that was checked against Firestore within the configured staleness window is served without
+ * checking again; writes made through this instance invalidate it immediately.
+ */
+final class SyncCache<V> {
+  private static SyncCache<SyncResponse.Payload.Device[]> devicesInstance = create();
+  private static SyncCache<String> fragmentsInstance = create();
+
+  /** The devices built for one user at one device-set version. */
+  static final class CachedSync<V> {
+    final long version;
+    final V devices;
+    volatile long checkedAtNanos;
+
+    CachedSync(long version, V devices) {
+      this.version = version;
+      this.devices = devices;
+      this.checkedAtNanos = System.nanoTime();
+    }
+  }
+
+  private final long maxStalenessNanos;
+  private final Map<String, CachedSync<V>> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param maxSize The maximum number of users to remember
+   * @param maxStaleness How long an entry may be served without comparing versions again
+   * @param unit The unit of {@code maxStaleness}
+   */
+  SyncCache(int maxSize, long maxStaleness, TimeUnit unit) {
+    this.maxStalenessNanos = unit.toNanos(maxStaleness);
+    this.entries =
+        new LinkedHashMap<String, CachedSync<V>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedSync<V>> eldest) {
+            return size() > maxSize;
+          }
+        };
+  }
+
+  private static <V> SyncCache<V> create() {
+    return new SyncCache<>(
+        Config.getInt("SYNC_CACHE_SIZE", 10000),
+        Config.getLong("SYNC_CACHE_MAX_STALENESS_MS", 0),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Returns the cache of devices built by {@link MySmartHomeApp#onSync}. */
+  public static SyncCache<SyncResponse.Payload.Device[]> devices() {
+    return devicesInstance;
+  }
+
+  /** Returns the cache of device JSON arrays assembled from SYNC fragments. */
+  public static SyncCache<String> fragments() {
+    return fragmentsInstance;
+  }
+
+  /** Forgets everything cached for the user, after its device set changed. */
+  public static void invalidateUser(String userId) {
+    devicesInstance.invalidate(userId);
+    fragmentsInstance.invalidate(userId);
+  }
+
+  /** Returns the user's entry if it may be served without checking its version, or null. */
+  synchronized CachedSync<V> getFresh(String userId) {
+    CachedSync<V> entry = entries.get(userId);
+    if (entry != null && System.nanoTime() - entry.checkedAtNanos < maxStalenessNanos) {
+      hits.increment();
+      return entry;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the user's devices if they were built at the given version, or null if they must be
+   * rebuilt.
+   */
+  synchronized V get(String userId, long version) {
+    CachedSync<V> entry = entries.get(userId);
+    if (entry == null || entry.version != version) {
+      misses.increment();
+      return null;
+    }
+    entry.checkedAtNanos = System.nanoTime();
+    hits.increment();
+    return entry.devices;
+  }
+
+  synchronized void put(String userId, long version, V devices) {
+    CachedSync<V> entry = entries.get(userId);
+    if (entry == null || entry.version <= version) {
+      entries.put(userId, new CachedSync<>(version, devices));
+    }
+  }
+
+  synchronized void invalidate(String userId) {
+    entries.remove(userId);
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+}
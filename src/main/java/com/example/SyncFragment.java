@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Renders the SYNC response entry of a device as JSON, from the same device document fields that
+ * {@link MySmartHomeApp#onSync} reads. The rendered fragment is stored with the device so that a
+ * SYNC response can be assembled by concatenating fragments.
+ */
+final class SyncFragment {
+  static final String FIELD = "syncFragment";
+
+  private static final Gson GSON = new Gson();
+
+  private SyncFragment() {}
+
+  /**
+   * @param deviceId The device ID
+   * @param device The fields of the device document
+   * @return The device as it appears in the {@code payload.devices} array of a SYNC response
+   */
+  @SuppressWarnings("unchecked")
+  static String render(String deviceId, Map<String, Object> device) {
+    JsonObject fragment = new JsonObject();
+    fragment.addProperty("id", deviceId);
+    copy(device, "type", fragment);
+    copy(device, "traits", fragment);
+
+    JsonObject name = new JsonObject();
+    copy(device, "defaultNames", name);
+    copy(device, "name", name);
+    copy(device, "nicknames", name);
+    fragment.add("name", name);
+
+    copy(device, "willReportState", fragment);
+    copy(device, "roomHint", fragment);
+
+    JsonObject deviceInfo = new JsonObject();
+    copy(device, "manufacturer", deviceInfo);
+    copy(device, "model", deviceInfo);
+    copy(device, "hwVersion", deviceInfo);
+    copy(device, "swVersion", deviceInfo);
+    fragment.add("deviceInfo", deviceInfo);
+
+    copy(device, "attributes", fragment);
+    if (device.get("customData") != null) {
+      fragment.addProperty(
+          "customData", customData((Map<String, Object>) device.get("customData")));
+    }
+    copy(device, "otherDeviceIds", fragment);
+    return GSON.toJson(fragment);
+  }
+
+  /**
+   * Returns the {@code customData} of a device as {@link MySmartHomeApp#onSync} sends it: a string
+   * holding the JSON of the map, rather than a JSON object.
+   */
+  static String customData(Map<String, Object> customData) {
+    // TODO(proppy): remove once
+    // https://github.com/actions-on-google/actions-on-google-java/issues/43 is fixed.
+    return GSON.toJson(new HashMap<>(customData));
+  }
+
+  /** Joins fragments into the JSON array of a SYNC response's {@code payload.devices}. */
+  static String join(Collection<String> fragments) {
+    StringBuilder devices = new StringBuilder(2 + fragments.size() * 512);
+    devices.append('[');
+    for (String fragment : fragments) {
+      if (devices.length() > 1) {
+        devices.append(',');
+      }
+      devices.append(fragment);
+    }
+    return devices.append(']').toString();
+  }
+
+  /** Wraps a devices array into a complete SYNC response. */
+  static String response(String requestId, String agentUserId, String devicesJson) {
+    return "{\"requestId\":"
+        + GSON.toJson(requestId)
+        + ",\"payload\":{\"agentUserId\":"
+        + GSON.toJson(agentUserId)
+        + ",\"devices\":"
+        + devicesJson
+        + "}}";
+  }
+
+  private static void copy(Map<String, Object> device, String field, JsonObject target) {
+    Object value = device.get(field);
+    if (value != null) {
+      target.add(field, GSON.toJsonTree(value));
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds an in-memory Bloom filter of every token hash that can resolve to a user, so that unknown
+ * bearer tokens are rejected without a datastore read. The filter is rebuilt from scratch by {@link
+ * #rebuild()}; tokens issued in between are added as they are indexed. Until the first rebuild
+ * completes, every token is let through.
+ */
+final class TokenFilter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** Enumerates the hashes of every valid token. */
+  interface TokenSource {
+    void forEachTokenHash(Consumer<String> consumer) throws Exception;
+  }
+
+  private final TokenSource source;
+  private final double falsePositiveRate;
+  private volatile BloomFilter filter;
+  // Hashes added while a rebuild is scanning, replayed into the new filter before it is swapped in.
+  private final Set<String> recentlyAdded = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder passed = new LongAdder();
+  private final LongAdder falsePositives = new LongAdder();
+  private final LongAdder rebuilds = new LongAdder();
+  private volatile long lastRebuildMillis;
+  private volatile long lastSize;
+
+  /**
+   * @param source Where to enumerate valid token hashes from when rebuilding
+   * @param falsePositiveRate The target false positive rate
+   */
+  TokenFilter(TokenSource source, double falsePositiveRate) {
+    this.source = source;
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  /** Scans every valid token and atomically replaces the filter. */
+  void rebuild() {
+    long start = System.nanoTime();
+    recentlyAdded.clear();
+    List<String> hashes = new ArrayList<>();
+    try {
+      source.forEachTokenHash(hashes::add);
+    } catch (Exception e) {
+      LOGGER.error("failed to rebuild token filter, keeping the previous one", e);
+      return;
+    }
+    // Leave headroom so tokens issued before the next rebuild do not degrade the filter.
+    BloomFilter rebuilt = new BloomFilter(Math.max(hashes.size() * 2L, 1024), falsePositiveRate);
+    for (String hash : hashes) {
+      add(rebuilt, hash);
+    }
+    for (String hash : recentlyAdded) {
+      add(rebuilt, hash);
+    }
+    filter = rebuilt;
+    for (String hash : recentlyAdded) {
+      add(rebuilt, hash);
+    }
+    lastSize = hashes.size();
+    lastRebuildMillis = (System.nanoTime() - start) / 1_000_000;
+    rebuilds.increment();
+    LOGGER.info(
+        "rebuilt token filter with {} tokens in {} ms, {} bytes, expected false positive rate {}",
+        lastSize,
+        lastRebuildMillis,
+        rebuilt.sizeInBytes(),
+        rebuilt.expectedFalsePositiveRate());
+  }
+
+  /** Records a newly indexed token so it is accepted before the next rebuild. */
+  void add(String tokenHash) {
+    recentlyAdded.add(tokenHash);
+    BloomFilter current = filter;
+    if (current != null) {
+      add(current, tokenHash);
+    }
+  }
+
+  /**
+   * Returns false only if the token is definitely unknown. Also returns true while the filter has
+   * not been built yet.
+   */
+  boolean mightContain(String tokenHash) {
+    BloomFilter current = filter;
+    if (current == null || current.mightContain(hash(tokenHash, 0), hash(tokenHash, 16))) {
+      passed.increment();
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /** Records that a token passed the filter but did not resolve to any user. */
+  void recordFalsePositive() {
+    falsePositives.increment();
+  }
+
+  long getRejected() {
+    return rejected.sum();
+  }
+
+  long getRebuilds() {
+    return rebuilds.sum();
+  }
+
+  long getLastRebuildMillis() {
+    return lastRebuildMillis;
+  }
+
+  long getLastSize() {
+    return lastSize;
+  }
+
+  /** Returns the false positive rate implied by the fill ratio of the current filter. */
+  double getExpectedFalsePositiveRate() {
+    BloomFilter current = filter;
+    return current != null ? current.expectedFalsePositiveRate() : 0;
+  }
+
+  /** Returns the share of tokens that passed the filter but were unknown to the datastore. */
+  double getObservedFalsePositiveRate() {
+    long total = passed.sum();
+    return total > 0 ? (double) falsePositives.sum() / total : 0;
+  }
+
+  private static void add(BloomFilter filter, String tokenHash) {
+    filter.add(hash(tokenHash, 0), hash(tokenHash, 16));
+  }
+
+  // Token hashes are hex encoded SHA-256 digests, so any 64 bits of them are already uniform.
+  private static long hash(String tokenHash, int offset) {
+    return Long.parseUnsignedLong(tokenHash.substring(offset, offset + 16), 16);
+  }
+}
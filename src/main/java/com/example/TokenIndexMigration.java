@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+
+/**
+ * Backfills the {@code tokens/{tokenHash}} index from the {@code fakeAccessToken} field of every
+ * existing user document. Users are paged in document ID order so the migration can run online next
+ * to live traffic, and a marker document records completion so later instances skip it.
+ */
+final class TokenIndexMigration implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  private final Firestore database;
+  private final int batchSize;
+  private final Runnable onComplete;
+
+  /**
+   * @param database The Firestore instance holding the users and tokens collections
+   * @param batchSize The number of users read and written per batch, at most 500
+   * @param onComplete Invoked once every user has been indexed
+   */
+  TokenIndexMigration(Firestore database, int batchSize, Runnable onComplete) {
+    this.database = database;
+    this.batchSize = Math.min(batchSize, 500);
+    this.onComplete = onComplete;
+  }
+
+  @Override
+  public void run() {
+    DocumentReference marker = database.collection("meta").document("tokenIndexMigration");
+    try {
+      if (Boolean.TRUE.equals(marker.get().get().getBoolean("complete"))) {
+        onComplete.run();
+        return;
+      }
+      long indexed = 0;
+      QueryDocumentSnapshot last = null;
+      while (true) {
+        Query page =
+            database
+                .collection("users")
+                .select("fakeAccessToken")
+                .orderBy(FieldPath.documentId())
+                .limit(batchSize);
+        if (last != null) {
+          page = page.startAfter(last);
+        }
+        List<QueryDocumentSnapshot> users = page.get().get().getDocuments();
+        if (users.isEmpty()) {
+          break;
+        }
+        WriteBatch batch = database.batch();
+        for (QueryDocumentSnapshot user : users) {
+          String accessToken = user.getString("fakeAccessToken");
+          if (accessToken != null) {
+            batch.set(
+                database.collection("tokens").document(DeviceRepository.tokenHash(accessToken)),
+                Collections.singletonMap("userId", user.getId()));
+            indexed++;
+          }
+        }
+        batch.commit().get();
+        last = users.get(users.size() - 1);
+      }
+      marker.set(Collections.singletonMap("complete", true)).get();
+      LOGGER.info("token index migration complete, {} tokens indexed", indexed);
+      onComplete.run();
+    } catch (Exception e) {
+      LOGGER.error("token index migration failed, will retry on next startup", e);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Serves the most recent traces that {@link Tracing} kept, newest first, as JSON. Each trace is the
+ * list of its spans in the order they ended.
+ */
+@WebServlet(name = "traces", urlPatterns = "/traces")
+public class TracesServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    JsonArray traces = new JsonArray();
+    for (List<Tracing.Span> trace : Tracing.getInstance().getCollector().getTraces()) {
+      JsonArray spans = new JsonArray();
+      for (Tracing.Span span : trace) {
+        spans.add(span.toJson());
+      }
+      traces.add(spans);
+    }
+    JsonObject body = new JsonObject();
+    body.add("traces", traces);
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setContentType("application/json");
+    res.getWriter().write(body.toString());
+    res.getWriter().flush();
+  }
+}
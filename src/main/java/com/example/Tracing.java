@@ -0,0 +1,430 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Request-scoped tracing. A span times one piece of work, such as an intent, a data store operation
+ * or a Home Graph RPC, and a span started while another one is active on the thread becomes its
+ * child. The spans of one request form its trace.
+ *
+ * <p>The active span is kept in a thread local, so work handed to another thread must be wrapped
+ * with {@link #wrap(Runnable)} for its spans to stay in the trace.
+ *
+ * <p>Traces are sampled twice. When a trace starts, a fixed share of traces is picked for export
+ * (head sampling). Every trace records its spans in memory regardless, and when its root span ends
+ * the trace is also exported if any span failed or the root ran longer than the slow threshold
+ * (tail sampling); otherwise its spans are dropped. A trace records a bounded number of spans and
+ * exported traces are handed to a background thread through a bounded queue, so tracing never
+ * blocks a request and its memory stays bounded.
+ */
+final class Tracing {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+  private static final Span NOOP_SPAN = new Span(null, 0, 0, "");
+  private static Tracing ourInstance = fromConfig();
+
+  /** Receives the spans of every trace that is kept, on the exporter thread. */
+  interface Exporter {
+    void export(List<Span> spans) throws IOException;
+  }
+
+  /** Makes the previously active span active again when closed. */
+  interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final class Trace {
+    final Tracing tracing;
+    final long traceId;
+    final boolean sampled;
+    final ConcurrentLinkedQueue<Span> finished = new ConcurrentLinkedQueue<>();
+    final AtomicInteger spanCount = new AtomicInteger(1);
+    volatile boolean failed;
+
+    Trace(Tracing tracing, long traceId, boolean sampled) {
+      this.tracing = tracing;
+      this.traceId = traceId;
+      this.sampled = sampled;
+    }
+  }
+
+  /**
+   * A timed piece of work. A span is updated by the thread that started it and must be ended
+   * exactly once; spans that end after the root span of their trace are not exported.
+   */
+  static final class Span {
+    // Null for the span returned when tracing is off or a trace is full.
+    private final Trace trace;
+    private final long spanId;
+    private final long parentId;
+    private final String name;
+    private final long startMicros;
+    private final long startNanos;
+    private Map<String, String> attributes = Collections.emptyMap();
+    private long durationNanos;
+    private boolean error;
+    private boolean ended;
+
+    private Span(Trace trace, long spanId, long parentId, String name) {
+      this.trace = trace;
+      this.spanId = spanId;
+      this.parentId = parentId;
+      this.name = name;
+      this.startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+      this.startNanos = System.nanoTime();
+    }
+
+    /** Annotates the span, e.g. with the device an operation works on. */
+    Span setAttribute(String key, Object value) {
+      if (trace != null && !ended) {
+        if (attributes.isEmpty()) {
+          attributes = new LinkedHashMap<>();
+        }
+        attributes.put(key, String.valueOf(value));
+      }
+      return this;
+    }
+
+    /** Makes this span the parent of the spans started on this thread until the scope closes. */
+    Scope activate() {
+      Span previous = CURRENT.get();
+      CURRENT.set(this);
+      return () -> {
+        if (previous == null) {
+          CURRENT.remove();
+        } else {
+          CURRENT.set(previous);
+        }
+      };
+    }
+
+    /** Ends the span, marking it as failed if {@code failed} is true. */
+    void end(boolean failed) {
+      if (failed) {
+        error = true;
+      }
+      end();
+    }
+
+    void end() {
+      if (trace == null || ended) {
+        return;
+      }
+      ended = true;
+      durationNanos = System.nanoTime() - startNanos;
+      if (error) {
+        trace.failed = true;
+      }
+      trace.finished.add(this);
+      if (parentId == 0) {
+        trace.tracing.finish(trace, this);
+      }
+    }
+
+    String getTraceId() {
+      return trace == null ? "" : String.format("%016x", trace.traceId);
+    }
+
+    String getSpanId() {
+      return String.format("%016x", spanId);
+    }
+
+    /** Returns the ID of the parent span, or null for the root span of a trace. */
+    String getParentId() {
+      return parentId == 0 ? null : String.format("%016x", parentId);
+    }
+
+    String getName() {
+      return name;
+    }
+
+    long getDurationNanos() {
+      return durationNanos;
+    }
+
+    boolean isError() {
+      return error;
+    }
+
+    Map<String, String> getAttributes() {
+      return attributes;
+    }
+
+    /** Renders the span as a JSON object, with times in microseconds. */
+    JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("traceId", getTraceId());
+      json.addProperty("spanId", getSpanId());
+      if (parentId != 0) {
+        json.addProperty("parentSpanId", getParentId());
+      }
+      json.addProperty("name", name);
+      json.addProperty("startTimeUnixMicros", startMicros);
+      json.addProperty("durationMicros", TimeUnit.NANOSECONDS.toMicros(durationNanos));
+      json.addProperty("error", error);
+      if (!attributes.isEmpty()) {
+        JsonObject attributesJson = new JsonObject();
+        attributes.forEach(attributesJson::addProperty);
+        json.add("attributes", attributesJson);
+      }
+      return json;
+    }
+  }
+
+  /** Keeps the most recent kept traces in memory, for {@link TracesServlet}. */
+  static final class Collector implements Exporter {
+    private final int maxTraces;
+    private final Deque<List<Span>> traces = new ArrayDeque<>();
+
+    Collector(int maxTraces) {
+      this.maxTraces = maxTraces;
+    }
+
+    @Override
+    public synchronized void export(List<Span> spans) {
+      if (maxTraces <= 0) {
+        return;
+      }
+      if (traces.size() == maxTraces) {
+        traces.removeFirst();
+      }
+      traces.addLast(spans);
+    }
+
+    /** Returns the collected traces, most recent first. */
+    synchronized List<List<Span>> getTraces() {
+      List<List<Span>> recent = new ArrayList<>(traces);
+      Collections.reverse(recent);
+      return recent;
+    }
+  }
+
+  /** Appends every span of the kept traces to a file, one JSON object per line. */
+  static final class FileExporter implements Exporter {
+    private final Writer writer;
+
+    FileExporter(Path path) throws IOException {
+      writer =
+          Files.newBufferedWriter(
+              path,
+              StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.APPEND,
+              StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException {
+      for (Span span : spans) {
+        writer.write(span.toJson().toString());
+        writer.write('\n');
+      }
+      writer.flush();
+    }
+  }
+
+  private final boolean enabled;
+  private final double sampleRatio;
+  private final long slowNanos;
+  private final int maxSpansPerTrace;
+  private final BlockingQueue<List<Span>> exportQueue;
+  private final List<Exporter> exporters;
+  private final Collector collector;
+  private final LongAdder started = new LongAdder();
+  private final LongAdder exported = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param enabled Whether requests start traces at all
+   * @param sampleRatio The share of traces exported regardless of how they went, from 0 to 1
+   * @param slowMillis How long a trace must take to be exported when it was not sampled
+   * @param maxSpansPerTrace How many spans a trace records before further spans are ignored
+   * @param exportQueueSize How many kept traces may wait for export before new ones are dropped
+   * @param collector Receives every kept trace
+   * @param exporters Further exporters that receive every kept trace
+   */
+  Tracing(
+      boolean enabled,
+      double sampleRatio,
+      long slowMillis,
+      int maxSpansPerTrace,
+      int exportQueueSize,
+      Collector collector,
+      List<Exporter> exporters) {
+    this.enabled = enabled;
+    this.sampleRatio = sampleRatio;
+    this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    this.exportQueue = new ArrayBlockingQueue<>(Math.max(exportQueueSize, 1));
+    this.collector = collector;
+    this.exporters = new ArrayList<>();
+    this.exporters.add(collector);
+    this.exporters.addAll(exporters);
+    if (enabled) {
+      Thread exporter = new Thread(this::exportLoop, "trace-exporter");
+      exporter.setDaemon(true);
+      exporter.start();
+    }
+  }
+
+  private static Tracing fromConfig() {
+    List<Exporter> exporters = new ArrayList<>();
+    String file = Config.getString("TRACE_FILE", "");
+    if (!file.isEmpty()) {
+      try {
+        exporters.add(new FileExporter(Paths.get(file)));
+      } catch (IOException e) {
+        LOGGER.error("cannot open trace file {}: {}", file, e);
+      }
+    }
+    return new Tracing(
+        Config.getBoolean("TRACING_ENABLED", true),
+        Config.getInt("TRACE_SAMPLE_PERCENT", 1) / 100.0,
+        Config.getLong("TRACE_SLOW_MS", 500),
+        Config.getInt("TRACE_MAX_SPANS", 256),
+        Config.getInt("TRACE_EXPORT_QUEUE_SIZE", 1000),
+        new Collector(Config.getInt("TRACE_COLLECTOR_TRACES", 100)),
+        exporters);
+  }
+
+  public static Tracing getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Starts a span as a child of the span active on this thread, or as the root of a new trace. The
+   * span is not made active; call {@link Span#activate} for it to parent further spans.
+   */
+  Span startSpan(String name) {
+    Span parent = CURRENT.get();
+    if (parent != null) {
+      Trace trace = parent.trace;
+      if (trace == null || trace.spanCount.incrementAndGet() > maxSpansPerTrace) {
+        return NOOP_SPAN;
+      }
+      return new Span(trace, newId(), parent.spanId, name);
+    }
+    if (!enabled) {
+      return NOOP_SPAN;
+    }
+    started.increment();
+    Trace trace = new Trace(this, newId(), ThreadLocalRandom.current().nextDouble() < sampleRatio);
+    return new Span(trace, newId(), 0, name);
+  }
+
+  /**
+   * Returns a task that runs {@code task} with the span active on the calling thread, so that the
+   * spans it starts on another thread join the caller's trace.
+   */
+  static Runnable wrap(Runnable task) {
+    Span parent = CURRENT.get();
+    if (parent == null) {
+      return task;
+    }
+    return () -> {
+      try (Scope scope = parent.activate()) {
+        task.run();
+      }
+    };
+  }
+
+  Collector getCollector() {
+    return collector;
+  }
+
+  long getStarted() {
+    return started.sum();
+  }
+
+  long getExported() {
+    return exported.sum();
+  }
+
+  long getDiscarded() {
+    return discarded.sum();
+  }
+
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  private void finish(Trace trace, Span root) {
+    if (!trace.sampled && !trace.failed && root.durationNanos < slowNanos) {
+      discarded.increment();
+      return;
+    }
+    if (!exportQueue.offer(new ArrayList<>(trace.finished))) {
+      dropped.increment();
+    }
+  }
+
+  private void exportLoop() {
+    while (true) {
+      List<Span> spans;
+      try {
+        spans = exportQueue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (Exporter exporter : exporters) {
+        try {
+          exporter.export(spans);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.error("failed to export trace: {}", e);
+        }
+      }
+      exported.increment();
+    }
+  }
+
+  private static long newId() {
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0);
+    return id;
+  }
+}
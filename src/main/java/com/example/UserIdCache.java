@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, expiring cache of access token to agent user ID lookups. Entries are evicted in
+ * least-recently-used order once the cache is full, and are never served past their time to live.
+ *
+ * <p>The cache is local to the instance. {@link #invalidateUser} only clears this instance, so
+ * other instances may keep resolving a revoked token until their entry expires; the time to live
+ * bounds how long that lasts.
+ */
+final class UserIdCache {
+
+  private static final class CachedUserId {
+    final String userId;
+    final long expiresAtNanos;
+
+    CachedUserId(String userId, long expiresAtNanos) {
+      this.userId = userId;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  private final long ttlNanos;
+  private final Map<String, CachedUserId> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxSize The maximum number of tokens to remember
+   * @param ttl How long a lookup stays valid
+   * @param unit The unit of {@code ttl}
+   */
+  UserIdCache(int maxSize, long ttl, TimeUnit unit) {
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries =
+        new LinkedHashMap<String, CachedUserId>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedUserId> eldest) {
+            if (size() > maxSize) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /** Returns the cached user ID for the token, or null if it is unknown or expired. */
+  synchronized String get(String token) {
+    CachedUserId entry = entries.get(token);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+      entries.remove(token);
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.userId;
+  }
+
+  synchronized void put(String token, String userId) {
+    entries.put(token, new CachedUserId(userId, System.nanoTime() + ttlNanos));
+  }
+
+  /** Forgets every token that resolves to the given user. */
+  synchronized void invalidateUser(String userId) {
+    Iterator<CachedUserId> it = entries.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().userId.equals(userId)) {
+        it.remove();
+      }
+    }
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  long getEvictions() {
+    return evictions.sum();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class AccessTokensTest {
+  private static final String USER_ID = "test-user-id";
+  private static final String OLD_KEY = "k1:c2VjcmV0LW9uZQ==";
+  private static final String NEW_KEY = "k2:c2VjcmV0LXR3bw==";
+
+  @Test
+  void testIssueAndVerify() {
+    AccessTokens tokens = new AccessTokens(OLD_KEY);
+    String token = tokens.issue(USER_ID, 60);
+    assertEquals(USER_ID, tokens.verify(token));
+  }
+
+  @Test
+  void testLegacyTokenIsNotSigned() {
+    assertNull(new AccessTokens(OLD_KEY).verify("123access"));
+    assertNull(new AccessTokens("").verify("123access"));
+  }
+
+  @Test
+  void testRejectsTamperedToken() {
+    AccessTokens tokens = new AccessTokens(OLD_KEY);
+    String token = tokens.issue(USER_ID, 60);
+    String forged = new AccessTokens("k1:Zm9yZ2Vk").issue("someone-else", 60);
+    assertThrows(IllegalArgumentException.class, () -> tokens.verify(forged));
+    String truncated = token.substring(0, token.length() - 2);
+    assertThrows(IllegalArgumentException.class, () -> tokens.verify(truncated));
+  }
+
+  @Test
+  void testRejectsExpiredToken() {
+    AccessTokens tokens = new AccessTokens(OLD_KEY);
+    String token = tokens.issue(USER_ID, -1);
+    assertThrows(IllegalArgumentException.class, () -> tokens.verify(token));
+  }
+
+  @Test
+  void testKeyRotation() {
+    String oldToken = new AccessTokens(OLD_KEY).issue(USER_ID, 60);
+    AccessTokens rotated = new AccessTokens(NEW_KEY + "," + OLD_KEY);
+    assertEquals(USER_ID, rotated.verify(oldToken));
+    assertTrue(rotated.issue(USER_ID, 60).startsWith("st2.k2."));
+    AccessTokens retired = new AccessTokens(NEW_KEY);
+    assertThrows(IllegalArgumentException.class, () -> retired.verify(oldToken));
+  }
+
+  @Test
+  void testRevocation() {
+    AccessTokens tokens = new AccessTokens(OLD_KEY);
+    String revoked = tokens.issue(USER_ID, 60);
+    String other = tokens.issue("other-user", 60);
+    tokens.revoke(USER_ID);
+    assertThrows(IllegalArgumentException.class, () -> tokens.verify(revoked));
+    assertEquals("other-user", tokens.verify(other));
+    assertEquals(USER_ID, tokens.verify(tokens.issue(USER_ID, 60)));
+  }
+
+  @Test
+  void testRejectsLifetimeAboveMaximum() {
+    AccessTokens tokens = new AccessTokens(OLD_KEY, 60);
+    assertThrows(IllegalArgumentException.class, () -> tokens.issue(USER_ID, 61));
+    assertEquals(USER_ID, tokens.verify(tokens.issue(USER_ID, 60)));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class BloomFilterTest {
+  private static final int INSERTIONS = 10000;
+
+  @Test
+  void testNoFalseNegatives() {
+    BloomFilter filter = new BloomFilter(INSERTIONS, 0.001);
+    Random random = new Random(1);
+    long[] hashes = new long[2 * INSERTIONS];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = random.nextLong();
+    }
+    for (int i = 0; i < hashes.length; i += 2) {
+      filter.add(hashes[i], hashes[i + 1]);
+    }
+    for (int i = 0; i < hashes.length; i += 2) {
+      assertTrue(filter.mightContain(hashes[i], hashes[i + 1]));
+    }
+  }
+
+  @Test
+  void testFalsePositiveRateMatchesConfiguration() {
+    for (double fpp : new double[] {0.1, 0.01, 0.001}) {
+      BloomFilter filter = new BloomFilter(INSERTIONS, fpp);
+      Random random = new Random(2);
+      for (int i = 0; i < INSERTIONS; i++) {
+        filter.add(random.nextLong(), random.nextLong());
+      }
+      int probes = 100 * INSERTIONS;
+      int falsePositives = 0;
+      for (int i = 0; i < probes; i++) {
+        if (filter.mightContain(random.nextLong(), random.nextLong())) {
+          falsePositives++;
+        }
+      }
+      double rate = (double) falsePositives / probes;
+      assertTrue(rate < fpp * 1.5, "false positive rate " + rate + " for " + fpp);
+      double expected = filter.expectedFalsePositiveRate();
+      assertTrue(
+          expected > fpp / 2 && expected < fpp * 1.5, "expected " + expected + " for " + fpp);
+    }
+  }
+
+  @Test
+  void testEmptyFilterContainsNothing() {
+    BloomFilter filter = new BloomFilter(INSERTIONS, 0.01);
+    Random random = new Random(3);
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(filter.mightContain(random.nextLong(), random.nextLong()));
+    }
+    assertEquals(0.0, filter.expectedFalsePositiveRate());
+  }
+
+  @Test
+  void testSizeFollowsTheConfiguredRate() {
+    // About 9.6 bits per insertion for a 1% rate, and 14.4 bits for 0.1%.
+    long onePercent = new BloomFilter(INSERTIONS, 0.01).sizeInBytes();
+    long tenthPercent = new BloomFilter(INSERTIONS, 0.001).sizeInBytes();
+    assertTrue(onePercent >= INSERTIONS * 9.5 / 8 && onePercent <= INSERTIONS * 10.0 / 8);
+    assertTrue(tenthPercent > onePercent);
+  }
+}
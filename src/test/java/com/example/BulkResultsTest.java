@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+class BulkResultsTest {
+
+  @Test
+  void testResults() {
+    JsonObject success = BulkResults.result("lamp", null);
+    assertEquals("lamp", success.get("deviceId").getAsString());
+    assertEquals("SUCCESS", success.get("status").getAsString());
+    assertFalse(success.has("error"));
+
+    JsonObject error = BulkResults.result("fan", "NOT_FOUND");
+    assertEquals("ERROR", error.get("status").getAsString());
+    assertEquals("NOT_FOUND", error.get("error").getAsString());
+  }
+
+  @Test
+  void testFindsDuplicateDevices() {
+    assertNull(BulkResults.firstDuplicate(Arrays.asList("a", "b", "c")));
+    assertEquals("b", BulkResults.firstDuplicate(Arrays.asList("a", "b", "c", "b")));
+    assertNull(BulkResults.firstDuplicate(Arrays.asList("a", null)));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class CommandHandlersTest {
+
+  private static StateDiff execute(
+      String command, Map<String, Object> storedStates, Map<String, Object> params)
+      throws Exception {
+    Map<String, Object> device = new HashMap<>();
+    device.put("states", storedStates);
+    StateDiff diff = new StateDiff(new HashMap<>(storedStates), new HashMap<>());
+    CommandHandlers.get("action.devices.commands." + command).execute(device, params, diff);
+    return diff;
+  }
+
+  @Test
+  void testWritesAndReportsStates() throws Exception {
+    StateDiff diff =
+        execute(
+            "OnOff", Collections.singletonMap("on", false), Collections.singletonMap("on", true));
+    assertEquals(Collections.singletonMap("states.on", true), diff.getUpdates());
+    assertEquals(true, diff.getStates().get("on"));
+    assertFalse(diff.isPending());
+
+    Map<String, Object> timer = Collections.singletonMap("timerRemainingSec", 30);
+    diff = execute("TimerCancel", timer, Collections.emptyMap());
+    assertEquals(-1, diff.getUpdates().get("states.timerRemainingSec"));
+    assertEquals(0, diff.getStates().get("timerRemainingSec"));
+  }
+
+  @Test
+  void testAcceptsStoredAndParsedNumbers() throws Exception {
+    // Firestore returns whole numbers as Long, and Gson parses request params as Double.
+    StateDiff diff =
+        execute(
+            "TimerAdjust",
+            Collections.singletonMap("timerRemainingSec", 30L),
+            Collections.singletonMap("timerTimeSec", 15.0));
+    assertEquals(45, diff.getStates().get("timerRemainingSec"));
+
+    diff =
+        execute(
+            "setVolume",
+            Collections.singletonMap("currentVolume", 10L),
+            Collections.singletonMap("volumeLevel", 25.0));
+    assertEquals(25, diff.getStates().get("currentVolume"));
+  }
+
+  @Test
+  void testGuestNetworkPasswordOnlyReports() throws Exception {
+    StateDiff diff =
+        execute(
+            "GetGuestNetworkPassword",
+            Collections.singletonMap("on", true),
+            Collections.emptyMap());
+    assertTrue(diff.getUpdates().isEmpty());
+    assertEquals("wifi-password-123", diff.getStates().get("guestNetworkPassword"));
+    assertEquals(true, diff.getStates().get("on"));
+  }
+
+  @Test
+  void testCookWritesTheExecutedDevice() throws Exception {
+    // Before the handler registry, Cook wrote its states to a document literally named
+    // "deviceId". Its writes now go to the executed device, like every other command.
+    Map<String, Object> params = new HashMap<>();
+    params.put("start", true);
+    params.put("cookingMode", "BAKE");
+    StateDiff diff = execute("Cook", new HashMap<>(), params);
+    assertEquals("BAKE", diff.getUpdates().get("states.currentCookingMode"));
+    assertEquals("NONE", diff.getUpdates().get("states.currentFoodPreset"));
+    assertEquals("BAKE", diff.getStates().get("currentCookingMode"));
+  }
+
+  @Test
+  void testGetGuestNetworkPasswordLeavesOnUnchanged() throws Exception {
+    // Before the handler registry, this case fell through into OnOff and wrote on = params.on,
+    // which is null for this command. It now only reports the password.
+    StateDiff diff =
+        execute("GetGuestNetworkPassword", Collections.singletonMap("on", true), new HashMap<>());
+    assertFalse(diff.getUpdates().containsKey("states.on"));
+    assertEquals(true, diff.getStates().get("on"));
+    assertEquals("wifi-password-123", diff.getStates().get("guestNetworkPassword"));
+  }
+
+  @Test
+  void testRegisterReplacesHandler() throws Exception {
+    String command = "action.devices.commands.TestOnly";
+    assertNull(CommandHandlers.get(command));
+    CommandHandlers.register(command, (device, params, diff) -> diff.setPending());
+    StateDiff diff = new StateDiff(new HashMap<>(), new HashMap<>());
+    CommandHandlers.get(command).execute(Collections.emptyMap(), Collections.emptyMap(), diff);
+    assertTrue(diff.isPending());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.gson.Gson;
+
+class ExecutionEngineTest {
+  private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+  @AfterEach
+  void tearDown() {
+    pool.shutdownNow();
+  }
+
+  /** Builds a command that runs {@code command} on the given devices. */
+  private static ExecuteRequest.Inputs.Payload.Commands command(
+      String command, String... deviceIds) {
+    StringBuilder devices = new StringBuilder();
+    for (String deviceId : deviceIds) {
+      devices.append(devices.length() > 0 ? "," : "").append("{\"id\":\"" + deviceId + "\"}");
+    }
+    return new Gson()
+        .fromJson(
+            "{\"devices\":["
+                + devices
+                + "],\"execution\":[{\"command\":\""
+                + command
+                + "\",\"params\":{}}]}",
+            ExecuteRequest.Inputs.Payload.Commands.class);
+  }
+
+  @Test
+  void testResultsFollowRequestOrder() {
+    ExecutionEngine engine = new ExecutionEngine(pool, 4);
+    List<ExecutionEngine.Result> results =
+        engine.execute(
+            new ExecuteRequest.Inputs.Payload.Commands[] {
+              command("OnOff", "slow", "medium"), command("OnOff", "fast")
+            },
+            (deviceId, execution) -> {
+              // The first device finishes last.
+              Thread.sleep(deviceId.equals("slow") ? 200 : deviceId.equals("medium") ? 100 : 0);
+              return Collections.singletonMap("deviceId", deviceId);
+            });
+
+    assertEquals(3, results.size());
+    String[] expected = {"slow", "medium", "fast"};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], results.get(i).deviceId);
+      assertEquals(expected[i], results.get(i).states.get("deviceId"));
+      assertNull(results.get(i).error);
+    }
+  }
+
+  @Test
+  void testRunsCommandsOfOneDeviceSerially() {
+    ExecutionEngine engine = new ExecutionEngine(pool, 4);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    List<ExecutionEngine.Result> results =
+        engine.execute(
+            new ExecuteRequest.Inputs.Payload.Commands[] {
+              command("OnOff", "lamp"),
+              command("BrightnessAbsolute", "lamp"),
+              command("ColorAbsolute", "lamp")
+            },
+            (deviceId, execution) -> {
+              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+              Thread.sleep(20);
+              executed.add(execution.command);
+              running.decrementAndGet();
+              return Collections.emptyMap();
+            });
+
+    assertEquals(1, maxRunning.get());
+    assertEquals(Arrays.asList("OnOff", "BrightnessAbsolute", "ColorAbsolute"), executed);
+    assertEquals(3, results.size());
+  }
+
+  @Test
+  void testRunsDevicesInParallel() {
+    ExecutionEngine engine = new ExecutionEngine(pool, 4);
+    // Every execution waits for all four to start, which only happens if they run at once.
+    CountDownLatch started = new CountDownLatch(4);
+    List<ExecutionEngine.Result> results =
+        engine.execute(
+            new ExecuteRequest.Inputs.Payload.Commands[] {command("OnOff", "a", "b", "c", "d")},
+            (deviceId, execution) -> {
+              started.countDown();
+              if (!started.await(5, TimeUnit.SECONDS)) {
+                throw new Exception("deviceTurnedOff");
+              }
+              return Collections.emptyMap();
+            });
+
+    for (ExecutionEngine.Result result : results) {
+      assertNull(result.error);
+    }
+  }
+
+  @Test
+  void testReportsTransientErrorWhenInterrupted() {
+    ExecutionEngine engine = new ExecutionEngine(pool, 4);
+    AtomicInteger executions = new AtomicInteger();
+    Thread.currentThread().interrupt();
+    List<ExecutionEngine.Result> results =
+        engine.execute(
+            new ExecuteRequest.Inputs.Payload.Commands[] {command("OnOff", "a", "b")},
+            (deviceId, execution) -> {
+              executions.incrementAndGet();
+              return Collections.emptyMap();
+            });
+
+    // The interrupt is kept for the caller.
+    assertTrue(Thread.interrupted());
+    assertEquals(0, executions.get());
+    assertEquals(2, results.size());
+    for (ExecutionEngine.Result result : results) {
+      assertEquals("transientError", result.error.getMessage());
+    }
+  }
+
+  @Test
+  void testCapturesDeviceErrors() {
+    ExecutionEngine engine = new ExecutionEngine(pool, 4);
+    List<ExecutionEngine.Result> results =
+        engine.execute(
+            new ExecuteRequest.Inputs.Payload.Commands[] {command("OnOff", "ok", "offline")},
+            (deviceId, execution) -> {
+              if (deviceId.equals("offline")) {
+                throw new Exception("deviceOffline");
+              }
+              return Collections.singletonMap("on", true);
+            });
+
+    assertEquals(Collections.singletonMap("on", true), results.get(0).states);
+    assertEquals("deviceOffline", results.get(1).error.getMessage());
+  }
+}
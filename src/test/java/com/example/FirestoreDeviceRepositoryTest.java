@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+
+class FirestoreDeviceRepositoryTest {
+
+  private static ApiFuture<?> failed(String message) {
+    return ApiFutures.immediateFailedFuture(new Exception(message));
+  }
+
+  @Test
+  void testMapsFailedChunksToTheirDevices() throws InterruptedException {
+    List<String> chunks = new ArrayList<>();
+    AtomicInteger bumps = new AtomicInteger();
+    List<String> errors =
+        FirestoreDeviceRepository.commitInChunks(
+            5,
+            2,
+            (start, end) -> {
+              chunks.add(start + "-" + end);
+              return start == 2 ? failed("ABORTED") : ApiFutures.immediateFuture(null);
+            },
+            () -> {
+              bumps.incrementAndGet();
+              return ApiFutures.immediateFuture(null);
+            });
+
+    assertEquals(Arrays.asList("0-2", "2-4", "4-5"), chunks);
+    assertEquals(Arrays.asList(null, null, "ABORTED", "ABORTED", null), errors);
+    assertEquals(1, bumps.get());
+  }
+
+  @Test
+  void testSkipsTheVersionBumpWhenNothingWasWritten() throws InterruptedException {
+    AtomicInteger bumps = new AtomicInteger();
+    List<String> errors =
+        FirestoreDeviceRepository.commitInChunks(
+            3,
+            2,
+            (start, end) -> failed("UNAVAILABLE"),
+            () -> {
+              bumps.incrementAndGet();
+              return ApiFutures.immediateFuture(null);
+            });
+
+    assertEquals(Arrays.asList("UNAVAILABLE", "UNAVAILABLE", "UNAVAILABLE"), errors);
+    assertEquals(0, bumps.get());
+  }
+
+  @Test
+  void testReportsAFailedVersionBumpForWrittenDevices() throws InterruptedException {
+    List<String> errors =
+        FirestoreDeviceRepository.commitInChunks(
+            3,
+            2,
+            (start, end) -> start == 0 ? ApiFutures.immediateFuture(null) : failed("ABORTED"),
+            () -> failed("DEADLINE_EXCEEDED"));
+
+    assertEquals(Arrays.asList("DEADLINE_EXCEEDED", "DEADLINE_EXCEEDED", "ABORTED"), errors);
+  }
+
+  @Test
+  void testRetriesFailedDeletes() throws InterruptedException {
+    List<List<String>> calls = new ArrayList<>();
+    FirestoreDeviceRepository.deleteAll(
+        Arrays.asList("a", "b", "c"),
+        3,
+        deviceIds -> {
+          calls.add(deviceIds);
+          List<String> errors = new ArrayList<>();
+          for (String deviceId : deviceIds) {
+            errors.add(calls.size() == 1 && !deviceId.equals("a") ? "ABORTED" : null);
+          }
+          return errors;
+        });
+
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("b", "c")), calls);
+  }
+
+  @Test
+  void testFailsWhenDevicesCannotBeDeleted() {
+    AtomicInteger attempts = new AtomicInteger();
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            FirestoreDeviceRepository.deleteAll(
+                Arrays.asList("a", "b"),
+                2,
+                deviceIds -> {
+                  attempts.incrementAndGet();
+                  return Collections.nCopies(deviceIds.size(), "UNAVAILABLE");
+                }));
+    assertEquals(2, attempts.get());
+  }
+}
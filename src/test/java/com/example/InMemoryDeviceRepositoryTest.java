@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class InMemoryDeviceRepositoryTest {
+
+  private static Map<String, Object> device(String deviceId, boolean on) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", on);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("name", deviceId);
+    device.put("states", states);
+    return device;
+  }
+
+  @Test
+  void testDevicesAndVersions() throws Exception {
+    InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+    repository.addDevice("user", "b", device("b", false));
+    repository.addDevices("user", Arrays.asList(device("a", false), device("c", true)));
+    assertEquals(2, repository.getDeviceSetVersion("user"));
+    assertEquals(
+        Arrays.asList("a", "b", "c"),
+        Arrays.asList(repository.getDevices("user").keySet().toArray()));
+
+    // Reads are copies, so changing them does not change the store.
+    repository.getState("user", "a").put("on", true);
+    assertEquals(false, repository.getState("user", "a").get("on"));
+
+    repository.mergeStates("user", "a", Collections.singletonMap("brightness", 30)).get();
+    assertEquals(30, repository.getState("user", "a").get("brightness"));
+    assertEquals(false, repository.getState("user", "a").get("on"));
+
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("name", "renamed");
+    fields.put("nickname", null);
+    repository.updateDevice("user", "a", fields, true);
+    assertEquals("renamed", repository.getDevices("user").get("a").get("name"));
+    assertEquals(3, repository.getDeviceSetVersion("user"));
+
+    repository.deleteDevices("user", Arrays.asList("a", "b"));
+    assertEquals(Collections.singleton("c"), repository.getDevices("user").keySet());
+  }
+
+  @Test
+  void testMergeFailsForUnknownDevice() {
+    InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+    repository.addDevice("user", "a", device("a", false));
+    Map<String, Map<String, Object>> devices = new HashMap<>();
+    devices.put("a", Collections.singletonMap("on", true));
+    devices.put("missing", Collections.singletonMap("on", true));
+    assertThrows(
+        ExecutionException.class,
+        () -> repository.mergeStates(Collections.singletonMap("user", devices)).get());
+    assertEquals(false, repository.getState("user", "a").get("on"));
+  }
+
+  @Test
+  void testTransactWritesNestedFields() throws Exception {
+    InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+    repository.addDevice("user", "a", device("a", false));
+    String result =
+        repository.transact(
+            "user",
+            "a",
+            (device, updates) -> {
+              assertNotNull(device);
+              updates.put("states.on", true);
+              updates.put("states.color.spectrumRgb", 255);
+              return "done";
+            });
+    assertEquals("done", result);
+    Map<String, Object> states = repository.getState("user", "a");
+    assertEquals(true, states.get("on"));
+    assertEquals(Collections.singletonMap("spectrumRgb", 255), states.get("color"));
+    assertNull(repository.transact("user", "missing", (device, updates) -> device));
+  }
+
+  @Test
+  void testTokens() {
+    InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+    repository.setUser("user", Collections.singletonMap("fakeAccessToken", "token"));
+    assertEquals("user", repository.findUserIdByAccessToken("token"));
+    assertNull(repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    repository.migrateTokenIndex(() -> {});
+    assertEquals("user", repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    repository.putTokenHash(DeviceRepository.tokenHash("other"), "other-user");
+    repository.deleteTokenHashes("user");
+    assertNull(repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    assertEquals(
+        "other-user", repository.getUserIdByTokenHash(DeviceRepository.tokenHash("other")));
+    repository.deleteUser("user");
+    assertNull(repository.findUserIdByAccessToken("token"));
+  }
+}
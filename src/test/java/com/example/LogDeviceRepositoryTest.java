@@ -0,0 +1,208 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogDeviceRepositoryTest {
+  @TempDir Path dir;
+
+  private static Map<String, Object> device(String deviceId, boolean on) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", on);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("name", deviceId);
+    device.put("states", states);
+    return device;
+  }
+
+  private LogDeviceRepository open() throws IOException {
+    return new LogDeviceRepository(new SegmentLog(dir, 4096, 16));
+  }
+
+  @Test
+  void testKeepsDevicesAcrossReopen() throws Exception {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    LogDeviceRepository repository = new LogDeviceRepository(log);
+    repository.setUser("user", Collections.singletonMap("fakeAccessToken", "token"));
+    repository.addDevices("user", Arrays.asList(device("b", false), device("a", false)));
+    repository.addDevice("user", "c", device("c", true));
+    repository.mergeStates("user", "a", Collections.singletonMap("brightness", 30)).get();
+    repository.transact(
+        "user",
+        "b",
+        (device, updates) -> {
+          updates.put("states.on", true);
+          updates.put("states.temperatureSetpointCelsius", 21.5);
+          return null;
+        });
+    repository.deleteDevice("user", "c");
+    log.close();
+
+    LogDeviceRepository reopened = open();
+    assertEquals("user", reopened.findUserIdByAccessToken("token"));
+    assertEquals(3, reopened.getDeviceSetVersion("user"));
+    assertEquals(
+        Arrays.asList("a", "b"), Arrays.asList(reopened.getDevices("user").keySet().toArray()));
+    // Numbers read back the way Firestore returns them.
+    assertEquals(30L, reopened.getState("user", "a").get("brightness"));
+    assertEquals(true, reopened.getState("user", "b").get("on"));
+    assertEquals(21.5, reopened.getState("user", "b").get("temperatureSetpointCelsius"));
+  }
+
+  @Test
+  void testUpdatesAndVersions() throws Exception {
+    LogDeviceRepository repository = open();
+    repository.addDevice("user", "a", device("a", false));
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("name", "renamed");
+    fields.put("states.on", null);
+    repository.updateDevice("user", "a", fields, true);
+    Map<String, Object> device = repository.getDevices("user").get("a");
+    assertEquals("renamed", device.get("name"));
+    assertFalse(((Map<String, Object>) device.get("states")).containsKey("on"));
+    assertEquals(2, repository.getDeviceSetVersion("user"));
+
+    // Replacing the user document keeps the version increasing.
+    repository.setUser("user", Collections.singletonMap("fakeAccessToken", "other"));
+    assertEquals(2, repository.getDeviceSetVersion("user"));
+    assertNull(repository.findUserIdByAccessToken("token"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> repository.updateDevice("user", "missing", fields, false));
+  }
+
+  @Test
+  void testMergeFailsForUnknownDevice() throws IOException {
+    LogDeviceRepository repository = open();
+    repository.addDevice("user", "a", device("a", false));
+    Map<String, Map<String, Object>> devices = new HashMap<>();
+    devices.put("a", Collections.singletonMap("on", true));
+    devices.put("missing", Collections.singletonMap("on", true));
+    assertThrows(
+        ExecutionException.class,
+        () -> repository.mergeStates(Collections.singletonMap("user", devices)).get());
+    assertEquals(false, repository.getState("user", "a").get("on"));
+  }
+
+  @Test
+  void testDeleteUser() throws IOException {
+    LogDeviceRepository repository = open();
+    repository.setUser("user", Collections.singletonMap("fakeAccessToken", "token"));
+    repository.addDevice("user", "a", device("a", false));
+    repository.migrateTokenIndex(() -> {});
+    assertEquals("user", repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    repository.putTokenHash(DeviceRepository.tokenHash("other"), "other-user");
+    repository.deleteTokenHashes("user");
+    assertNull(repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    assertEquals(
+        "other-user", repository.getUserIdByTokenHash(DeviceRepository.tokenHash("other")));
+    repository.deleteUser("user");
+    assertNull(repository.findUserIdByAccessToken("token"));
+    assertTrue(repository.getDevices("user").isEmpty());
+    assertEquals(0, repository.getDeviceSetVersion("user"));
+  }
+
+  @Test
+  void testMigratesTheTokenIndexOnce() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    LogDeviceRepository repository = new LogDeviceRepository(log);
+    repository.setUser("user", Collections.singletonMap("fakeAccessToken", "token"));
+    int[] completed = {0};
+    repository.migrateTokenIndex(() -> completed[0]++);
+    assertEquals("user", repository.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    log.close();
+
+    // Once the store is marked as migrated, users are no longer scanned.
+    LogDeviceRepository reopened = open();
+    reopened.deleteTokenHashes("user");
+    reopened.migrateTokenIndex(() -> completed[0]++);
+    assertNull(reopened.getUserIdByTokenHash(DeviceRepository.tokenHash("token")));
+    assertEquals(2, completed[0]);
+  }
+
+  @Test
+  void testTracksTokenHashesPerUser() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    LogDeviceRepository repository = new LogDeviceRepository(log);
+    repository.putTokenHash("a1", "a");
+    repository.putTokenHash("a2", "a");
+    repository.putTokenHash("b1", "b");
+    // Moving a token to another user takes it out of the first user's entries.
+    repository.putTokenHash("a2", "b");
+    log.close();
+
+    LogDeviceRepository reopened = open();
+    List<String> tokenHashes = new ArrayList<>();
+    reopened.forEachTokenHash(tokenHashes::add);
+    Collections.sort(tokenHashes);
+    assertEquals(Arrays.asList("a1", "a2", "b1"), tokenHashes);
+    reopened.deleteTokenHashes("a");
+    assertNull(reopened.getUserIdByTokenHash("a1"));
+    assertEquals("b", reopened.getUserIdByTokenHash("a2"));
+    reopened.deleteTokenHashes("b");
+    assertNull(reopened.getUserIdByTokenHash("a2"));
+    assertNull(reopened.getUserIdByTokenHash("b1"));
+  }
+
+  @Test
+  void testTransactionsOnOneDeviceAreAtomic() throws Exception {
+    LogDeviceRepository repository = open();
+    repository.addDevice("user", "a", device("a", false));
+    repository.addDevice("user", "b", device("b", false));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      String deviceId = i % 2 == 0 ? "a" : "b";
+      futures.add(
+          executor.submit(
+              () ->
+                  repository.transact(
+                      "user",
+                      deviceId,
+                      (device, updates) -> {
+                        Object count = device.get("count");
+                        updates.put("count", count == null ? 1L : (long) count + 1);
+                        return null;
+                      })));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertEquals(100L, repository.getDevices("user").get("a").get("count"));
+    assertEquals(100L, repository.getDevices("user").get("b").get("count"));
+  }
+}
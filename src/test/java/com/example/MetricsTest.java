@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+  @Test
+  void testRendersCountersWithLabels() {
+    Metrics metrics = new Metrics();
+    metrics.counter("test_requests_total", "Requests.", "intent", "SYNC").add(3);
+    metrics.counter("test_requests_total", "Requests.", "intent", "SYNC").increment();
+    metrics.counter("test_requests_total", "Requests.", "path", "a\"b\\c\nd").increment();
+
+    String text = metrics.scrape();
+    assertTrue(text.contains("# HELP test_requests_total Requests.\n"));
+    assertTrue(text.contains("# TYPE test_requests_total counter\n"));
+    assertTrue(text.contains("test_requests_total{intent=\"SYNC\"} 4\n"));
+    assertTrue(text.contains("test_requests_total{path=\"a\\\"b\\\\c\\nd\"} 1\n"));
+  }
+
+  @Test
+  void testHistogramBucketsAreCumulative() {
+    Metrics metrics = new Metrics();
+    Metrics.Timer timer = metrics.timer("test_rpc", "test RPCs", "rpc", "get");
+    Metrics.Histogram histogram =
+        metrics.histogram("test_rpc_duration_seconds", "Latency of test RPCs.", "rpc", "get");
+    histogram.observeNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.observeNanos(TimeUnit.SECONDS.toNanos(20));
+    timer.record(System.nanoTime(), true);
+    assertEquals(4, histogram.getCount());
+
+    String text = metrics.scrape();
+    assertTrue(text.contains("test_rpc_duration_seconds_bucket{rpc=\"get\",le=\"1.0E-4\"} "));
+    assertTrue(text.contains("test_rpc_duration_seconds_bucket{rpc=\"get\",le=\"0.0025\"} "));
+    assertTrue(text.contains("test_rpc_duration_seconds_bucket{rpc=\"get\",le=\"0.005\"} 3\n"));
+    assertTrue(text.contains("test_rpc_duration_seconds_bucket{rpc=\"get\",le=\"10.0\"} 3\n"));
+    assertTrue(text.contains("test_rpc_duration_seconds_bucket{rpc=\"get\",le=\"+Inf\"} 4\n"));
+    assertTrue(text.contains("test_rpc_duration_seconds_count{rpc=\"get\"} 4\n"));
+    assertTrue(text.contains("test_rpc_errors_total{rpc=\"get\"} 1\n"));
+  }
+
+  @Test
+  void testFunctionsAreReadAtScrapeTime() {
+    Metrics metrics = new Metrics();
+    long[] value = {1};
+    metrics.gauge("test_pending", "Pending work.", () -> value[0]);
+    assertTrue(metrics.scrape().contains("test_pending 1\n"));
+    value[0] = 7;
+    assertTrue(metrics.scrape().contains("test_pending 7\n"));
+    assertTrue(metrics.scrape().contains("# TYPE jvm_threads gauge\n"));
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboxTest {
+  private static final String USER_ID = "test-user-id";
+
+  @TempDir Path dir;
+
+  @Test
+  void testRecoversUnackedEntries() throws IOException {
+    Outbox outbox = new Outbox(dir, 4096);
+    long first = outbox.appendRequestSync(USER_ID);
+    long second = outbox.appendRequestSync("other-user");
+    outbox.ack(first);
+    outbox.close();
+
+    Outbox reopened = new Outbox(dir, 4096);
+    List<Outbox.Entry> pending = reopened.pending();
+    assertEquals(1, pending.size());
+    assertEquals(second, pending.get(0).seq);
+    assertEquals(Outbox.REQUEST_SYNC, pending.get(0).type);
+    assertEquals("other-user", pending.get(0).payloadString());
+    assertTrue(reopened.appendRequestSync(USER_ID) > second);
+  }
+
+  @Test
+  void testCompactsAcknowledgedEntries() throws IOException {
+    Outbox outbox = new Outbox(dir, 1024);
+    long kept = outbox.appendRequestSync(USER_ID);
+    for (int i = 0; i < 1000; i++) {
+      outbox.ack(outbox.appendRequestSync(USER_ID + i));
+    }
+    assertEquals(1, outbox.pendingCount());
+    outbox.close();
+
+    Outbox reopened = new Outbox(dir, 1024);
+    assertEquals(1, reopened.pendingCount());
+    assertEquals(kept, reopened.pending().get(0).seq);
+  }
+
+  @Test
+  void testDrainRetriesWithBackoff() throws IOException {
+    Outbox outbox = new Outbox(dir, 4096);
+    outbox.appendRequestSync(USER_ID);
+    List<String> delivered = new ArrayList<>();
+    Outbox.Handler failing =
+        entry -> {
+          throw new IOException("unavailable");
+        };
+
+    outbox.drain(failing, 0, 60000, 60000);
+    assertEquals(1, outbox.pending().get(0).attempts);
+    // Backing off, so the entry is not attempted again yet.
+    outbox.drain(entry -> delivered.add(entry.payloadString()), 0, 60000, 60000);
+    assertTrue(delivered.isEmpty());
+
+    outbox.pending().get(0).nextAttemptMillis = 0;
+    outbox.drain(entry -> delivered.add(entry.payloadString()), 0, 60000, 60000);
+    assertEquals(1, delivered.size());
+    outbox.close();
+    assertEquals(0, new Outbox(dir, 4096).pendingCount());
+  }
+
+  @Test
+  void testRefusesADirectoryThatIsAlreadyOpen() throws IOException {
+    Outbox outbox = new Outbox(dir, 4096);
+    assertThrows(IOException.class, () -> new Outbox(dir, 4096));
+    outbox.close();
+    new Outbox(dir, 4096).close();
+  }
+
+  @Test
+  void testNeverRedeliversSupersededStates() throws IOException {
+    Outbox outbox = new Outbox(dir, 4096);
+    outbox.appendReportState(USER_ID, devices("light", "on", false, "brightness", 10));
+    outbox.appendReportState(USER_ID, devices("light", "brightness", 80));
+    long newest = outbox.appendReportState(USER_ID, devices("light", "on", true));
+    // The newest report was sent; the older ones were dropped or failed.
+    outbox.ack(newest);
+
+    List<String> delivered = new ArrayList<>();
+    outbox.drain(entry -> delivered.add(entry.payloadString()), 0, 60000, 60000);
+    assertEquals(1, delivered.size());
+    assertEquals(
+        Outbox.reportStatePayload(USER_ID, devices("light", "brightness", 80)), delivered.get(0));
+    assertEquals(0, outbox.pendingCount());
+  }
+
+  @Test
+  void testCompactionDropsSupersededStates() throws IOException {
+    Outbox outbox = new Outbox(dir, 1024);
+    outbox.appendReportState(USER_ID, devices("light", "on", false, "brightness", 10));
+    for (int i = 0; i < 100; i++) {
+      outbox.ack(outbox.appendReportState(USER_ID, devices("light", "on", i % 2 == 0)));
+    }
+    outbox.close();
+
+    // Only the brightness is left to redeliver, even though the newer reports are gone.
+    Outbox reopened = new Outbox(dir, 1024);
+    List<String> delivered = new ArrayList<>();
+    reopened.drain(entry -> delivered.add(entry.payloadString()), 0, 60000, 60000);
+    assertEquals(
+        Collections.singletonList(
+            Outbox.reportStatePayload(USER_ID, devices("light", "brightness", 10.0))),
+        delivered);
+  }
+
+  @Test
+  void testRecordsNothingWhenOff() throws IOException {
+    Outbox off = Outbox.open(null);
+    assertFalse(off.isEnabled());
+    assertEquals(-1, off.appendRequestSync(USER_ID));
+    assertEquals(-1, off.appendReportState(USER_ID, devices("light", "on", true)));
+    off.ack(-1);
+    assertEquals(0, off.pendingCount());
+
+    // A directory that is already open fails soft instead of throwing.
+    Outbox outbox = new Outbox(dir, 4096);
+    assertFalse(Outbox.open(dir.toString()).isEnabled());
+    outbox.close();
+    Outbox reopened = Outbox.open(dir.toString());
+    assertTrue(reopened.isEnabled());
+    reopened.close();
+  }
+
+  @Test
+  void testHandedOffEntriesWaitForTheirAck() throws IOException {
+    Outbox outbox = new Outbox(dir, 4096);
+    long seq = outbox.appendRequestSync(USER_ID);
+    List<Long> handedOff = new ArrayList<>();
+    Outbox.Handler handOff = entry -> !handedOff.add(entry.seq);
+
+    outbox.drain(handOff, 0, 1000, 60000);
+    assertEquals(Collections.singletonList(seq), handedOff);
+    assertEquals(1, outbox.pendingCount());
+    // Not handed off again while whatever took it may still acknowledge it.
+    outbox.drain(handOff, 60000, 1000, 60000);
+    outbox.drain(handOff, 0, 1000, 60000);
+    assertEquals(1, handedOff.size());
+
+    outbox.ack(seq);
+    assertEquals(0, outbox.pendingCount());
+    outbox.close();
+  }
+
+  private static Map<String, Map<String, Object>> devices(String deviceId, Object... states) {
+    Map<String, Object> deviceStates = new LinkedHashMap<>();
+    for (int i = 0; i < states.length; i += 2) {
+      deviceStates.put((String) states[i], states[i + 1]);
+    }
+    return Collections.singletonMap(deviceId, deviceStates);
+  }
+}
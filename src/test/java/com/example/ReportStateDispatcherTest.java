@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportStateDispatcherTest {
+  private static final String USER_ID = "test-user-id";
+
+  @TempDir Path dir;
+  private Outbox outbox;
+  private final BlockingQueue<Map<String, Map<String, Object>>> sent = new LinkedBlockingQueue<>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    outbox = new Outbox(dir, 4096);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    outbox.close();
+  }
+
+  private ReportStateDispatcher dispatcher(long windowMillis, int maxPendingDevices) {
+    return dispatcher(windowMillis, maxPendingDevices, (app, userId, devices) -> sent.add(devices));
+  }
+
+  private ReportStateDispatcher dispatcher(
+      long windowMillis, int maxPendingDevices, ReportStateDispatcher.Sender sender) {
+    return new ReportStateDispatcher(windowMillis, maxPendingDevices, 4, 100, outbox, sender);
+  }
+
+  private static Map<String, Object> states(String key, Object value) {
+    return Collections.singletonMap(key, value);
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "timed out");
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void testCoalescesReportsOfAUser() throws InterruptedException {
+    ReportStateDispatcher dispatcher = dispatcher(100, 100);
+    assertTrue(dispatcher.submit(null, USER_ID, "lamp", states("on", true)));
+    assertTrue(dispatcher.submit(null, USER_ID, "lamp", states("brightness", 40)));
+    assertTrue(dispatcher.submit(null, USER_ID, "fan", states("on", false)));
+
+    Map<String, Map<String, Object>> devices = sent.poll(5, TimeUnit.SECONDS);
+    Map<String, Object> lamp = new HashMap<>();
+    lamp.put("on", true);
+    lamp.put("brightness", 40);
+    assertEquals(lamp, devices.get("lamp"));
+    assertEquals(states("on", false), devices.get("fan"));
+    assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(3, dispatcher.getSubmitted());
+    assertEquals(1, dispatcher.getCoalesced());
+
+    await(() -> dispatcher.getSent() == 1);
+    assertEquals(0, outbox.pendingCount());
+  }
+
+  @Test
+  void testWaitsForTheWindow() throws InterruptedException {
+    ReportStateDispatcher dispatcher = dispatcher(300, 100);
+    long start = System.nanoTime();
+    dispatcher.submit(null, USER_ID, "lamp", states("on", true));
+
+    assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    assertNotNull(sent.poll(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+  }
+
+  @Test
+  void testSendsOneBatchOfAUserAtATime() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    ReportStateDispatcher dispatcher =
+        dispatcher(
+            10,
+            100,
+            (app, userId, devices) -> {
+              sent.add(devices);
+              release.await();
+            });
+    dispatcher.submit(null, USER_ID, "lamp", states("on", true));
+    assertEquals(states("on", true), sent.poll(5, TimeUnit.SECONDS).get("lamp"));
+
+    // The next batch is held while the first is in flight, and collects later reports.
+    dispatcher.submit(null, USER_ID, "lamp", states("on", false));
+    dispatcher.submit(null, USER_ID, "lamp", states("brightness", 10));
+    assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+    Map<String, Object> lamp = new HashMap<>();
+    lamp.put("on", false);
+    lamp.put("brightness", 10);
+    assertEquals(lamp, sent.poll(5, TimeUnit.SECONDS).get("lamp"));
+    await(() -> dispatcher.getSent() == 2);
+  }
+
+  @Test
+  void testLeavesFailedReportsInTheOutbox() throws InterruptedException {
+    ReportStateDispatcher dispatcher =
+        dispatcher(
+            10,
+            100,
+            (app, userId, devices) -> {
+              throw new IOException("unavailable");
+            });
+    dispatcher.submit(null, USER_ID, "lamp", states("on", true));
+
+    await(() -> dispatcher.getFailed() == 1);
+    assertEquals(1, outbox.pendingCount());
+  }
+
+  @Test
+  void testDropsDevicesOverThePendingLimit() throws InterruptedException {
+    ReportStateDispatcher dispatcher = dispatcher(100, 1);
+    assertTrue(dispatcher.submit(null, USER_ID, "lamp", states("on", true)));
+    assertFalse(dispatcher.submit(null, USER_ID, "fan", states("on", true)));
+    // A device that is already pending is merged rather than counted again.
+    assertTrue(dispatcher.submit(null, USER_ID, "lamp", states("brightness", 10)));
+    assertEquals(1, dispatcher.getDropped());
+
+    assertEquals(Collections.singleton("lamp"), sent.poll(5, TimeUnit.SECONDS).keySet());
+    await(() -> dispatcher.getSent() == 1);
+    // The report with the dropped device stays in the outbox to be redelivered.
+    assertEquals(1, outbox.pendingCount());
+    assertEquals(0, dispatcher.getPendingDevices());
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ReportedStatesTest {
+  private static final String USER_ID = "test-user-id";
+  private static final String DEVICE_ID = "test-device-id";
+
+  private static Map<String, Object> states(boolean on, double brightness) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("on", on);
+    states.put("brightness", brightness);
+    return states;
+  }
+
+  @Test
+  void testSendsOnlyChangedFields() {
+    ReportedStates reported = new ReportedStates(100, 1, TimeUnit.HOURS);
+    Map<String, Object> first = reported.delta(USER_ID, DEVICE_ID, states(true, 50));
+    assertEquals(2, first.size());
+    reported.record(USER_ID, DEVICE_ID, first);
+
+    Map<String, Object> second = reported.delta(USER_ID, DEVICE_ID, states(true, 80));
+    assertEquals(1, second.size());
+    assertEquals(80.0, second.get("brightness"));
+  }
+
+  @Test
+  void testSuppressesIdenticalReports() {
+    ReportedStates reported = new ReportedStates(100, 1, TimeUnit.HOURS);
+    reported.record(USER_ID, DEVICE_ID, states(true, 50));
+    Map<String, Object> fromFirestore = new HashMap<>();
+    fromFirestore.put("on", true);
+    fromFirestore.put("brightness", 50L);
+    assertTrue(reported.delta(USER_ID, DEVICE_ID, fromFirestore).isEmpty());
+    assertEquals(1, reported.getDevicesSuppressed());
+    assertEquals(1.0, reported.getSuppressionRatio());
+  }
+
+  @Test
+  void testUnrecordedDeltaIsResent() {
+    ReportedStates reported = new ReportedStates(100, 1, TimeUnit.HOURS);
+    reported.delta(USER_ID, DEVICE_ID, states(true, 50));
+    // Not recorded, e.g. because the request failed.
+    assertEquals(2, reported.delta(USER_ID, DEVICE_ID, states(true, 50)).size());
+  }
+
+  @Test
+  void testInvalidateAndExpiry() {
+    ReportedStates reported = new ReportedStates(100, 1, TimeUnit.HOURS);
+    reported.record(USER_ID, DEVICE_ID, states(true, 50));
+    reported.invalidateUser(USER_ID);
+    assertEquals(2, reported.delta(USER_ID, DEVICE_ID, states(true, 50)).size());
+
+    ReportedStates expiring = new ReportedStates(100, 0, TimeUnit.SECONDS);
+    expiring.record(USER_ID, DEVICE_ID, states(true, 50));
+    assertEquals(2, expiring.delta(USER_ID, DEVICE_ID, states(true, 50)).size());
+  }
+
+  @Test
+  void testClaimRecordsTheDeltaAtomically() {
+    ReportedStates reported = new ReportedStates(10, 1, TimeUnit.HOURS);
+    assertEquals(2, reported.claim(USER_ID, DEVICE_ID, states(true, 50)).size());
+    // A concurrent report of the same states is already covered by the first one.
+    assertTrue(reported.claim(USER_ID, DEVICE_ID, states(true, 50)).isEmpty());
+    assertEquals(1, reported.claim(USER_ID, DEVICE_ID, states(true, 80)).size());
+
+    reported.invalidate(USER_ID, DEVICE_ID);
+    assertEquals(2, reported.claim(USER_ID, DEVICE_ID, states(true, 80)).size());
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RequestSyncSchedulerTest {
+  private static final String USER_ID = "test-user-id";
+
+  @TempDir Path dir;
+  private Outbox outbox;
+  private final BlockingQueue<String> requested = new LinkedBlockingQueue<>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    outbox = new Outbox(dir, 4096);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    outbox.close();
+  }
+
+  private RequestSyncScheduler scheduler(long quietMillis, long maxDelayMillis) {
+    return new RequestSyncScheduler(
+        quietMillis, maxDelayMillis, 2, outbox, (app, userId) -> requested.add(userId));
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "timed out");
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void testCoalescesABurstIntoOneSync() throws InterruptedException {
+    RequestSyncScheduler scheduler = scheduler(200, 10000);
+    long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      scheduler.schedule(null, USER_ID, outbox.appendRequestSync(USER_ID));
+    }
+    scheduler.schedule(null, "other-user", -1);
+
+    assertNull(requested.poll(100, TimeUnit.MILLISECONDS));
+    Set<String> users = new HashSet<>();
+    users.add(requested.poll(5, TimeUnit.SECONDS));
+    users.add(requested.poll(5, TimeUnit.SECONDS));
+    assertEquals(new HashSet<>(Arrays.asList(USER_ID, "other-user")), users);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    await(() -> scheduler.getRequested() == 2);
+    assertNull(requested.poll(300, TimeUnit.MILLISECONDS));
+    assertEquals(4, scheduler.getCoalesced());
+    assertEquals(0, outbox.pendingCount());
+    assertEquals(0, scheduler.getPendingUsers());
+  }
+
+  @Test
+  void testQuietWindowRestartsWithEveryChange() throws InterruptedException {
+    RequestSyncScheduler scheduler = scheduler(200, 10000);
+    long start = System.nanoTime();
+    scheduler.schedule(null, USER_ID, -1);
+    Thread.sleep(150);
+    scheduler.schedule(null, USER_ID, -1);
+
+    assertEquals(USER_ID, requested.poll(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(350));
+  }
+
+  @Test
+  void testSendsWithinTheMaximumDelay() throws InterruptedException {
+    RequestSyncScheduler scheduler = scheduler(200, 500);
+    long start = System.nanoTime();
+    // Changes every 100 ms would postpone the sync forever without the maximum delay.
+    while (requested.isEmpty()) {
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "never sent");
+      scheduler.schedule(null, USER_ID, -1);
+      Thread.sleep(100);
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  @Test
+  void testLeavesFailedSyncsInTheOutbox() throws InterruptedException {
+    RequestSyncScheduler scheduler =
+        new RequestSyncScheduler(
+            10,
+            10,
+            2,
+            outbox,
+            (app, userId) -> {
+              throw new IOException("unavailable");
+            });
+    scheduler.schedule(null, USER_ID, outbox.appendRequestSync(USER_ID));
+
+    await(() -> scheduler.getFailed() == 1);
+    assertEquals(1, outbox.pendingCount());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentLogTest {
+  @TempDir Path dir;
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] value) {
+    return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+  }
+
+  @Test
+  void testRecoversAfterReopen() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    log.put("light", bytes("on"));
+    log.put("light", bytes("off"));
+    log.put("fan", bytes("on"));
+    log.put("door", bytes("open"));
+    log.delete("door");
+    assertEquals("off", string(log.get("light")));
+    assertNull(log.get("door"));
+    log.close();
+
+    SegmentLog reopened = new SegmentLog(dir, 4096, 16);
+    assertEquals("off", string(reopened.get("light")));
+    assertEquals("on", string(reopened.get("fan")));
+    assertNull(reopened.get("door"));
+    assertEquals(2, reopened.size());
+    reopened.close();
+  }
+
+  @Test
+  void testDropsTornRecordAfterCrash() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    log.put("a", bytes("1"));
+    log.force();
+    // Not forced, as if the process stopped while writing the record.
+    log.put("b", bytes("2"));
+    log.abandon();
+    int valueOffsetOfB = 15 + 8 + 5 + 1;
+    try (FileChannel segment =
+        FileChannel.open(dir.resolve("00000001.log"), StandardOpenOption.WRITE)) {
+      segment.write(ByteBuffer.wrap(bytes("x")), valueOffsetOfB);
+    }
+
+    SegmentLog reopened = new SegmentLog(dir, 4096, 16);
+    assertEquals("1", string(reopened.get("a")));
+    assertNull(reopened.get("b"));
+    reopened.put("c", bytes("3"));
+    reopened.close();
+
+    SegmentLog again = new SegmentLog(dir, 4096, 16);
+    assertEquals("3", string(again.get("c")));
+    assertEquals(2, again.size());
+    again.close();
+  }
+
+  @Test
+  void testCompactsOverwrittenSegments() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 256, 16);
+    for (int i = 0; i < 200; i++) {
+      log.put("key" + (i % 4), bytes("value" + i));
+    }
+    log.delete("key3");
+    int segments = log.segmentCount();
+    while (log.compact(0.5)) {}
+    assertTrue(log.segmentCount() < segments);
+    assertTrue(log.getCompactions() > 0);
+    assertEquals("value196", string(log.get("key0")));
+    assertEquals("value198", string(log.get("key2")));
+    assertNull(log.get("key3"));
+    log.close();
+
+    SegmentLog reopened = new SegmentLog(dir, 256, 16);
+    assertEquals("value197", string(reopened.get("key1")));
+    assertNull(reopened.get("key3"));
+    assertEquals(3, reopened.size());
+    reopened.close();
+  }
+
+  @Test
+  void testGrowsIndex() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 1 << 16, 16);
+    for (int i = 0; i < 1000; i++) {
+      log.put("device" + i, bytes(Integer.toString(i)));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      log.delete("device" + i);
+    }
+    assertEquals(500, log.size());
+    log.close();
+
+    SegmentLog reopened = new SegmentLog(dir, 1 << 16, 16);
+    assertEquals(500, reopened.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i % 2 == 0 ? null : Integer.toString(i), string(reopened.get("device" + i)));
+    }
+    reopened.close();
+  }
+
+  @Test
+  void testRefusesADirectoryThatIsAlreadyOpen() throws IOException {
+    SegmentLog log = new SegmentLog(dir, 4096, 16);
+    assertThrows(IOException.class, () -> new SegmentLog(dir, 4096, 16));
+    log.close();
+    new SegmentLog(dir, 4096, 16).close();
+  }
+}
@@ -31,8 +31,6 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-
 class SmarHomeEndToEndTest {
   private static final String USER_ID = "test-user-id";
   private static final String DEVICE_ID = "test-device-id";
@@ -41,6 +39,11 @@ class SmarHomeEndToEndTest {
   private static final String DEVICE_TYPE = "action.devices.types.LIGHT";
   private static final String DEVICE_PLACEHOLDER = "test-device-placeholder";
   private static final String REQUEST_ID = "request-id";
+  // The server under test only sees writes made here if both use Firestore. The in-memory and log
+  // stores belong to the server's JVM alone, so they are seeded through MEMORY_STORE_USERS and
+  // LOG_STORE_USERS and checked through the server's endpoints.
+  private static final boolean SHARED_DATA_STORE =
+      "firestore".equals(Config.getString("DATA_STORE", "firestore"));
 
   @BeforeAll()
   static void initAll() throws ExecutionException, InterruptedException {
@@ -50,12 +53,16 @@ class SmarHomeEndToEndTest {
     }
     testUser.put("fakeAccessToken", "123access");
     testUser.put("fakeRefreshToken", "123refresh");
-    MyDataStore.getInstance().database.collection("users").document(USER_ID).set(testUser).get();
+    if (SHARED_DATA_STORE) {
+      MyDataStore.getInstance().setUser(USER_ID, testUser);
+    }
   }
 
   @AfterAll()
   static void tearDownAll() throws ExecutionException, InterruptedException {
-    MyDataStore.getInstance().database.collection("users").document(USER_ID).delete().get();
+    if (SHARED_DATA_STORE) {
+      MyDataStore.getInstance().deleteUser(USER_ID);
+    }
   }
 
   @Test
@@ -84,8 +91,11 @@ class SmarHomeEndToEndTest {
         .then()
         .statusCode(200);
 
-    QueryDocumentSnapshot deviceCreated = MyDataStore.getInstance().getDevices(USER_ID).get(0);
-    assertEquals(DEVICE_ID, deviceCreated.get("deviceId"));
+    if (SHARED_DATA_STORE) {
+      Map<String, Object> deviceCreated =
+          MyDataStore.getInstance().getDevices(USER_ID).get(DEVICE_ID);
+      assertEquals(DEVICE_ID, deviceCreated.get("deviceId"));
+    }
 
     Map<String, Object> syncRequest = new HashMap<>();
     syncRequest.put("requestId", REQUEST_ID);
@@ -120,8 +130,19 @@ class SmarHomeEndToEndTest {
         .then()
         .statusCode(200);
 
-    QueryDocumentSnapshot deviceUpdated = MyDataStore.getInstance().getDevices(USER_ID).get(0);
-    assertEquals(DEVICE_NAME_UPDATED, deviceUpdated.get("name"));
+    if (SHARED_DATA_STORE) {
+      Map<String, Object> deviceUpdated =
+          MyDataStore.getInstance().getDevices(USER_ID).get(DEVICE_ID);
+      assertEquals(DEVICE_NAME_UPDATED, deviceUpdated.get("name"));
+    }
+    given()
+        .contentType("application/json")
+        .body(syncRequest)
+        .when()
+        .post("/smarthome")
+        .then()
+        .statusCode(200)
+        .body("payload.devices[0].name.name", equalTo(DEVICE_NAME_UPDATED));
 
     Map<String, Object> deviceDelete = new HashMap<>();
     deviceDelete.put("userId", USER_ID);
@@ -134,6 +155,16 @@ class SmarHomeEndToEndTest {
         .then()
         .statusCode(200);
 
-    assertEquals(0, MyDataStore.getInstance().getDevices(USER_ID).size());
+    if (SHARED_DATA_STORE) {
+      assertEquals(0, MyDataStore.getInstance().getDevices(USER_ID).size());
+    }
+    given()
+        .contentType("application/json")
+        .body(syncRequest)
+        .when()
+        .post("/smarthome")
+        .then()
+        .statusCode(200)
+        .body("payload.devices", empty());
   }
 }
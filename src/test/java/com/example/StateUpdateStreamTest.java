@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.api.core.SettableApiFuture;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+class StateUpdateStreamTest {
+  private static final String USER_ID = "test-user-id";
+
+  private final InMemoryDeviceRepository repository = new InMemoryDeviceRepository();
+  private final Map<String, Map<String, Object>> reported = new LinkedHashMap<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @BeforeEach
+  void setUp() {
+    for (String deviceId : new String[] {"lamp", "fan"}) {
+      Map<String, Object> device = new HashMap<>();
+      device.put("deviceId", deviceId);
+      device.put("states", new HashMap<>(Collections.singletonMap("on", false)));
+      repository.addDevice(USER_ID, deviceId, device);
+    }
+  }
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private JsonObject write(int batchSize, StateUpdateStream.StateWriter writer, String... lines)
+      throws IOException, InterruptedException {
+    StateUpdateStream stream =
+        new StateUpdateStream(batchSize, 4, writer, (userId, written) -> reported.putAll(written));
+    return stream.write(new BufferedReader(new StringReader(String.join("\n", lines))));
+  }
+
+  private static String update(String deviceId, String states) {
+    return "{\"userId\":\""
+        + USER_ID
+        + "\",\"deviceId\":\""
+        + deviceId
+        + "\",\"states\":"
+        + states
+        + "}";
+  }
+
+  @Test
+  void testReportsBadLinesWithTheirLineNumbers() throws Exception {
+    JsonObject summary =
+        write(
+            10,
+            repository::mergeStates,
+            update("lamp", "{\"on\":true}"),
+            "",
+            "{\"userId\": \"unterminated",
+            "[1, 2]",
+            update("fan", "{}"),
+            update("fan", "{\"on\":true}"));
+
+    assertEquals(5, summary.get("received").getAsInt());
+    assertEquals(2, summary.get("written").getAsInt());
+    assertEquals(3, summary.get("failed").getAsInt());
+    JsonArray errors = summary.getAsJsonArray("errors");
+    assertEquals(3, errors.get(0).getAsJsonObject().get("line").getAsInt());
+    assertTrue(errors.get(0).getAsJsonObject().get("error").getAsString().startsWith("malformed"));
+    assertEquals(4, errors.get(1).getAsJsonObject().get("line").getAsInt());
+    assertEquals(5, errors.get(2).getAsJsonObject().get("line").getAsInt());
+    assertEquals(true, repository.getState(USER_ID, "fan").get("on"));
+  }
+
+  @Test
+  void testReportsUnknownDevicesOfAFailedBatch() throws Exception {
+    JsonObject summary =
+        write(
+            10,
+            repository::mergeStates,
+            update("lamp", "{\"on\":true}"),
+            update("ghost", "{\"on\":true}"));
+
+    assertEquals(1, summary.get("written").getAsInt());
+    assertEquals(1, summary.get("failed").getAsInt());
+    JsonObject error = summary.getAsJsonArray("errors").get(0).getAsJsonObject();
+    assertEquals(USER_ID, error.get("userId").getAsString());
+    assertEquals("ghost", error.get("deviceId").getAsString());
+    assertFalse(error.has("line"));
+    assertEquals(Collections.singleton("lamp"), reported.keySet());
+    assertEquals(true, repository.getState(USER_ID, "lamp").get("on"));
+  }
+
+  @Test
+  void testMergesRepeatedUpdatesOfADeviceInABatch() throws Exception {
+    JsonObject summary =
+        write(
+            10,
+            repository::mergeStates,
+            update("lamp", "{\"on\":true}"),
+            update("lamp", "{\"brightness\":40}"));
+
+    assertEquals(2, summary.get("received").getAsInt());
+    assertEquals(1, summary.get("written").getAsInt());
+    assertEquals(true, reported.get("lamp").get("on"));
+    assertEquals(40.0, reported.get("lamp").get("brightness"));
+  }
+
+  @Test
+  void testKeepsTheOrderOfUpdatesToADevice() throws Exception {
+    // The first batch is written last unless the stream waits for it.
+    AtomicInteger calls = new AtomicInteger();
+    StateUpdateStream.StateWriter slowFirst =
+        statesByUser -> {
+          long delay = calls.getAndIncrement() == 0 ? 200 : 0;
+          SettableApiFuture<Void> done = SettableApiFuture.create();
+          executor.execute(
+              () -> {
+                try {
+                  Thread.sleep(delay);
+                  repository.mergeStates(statesByUser).get();
+                  done.set(null);
+                } catch (Exception e) {
+                  done.setException(e);
+                }
+              });
+          return done;
+        };
+
+    JsonObject summary =
+        write(
+            1,
+            slowFirst,
+            update("lamp", "{\"brightness\":10}"),
+            update("fan", "{\"on\":true}"),
+            update("lamp", "{\"brightness\":20}"));
+
+    assertEquals(3, summary.get("written").getAsInt());
+    assertEquals(20.0, repository.getState(USER_ID, "lamp").get("brightness"));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.GeoPoint;
+import com.google.gson.Gson;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+
+class StructConverterTest {
+
+  private static Map<String, Object> sampleStates() {
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRgb", 16711680L);
+    color.put("name", "red");
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", false);
+    states.put("brightness", 42L);
+    states.put("thermostatTemperatureSetpoint", 21.5);
+    states.put("color", color);
+    states.put("currentToggleSettings", new HashMap<>());
+    states.put("openState", Arrays.asList("up", 3, null));
+    states.put("errorCode", null);
+    return states;
+  }
+
+  private static Struct parse(String json) throws InvalidProtocolBufferException {
+    Struct.Builder struct = Struct.newBuilder();
+    JsonFormat.parser().merge(json, struct);
+    return struct.build();
+  }
+
+  @Test
+  void testMatchesGsonOutput() throws InvalidProtocolBufferException {
+    Map<String, Object> states = sampleStates();
+    assertEquals(parse(new Gson().toJson(states)), StructConverter.toStruct(states));
+  }
+
+  @Test
+  void testSkipsNullAttributes() throws InvalidProtocolBufferException {
+    Map<String, Object> range = new HashMap<>();
+    range.put("minThresholdCelsius", 10L);
+    range.put("maxThresholdCelsius", null);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("temperatureRange", range);
+    attributes.put("temperatureStepCelsius", null);
+    attributes.put("availableModes", Arrays.asList("heat", null));
+
+    // Attributes used to be printed with Gson's defaults, which leave out null members.
+    Struct struct = StructConverter.toStruct(attributes);
+    assertEquals(parse(new Gson().toJson(attributes)), struct);
+    assertFalse(struct.containsFields("temperatureStepCelsius"));
+    assertFalse(
+        struct
+            .getFieldsOrThrow("temperatureRange")
+            .getStructValue()
+            .containsFields("maxThresholdCelsius"));
+    assertEquals(2, struct.getFieldsOrThrow("availableModes").getListValue().getValuesCount());
+  }
+
+  @Test
+  void testConvertsOtherTypesLikeGson() throws InvalidProtocolBufferException {
+    Map<String, Object> states = new HashMap<>();
+    states.put("lastSeen", Timestamp.ofTimeSecondsAndNanos(1600000000L, 5));
+    states.put("location", new GeoPoint(51.5, -0.12));
+    assertEquals(parse(new Gson().toJson(states)), StructConverter.toDeviceStates(states));
+  }
+
+  @Test
+  void testRenamesSpectrumRgb() {
+    Map<String, Object> states = sampleStates();
+    Struct fromMap = StructConverter.toDeviceStates(states);
+    Struct color = fromMap.getFieldsOrThrow("color").getStructValue();
+    assertFalse(color.containsFields("spectrumRgb"));
+    assertEquals(16711680, color.getFieldsOrThrow("spectrumRGB").getNumberValue());
+    assertEquals("red", color.getFieldsOrThrow("name").getStringValue());
+    // The input is left untouched.
+    assertTrue(((Map<?, ?>) states.get("color")).containsKey("spectrumRgb"));
+  }
+
+  @Test
+  void testDeviceStatesSkipNullsLikeGson() throws InvalidProtocolBufferException {
+    Map<String, Object> states = sampleStates();
+    Map<String, Object> toggles = new HashMap<>();
+    toggles.put("quiet", true);
+    toggles.put("turbo", null);
+    states.put("currentToggleSettings", toggles);
+    ((Map<String, Object>) states.get("color")).put("temperatureK", null);
+
+    // States used to be printed with Gson's defaults, which leave out null members.
+    String json = new Gson().toJson(states);
+    Struct expected = parse(json.replace("spectrumRgb", "spectrumRGB"));
+    Struct fromMap = StructConverter.toDeviceStates(states);
+    assertEquals(expected, fromMap);
+    assertFalse(fromMap.containsFields("errorCode"));
+    assertFalse(
+        fromMap.getFieldsOrThrow("currentToggleSettings").getStructValue().containsFields("turbo"));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.SyncResponse;
+
+class SyncCacheTest {
+  private static final String USER_ID = "test-user-id";
+
+  @Test
+  void testServesMatchingVersionOnly() {
+    SyncCache<SyncResponse.Payload.Device[]> cache = new SyncCache<>(10, 0, TimeUnit.MILLISECONDS);
+    SyncResponse.Payload.Device[] devices = new SyncResponse.Payload.Device[1];
+    cache.put(USER_ID, 3, devices);
+    assertSame(devices, cache.get(USER_ID, 3));
+    assertNull(cache.get(USER_ID, 4));
+    assertNull(cache.getFresh(USER_ID));
+
+    // An older build never replaces a newer one.
+    cache.put(USER_ID, 2, new SyncResponse.Payload.Device[0]);
+    assertSame(devices, cache.get(USER_ID, 3));
+  }
+
+  @Test
+  void testStalenessWindowAndInvalidate() {
+    SyncCache<SyncResponse.Payload.Device[]> cache = new SyncCache<>(10, 1, TimeUnit.HOURS);
+    cache.put(USER_ID, 1, new SyncResponse.Payload.Device[0]);
+    assertNotNull(cache.getFresh(USER_ID));
+    cache.invalidate(USER_ID);
+    assertNull(cache.getFresh(USER_ID));
+    assertNull(cache.get(USER_ID, 1));
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+class SyncFragmentTest {
+
+  @Test
+  void testRenderAndAssemble() {
+    Map<String, Object> device = new HashMap<>();
+    device.put("type", "action.devices.types.LIGHT");
+    device.put("traits", Arrays.asList("action.devices.traits.OnOff"));
+    device.put("name", "Lamp");
+    device.put("defaultNames", Arrays.asList("Lamp"));
+    device.put("willReportState", true);
+    device.put("manufacturer", "L-Corp");
+    device.put("attributes", Collections.singletonMap("colorModel", "rgb"));
+    device.put("states", Collections.singletonMap("on", true));
+
+    String fragment = SyncFragment.render("lamp-1", device);
+    String response =
+        SyncFragment.response(
+            "req-\"1\"", "user-1", SyncFragment.join(Arrays.asList(fragment, fragment)));
+
+    JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+    assertEquals("req-\"1\"", json.get("requestId").getAsString());
+    JsonObject payload = json.getAsJsonObject("payload");
+    assertEquals("user-1", payload.get("agentUserId").getAsString());
+    assertEquals(2, payload.getAsJsonArray("devices").size());
+    JsonObject rendered = payload.getAsJsonArray("devices").get(0).getAsJsonObject();
+    assertEquals("lamp-1", rendered.get("id").getAsString());
+    assertEquals("Lamp", rendered.getAsJsonObject("name").get("name").getAsString());
+    assertEquals(
+        "L-Corp", rendered.getAsJsonObject("deviceInfo").get("manufacturer").getAsString());
+    assertEquals("rgb", rendered.getAsJsonObject("attributes").get("colorModel").getAsString());
+    assertFalse(rendered.has("states"));
+    assertFalse(rendered.has("roomHint"));
+  }
+
+  @Test
+  void testRendersCustomDataAsOnSyncDoes() {
+    Map<String, Object> customData = new HashMap<>();
+    customData.put("fooValue", 74L);
+    customData.put("barValue", true);
+    customData.put("bazValue", "foo");
+    Map<String, Object> device = new HashMap<>();
+    device.put("type", "action.devices.types.LIGHT");
+    device.put("name", "Lamp");
+    device.put("customData", customData);
+
+    JsonObject rendered =
+        JsonParser.parseString(SyncFragment.render("lamp-1", device)).getAsJsonObject();
+    // onSync passes SyncFragment.customData to the SDK, which sends it as a JSON string.
+    assertTrue(rendered.get("customData").getAsJsonPrimitive().isString());
+    assertEquals(SyncFragment.customData(customData), rendered.get("customData").getAsString());
+    JsonObject parsed =
+        JsonParser.parseString(rendered.get("customData").getAsString()).getAsJsonObject();
+    assertEquals(74, parsed.get("fooValue").getAsInt());
+    assertTrue(parsed.get("barValue").getAsBoolean());
+    assertEquals("foo", parsed.get("bazValue").getAsString());
+  }
+
+  @Test
+  void testEmptyDeviceList() {
+    assertEquals("[]", SyncFragment.join(Collections.emptyList()));
+  }
+}
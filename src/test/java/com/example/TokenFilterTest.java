@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.jupiter.api.Test;
+
+class TokenFilterTest {
+  private static final int TOKENS = 10000;
+
+  @Test
+  void testNoFalseNegatives() {
+    TokenFilter filter = new TokenFilter(consumer -> consumer.accept(hash(0)), 0.001);
+    assertTrue(filter.mightContain(hash(1)), "an unbuilt filter lets every token through");
+    filter.rebuild();
+    filter.add(hash(1));
+    assertTrue(filter.mightContain(hash(0)));
+    assertTrue(filter.mightContain(hash(1)));
+  }
+
+  @Test
+  void testFalsePositiveRate() {
+    TokenFilter filter =
+        new TokenFilter(
+            consumer -> {
+              for (int i = 0; i < TOKENS; i++) {
+                consumer.accept(hash(i));
+              }
+            },
+            0.01);
+    filter.rebuild();
+    int falsePositives = 0;
+    for (int i = TOKENS; i < 2 * TOKENS; i++) {
+      if (filter.mightContain(hash(i))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < TOKENS * 0.02, "false positives: " + falsePositives);
+    assertTrue(filter.getExpectedFalsePositiveRate() < 0.02);
+    assertEquals(TOKENS - falsePositives, filter.getRejected());
+  }
+
+  private static String hash(int i) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256")
+              .digest(("token-" + i).getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TracingTest {
+  private final BlockingQueue<List<Tracing.Span>> exported = new LinkedBlockingQueue<>();
+
+  private Tracing newTracing(double sampleRatio, long slowMillis, int maxSpans) {
+    return new Tracing(
+        true,
+        sampleRatio,
+        slowMillis,
+        maxSpans,
+        10,
+        new Tracing.Collector(10),
+        Collections.singletonList(exported::add));
+  }
+
+  @Test
+  void testChildSpansJoinTheActiveTrace() throws Exception {
+    Tracing tracing = newTracing(1, 60000, 100);
+    Tracing.Span root = tracing.startSpan("root");
+    try (Tracing.Scope scope = root.activate()) {
+      Tracing.Span child = tracing.startSpan("child").setAttribute("deviceId", "light");
+      Thread other = new Thread(Tracing.wrap(() -> tracing.startSpan("async").end()));
+      other.start();
+      other.join();
+      child.end();
+    }
+    root.end();
+
+    List<Tracing.Span> spans = exported.poll(5, TimeUnit.SECONDS);
+    assertNotNull(spans);
+    assertEquals(3, spans.size());
+    Tracing.Span last = spans.get(2);
+    assertEquals("root", last.getName());
+    assertNull(last.getParentId());
+    for (Tracing.Span span : spans.subList(0, 2)) {
+      assertEquals(last.getTraceId(), span.getTraceId());
+      assertEquals(last.getSpanId(), span.getParentId());
+    }
+    assertEquals("light", spans.get(1).getAttributes().get("deviceId"));
+    assertEquals(1, tracing.getCollector().getTraces().size());
+
+    // The scope restored the thread, so the next span starts a new trace.
+    Tracing.Span next = tracing.startSpan("next");
+    assertNull(next.getParentId());
+    assertNotEquals(last.getTraceId(), next.getTraceId());
+  }
+
+  @Test
+  void testTailSamplingKeepsFailedAndSlowTraces() throws Exception {
+    Tracing tracing = newTracing(0, 20, 100);
+    tracing.startSpan("fast").end();
+
+    Tracing.Span failed = tracing.startSpan("failed");
+    try (Tracing.Scope scope = failed.activate()) {
+      tracing.startSpan("datastore.getState").end(true);
+    }
+    failed.end();
+
+    Tracing.Span slow = tracing.startSpan("slow");
+    Thread.sleep(30);
+    slow.end();
+
+    assertEquals("failed", last(exported.poll(5, TimeUnit.SECONDS)).getName());
+    assertEquals("slow", last(exported.poll(5, TimeUnit.SECONDS)).getName());
+    assertNull(exported.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(3, tracing.getStarted());
+    assertEquals(1, tracing.getDiscarded());
+  }
+
+  @Test
+  void testTracesRecordBoundedSpans() throws Exception {
+    Tracing tracing = newTracing(1, 60000, 3);
+    Tracing.Span root = tracing.startSpan("root");
+    try (Tracing.Scope scope = root.activate()) {
+      for (int i = 0; i < 10; i++) {
+        tracing.startSpan("child").end();
+      }
+    }
+    root.end();
+    assertEquals(3, exported.poll(5, TimeUnit.SECONDS).size());
+  }
+
+  private static Tracing.Span last(List<Tracing.Span> spans) {
+    assertNotNull(spans);
+    return spans.get(spans.size() - 1);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class UserIdCacheTest {
+
+  @Test
+  void testCachesLookups() {
+    UserIdCache cache = new UserIdCache(10, 1, TimeUnit.HOURS);
+    assertNull(cache.get("token"));
+    cache.put("token", "user");
+    assertEquals("user", cache.get("token"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  void testExpiresLookups() throws InterruptedException {
+    UserIdCache cache = new UserIdCache(10, 10, TimeUnit.MILLISECONDS);
+    cache.put("token", "user");
+    Thread.sleep(20);
+    assertNull(cache.get("token"));
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsed() {
+    UserIdCache cache = new UserIdCache(2, 1, TimeUnit.HOURS);
+    cache.put("a", "user-a");
+    cache.put("b", "user-b");
+    // Reading a makes b the least recently used entry.
+    assertEquals("user-a", cache.get("a"));
+    cache.put("c", "user-c");
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get("b"));
+    assertEquals("user-a", cache.get("a"));
+    assertEquals("user-c", cache.get("c"));
+  }
+
+  @Test
+  void testInvalidateUser() {
+    UserIdCache cache = new UserIdCache(10, 1, TimeUnit.HOURS);
+    cache.put("old", "user");
+    cache.put("new", "user");
+    cache.put("other", "other-user");
+    cache.invalidateUser("user");
+    assertNull(cache.get("old"));
+    assertNull(cache.get("new"));
+    assertEquals("other-user", cache.get("other"));
+  }
+}